@@ -0,0 +1,143 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A connection that is not connected to any server, used to measure the code that
+ * processes packets without any network activity. Sent packets are serialized to a writer
+ * that discards its output, and incoming packets are injected with
+ * {@link #processPacket(Packet)}, which notifies the packet collectors and the packet
+ * listeners in the calling thread.
+ */
+public class InMemoryConnection extends Connection {
+
+    private final Writer sink = new NullWriter();
+    private Roster roster;
+
+    /**
+     * Creates a new connection that is logged in as <tt>bench@localhost/bench</tt>.
+     */
+    public InMemoryConnection() {
+        super(new ConnectionConfiguration("localhost"));
+    }
+
+    /**
+     * Processes an incoming packet as if it had been received from the server. The
+     * collectors and the listeners interested in the packet are notified in the calling
+     * thread.
+     *
+     * @param packet the incoming packet.
+     */
+    public void processPacket(Packet packet) {
+        collectorDispatcher.dispatch(packet);
+        for (ListenerWrapper listenerWrapper : recvListeners.values()) {
+            listenerWrapper.notifyListener(packet);
+        }
+    }
+
+    public String getUser() {
+        return "bench@localhost/bench";
+    }
+
+    public String getConnectionID() {
+        return "bench";
+    }
+
+    public boolean isConnected() {
+        return true;
+    }
+
+    public boolean isAuthenticated() {
+        return true;
+    }
+
+    public boolean isAnonymous() {
+        return false;
+    }
+
+    public boolean isSecureConnection() {
+        return false;
+    }
+
+    public boolean isUsingCompression() {
+        return false;
+    }
+
+    public void connect() {
+        // Nothing to connect to
+    }
+
+    public void login(String username, String password, String resource) {
+        // Already logged in
+    }
+
+    public void loginAnonymously() {
+        // Already logged in
+    }
+
+    /**
+     * Serializes the packet to a writer that discards its output.
+     *
+     * @param packet the packet to send.
+     */
+    public void sendPacket(Packet packet) {
+        firePacketInterceptors(packet);
+        try {
+            packet.toXML(sink);
+        }
+        catch (IOException ioe) {
+            // Never happens since the output is discarded
+        }
+        firePacketSendingListeners(packet);
+    }
+
+    public synchronized Roster getRoster() {
+        if (roster == null) {
+            roster = new Roster(this);
+        }
+        return roster;
+    }
+
+    public void disconnect(Presence unavailablePresence) {
+        // Nothing to disconnect from
+    }
+
+    /**
+     * A writer that discards everything written to it.
+     */
+    private static class NullWriter extends Writer {
+
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void write(String str, int off, int len) {
+        }
+
+        public void write(int c) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
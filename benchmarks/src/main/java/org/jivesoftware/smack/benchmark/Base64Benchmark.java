@@ -0,0 +1,105 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.util.Base64;
+import org.jivesoftware.smack.util.Base64Codec;
+import org.jivesoftware.smack.util.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Base64 encoding and decoding used for SASL, in-band bytestreams and
+ * avatars, for payloads of various sizes. The <tt>legacy</tt> benchmarks use the
+ * {@link Base64} class that StringUtils used before {@link Base64Codec}, and the
+ * <tt>streaming</tt> benchmarks encode into a reused writer and decode from a character
+ * array into a reused buffer, as packets are written to the connection and parsed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Base64Benchmark {
+
+    @Param({"64", "4096", "65536"})
+    public int size;
+
+    private byte[] data;
+    private String encoded;
+    private char[] encodedChars;
+    private StringWriter writer;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        encoded = StringUtils.encodeBase64(data);
+        encodedChars = encoded.toCharArray();
+        writer = new StringWriter(encoded.length());
+        buffer = ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public String encode() {
+        return StringUtils.encodeBase64(data);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return StringUtils.decodeBase64(encoded);
+    }
+
+    @Benchmark
+    public String legacyEncode() {
+        return Base64.encodeBytes(data, Base64.DONT_BREAK_LINES);
+    }
+
+    @Benchmark
+    public byte[] legacyDecode() {
+        return Base64.decode(encoded);
+    }
+
+    @Benchmark
+    public int streamingEncode() throws IOException {
+        StringBuffer out = writer.getBuffer();
+        out.setLength(0);
+        Base64Codec.encode(data, 0, data.length, writer);
+        return out.length();
+    }
+
+    @Benchmark
+    public int streamingDecode() {
+        buffer.clear();
+        return Base64Codec.decode(encodedChars, 0, encodedChars.length, buffer);
+    }
+}
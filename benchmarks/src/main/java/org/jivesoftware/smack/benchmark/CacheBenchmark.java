@@ -0,0 +1,116 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.util.Cache;
+import org.jivesoftware.smack.util.ConcurrentCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the contention on a cache shared by several threads, such as the caches of
+ * service discovery and entity capabilities. The key space is twice the size of the cache
+ * so that half of the lookups miss and puts evict entries. The <tt>synchronized</tt>
+ * implementation is {@link Cache} and the <tt>concurrent</tt> one is
+ * {@link ConcurrentCache}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    private static final int CACHE_SIZE = 1000;
+
+    @Param({"synchronized", "concurrent"})
+    private String implementation;
+
+    private Map<String, String> cache;
+    private String[] keys;
+
+    @Setup
+    public void setup() {
+        if (implementation.equals("concurrent")) {
+            cache = new ConcurrentCache<String, String>(CACHE_SIZE, -1);
+        }
+        else {
+            cache = new Cache<String, String>(CACHE_SIZE, -1);
+        }
+        keys = new String[CACHE_SIZE * 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "user" + i + "@example.com";
+        }
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            cache.put(keys[i * 2], keys[i * 2]);
+        }
+    }
+
+    /**
+     * The position of a thread in the key space.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int index;
+
+        @Setup
+        public void setup() {
+            index = (int) (Thread.currentThread().getId() * 7919);
+        }
+
+        String next(String[] keys) {
+            index = (index + 1) & 0x7fffffff;
+            return keys[index % keys.length];
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getOnly(Cursor cursor) {
+        return cache.get(cursor.next(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String get(Cursor cursor) {
+        return cache.get(cursor.next(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public String put(Cursor cursor) {
+        String key = cursor.next(keys);
+        return cache.put(key, key);
+    }
+}
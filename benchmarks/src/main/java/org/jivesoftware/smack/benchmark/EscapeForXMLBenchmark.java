@@ -0,0 +1,79 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the escaping of text, either plain text with nothing to escape or markup where
+ * a tenth of the characters have to be escaped.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EscapeForXMLBenchmark {
+
+    @Param({"plain", "markup"})
+    public String text;
+
+    @Param({"64", "4096"})
+    public int length;
+
+    private String input;
+    private StringBuilder buffer;
+
+    @Setup
+    public void setup() {
+        String pattern = text.equals("plain")
+                ? "Shall I hear more, or shall I speak at this "
+                : "<b>Romeo</b> & \"Juliet\" ";
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            builder.append(pattern);
+        }
+        builder.setLength(length);
+        input = builder.toString();
+        buffer = new StringBuilder(length * 2);
+    }
+
+    @Benchmark
+    public String escape() {
+        return StringUtils.escapeForXML(input);
+    }
+
+    @Benchmark
+    public int escapeStreamed() throws IOException {
+        buffer.setLength(0);
+        StringUtils.escapeForXML(input, buffer);
+        return buffer.length();
+    }
+}
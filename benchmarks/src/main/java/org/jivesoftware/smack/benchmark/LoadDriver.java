@@ -0,0 +1,340 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.benchmark.server.LoopbackServer;
+import org.jivesoftware.smack.filter.MessageTypeFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.SimpleConnectionMetrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens many connections to a server and measures the time to log in, the round trip time
+ * of IQ requests, and the throughput and latency of messages exchanged between the
+ * connections. By default the connections are made to a {@link LoopbackServer} started in
+ * the same process, so the results only depend on the client and server code. Usage:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.jivesoftware.smack.benchmark.LoadDriver [options]
+ *
+ *   -connections N   number of connections (default 10)
+ *   -pings N         IQ round trips made by each connection (default 100)
+ *   -messages N      messages sent by each connection (default 1000)
+ *   -payload N       number of characters in the body of the messages (default 64)
+ *   -window N        messages sent by each connection and not yet received, or 0 for no
+ *                    limit (default 100)
+ *   -tls             negotiate TLS
+ *   -compression     negotiate stream compression
+ *   -nio             use non-blocking I/O
+ *   -parsers N       threads that parse the incoming packets of each connection (default 1)
+ *   -host H          connect to an external server instead of the loopback server
+ *   -port P          port of the external server (default 5222)
+ *   -domain D        domain of the server (default localhost)
+ *   -password P      password of the users of an external server (default password)
+ * </pre>
+ *
+ * Connection <tt>i</tt> logs in as <tt>user<i>i</i></tt> and sends its messages to the
+ * next connection. The latency of the messages includes the time they wait in the queues
+ * of the connections, which grows with the window. With an external server, the users must exist and be contacts of the
+ * next and previous users.<p>
+ *
+ * Latencies are measured with {@link System#nanoTime()} and are only meaningful when the
+ * connections run in the same process.
+ */
+public class LoadDriver {
+
+    private int connectionCount = 10;
+    private int pings = 100;
+    private int messages = 1000;
+    private int payload = 64;
+    private int window = 100;
+    private boolean tls;
+    private boolean compression;
+    private boolean nio;
+    private int parsers = 1;
+    private String host;
+    private int port = 5222;
+    private String domain = "localhost";
+    private String password = "password";
+
+    private final List<XMPPConnection> connections = new ArrayList<XMPPConnection>();
+    private final Histogram loginTimes = new Histogram();
+    private final Histogram roundTripTimes = new Histogram();
+    private final Histogram messageLatencies = new Histogram();
+
+    public static void main(String[] args) throws Exception {
+        LoadDriver driver = new LoadDriver();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-tls")) {
+                driver.tls = true;
+            }
+            else if (arg.equals("-compression")) {
+                driver.compression = true;
+            }
+            else if (arg.equals("-nio")) {
+                driver.nio = true;
+            }
+            else if (i + 1 < args.length) {
+                String value = args[++i];
+                if (arg.equals("-connections")) {
+                    driver.connectionCount = Integer.parseInt(value);
+                }
+                else if (arg.equals("-pings")) {
+                    driver.pings = Integer.parseInt(value);
+                }
+                else if (arg.equals("-messages")) {
+                    driver.messages = Integer.parseInt(value);
+                }
+                else if (arg.equals("-payload")) {
+                    driver.payload = Integer.parseInt(value);
+                }
+                else if (arg.equals("-window")) {
+                    driver.window = Integer.parseInt(value);
+                }
+                else if (arg.equals("-parsers")) {
+                    driver.parsers = Integer.parseInt(value);
+                }
+                else if (arg.equals("-host")) {
+                    driver.host = value;
+                }
+                else if (arg.equals("-port")) {
+                    driver.port = Integer.parseInt(value);
+                }
+                else if (arg.equals("-domain")) {
+                    driver.domain = value;
+                }
+                else if (arg.equals("-password")) {
+                    driver.password = value;
+                }
+                else {
+                    usage();
+                }
+            }
+            else {
+                usage();
+            }
+        }
+        driver.run();
+        // The threads of the connections that failed to log in may still be running
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadDriver [-connections N] [-pings N] [-messages N]"
+                + " [-payload N] [-window N] [-tls] [-compression] [-nio] [-parsers N]"
+                + " [-host H] [-port P] [-domain D] [-password P]");
+        System.exit(1);
+    }
+
+    private void run() throws Exception {
+        LoopbackServer server = null;
+        if (host == null) {
+            server = new LoopbackServer(domain);
+            server.setTLSEnabled(tls);
+            server.setCompressionEnabled(compression);
+            for (int i = 0; i < connectionCount; i++) {
+                server.setContacts(getUser(i), Arrays.asList(getUser(i - 1), getUser(i + 1)));
+            }
+            server.start();
+            if (tls) {
+                System.setProperty("javax.net.ssl.trustStore", server.getKeyStorePath());
+                System.setProperty("javax.net.ssl.trustStorePassword",
+                        server.getKeyStorePassword());
+            }
+            host = "127.0.0.1";
+            port = server.getPort();
+        }
+        System.out.println(connectionCount + " connections to " + host + ":" + port
+                + (tls ? ", TLS" : "") + (compression ? ", compression" : "")
+                + (nio ? ", non-blocking I/O" : ", blocking I/O")
+                + (parsers > 1 ? ", " + parsers + " parser threads" : ""));
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(connectionCount, 4 * Runtime.getRuntime().availableProcessors()));
+        try {
+            long start = System.nanoTime();
+            login(executor);
+            report("Login", loginTimes, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            ping(executor);
+            report("IQ round trip", roundTripTimes, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            long received = exchangeMessages(executor);
+            long elapsed = System.nanoTime() - start;
+            report("Message latency", messageLatencies, elapsed);
+            if (received < (long) connectionCount * messages) {
+                System.out.println("Only " + received + " of " + (long) connectionCount * messages
+                        + " messages received");
+            }
+        }
+        finally {
+            executor.shutdown();
+            for (XMPPConnection connection : connections) {
+                connection.disconnect();
+            }
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    private String getUser(int index) {
+        return "user" + ((index + connectionCount) % connectionCount) + "@" + domain;
+    }
+
+    private void login(ExecutorService executor) throws Exception {
+        List<Future<XMPPConnection>> logins = new ArrayList<Future<XMPPConnection>>();
+        for (int i = 0; i < connectionCount; i++) {
+            final int index = i;
+            logins.add(executor.submit(new Callable<XMPPConnection>() {
+                public XMPPConnection call() throws Exception {
+                    ConnectionConfiguration config =
+                            new ConnectionConfiguration(host, port, domain);
+                    config.setSecurityMode(tls ? ConnectionConfiguration.SecurityMode.required
+                            : ConnectionConfiguration.SecurityMode.disabled);
+                    config.setCompressionEnabled(compression);
+                    config.setNonBlockingIOEnabled(nio);
+                    config.setParserThreads(parsers);
+                    config.setReconnectionAllowed(false);
+                    XMPPConnection connection = new XMPPConnection(config);
+                    long start = System.nanoTime();
+                    connection.connect();
+                    connection.login("user" + index, password, "load");
+                    loginTimes.record(System.nanoTime() - start);
+                    return connection;
+                }
+            }));
+        }
+        for (Future<XMPPConnection> login : logins) {
+            connections.add(login.get());
+        }
+    }
+
+    private void ping(ExecutorService executor) throws Exception {
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (final XMPPConnection connection : connections) {
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int i = 0; i < pings; i++) {
+                        long start = System.nanoTime();
+                        connection.sendIQWithReply(new Ping(domain)).get();
+                        roundTripTimes.record(System.nanoTime() - start);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+    }
+
+    private long exchangeMessages(ExecutorService executor) throws Exception {
+        final CountDownLatch received = new CountDownLatch(connectionCount * messages);
+        final Map<String, Semaphore> windows = new HashMap<String, Semaphore>();
+        if (window > 0) {
+            for (XMPPConnection connection : connections) {
+                windows.put(connection.getUser(), new Semaphore(window));
+            }
+        }
+        PacketListener listener = new PacketListener() {
+            public void processPacket(Packet packet) {
+                String body = ((Message) packet).getBody();
+                long sent = Long.parseLong(body.substring(0, body.indexOf(' ')));
+                messageLatencies.record(System.nanoTime() - sent);
+                received.countDown();
+                Semaphore senderWindow = windows.get(packet.getFrom());
+                if (senderWindow != null) {
+                    senderWindow.release();
+                }
+            }
+        };
+        for (XMPPConnection connection : connections) {
+            connection.addPacketListener(listener, new MessageTypeFilter(Message.Type.chat));
+        }
+        StringBuilder padding = new StringBuilder(" ");
+        for (int i = 0; i < payload; i++) {
+            padding.append((char) ('a' + i % 26));
+        }
+        final String text = padding.toString();
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int i = 0; i < connections.size(); i++) {
+            final XMPPConnection connection = connections.get(i);
+            final String to = connections.get((i + 1) % connections.size()).getUser();
+            final Semaphore senderWindow = windows.get(connection.getUser());
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int n = 0; n < messages; n++) {
+                        if (senderWindow != null) {
+                            senderWindow.acquire();
+                        }
+                        Message message = new Message(to, Message.Type.chat);
+                        message.setBody(System.nanoTime() + text);
+                        connection.sendPacket(message);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        received.await(60, TimeUnit.SECONDS);
+        return (long) connectionCount * messages - received.getCount();
+    }
+
+    private static void report(String name, Histogram histogram, long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-16s %8d in %7.3f s = %10.1f/s   mean %9.1f us   p50 <= %9.1f us"
+                + "   p99 <= %9.1f us   max %9.1f us%n", name, histogram.getCount(), seconds,
+                histogram.getCount() / seconds, histogram.getMean() / 1e3,
+                histogram.getPercentile(50) / 1e3, histogram.getPercentile(99) / 1e3,
+                histogram.getMax() / 1e3);
+    }
+
+    /**
+     * An XMPP ping (XEP-0199) to the server.
+     */
+    private static class Ping extends IQ {
+
+        Ping(String to) {
+            setTo(to);
+        }
+
+        public String getChildElementXML() {
+            return "<ping xmlns='urn:xmpp:ping'/>";
+        }
+    }
+}
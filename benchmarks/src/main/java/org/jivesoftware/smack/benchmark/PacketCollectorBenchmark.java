@@ -0,0 +1,89 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.InMemoryConnection;
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.filter.FromMatchesFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the delivery of incoming packets when many packet collectors are waiting. Each
+ * invocation delivers a packet that matches one of the collectors, which is then polled.
+ * Collectors either wait for a reply to a request, and are indexed by packet ID, or wait
+ * for any packet from a given sender, and have to be checked for every packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCollectorBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int collectors;
+
+    @Param({"id", "sender"})
+    public String filter;
+
+    private InMemoryConnection connection;
+    private PacketCollector[] pending;
+    private Packet[] packets;
+    private int index;
+
+    @Setup
+    public void setup() {
+        connection = new InMemoryConnection();
+        pending = new PacketCollector[collectors];
+        packets = new Packet[collectors];
+        for (int i = 0; i < collectors; i++) {
+            IQ reply = new IQ() {
+                public String getChildElementXML() {
+                    return null;
+                }
+            };
+            reply.setType(IQ.Type.RESULT);
+            reply.setPacketID("req" + i);
+            reply.setFrom("user" + i + "@example.com/resource");
+            packets[i] = reply;
+            pending[i] = connection.createPacketCollector(filter.equals("id")
+                    ? new PacketIDFilter(reply.getPacketID())
+                    : new FromMatchesFilter(reply.getFrom()));
+        }
+    }
+
+    @Benchmark
+    public Packet dispatch() {
+        int i = index++ % collectors;
+        connection.processPacket(packets[i]);
+        return pending[i].pollResult();
+    }
+}
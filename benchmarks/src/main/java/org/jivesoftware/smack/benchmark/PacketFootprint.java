@@ -0,0 +1,148 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.InMemoryConnection;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Measures the heap used by packets held in memory, such as the presences kept by the
+ * roster. For each kind of packet, many packets are created or parsed from the stanzas of
+ * {@link Stanzas} and kept, and the growth of the heap after a garbage collection is divided
+ * by the number of packets. The size includes the strings of each packet. Usage:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.jivesoftware.smack.benchmark.PacketFootprint [count]
+ * </pre>
+ *
+ * where <tt>count</tt> is the number of packets of each kind (default 100000). The heap
+ * must be large enough to hold them.
+ */
+public class PacketFootprint {
+
+    private static final String[] PRESENCE_NAMES = {
+        "presence with caps", "presence with avatar", "MUC presence", "unavailable presence"
+    };
+
+    private static final String[] MESSAGE_NAMES = {
+        "chat message", "group chat message", "delayed message", "message with properties",
+        "XHTML message"
+    };
+
+    private final int count;
+    private final XmlPullParser parser;
+    private final InMemoryConnection connection;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        new PacketFootprint(count).run();
+    }
+
+    private PacketFootprint(int count) throws Exception {
+        this.count = count;
+        parser = Stanzas.newParser();
+        connection = new InMemoryConnection();
+    }
+
+    private void run() throws Exception {
+        System.out.println(count + " packets of each kind, bytes per packet");
+        measure("new presence", new Factory() {
+            Packet create() {
+                Presence presence = new Presence(Presence.Type.available);
+                presence.setFrom("juliet@capulet.lit/balcony");
+                return presence;
+            }
+        });
+        measure("new message", new Factory() {
+            Packet create() {
+                return Stanzas.newMessage();
+            }
+        });
+        for (int i = 0; i < Stanzas.PRESENCES.length; i++) {
+            final String stanza = Stanzas.PRESENCES[i];
+            measure(name(PRESENCE_NAMES, i), new Factory() {
+                Packet create() throws Exception {
+                    return PacketParserUtils.parsePresence(Stanzas.reset(parser, stanza));
+                }
+            });
+        }
+        for (int i = 0; i < Stanzas.MESSAGES.length; i++) {
+            final String stanza = Stanzas.MESSAGES[i];
+            measure(name(MESSAGE_NAMES, i), new Factory() {
+                Packet create() throws Exception {
+                    return PacketParserUtils.parseMessage(Stanzas.reset(parser, stanza));
+                }
+            });
+        }
+        for (int i = 0; i < Stanzas.IQS.length; i++) {
+            final String stanza = Stanzas.IQS[i];
+            final IQ sample = PacketParserUtils.parseIQ(Stanzas.reset(parser, stanza), connection);
+            if (sample == null) {
+                // Requests that nobody handles are answered with an error and not returned
+                continue;
+            }
+            measure(sample.getClass().getSimpleName() + " IQ", new Factory() {
+                Packet create() throws Exception {
+                    return PacketParserUtils.parseIQ(Stanzas.reset(parser, stanza), connection);
+                }
+            });
+        }
+    }
+
+    private static String name(String[] names, int index) {
+        return index < names.length ? names[index] : "stanza " + index;
+    }
+
+    private void measure(String name, Factory factory) throws Exception {
+        Packet[] packets = new Packet[count];
+        // Create a few packets first so that classes and caches are loaded
+        for (int i = 0; i < Math.min(count, 1000); i++) {
+            factory.create();
+        }
+        long before = usedMemory();
+        for (int i = 0; i < count; i++) {
+            packets[i] = factory.create();
+        }
+        long after = usedMemory();
+        System.out.printf("%-28s %8.1f%n", name, (double) (after - before) / count);
+        // Keep the packets reachable until the heap was measured
+        if (packets[count - 1] == null) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Creates the packets of a kind.
+     */
+    private static abstract class Factory {
+
+        abstract Packet create() throws Exception;
+    }
+}
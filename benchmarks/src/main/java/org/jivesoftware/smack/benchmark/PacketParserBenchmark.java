@@ -0,0 +1,90 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.InMemoryConnection;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of incoming stanzas. Each invocation parses the next stanza of a
+ * corpus of messages, presences or IQs, so the results are averages over the corpus.
+ * Requests that are not supported, such as the ping of the corpus, are answered with an
+ * error by the parser, which is measured too. The lazy variants keep the XML of the
+ * extensions that have a provider instead of parsing them.
+ *
+ * @see Stanzas
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketParserBenchmark {
+
+    private XmlPullParser parser;
+    private InMemoryConnection connection;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        parser = Stanzas.newParser();
+        connection = new InMemoryConnection();
+    }
+
+    @Benchmark
+    public Packet parseMessage() throws Exception {
+        String stanza = Stanzas.MESSAGES[index++ % Stanzas.MESSAGES.length];
+        return PacketParserUtils.parseMessage(Stanzas.reset(parser, stanza));
+    }
+
+    @Benchmark
+    public Packet parsePresence() throws Exception {
+        String stanza = Stanzas.PRESENCES[index++ % Stanzas.PRESENCES.length];
+        return PacketParserUtils.parsePresence(Stanzas.reset(parser, stanza));
+    }
+
+    @Benchmark
+    public Packet parseMessageLazy() throws Exception {
+        String stanza = Stanzas.MESSAGES[index++ % Stanzas.MESSAGES.length];
+        return PacketParserUtils.parseMessage(Stanzas.reset(parser, stanza), true);
+    }
+
+    @Benchmark
+    public Packet parsePresenceLazy() throws Exception {
+        String stanza = Stanzas.PRESENCES[index++ % Stanzas.PRESENCES.length];
+        return PacketParserUtils.parsePresence(Stanzas.reset(parser, stanza), true);
+    }
+
+    @Benchmark
+    public Packet parseIQ() throws Exception {
+        String stanza = Stanzas.IQS[index++ % Stanzas.IQS.length];
+        return PacketParserUtils.parseIQ(Stanzas.reset(parser, stanza), connection);
+    }
+}
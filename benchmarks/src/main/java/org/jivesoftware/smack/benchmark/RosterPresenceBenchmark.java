@@ -0,0 +1,111 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.InMemoryConnection;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.RosterListener;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.RosterPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the processing of presence updates by a roster of various sizes with a
+ * registered roster listener. Contacts have two resources that go online and offline in
+ * turn.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RosterPresenceBenchmark {
+
+    @Param({"100", "1000"})
+    public int contacts;
+
+    private InMemoryConnection connection;
+    private Presence[] presences;
+    private int index;
+    private int events;
+
+    @Setup
+    public void setup() {
+        connection = new InMemoryConnection();
+        Roster roster = connection.getRoster();
+        roster.addRosterListener(new RosterListener() {
+            public void entriesAdded(Collection<String> addresses) {
+            }
+
+            public void entriesUpdated(Collection<String> addresses) {
+            }
+
+            public void entriesDeleted(Collection<String> addresses) {
+            }
+
+            public void presenceChanged(Presence presence) {
+                events++;
+            }
+        });
+
+        RosterPacket push = new RosterPacket();
+        push.setType(IQ.Type.SET);
+        for (int i = 0; i < contacts; i++) {
+            RosterPacket.Item item = new RosterPacket.Item("contact" + i + "@example.com",
+                    "Contact " + i, RosterPacket.ItemType.both, null, 0, 0, 0, false, null,
+                    false, null, null);
+            item.addGroupName("Group " + (i % 10));
+            push.addRosterItem(item);
+        }
+        connection.processPacket(push);
+
+        String[] resources = {"desktop", "phone"};
+        presences = new Presence[contacts * 4];
+        int n = 0;
+        for (Presence.Type type : new Presence.Type[] {Presence.Type.available,
+                Presence.Type.unavailable})
+        {
+            for (String resource : resources) {
+                for (int i = 0; i < contacts; i++) {
+                    Presence presence = new Presence(type);
+                    presence.setFrom("contact" + i + "@example.com/" + resource);
+                    presence.setTo(connection.getUser());
+                    presences[n++] = presence;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int presenceChanged() {
+        connection.processPacket(presences[index++ % presences.length]);
+        return events;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark;
+
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Message;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Corpora of stanzas as received from a server and factories of packets to send, shared
+ * by the benchmarks.
+ */
+public final class Stanzas {
+
+    /**
+     * Messages: a chat message with a chat state, a group chat message, a delayed offline
+     * message, a message with properties and an XHTML message.
+     */
+    public static final String[] MESSAGES = {
+        "<message to='romeo@montague.lit/orchard' from='juliet@capulet.lit/balcony'"
+                + " type='chat' id='ktx72v49'><body>Art thou not Romeo, and a Montague?"
+                + "</body><thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread>"
+                + "<active xmlns='http://jabber.org/protocol/chatstates'/></message>",
+        "<message to='crone1@shakespeare.lit/desktop' from='coven@chat.shakespeare.lit/thirdwitch'"
+                + " type='groupchat' id='hysf1v37'><body>Harpier cries: &apos;tis time,"
+                + " &apos;tis time.</body>"
+                + "<x xmlns='jabber:x:event'><composing/></x></message>",
+        "<message to='romeo@montague.lit' from='juliet@capulet.lit/balcony' type='chat'"
+                + " id='off123'><body>O Romeo, Romeo! wherefore art thou Romeo?</body>"
+                + "<x xmlns='jabber:x:delay' from='capulet.lit' stamp='20020910T23:08:25'>"
+                + "Offline Storage</x></message>",
+        "<message to='romeo@montague.lit/orchard' from='juliet@capulet.lit/balcony'"
+                + " id='prop55'><body>ping</body>"
+                + "<properties xmlns='http://www.jivesoftware.com/xmlns/xmpp/properties'>"
+                + "<property><name>sequence</name><value type='long'>42</value></property>"
+                + "<property><name>reliable</name><value type='boolean'>true</value></property>"
+                + "<property><name>channel</name><value type='string'>control</value></property>"
+                + "</properties></message>",
+        "<message to='romeo@montague.lit/orchard' from='juliet@capulet.lit/balcony'"
+                + " type='chat' id='xhtml1'><body>Wherefore art thou, Romeo?</body>"
+                + "<html xmlns='http://jabber.org/protocol/xhtml-im'>"
+                + "<body xmlns='http://www.w3.org/1999/xhtml'><p style='font-weight:bold'>"
+                + "Wherefore art thou, <em>Romeo</em>?</p></body></html></message>"
+    };
+
+    /**
+     * Presences: an available presence with a status and a priority, an away presence
+     * with a vCard avatar and a MUC presence, and an unavailable presence.
+     */
+    public static final String[] PRESENCES = {
+        "<presence from='juliet@capulet.lit/balcony' to='romeo@montague.lit/orchard'>"
+                + "<show>chat</show><status>Staying on the balcony</status>"
+                + "<priority>5</priority>"
+                + "<c xmlns='http://jabber.org/protocol/caps' hash='sha-1'"
+                + " node='http://code.google.com/p/exodus'"
+                + " ver='QgayPKawpkPSDYmwT/WM94uAlu0='/></presence>",
+        "<presence from='nurse@capulet.lit/chamber' to='romeo@montague.lit/orchard'>"
+                + "<show>away</show><status>Out to the market</status><priority>0</priority>"
+                + "<x xmlns='vcard-temp:x:update'>"
+                + "<photo>01b87fcd030b72895ff8e88db57ec525450f000d</photo></x></presence>",
+        "<presence from='coven@chat.shakespeare.lit/firstwitch'"
+                + " to='hag66@shakespeare.lit/pda'>"
+                + "<x xmlns='http://jabber.org/protocol/muc#user'>"
+                + "<item affiliation='owner' role='moderator'/></x></presence>",
+        "<presence from='benvolio@montague.lit/pda' to='romeo@montague.lit/orchard'"
+                + " type='unavailable'><status>Gone home</status></presence>"
+    };
+
+    /**
+     * IQs: a roster push, a disco#info result, a software version result, a ping and an
+     * error.
+     */
+    public static final String[] IQS = {
+        "<iq to='romeo@montague.lit/orchard' id='push1' type='set'>"
+                + "<query xmlns='jabber:iq:roster'>"
+                + "<item jid='nurse@example.com' name='Nurse' subscription='both'>"
+                + "<group>Servants</group></item></query></iq>",
+        "<iq from='capulet.lit' to='romeo@montague.lit/orchard' id='info1' type='result'>"
+                + "<query xmlns='http://jabber.org/protocol/disco#info'>"
+                + "<identity category='server' type='im' name='Capulet Server'/>"
+                + "<feature var='http://jabber.org/protocol/disco#info'/>"
+                + "<feature var='http://jabber.org/protocol/disco#items'/>"
+                + "<feature var='http://jabber.org/protocol/muc'/>"
+                + "<feature var='jabber:iq:register'/><feature var='jabber:iq:version'/>"
+                + "<feature var='urn:xmpp:ping'/><feature var='vcard-temp'/>"
+                + "</query></iq>",
+        "<iq from='capulet.lit' to='romeo@montague.lit/orchard' id='version1' type='result'>"
+                + "<query xmlns='jabber:iq:version'><name>Capulet Server</name>"
+                + "<version>2.1</version><os>Linux</os></query></iq>",
+        "<iq from='capulet.lit' to='romeo@montague.lit/orchard' id='ping1' type='get'>"
+                + "<ping xmlns='urn:xmpp:ping'/></iq>",
+        "<iq from='capulet.lit' to='romeo@montague.lit/orchard' id='err1' type='error'>"
+                + "<query xmlns='jabber:iq:private'/><error type='cancel'>"
+                + "<service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/>"
+                + "</error></iq>"
+    };
+
+    private Stanzas() {
+    }
+
+    /**
+     * Creates a parser configured like the one used by the connections.
+     *
+     * @return the new parser.
+     * @throws XmlPullParserException if the parser cannot be configured.
+     */
+    public static XmlPullParser newParser() throws XmlPullParserException {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+
+    /**
+     * Sets the input of the parser and moves it to the start tag of the stanza.
+     *
+     * @param parser the parser to reset.
+     * @param stanza the XML of the stanza.
+     * @return the parser positioned on the start tag of the stanza.
+     * @throws XmlPullParserException if the stanza is not well formed.
+     * @throws IOException if an error occurs while reading the stanza.
+     */
+    public static XmlPullParser reset(XmlPullParser parser, String stanza)
+            throws XmlPullParserException, IOException
+    {
+        parser.setInput(new StringReader(stanza));
+        parser.next();
+        return parser;
+    }
+
+    /**
+     * Creates a chat message with properties and extensions, like the messages exchanged
+     * by applications.
+     *
+     * @return the new message.
+     */
+    public static Message newMessage() {
+        Message message = new Message("juliet@capulet.lit/balcony", Message.Type.chat);
+        message.setFrom("romeo@montague.lit/orchard");
+        message.setPacketID("msg1");
+        message.setThread("e0ffe42b28561960c6b12b944a092794b9683a38");
+        message.setBody("Shall I hear more, or shall I speak at this? <it's> \"Juliet\" & me");
+        message.setProperty("sequence", 42L);
+        message.setProperty("reliable", true);
+        message.setProperty("channel", "control");
+        DefaultPacketExtension state =
+                new DefaultPacketExtension("active", "http://jabber.org/protocol/chatstates");
+        message.addExtension(state);
+        DefaultPacketExtension event = new DefaultPacketExtension("x", "jabber:x:event");
+        event.setValue("id", "ktx72v49");
+        message.addExtension(event);
+        return message;
+    }
+}
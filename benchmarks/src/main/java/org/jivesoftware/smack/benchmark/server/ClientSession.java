@@ -0,0 +1,531 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark.server;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZInputStream;
+import com.jcraft.jzlib.ZOutputStream;
+
+import javax.net.ssl.SSLSocket;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The server side of a client connection to a {@link LoopbackServer}. Each session reads
+ * the stream of its client in its own thread, negotiates the stream features and handles
+ * or routes the stanzas of the client. Stanzas routed to the session by other sessions are
+ * written in the thread of the sender.
+ */
+class ClientSession implements Runnable {
+
+    private static final String TLS_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-tls";
+    private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+    private static final String COMPRESS_NAMESPACE = "http://jabber.org/protocol/compress";
+    private static final String BIND_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-bind";
+    private static final String SESSION_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-session";
+    private static final String ROSTER_NAMESPACE = "jabber:iq:roster";
+    private static final String STANZAS_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-stanzas";
+
+    private final LoopbackServer server;
+    private final String streamID;
+    private Socket socket;
+    private InputStream input;
+    private OutputStream output;
+    private Writer writer;
+    private final XmlPullParser parser = new MXParser();
+
+    private boolean secure;
+    private boolean compressed;
+    private String username;
+    private volatile String jid;
+    private volatile String presence;
+    private volatile boolean closed;
+    private List<String> pending;
+
+    /**
+     * Creates a new session for a client connection.
+     *
+     * @param server the server that accepted the connection.
+     * @param socket the socket of the connection.
+     * @param streamID the ID of the stream of the session.
+     */
+    ClientSession(LoopbackServer server, Socket socket, String streamID) {
+        this.server = server;
+        this.socket = socket;
+        this.streamID = streamID;
+    }
+
+    /**
+     * Returns the full JID of the session, or <tt>null</tt> if no resource is bound yet.
+     *
+     * @return the full JID of the session or <tt>null</tt>.
+     */
+    String getJID() {
+        return jid;
+    }
+
+    /**
+     * Returns the last available presence broadcast by the client, or <tt>null</tt> if the
+     * client is not available.
+     *
+     * @return the XML of the presence or <tt>null</tt>.
+     */
+    String getPresence() {
+        return presence;
+    }
+
+    public void run() {
+        try {
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            setStreams(socket.getInputStream(), socket.getOutputStream());
+            int event = parser.getEventType();
+            while (!closed) {
+                if (event == XmlPullParser.START_TAG) {
+                    if (parser.getDepth() == 1) {
+                        openStream();
+                    }
+                    else if (parser.getDepth() == 2) {
+                        process(XmlElement.parse(parser));
+                    }
+                }
+                else if (event == XmlPullParser.END_TAG && parser.getDepth() == 1) {
+                    // The client closed the stream
+                    break;
+                }
+                else if (event == XmlPullParser.END_DOCUMENT) {
+                    break;
+                }
+                event = parser.next();
+            }
+        }
+        catch (Exception e) {
+            // The connection was closed or the client sent invalid XML
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Writes XML to the client. The session is closed if the XML cannot be written. While
+     * the stream is restarted, the XML is held until the new stream is opened.
+     *
+     * @param xml the XML to write.
+     */
+    void send(String xml) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (pending != null) {
+                pending.add(xml);
+                return;
+            }
+            if (write(xml)) {
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Writes the last XML of the current stream. The XML sent to the client is then held
+     * until the new stream is opened, since it must be written with the new streams.
+     *
+     * @param xml the XML to write.
+     */
+    private void sendBeforeRestart(String xml) {
+        synchronized (this) {
+            if (write(xml)) {
+                pending = new ArrayList<String>();
+                return;
+            }
+        }
+        close();
+    }
+
+    private boolean write(String xml) {
+        try {
+            writer.write(xml);
+            writer.flush();
+            return true;
+        }
+        catch (IOException ioe) {
+            // The connection was closed
+            return false;
+        }
+    }
+
+    /**
+     * Closes the stream and the connection of the client. Contacts are notified that the
+     * client is unavailable.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writer.write("</stream:stream>");
+                writer.flush();
+            }
+            catch (Exception e) {
+                // The connection is already closed
+            }
+            try {
+                socket.close();
+            }
+            catch (IOException ioe) {
+                // Ignore
+            }
+        }
+        server.unbind(this);
+        if (presence != null) {
+            presence = null;
+            XmlElement unavailable = new XmlElement("presence", "jabber:client");
+            unavailable.setAttribute("from", jid).setAttribute("type", "unavailable");
+            broadcast(unavailable.toXML());
+        }
+    }
+
+    private void setStreams(InputStream in, OutputStream out) throws Exception {
+        synchronized (this) {
+            input = in;
+            output = out;
+            writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        }
+        restartStream();
+    }
+
+    private void restartStream() throws Exception {
+        parser.setInput(new BufferedReader(new InputStreamReader(input, "UTF-8")));
+    }
+
+    private void openStream() {
+        StringBuilder out = new StringBuilder();
+        out.append("<?xml version='1.0'?><stream:stream xmlns='jabber:client'");
+        out.append(" xmlns:stream='http://etherx.jabber.org/streams' id='").append(streamID);
+        out.append("' from='").append(server.getDomain()).append("' version='1.0'>");
+        out.append("<stream:features>");
+        if (server.isTLSEnabled() && !secure) {
+            out.append("<starttls xmlns='").append(TLS_NAMESPACE).append("'/>");
+        }
+        if (username == null) {
+            out.append("<mechanisms xmlns='").append(SASL_NAMESPACE).append("'>");
+            out.append("<mechanism>PLAIN</mechanism><mechanism>ANONYMOUS</mechanism>");
+            out.append("</mechanisms>");
+        }
+        if (server.isCompressionEnabled() && !compressed) {
+            out.append("<compression xmlns='http://jabber.org/features/compress'>");
+            out.append("<method>zlib</method></compression>");
+        }
+        if (username != null && jid == null) {
+            out.append("<bind xmlns='").append(BIND_NAMESPACE).append("'/>");
+            out.append("<session xmlns='").append(SESSION_NAMESPACE).append("'/>");
+        }
+        out.append("</stream:features>");
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            List<String> held = pending;
+            pending = null;
+            if (write(out.toString())) {
+                if (held != null) {
+                    for (String xml : held) {
+                        send(xml);
+                    }
+                }
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Processes a top-level element of the stream. The input of the parser is reset when
+     * the element restarts the stream.
+     *
+     * @param element the element.
+     * @throws Exception if the stream cannot be restarted.
+     */
+    private void process(XmlElement element) throws Exception {
+        String name = element.getName();
+        String namespace = element.getNamespace();
+        if (name.equals("starttls") && namespace.equals(TLS_NAMESPACE)) {
+            sendBeforeRestart("<proceed xmlns='" + TLS_NAMESPACE + "'/>");
+            SSLSocket sslSocket = server.secure(socket);
+            socket = sslSocket;
+            secure = true;
+            setStreams(sslSocket.getInputStream(), sslSocket.getOutputStream());
+        }
+        else if (name.equals("compress") && namespace.equals(COMPRESS_NAMESPACE)) {
+            XmlElement method = element.getChild("method");
+            if (compressed || method == null || !"zlib".equals(method.getText())) {
+                send("<failure xmlns='" + COMPRESS_NAMESPACE + "'><unsupported-method/></failure>");
+                return;
+            }
+            sendBeforeRestart("<compressed xmlns='" + COMPRESS_NAMESPACE + "'/>");
+            ZInputStream in = new ZInputStream(input);
+            in.setFlushMode(JZlib.Z_SYNC_FLUSH);
+            ZOutputStream out = new ZOutputStream(output, JZlib.Z_BEST_COMPRESSION);
+            out.setFlushMode(JZlib.Z_SYNC_FLUSH);
+            compressed = true;
+            setStreams(in, out);
+        }
+        else if (name.equals("auth") && namespace.equals(SASL_NAMESPACE)) {
+            if (authenticate(element)) {
+                sendBeforeRestart("<success xmlns='" + SASL_NAMESPACE + "'/>");
+                restartStream();
+            }
+            else {
+                send("<failure xmlns='" + SASL_NAMESPACE + "'><not-authorized/></failure>");
+            }
+        }
+        else if (username == null) {
+            send("<stream:error><not-authorized xmlns='urn:ietf:params:xml:ns:xmpp-streams'/>"
+                    + "</stream:error>");
+            close();
+        }
+        else if (name.equals("message")) {
+            processMessage(element);
+        }
+        else if (name.equals("presence")) {
+            processPresence(element);
+        }
+        else if (name.equals("iq")) {
+            processIQ(element);
+        }
+    }
+
+    private boolean authenticate(XmlElement auth) {
+        String mechanism = auth.getAttribute("mechanism");
+        if ("ANONYMOUS".equals(mechanism)) {
+            username = "anonymous-" + streamID;
+            return true;
+        }
+        if (!"PLAIN".equals(mechanism)) {
+            return false;
+        }
+        // The credentials are "authzid\0authcid\0password"
+        byte[] decoded = StringUtils.decodeBase64(auth.getText());
+        if (decoded == null) {
+            return false;
+        }
+        String[] credentials;
+        try {
+            credentials = new String(decoded, "UTF-8").split("\0", -1);
+        }
+        catch (IOException ioe) {
+            return false;
+        }
+        if (credentials.length != 3 || credentials[1].length() == 0
+                || !server.authenticate(credentials[1], credentials[2]))
+        {
+            return false;
+        }
+        username = credentials[1];
+        return true;
+    }
+
+    private String getBareJID() {
+        return username + "@" + server.getDomain();
+    }
+
+    private String getFrom() {
+        return jid != null ? jid : getBareJID();
+    }
+
+    private void processMessage(XmlElement message) {
+        String to = message.getAttribute("to");
+        if (to == null) {
+            return;
+        }
+        message.setAttribute("from", getFrom());
+        // Messages to unavailable users are dropped since there is no offline storage
+        deliver(to, message.toXML());
+    }
+
+    private void processPresence(XmlElement presence) {
+        presence.setAttribute("from", getFrom());
+        String to = presence.getAttribute("to");
+        String type = presence.getAttribute("type");
+        if (to != null) {
+            deliver(to, presence.toXML());
+        }
+        else if (type == null || type.equals("unavailable")) {
+            boolean initial = type == null && this.presence == null;
+            String xml = presence.toXML();
+            this.presence = type == null ? xml : null;
+            broadcast(xml);
+            if (initial) {
+                // Send the presences of the available contacts
+                for (String contact : server.getContacts(getBareJID())) {
+                    for (ClientSession session : server.getSessions(contact)) {
+                        String contactPresence = session.getPresence();
+                        if (contactPresence != null) {
+                            send(contactPresence);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void processIQ(XmlElement iq) {
+        String to = iq.getAttribute("to");
+        String type = iq.getAttribute("type");
+        if (to != null && !to.equals(server.getDomain()) && !to.equals(getBareJID())) {
+            iq.setAttribute("from", getFrom());
+            if (!deliver(to, iq.toXML()) && ("get".equals(type) || "set".equals(type))) {
+                XmlElement error = reply(iq, "error");
+                for (XmlElement child : iq.getChildren()) {
+                    error.addChild(child);
+                }
+                error.addChild(new XmlElement("error", "jabber:client"))
+                        .setAttribute("type", "cancel")
+                        .addChild(new XmlElement("service-unavailable", STANZAS_NAMESPACE));
+                send(error.toXML());
+            }
+            return;
+        }
+        if (!"get".equals(type) && !"set".equals(type)) {
+            return;
+        }
+        XmlElement query = iq.getFirstChild();
+        String namespace = query != null ? query.getNamespace() : "";
+        XmlElement result = reply(iq, "result");
+        if (namespace.equals(BIND_NAMESPACE)) {
+            XmlElement resource = query.getChild("resource");
+            jid = server.bind(this, getBareJID(),
+                    resource != null ? resource.getText().trim() : "");
+            result.addChild(new XmlElement("bind", BIND_NAMESPACE)).addChild("jid").addText(jid);
+        }
+        else if (namespace.equals(ROSTER_NAMESPACE)) {
+            XmlElement roster = result.addChild(new XmlElement("query", ROSTER_NAMESPACE));
+            if (type.equals("get")) {
+                for (String contact : server.getContacts(getBareJID())) {
+                    roster.addChild("item").setAttribute("jid", contact)
+                            .setAttribute("subscription", "both");
+                }
+            }
+            else {
+                updateRoster(query);
+                send(result.toXML());
+                return;
+            }
+        }
+        else if (!namespace.equals(SESSION_NAMESPACE) && !namespace.equals("urn:xmpp:ping")) {
+            // Echo the request to any other IQ addressed to the server
+            for (XmlElement child : iq.getChildren()) {
+                result.addChild(child);
+            }
+        }
+        send(result.toXML());
+    }
+
+    private void updateRoster(XmlElement query) {
+        XmlElement push = new XmlElement("iq", "jabber:client");
+        push.setAttribute("type", "set").setAttribute("id", "push-" + streamID);
+        XmlElement pushQuery = push.addChild(new XmlElement("query", ROSTER_NAMESPACE));
+        for (XmlElement item : query.getChildren()) {
+            String contact = item.getAttribute("jid");
+            if (contact == null) {
+                continue;
+            }
+            contact = StringUtils.parseBareAddress(contact);
+            XmlElement pushItem = pushQuery.addChild("item").setAttribute("jid", contact);
+            if ("remove".equals(item.getAttribute("subscription"))) {
+                server.removeContact(getBareJID(), contact);
+                pushItem.setAttribute("subscription", "remove");
+            }
+            else {
+                server.addContact(getBareJID(), contact);
+                pushItem.setAttribute("name", item.getAttribute("name"))
+                        .setAttribute("subscription", "both");
+                for (XmlElement group : item.getChildren()) {
+                    pushItem.addChild(group);
+                }
+            }
+        }
+        for (ClientSession session : server.getSessions(getBareJID())) {
+            push.setAttribute("to", session.getJID());
+            session.send(push.toXML());
+        }
+    }
+
+    private XmlElement reply(XmlElement request, String type) {
+        XmlElement reply = new XmlElement("iq", "jabber:client");
+        reply.setAttribute("type", type).setAttribute("id", request.getAttribute("id"));
+        reply.setAttribute("from", request.getAttribute("to")).setAttribute("to", getFrom());
+        return reply;
+    }
+
+    /**
+     * Delivers a stanza to the session of a full JID, or to all the sessions of a bare
+     * JID.
+     *
+     * @param to the JID of the recipient.
+     * @param xml the XML of the stanza.
+     * @return <tt>true</tt> if the stanza was delivered to at least one session.
+     */
+    private boolean deliver(String to, String xml) {
+        if (StringUtils.parseResource(to).length() > 0) {
+            ClientSession session = server.getSession(to);
+            if (session != null) {
+                session.send(xml);
+                return true;
+            }
+        }
+        List<ClientSession> sessions = server.getSessions(StringUtils.parseBareAddress(to));
+        for (ClientSession session : sessions) {
+            session.send(xml);
+        }
+        return !sessions.isEmpty();
+    }
+
+    /**
+     * Sends a presence of the client to its contacts and its other sessions.
+     *
+     * @param xml the XML of the presence.
+     */
+    private void broadcast(String xml) {
+        for (String contact : server.getContacts(getBareJID())) {
+            for (ClientSession session : server.getSessions(contact)) {
+                session.send(xml);
+            }
+        }
+        for (ClientSession session : server.getSessions(getBareJID())) {
+            if (session != this) {
+                session.send(xml);
+            }
+        }
+    }
+}
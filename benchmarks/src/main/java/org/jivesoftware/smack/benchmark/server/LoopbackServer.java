@@ -0,0 +1,484 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark.server;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal XMPP server that runs in the same process as the clients, used to measure the
+ * throughput and the latency of real connections without depending on an external server.
+ * The server listens on the loopback interface and supports:
+ *
+ * <ul>
+ *      <li>STARTTLS with a self-signed certificate generated when the server starts.
+ *      <li>Stream compression with zlib.
+ *      <li>SASL authentication with the PLAIN and ANONYMOUS mechanisms.
+ *      <li>Resource binding and session establishment.
+ *      <li>Roster retrieval and updates. All the contacts of a roster have a subscription
+ *          of type "both".
+ *      <li>Routing of messages, presences and IQs between the connected clients, and
+ *          broadcast of the presences of the clients to their contacts.
+ *      <li>Replies to pings, and replies that echo the request to any other IQ addressed to
+ *          the server.
+ * </ul>
+ *
+ * By default all credentials are accepted, and rosters are empty until set with
+ * {@link #setContacts(String, Collection)} or updated by the clients. Clients that
+ * negotiate TLS must trust the certificate of the server, for example by setting the
+ * <tt>javax.net.ssl.trustStore</tt> system property to {@link #getKeyStorePath()} before
+ * connecting.<p>
+ *
+ * Each connection is served by its own thread, which is enough for a few thousand
+ * connections and keeps the server simple.
+ */
+public class LoopbackServer {
+
+    private static final String KEY_STORE_PASSWORD = "loopback";
+
+    private final String domain;
+    private int port;
+    private boolean tlsEnabled;
+    private boolean compressionEnabled;
+
+    private final Map<String, String> passwords = new ConcurrentHashMap<String, String>();
+    private final Map<String, Set<String>> rosters = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentHashMap<String, ClientSession> sessionsByJID =
+            new ConcurrentHashMap<String, ClientSession>();
+    private final Map<String, List<ClientSession>> sessionsByBareJID =
+            new ConcurrentHashMap<String, List<ClientSession>>();
+    private final Set<ClientSession> sessions =
+            Collections.newSetFromMap(new ConcurrentHashMap<ClientSession, Boolean>());
+    private final AtomicInteger streamCount = new AtomicInteger();
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private File keyStore;
+    private SSLContext sslContext;
+
+    /**
+     * Creates a new server for a domain. The server listens on an ephemeral port unless
+     * another port is set with {@link #setPort(int)}.
+     *
+     * @param domain the domain of the server.
+     */
+    public LoopbackServer(String domain) {
+        this.domain = domain;
+    }
+
+    /**
+     * Runs a server until the process is stopped. The arguments are the port, the domain,
+     * and the optional flags <tt>-tls</tt> and <tt>-compression</tt>.
+     *
+     * @param args the arguments.
+     * @throws Exception if the server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        LoopbackServer server = new LoopbackServer(args.length > 1 ? args[1] : "localhost");
+        server.setPort(args.length > 0 ? Integer.parseInt(args[0]) : 5222);
+        for (String arg : args) {
+            if (arg.equals("-tls")) {
+                server.setTLSEnabled(true);
+            }
+            else if (arg.equals("-compression")) {
+                server.setCompressionEnabled(true);
+            }
+        }
+        server.start();
+        System.out.println("Listening on port " + server.getPort() + " for " + server.getDomain());
+        if (server.isTLSEnabled()) {
+            System.out.println("Certificate in " + server.getKeyStorePath() + " (password "
+                    + server.getKeyStorePassword() + ")");
+        }
+        // The threads of the server are daemon threads
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Returns the port of the server. Once the server is started, this is the port it is
+     * listening on.
+     *
+     * @return the port of the server.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port to listen on, or 0 to listen on an ephemeral port. The default is 0.
+     *
+     * @param port the port to listen on.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public boolean isTLSEnabled() {
+        return tlsEnabled;
+    }
+
+    /**
+     * Sets whether STARTTLS is offered to the clients. TLS is optional: clients can log in
+     * without negotiating it. The default is <tt>false</tt>.
+     *
+     * @param tlsEnabled true to offer STARTTLS.
+     */
+    public void setTLSEnabled(boolean tlsEnabled) {
+        this.tlsEnabled = tlsEnabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Sets whether zlib stream compression is offered to the clients. The default is
+     * <tt>false</tt>.
+     *
+     * @param compressionEnabled true to offer stream compression.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Sets the password of a user. Once a password is set, only the users with a password
+     * can log in with the PLAIN mechanism.
+     *
+     * @param username the name of the user.
+     * @param password the password of the user.
+     */
+    public void setPassword(String username, String password) {
+        passwords.put(username, password);
+    }
+
+    /**
+     * Sets the contacts in the roster of a user.
+     *
+     * @param user the bare JID of the user.
+     * @param contacts the bare JIDs of the contacts.
+     */
+    public void setContacts(String user, Collection<String> contacts) {
+        Set<String> roster = newRoster();
+        roster.addAll(contacts);
+        rosters.put(user, roster);
+    }
+
+    /**
+     * Returns the path of the key store that holds the certificate of the server, or
+     * <tt>null</tt> if TLS is not enabled or the server is not started.
+     *
+     * @return the path of the key store or <tt>null</tt>.
+     */
+    public String getKeyStorePath() {
+        return keyStore != null ? keyStore.getAbsolutePath() : null;
+    }
+
+    /**
+     * Returns the password of the key store that holds the certificate of the server.
+     *
+     * @return the password of the key store.
+     */
+    public String getKeyStorePassword() {
+        return KEY_STORE_PASSWORD;
+    }
+
+    /**
+     * Returns the number of open client connections.
+     *
+     * @return the number of open client connections.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Starts listening for client connections on the loopback interface. When TLS is
+     * enabled, a key store with a self-signed certificate for the domain is generated
+     * first.
+     *
+     * @throws IOException if the server cannot listen on the port.
+     * @throws GeneralSecurityException if the certificate cannot be generated or loaded.
+     */
+    public synchronized void start() throws IOException, GeneralSecurityException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        if (tlsEnabled) {
+            sslContext = createSSLContext();
+        }
+        serverSocket = new ServerSocket(port, 1024, InetAddress.getByName("127.0.0.1"));
+        port = serverSocket.getLocalPort();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Loopback Server " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final ServerSocket socket = serverSocket;
+        executor.execute(new Runnable() {
+            public void run() {
+                accept(socket);
+            }
+        });
+    }
+
+    /**
+     * Stops the server and closes all the client connections.
+     */
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        }
+        catch (IOException ioe) {
+            // Ignore
+        }
+        serverSocket = null;
+        for (ClientSession session : sessions) {
+            session.close();
+        }
+        executor.shutdown();
+        executor = null;
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                ClientSession session = new ClientSession(this, socket,
+                        Integer.toHexString(streamCount.incrementAndGet()));
+                sessions.add(session);
+                executor.execute(session);
+            }
+            catch (SocketException se) {
+                // The server was stopped
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private SSLContext createSSLContext() throws IOException, GeneralSecurityException {
+        keyStore = File.createTempFile("loopback", ".jks");
+        keyStore.delete();
+        keyStore.deleteOnExit();
+        String keytool = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "loopback",
+                "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=" + domain,
+                "-validity", "3650", "-storetype", "JKS", "-keystore", keyStore.getPath(),
+                "-storepass", KEY_STORE_PASSWORD, "-keypass", KEY_STORE_PASSWORD)
+                .redirectErrorStream(true).start();
+        try {
+            InputStream output = process.getInputStream();
+            while (output.read() != -1) {
+                // Discard the output of keytool
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("Could not generate a certificate with " + keytool);
+            }
+        }
+        catch (InterruptedException ie) {
+            throw new IOException("Interrupted while generating a certificate");
+        }
+        KeyStore ks = KeyStore.getInstance("JKS");
+        InputStream in = new FileInputStream(keyStore);
+        try {
+            ks.load(in, KEY_STORE_PASSWORD.toCharArray());
+        }
+        finally {
+            in.close();
+        }
+        KeyManagerFactory kmf =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, KEY_STORE_PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * Negotiates TLS on a client connection.
+     *
+     * @param socket the plain socket of the connection.
+     * @return the secured socket.
+     * @throws IOException if the TLS handshake fails.
+     */
+    SSLSocket secure(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket,
+                socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    /**
+     * Returns whether the credentials of a user are valid.
+     *
+     * @param username the name of the user.
+     * @param password the password of the user.
+     * @return true if the user can log in.
+     */
+    boolean authenticate(String username, String password) {
+        return passwords.isEmpty() || password.equals(passwords.get(username));
+    }
+
+    /**
+     * Binds a resource to a session. A resource is generated if the requested resource is
+     * empty or already bound to another session.
+     *
+     * @param session the session.
+     * @param bareJID the bare JID of the user of the session.
+     * @param resource the requested resource.
+     * @return the full JID of the session.
+     */
+    String bind(ClientSession session, String bareJID, String resource) {
+        String jid = bareJID + "/" + resource;
+        if (resource.length() == 0 || sessionsByJID.containsKey(jid)) {
+            jid = bareJID + "/" + resource + StringUtils.randomString(8);
+        }
+        sessionsByJID.put(jid, session);
+        synchronized (sessionsByBareJID) {
+            List<ClientSession> userSessions = sessionsByBareJID.get(bareJID);
+            if (userSessions == null) {
+                userSessions = new CopyOnWriteArrayList<ClientSession>();
+                sessionsByBareJID.put(bareJID, userSessions);
+            }
+            userSessions.add(session);
+        }
+        return jid;
+    }
+
+    /**
+     * Removes a closed session.
+     *
+     * @param session the session.
+     */
+    void unbind(ClientSession session) {
+        sessions.remove(session);
+        String jid = session.getJID();
+        if (jid == null) {
+            return;
+        }
+        sessionsByJID.remove(jid, session);
+        String bareJID = StringUtils.parseBareAddress(jid);
+        synchronized (sessionsByBareJID) {
+            List<ClientSession> userSessions = sessionsByBareJID.get(bareJID);
+            if (userSessions != null) {
+                userSessions.remove(session);
+                if (userSessions.isEmpty()) {
+                    sessionsByBareJID.remove(bareJID);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the session bound to a full JID, or <tt>null</tt> if there is none.
+     *
+     * @param jid the full JID.
+     * @return the session or <tt>null</tt>.
+     */
+    ClientSession getSession(String jid) {
+        return sessionsByJID.get(jid);
+    }
+
+    /**
+     * Returns the sessions bound to a bare JID.
+     *
+     * @param bareJID the bare JID.
+     * @return the sessions of the bare JID.
+     */
+    List<ClientSession> getSessions(String bareJID) {
+        List<ClientSession> userSessions = sessionsByBareJID.get(bareJID);
+        if (userSessions == null) {
+            return Collections.emptyList();
+        }
+        return userSessions;
+    }
+
+    /**
+     * Returns the contacts in the roster of a user.
+     *
+     * @param user the bare JID of the user.
+     * @return the bare JIDs of the contacts.
+     */
+    Collection<String> getContacts(String user) {
+        Set<String> roster = rosters.get(user);
+        if (roster == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(roster);
+    }
+
+    void addContact(String user, String contact) {
+        synchronized (rosters) {
+            Set<String> roster = rosters.get(user);
+            if (roster == null) {
+                roster = newRoster();
+                rosters.put(user, roster);
+            }
+            roster.add(contact);
+        }
+    }
+
+    void removeContact(String user, String contact) {
+        Set<String> roster = rosters.get(user);
+        if (roster != null) {
+            roster.remove(contact);
+        }
+    }
+
+    private static Set<String> newRoster() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.benchmark.server;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An XML element read from a client stream, which the server inspects and forwards.
+ * Elements keep their namespace, attributes, child elements and text, which is enough to
+ * write them back as equivalent XML.
+ */
+class XmlElement {
+
+    private final String name;
+    private final String namespace;
+    private final List<Attribute> attributes = new ArrayList<Attribute>();
+    private final List<Object> children = new ArrayList<Object>();
+
+    /**
+     * Creates a new element.
+     *
+     * @param name the name of the element.
+     * @param namespace the namespace of the element.
+     */
+    XmlElement(String name, String namespace) {
+        this.name = name;
+        this.namespace = namespace != null ? namespace : "";
+    }
+
+    /**
+     * Reads an element and its content. The parser must be positioned on the start tag of
+     * the element and is left on its end tag.
+     *
+     * @param parser the parser to read from, with namespace processing enabled.
+     * @return the element.
+     * @throws XmlPullParserException if the XML is not well formed.
+     * @throws IOException if an error occurs while reading the XML.
+     */
+    static XmlElement parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        XmlElement element = new XmlElement(parser.getName(), parser.getNamespace());
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            element.attributes.add(new Attribute(parser.getAttributePrefix(i),
+                    parser.getAttributeName(i), parser.getAttributeNamespace(i),
+                    parser.getAttributeValue(i)));
+        }
+        while (true) {
+            int event = parser.next();
+            if (event == XmlPullParser.START_TAG) {
+                element.children.add(parse(parser));
+            }
+            else if (event == XmlPullParser.TEXT) {
+                element.children.add(parser.getText());
+            }
+            else if (event == XmlPullParser.END_TAG) {
+                return element;
+            }
+            else if (event == XmlPullParser.END_DOCUMENT) {
+                throw new EOFException("Stream closed in the middle of an element.");
+            }
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Returns the value of an attribute without prefix, or <tt>null</tt> if the element
+     * does not have the attribute.
+     *
+     * @param name the name of the attribute.
+     * @return the value of the attribute or <tt>null</tt>.
+     */
+    String getAttribute(String name) {
+        for (Attribute attribute : attributes) {
+            if (attribute.prefix == null && attribute.name.equals(name)) {
+                return attribute.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the value of an attribute without prefix, replacing the current value if any.
+     * The attribute is removed if the value is <tt>null</tt>.
+     *
+     * @param name the name of the attribute.
+     * @param value the value of the attribute or <tt>null</tt>.
+     * @return this element.
+     */
+    XmlElement setAttribute(String name, String value) {
+        for (int i = 0; i < attributes.size(); i++) {
+            Attribute attribute = attributes.get(i);
+            if (attribute.prefix == null && attribute.name.equals(name)) {
+                if (value == null) {
+                    attributes.remove(i);
+                }
+                else {
+                    attributes.set(i, new Attribute(null, name, "", value));
+                }
+                return this;
+            }
+        }
+        if (value != null) {
+            attributes.add(new Attribute(null, name, "", value));
+        }
+        return this;
+    }
+
+    /**
+     * Returns the first child element, or <tt>null</tt> if the element has no child
+     * element.
+     *
+     * @return the first child element or <tt>null</tt>.
+     */
+    XmlElement getFirstChild() {
+        for (Object child : children) {
+            if (child instanceof XmlElement) {
+                return (XmlElement) child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first child element with the specified name, or <tt>null</tt> if there
+     * is none.
+     *
+     * @param name the name of the child element.
+     * @return the child element or <tt>null</tt>.
+     */
+    XmlElement getChild(String name) {
+        for (Object child : children) {
+            if (child instanceof XmlElement && ((XmlElement) child).name.equals(name)) {
+                return (XmlElement) child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the child elements.
+     *
+     * @return the child elements.
+     */
+    List<XmlElement> getChildren() {
+        List<XmlElement> elements = new ArrayList<XmlElement>();
+        for (Object child : children) {
+            if (child instanceof XmlElement) {
+                elements.add((XmlElement) child);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Returns the text of the element, excluding the text of the child elements.
+     *
+     * @return the text of the element.
+     */
+    String getText() {
+        StringBuilder text = new StringBuilder();
+        for (Object child : children) {
+            if (child instanceof String) {
+                text.append((String) child);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Adds a child element.
+     *
+     * @param child the child element.
+     * @return the child element.
+     */
+    XmlElement addChild(XmlElement child) {
+        children.add(child);
+        return child;
+    }
+
+    /**
+     * Adds a new child element that has the namespace of this element.
+     *
+     * @param name the name of the child element.
+     * @return the new child element.
+     */
+    XmlElement addChild(String name) {
+        return addChild(new XmlElement(name, namespace));
+    }
+
+    /**
+     * Adds text to the element.
+     *
+     * @param text the text to add.
+     * @return this element.
+     */
+    XmlElement addText(String text) {
+        children.add(text);
+        return this;
+    }
+
+    /**
+     * Returns the XML of the element as a top-level element of a <tt>jabber:client</tt>
+     * stream.
+     *
+     * @return the XML of the element.
+     */
+    String toXML() {
+        StringBuilder out = new StringBuilder(128);
+        toXML(out, "jabber:client");
+        return out.toString();
+    }
+
+    private void toXML(StringBuilder out, String parentNamespace) {
+        out.append('<').append(name);
+        if (!namespace.equals(parentNamespace)) {
+            out.append(" xmlns=\"");
+            escape(namespace, out);
+            out.append('"');
+        }
+        Set<String> declaredPrefixes = null;
+        for (Attribute attribute : attributes) {
+            out.append(' ');
+            if (attribute.prefix != null) {
+                if (!attribute.prefix.equals("xml")) {
+                    if (declaredPrefixes == null) {
+                        declaredPrefixes = new HashSet<String>();
+                    }
+                    if (declaredPrefixes.add(attribute.prefix)) {
+                        out.append("xmlns:").append(attribute.prefix).append("=\"");
+                        escape(attribute.namespace, out);
+                        out.append("\" ");
+                    }
+                }
+                out.append(attribute.prefix).append(':');
+            }
+            out.append(attribute.name).append("=\"");
+            escape(attribute.value, out);
+            out.append('"');
+        }
+        if (children.isEmpty()) {
+            out.append("/>");
+            return;
+        }
+        out.append('>');
+        for (Object child : children) {
+            if (child instanceof XmlElement) {
+                ((XmlElement) child).toXML(out, namespace);
+            }
+            else {
+                escape((String) child, out);
+            }
+        }
+        out.append("</").append(name).append('>');
+    }
+
+    private static void escape(String text, StringBuilder out) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\'':
+                    out.append("&apos;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * An attribute of an element.
+     */
+    private static class Attribute {
+
+        final String prefix;
+        final String name;
+        final String namespace;
+        final String value;
+
+        Attribute(String prefix, String name, String namespace, String value) {
+            this.prefix = prefix;
+            this.name = name;
+            this.namespace = namespace;
+            this.value = value;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.jivesoftware.smack.filter.AndFilter;
 import org.jivesoftware.smack.filter.FromContainsFilter;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.ThreadFilter;
+import org.jivesoftware.smack.packet.JID;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.util.StringUtils;
@@ -112,13 +113,13 @@ public class ChatManager {
                 Message message = (Message) packet;
                 Chat chat;
                 if (message.getThread() == null) {
-                	chat = getUserChat(message.getFrom());
+                	chat = getUserChat(message.getFromJID());
                 }
                 else {
                     chat = getThreadChat(message.getThread());
                     if (chat == null) {
                         // Try to locate the chat based on the sender of the message
-                    	chat = getUserChat(message.getFrom());
+                    	chat = getUserChat(message.getFromJID());
                     }
                 }
 
@@ -171,7 +172,7 @@ public class ChatManager {
         Chat chat = new Chat(this, userJID, threadID);
         threadChats.put(threadID, chat);
         jidChats.put(userJID, chat);
-        baseJidChats.put(StringUtils.parseBareAddress(userJID), chat);
+        baseJidChats.put(JID.valueOf(userJID).getBareAddress(), chat);
 
         for(ChatManagerListener listener : chatManagerListeners) {
             listener.chatCreated(chat, createdLocally);
@@ -198,11 +199,14 @@ public class ChatManager {
      * @param userJID
      * @return
      */
-    private Chat getUserChat(String userJID) {
-	Chat match = jidChats.get(userJID);
+    private Chat getUserChat(JID userJID) {
+	if (userJID == null) {
+	    return null;
+	}
+	Chat match = jidChats.get(userJID.toString());
 	
 	if (match == null) {
-	    match = baseJidChats.get(StringUtils.parseBareAddress(userJID));
+	    match = baseJidChats.get(userJID.getBareAddress());
 	}
 	return match;
     }
@@ -28,13 +28,19 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.jivesoftware.smack.debugger.SmackDebugger;
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.IQTypeFilter;
+import org.jivesoftware.smack.filter.OrFilter;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 
@@ -126,10 +132,12 @@ public abstract class Connection {
             new CopyOnWriteArrayList<ConnectionListener>();
 
     /**
-     * A collection of PacketCollectors which collects packets for a specified filter
-     * and perform blocking and polling operations on the result queue.
+     * The PacketCollectors which collect packets for a specified filter and perform
+     * blocking and polling operations on the result queue. Collectors waiting for a given
+     * packet ID are indexed so they are found, and removed, without checking every
+     * collector.
      */
-    protected final Collection<PacketCollector> collectors = new ConcurrentLinkedQueue<PacketCollector>();
+    final PacketCollectorDispatcher collectorDispatcher = new PacketCollectorDispatcher();
 
     /**
      * List of PacketListeners that will be notified when a new packet was received.
@@ -193,6 +201,19 @@ public abstract class Connection {
      */
     protected final ConnectionConfiguration config;
 
+    /**
+     * The times at which the negotiations in progress started, indexed by negotiation.
+     * They are set by the thread that starts a negotiation and read by the thread that
+     * reads its outcome.
+     */
+    private final AtomicLongArray negotiationStartTimes =
+            new AtomicLongArray(ConnectionMetrics.Negotiation.values().length);
+
+    /**
+     * True if the server announced roster versioning (XEP-0237) in its stream features.
+     */
+    private volatile boolean rosterVersioningSupported = false;
+
     /**
      * Create a new Connection to a XMPP server.
      * 
@@ -211,6 +232,33 @@ public abstract class Connection {
         return config;
     }
 
+    /**
+     * Records the start of a negotiation with the server, such as TLS or SASL, when the
+     * connection is measured.
+     *
+     * @param negotiation the negotiation that starts.
+     */
+    void negotiationStarted(ConnectionMetrics.Negotiation negotiation) {
+        if (config.getConnectionMetrics() != null) {
+            negotiationStartTimes.set(negotiation.ordinal(), System.nanoTime());
+        }
+    }
+
+    /**
+     * Reports the outcome and the duration of a negotiation with the server to the
+     * metrics of the connection.
+     *
+     * @param negotiation the negotiation that completed.
+     * @param successful true if the negotiation succeeded.
+     */
+    void negotiationCompleted(ConnectionMetrics.Negotiation negotiation, boolean successful) {
+        ConnectionMetrics metrics = config.getConnectionMetrics();
+        if (metrics != null) {
+            long time = System.nanoTime() - negotiationStartTimes.get(negotiation.ordinal());
+            metrics.negotiationCompleted(this, negotiation, successful, time);
+        }
+    }
+
     /**
      * Returns the name of the service provided by the XMPP server for this connection.
      * This is also called XMPP domain of the connected server. After
@@ -395,6 +443,108 @@ public abstract class Connection {
      */
     public abstract void sendPacket(Packet packet);
 
+    /**
+     * Sends the specified packet to the server if it can be done without waiting. Returns
+     * false if the packet was not sent because too many packets are waiting to be written
+     * to the server, in which case the caller may retry later or give up. By default the
+     * packet is sent with {@link #sendPacket(Packet)}.
+     *
+     * @param packet the packet to send.
+     * @return true if the packet was sent, false if it could not be sent without waiting.
+     * @throws IllegalStateException if not connected to the server.
+     */
+    public boolean trySendPacket(Packet packet) {
+        sendPacket(packet);
+        return true;
+    }
+
+    /**
+     * Sends the specified packet to the server, waiting up to the specified time if too
+     * many packets are waiting to be written to the server. By default the packet is sent
+     * with {@link #sendPacket(Packet)}.
+     *
+     * @param packet the packet to send.
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return true if the packet was sent, false if the timeout elapsed.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     * @throws IllegalStateException if not connected to the server.
+     */
+    public boolean sendPacket(Packet packet, long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        sendPacket(packet);
+        return true;
+    }
+
+    /**
+     * Sends the specified packet to the server without waiting. The returned future
+     * completes once the packet has been written to the connection. It fails right away if
+     * too many packets are waiting to be written to the server, and fails later if the
+     * connection is closed before the packet is written. By default the packet is sent with
+     * {@link #sendPacket(Packet)} and the returned future is already complete.
+     *
+     * @param packet the packet to send.
+     * @return the future of the write.
+     * @throws IllegalStateException if not connected to the server.
+     */
+    public PacketWriteFuture sendPacketAsync(Packet packet) {
+        sendPacket(packet);
+        PacketWriteFuture future = new PacketWriteFuture(packet);
+        future.complete();
+        return future;
+    }
+
+    /**
+     * Sends an IQ request to the server and returns without waiting for the reply. The
+     * returned future completes when a result is received, and fails if an error is received
+     * or if no reply is received within {@link SmackConfiguration#getPacketReplyTimeout()}
+     * milliseconds.
+     *
+     * @param request the IQ request to send.
+     * @return the future reply of the server.
+     * @throws IllegalStateException if not connected to the server.
+     */
+    public PacketReplyFuture<IQ> sendIQWithReply(IQ request) {
+        return sendIQWithReply(request, SmackConfiguration.getPacketReplyTimeout());
+    }
+
+    /**
+     * Sends an IQ request to the server and returns without waiting for the reply. The
+     * returned future completes when a result is received, and fails if an error is received
+     * or if no reply is received within the specified timeout.
+     *
+     * @param request the IQ request to send.
+     * @param timeout the time to wait for the reply in milliseconds.
+     * @return the future reply of the server.
+     * @throws IllegalStateException if not connected to the server.
+     */
+    public PacketReplyFuture<IQ> sendIQWithReply(IQ request, long timeout) {
+        PacketFilter replyFilter = new AndFilter(new PacketIDFilter(request.getPacketID()),
+                new OrFilter(new IQTypeFilter(IQ.Type.RESULT), new IQTypeFilter(IQ.Type.ERROR)));
+        PacketReplyFuture<IQ> future = new PacketReplyFuture<IQ>(this, replyFilter, IQ.class);
+        future.send(request, timeout);
+        return future;
+    }
+
+    /**
+     * Sends a packet to the server and returns without waiting for the reply. The reply is
+     * the first packet received with the same packet ID as the request. The returned future
+     * fails if the reply is an error or if no reply is received within the specified
+     * timeout.
+     *
+     * @param request the packet to send.
+     * @param timeout the time to wait for the reply in milliseconds.
+     * @return the future reply of the server.
+     * @throws IllegalStateException if not connected to the server.
+     */
+    public PacketReplyFuture<Packet> sendPacketWithReply(Packet request, long timeout) {
+        PacketReplyFuture<Packet> future = new PacketReplyFuture<Packet>(this,
+                new PacketIDFilter(request.getPacketID()), Packet.class);
+        future.send(request, timeout);
+        return future;
+    }
+
     /**
      * Returns an account manager instance for this connection.
      * 
@@ -433,6 +583,26 @@ public abstract class Connection {
      */
     public abstract Roster getRoster();
 
+    /**
+     * Returns true if the server supports roster versioning (XEP-0237), which lets the
+     * roster be loaded from a {@link RosterStore} and only the changes be requested from
+     * the server.
+     *
+     * @return true if the server supports roster versioning.
+     */
+    public boolean isRosterVersioningSupported() {
+        return rosterVersioningSupported;
+    }
+
+    /**
+     * Sets whether the server announced roster versioning in its stream features.
+     *
+     * @param rosterVersioningSupported true if the server supports roster versioning.
+     */
+    void setRosterVersioningSupported(boolean rosterVersioningSupported) {
+        this.rosterVersioningSupported = rosterVersioningSupported;
+    }
+
     /**
      * Returns the SASLAuthentication manager that is responsible for authenticating with
      * the server.
@@ -555,27 +725,37 @@ public abstract class Connection {
      */
     public PacketCollector createPacketCollector(PacketFilter packetFilter) {
         PacketCollector collector = new PacketCollector(this, packetFilter);
-        // Add the collector to the list of active collectors.
-        collectors.add(collector);
+        addPacketCollector(collector);
         return collector;
     }
 
+    /**
+     * Adds a packet collector to the active collectors of this connection.
+     *
+     * @param collector a packet collector which was created for this connection.
+     */
+    void addPacketCollector(PacketCollector collector) {
+        // Add the collector to the active collectors.
+        collectorDispatcher.addCollector(collector);
+    }
+
     /**
      * Remove a packet collector of this connection.
      * 
      * @param collector a packet collectors which was created for this connection.
      */
     protected void removePacketCollector(PacketCollector collector) {
-        collectors.remove(collector);
+        collectorDispatcher.removeCollector(collector);
     }
 
     /**
-     * Get the collection of all packet collectors for this connection.
+     * Get the collection of all packet collectors for this connection. The collection is
+     * a snapshot of the active collectors.
      * 
      * @return a collection of packet collectors for this connection.
      */
     protected Collection<PacketCollector> getPacketCollectors() {
-        return collectors;
+        return collectorDispatcher.getCollectors();
     }
 
     /**
@@ -809,10 +989,29 @@ public abstract class Connection {
          * @param packet the packet which was sent or received.
          */
         public void notifyListener(Packet packet) {
-            if (packetFilter == null || packetFilter.accept(packet)) {
+            if (accept(packet)) {
                 packetListener.processPacket(packet);
             }
         }
+
+        /**
+         * Returns true if the filter matches the packet or if there is no filter.
+         *
+         * @param packet the packet which was sent or received.
+         * @return true if the listener has to be notified of the packet.
+         */
+        boolean accept(Packet packet) {
+            return packetFilter == null || packetFilter.accept(packet);
+        }
+
+        /**
+         * Returns the packet listener.
+         *
+         * @return the packet listener.
+         */
+        PacketListener getPacketListener() {
+            return packetListener;
+        }
     }
 
     /**
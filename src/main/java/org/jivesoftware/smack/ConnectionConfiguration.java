@@ -76,6 +76,33 @@ public class ConnectionConfiguration implements Cloneable {
     
     // Holds the socket factory that is used to generate the socket in the connection
     private SocketFactory socketFactory;
+    // Flag that indicates if the socket factory was set by the user
+    private boolean customSocketFactory = false;
+
+    private boolean nonBlockingIOEnabled = false;
+    private int nonBlockingWriteLimit = 1048576;
+
+    private boolean writeBatchingEnabled = false;
+    private int writeBatchMaxSize = 65536;
+    private long writeBatchMaxDelay = 0;
+
+    private ConnectionMetrics connectionMetrics = null;
+
+    private int packetQueueCapacity = 500;
+    private boolean packetQueueFair = true;
+
+    private int listenerThreads = 1;
+    private ListenerOrdering listenerOrdering = ListenerOrdering.listener;
+    private int listenerQueueCapacity = 0;
+    private ListenerQueuePolicy listenerQueuePolicy = ListenerQueuePolicy.block;
+
+    private boolean lazyExtensionParsingEnabled = false;
+    private int parserThreads = 1;
+
+    private int maxStanzaSize = 0;
+    private int maxTextSize = 0;
+    private TextSizePolicy textSizePolicy = TextSizePolicy.reject;
+    private File spillDirectory = null;
     
     // Holds the authentication information for future reconnections
     private String username;
@@ -83,6 +110,7 @@ public class ConnectionConfiguration implements Cloneable {
     private String resource;
     private boolean sendPresence = true;
     private boolean rosterLoadedAtLogin = true;
+    private RosterStore rosterStore = null;
     private SecurityMode securityMode = SecurityMode.enabled;
 
     private String[] cipherSuites = {};
@@ -584,6 +612,504 @@ public class ConnectionConfiguration implements Cloneable {
      */
     public void setSocketFactory(SocketFactory socketFactory) {
         this.socketFactory = socketFactory;
+        this.customSocketFactory = true;
+    }
+
+    /**
+     * Returns true if the connection is going to use non-blocking I/O. By default
+     * non-blocking I/O is disabled.
+     *
+     * @return true if the connection is going to use non-blocking I/O.
+     * @see #setNonBlockingIOEnabled(boolean)
+     */
+    public boolean isNonBlockingIOEnabled() {
+        return nonBlockingIOEnabled;
+    }
+
+    /**
+     * Sets if the connection is going to use non-blocking I/O. A non-blocking connection
+     * does not own any thread; socket I/O is performed by a few selector threads shared by
+     * all the non-blocking connections and incoming packets are processed by a shared pool
+     * of worker threads. This lets an application keep a large number of connections open.
+     * See {@link SmackConfiguration#setNioSelectorThreads(int)}.<p>
+     *
+     * Connections that use a proxy, DNSSEC or a custom socket factory can't use
+     * non-blocking I/O and will keep using blocking sockets even if this option is enabled.
+     * By default non-blocking I/O is disabled.
+     *
+     * @param nonBlockingIOEnabled if the connection is going to use non-blocking I/O.
+     */
+    public void setNonBlockingIOEnabled(boolean nonBlockingIOEnabled) {
+        this.nonBlockingIOEnabled = nonBlockingIOEnabled;
+    }
+
+    /**
+     * Returns the maximum number of bytes that a non-blocking connection may have waiting
+     * for the socket to accept them. The default value is 1 MB.
+     *
+     * @return the maximum number of bytes waiting to be written to the socket.
+     * @see #setNonBlockingWriteLimit(int)
+     */
+    public int getNonBlockingWriteLimit() {
+        return nonBlockingWriteLimit;
+    }
+
+    /**
+     * Sets the maximum number of bytes that a non-blocking connection may have waiting for
+     * the socket to accept them. A non-blocking connection has no queue of packets: packets
+     * are written right away and the bytes that the socket can't accept are queued. Once
+     * this limit is reached
+     * {@link Connection#sendPacket(org.jivesoftware.smack.packet.Packet)} waits for the
+     * queued bytes to be written while
+     * {@link Connection#trySendPacket(org.jivesoftware.smack.packet.Packet)} returns
+     * immediately. A packet is accepted as long as the limit was not reached, so the queued
+     * bytes may exceed the limit by the size of a packet. The default value is 1 MB.
+     *
+     * @param nonBlockingWriteLimit the maximum number of bytes waiting to be written to
+     *      the socket.
+     */
+    public void setNonBlockingWriteLimit(int nonBlockingWriteLimit) {
+        if (nonBlockingWriteLimit <= 0) {
+            throw new IllegalArgumentException("Write limit must be positive.");
+        }
+        this.nonBlockingWriteLimit = nonBlockingWriteLimit;
+    }
+
+    /**
+     * Returns true if outgoing packets are written in batches. By default write batching
+     * is disabled.
+     *
+     * @return true if outgoing packets are written in batches.
+     * @see #setWriteBatchingEnabled(boolean)
+     */
+    public boolean isWriteBatchingEnabled() {
+        return writeBatchingEnabled;
+    }
+
+    /**
+     * Sets if outgoing packets are written in batches. When enabled, the thread that writes
+     * packets to the server takes all the packets waiting to be sent, writes them and then
+     * flushes the connection only once. When compression or TLS is being used this saves a
+     * compression flush and a TLS record per packet, which is significant when many packets
+     * are sent in bursts. A batch is flushed when no more packets are waiting, once it
+     * reaches {@link #getWriteBatchMaxSize()} characters or after waiting
+     * {@link #getWriteBatchMaxDelay()} milliseconds for more packets. By default write
+     * batching is disabled and the connection is flushed after every packet.<p>
+     *
+     * Write batching only applies to connections that use blocking I/O.
+     *
+     * @param writeBatchingEnabled if outgoing packets are written in batches.
+     */
+    public void setWriteBatchingEnabled(boolean writeBatchingEnabled) {
+        this.writeBatchingEnabled = writeBatchingEnabled;
+    }
+
+    /**
+     * Returns the number of characters after which a batch of packets is flushed. The
+     * default value is 65536.
+     *
+     * @return the maximum size of a batch of packets in characters.
+     */
+    public int getWriteBatchMaxSize() {
+        return writeBatchMaxSize;
+    }
+
+    /**
+     * Sets the number of characters after which a batch of packets is flushed even if
+     * more packets are waiting to be sent. The default value is 65536.
+     *
+     * @param writeBatchMaxSize the maximum size of a batch of packets in characters.
+     */
+    public void setWriteBatchMaxSize(int writeBatchMaxSize) {
+        if (writeBatchMaxSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        this.writeBatchMaxSize = writeBatchMaxSize;
+    }
+
+    /**
+     * Returns the number of milliseconds to wait for more packets before flushing a batch
+     * that is not full. The default value is 0.
+     *
+     * @return the maximum time to wait for more packets in milliseconds.
+     */
+    public long getWriteBatchMaxDelay() {
+        return writeBatchMaxDelay;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for more packets before flushing a batch
+     * that is not full. The delay is counted from the moment the first packet of the batch
+     * is taken. With the default value of 0 a batch is flushed as soon as no more packets
+     * are waiting to be sent, so batching never delays a packet.
+     *
+     * @param writeBatchMaxDelay the maximum time to wait for more packets in milliseconds.
+     */
+    public void setWriteBatchMaxDelay(long writeBatchMaxDelay) {
+        if (writeBatchMaxDelay < 0) {
+            throw new IllegalArgumentException("Batch delay cannot be negative.");
+        }
+        this.writeBatchMaxDelay = writeBatchMaxDelay;
+    }
+
+    /**
+     * Returns the metrics that receive the measurements of the connection, or <tt>null</tt>
+     * if the connection is not measured. By default no metrics are installed.
+     *
+     * @return the metrics of the connection or <tt>null</tt>.
+     */
+    public ConnectionMetrics getConnectionMetrics() {
+        return connectionMetrics;
+    }
+
+    /**
+     * Sets the metrics that will receive the measurements of the connection, such as the
+     * time spent parsing packets and notifying listeners or the number of bytes sent. The
+     * same metrics may be used by several connections. The metrics must be set before
+     * connecting to the server. By default no metrics are installed and nothing is
+     * measured.
+     *
+     * @param connectionMetrics the metrics of the connection or <tt>null</tt> to not
+     *      measure the connection.
+     */
+    public void setConnectionMetrics(ConnectionMetrics connectionMetrics) {
+        this.connectionMetrics = connectionMetrics;
+    }
+
+    /**
+     * Returns the maximum number of outgoing packets that may be waiting to be written to
+     * the server. The default value is 500.
+     *
+     * @return the capacity of the queue of outgoing packets.
+     */
+    public int getPacketQueueCapacity() {
+        return packetQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of outgoing packets that may be waiting to be written to the
+     * server. Once the queue is full
+     * {@link Connection#sendPacket(org.jivesoftware.smack.packet.Packet)} waits for room in
+     * the queue while {@link Connection#trySendPacket(org.jivesoftware.smack.packet.Packet)}
+     * returns immediately.
+     * The default value is 500.
+     *
+     * @param packetQueueCapacity the capacity of the queue of outgoing packets.
+     */
+    public void setPacketQueueCapacity(int packetQueueCapacity) {
+        if (packetQueueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive.");
+        }
+        this.packetQueueCapacity = packetQueueCapacity;
+    }
+
+    /**
+     * Returns true if threads waiting for room in the queue of outgoing packets are served
+     * in the order they started waiting. By default the queue is fair.
+     *
+     * @return true if the queue of outgoing packets is fair.
+     */
+    public boolean isPacketQueueFair() {
+        return packetQueueFair;
+    }
+
+    /**
+     * Sets if threads waiting for room in the queue of outgoing packets are served in the
+     * order they started waiting. A fair queue prevents a thread from waiting indefinitely
+     * but lowers the throughput when many threads are sending packets. By default the
+     * queue is fair.
+     *
+     * @param packetQueueFair if the queue of outgoing packets is fair.
+     */
+    public void setPacketQueueFair(boolean packetQueueFair) {
+        this.packetQueueFair = packetQueueFair;
+    }
+
+    /**
+     * Returns the number of threads that deliver incoming packets to the packet listeners.
+     * The default value is 1.
+     *
+     * @return the number of threads that notify the packet listeners.
+     * @see #setListenerThreads(int)
+     */
+    public int getListenerThreads() {
+        return listenerThreads;
+    }
+
+    /**
+     * Sets the number of threads that deliver incoming packets to the packet listeners.
+     * By default a single thread notifies all the listeners, so a slow listener delays
+     * the packets of every other listener. When more threads are used each listener is
+     * notified independently and the order in which packets are delivered is preserved
+     * as configured with {@link #setListenerOrdering(ListenerOrdering)}.
+     *
+     * @param listenerThreads the number of threads that notify the packet listeners.
+     */
+    public void setListenerThreads(int listenerThreads) {
+        if (listenerThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be positive.");
+        }
+        this.listenerThreads = listenerThreads;
+    }
+
+    /**
+     * Returns the order in which incoming packets are delivered to a packet listener when
+     * several listener threads are used. The default is {@link ListenerOrdering#listener}.
+     *
+     * @return the order in which packets are delivered to a listener.
+     */
+    public ListenerOrdering getListenerOrdering() {
+        return listenerOrdering;
+    }
+
+    /**
+     * Sets the order in which incoming packets are delivered to a packet listener when
+     * several listener threads are used. The ordering has no effect with a single listener
+     * thread, in which case all the packets are delivered in the order they were received.
+     *
+     * @param listenerOrdering the order in which packets are delivered to a listener.
+     */
+    public void setListenerOrdering(ListenerOrdering listenerOrdering) {
+        if (listenerOrdering == null) {
+            throw new NullPointerException("Ordering is null.");
+        }
+        this.listenerOrdering = listenerOrdering;
+    }
+
+    /**
+     * Returns the maximum number of incoming packets that may be waiting to be delivered
+     * to a packet listener. The default value is 0, which means that the number of waiting
+     * packets is not limited.
+     *
+     * @return the maximum number of packets waiting to be delivered to a listener.
+     */
+    public int getListenerQueueCapacity() {
+        return listenerQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of incoming packets that may be waiting to be delivered to
+     * a packet listener. Once a listener has that many packets waiting, new packets are
+     * handled according to the {@link #setListenerQueuePolicy(ListenerQueuePolicy) queue
+     * policy}. Only packets accepted by the filter of the listener are counted. The default
+     * value is 0, which means that the number of waiting packets is not limited.
+     *
+     * @param listenerQueueCapacity the maximum number of packets waiting to be delivered
+     *      to a listener or 0 for no limit.
+     */
+    public void setListenerQueueCapacity(int listenerQueueCapacity) {
+        if (listenerQueueCapacity < 0) {
+            throw new IllegalArgumentException("Queue capacity cannot be negative.");
+        }
+        this.listenerQueueCapacity = listenerQueueCapacity;
+    }
+
+    /**
+     * Returns what happens to incoming packets when a packet listener has too many packets
+     * waiting. The default is {@link ListenerQueuePolicy#block}.
+     *
+     * @return the policy applied when the queue of a listener is full.
+     * @see #setListenerQueueCapacity(int)
+     */
+    public ListenerQueuePolicy getListenerQueuePolicy() {
+        return listenerQueuePolicy;
+    }
+
+    /**
+     * Sets what happens to incoming packets when a packet listener has too many packets
+     * waiting.
+     *
+     * @param listenerQueuePolicy the policy applied when the queue of a listener is full.
+     * @see #setListenerQueueCapacity(int)
+     */
+    public void setListenerQueuePolicy(ListenerQueuePolicy listenerQueuePolicy) {
+        if (listenerQueuePolicy == null) {
+            throw new NullPointerException("Policy is null.");
+        }
+        this.listenerQueuePolicy = listenerQueuePolicy;
+    }
+
+    /**
+     * Returns true if the packet extensions of incoming messages and presences are parsed
+     * only when they are first requested. The default value is <tt>false</tt>.
+     *
+     * @return true if packet extensions are parsed on demand.
+     */
+    public boolean isLazyExtensionParsingEnabled() {
+        return lazyExtensionParsingEnabled;
+    }
+
+    /**
+     * Sets whether the packet extensions of incoming messages and presences are parsed only
+     * when they are first requested. When enabled, the XML of each extension that has a
+     * registered provider is kept as a {@link org.jivesoftware.smack.packet.LazyPacketExtension}
+     * and the provider is invoked the first time the extension is requested with
+     * {@link org.jivesoftware.smack.packet.Packet#getExtension(String, String)} or
+     * {@link org.jivesoftware.smack.packet.Packet#getExtensions()}. Extensions that are never
+     * requested are never parsed, which saves time when most extensions of the packets, such
+     * as the capabilities, avatars or delays of presences, are of no interest to the
+     * application. Filters can check whether a packet has an extension with
+     * {@link org.jivesoftware.smack.packet.Packet#hasExtension(String, String)} without
+     * parsing it. The default value is <tt>false</tt>.
+     *
+     * @param lazyExtensionParsingEnabled true to parse packet extensions on demand.
+     */
+    public void setLazyExtensionParsingEnabled(boolean lazyExtensionParsingEnabled) {
+        this.lazyExtensionParsingEnabled = lazyExtensionParsingEnabled;
+    }
+
+    /**
+     * Returns the number of threads that parse incoming packets. The default value is 1.
+     *
+     * @return the number of threads that parse incoming packets.
+     * @see #setParserThreads(int)
+     */
+    public int getParserThreads() {
+        return parserThreads;
+    }
+
+    /**
+     * Sets the number of threads that parse incoming packets. By default the reader thread
+     * of the connection reads, parses and dispatches every packet, so a busy connection is
+     * limited by the speed of a single thread. When more threads are used, the reader thread
+     * only finds where each packet starts and ends in the stream, the packets are parsed by
+     * a pool of parser threads, and the parsed packets are delivered to the collectors and
+     * listeners in the order they were received. The elements used to negotiate the stream,
+     * such as the stream features and the TLS, SASL and compression elements, are always
+     * processed by the reader thread. Connections that use non-blocking I/O ignore this
+     * setting.
+     *
+     * @param parserThreads the number of threads that parse incoming packets.
+     */
+    public void setParserThreads(int parserThreads) {
+        if (parserThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be positive.");
+        }
+        this.parserThreads = parserThreads;
+    }
+
+    /**
+     * Returns the maximum number of characters of an incoming stanza. The default value
+     * is 0, which means that the size of stanzas is not limited.
+     *
+     * @return the maximum size of incoming stanzas or 0 for no limit.
+     * @see #setMaxStanzaSize(int)
+     */
+    public int getMaxStanzaSize() {
+        return maxStanzaSize;
+    }
+
+    /**
+     * Sets the maximum number of characters of an incoming stanza, or of any other
+     * top-level element of the stream. A stanza larger than that closes the connection
+     * with a <tt>policy-violation</tt> stream error before the stanza is parsed, so a
+     * single huge stanza cannot exhaust the memory. The text that is spilled to disk
+     * according to the {@link #setTextSizePolicy(TextSizePolicy) text size policy} is not
+     * counted. The default value is 0, which means that the size of stanzas is not limited.
+     *
+     * @param maxStanzaSize the maximum size of incoming stanzas or 0 for no limit.
+     */
+    public void setMaxStanzaSize(int maxStanzaSize) {
+        if (maxStanzaSize < 0) {
+            throw new IllegalArgumentException("Maximum size cannot be negative.");
+        }
+        this.maxStanzaSize = maxStanzaSize;
+    }
+
+    /**
+     * Returns the maximum number of characters of a text node in an incoming stanza,
+     * such as the body of a message or the photo of a vCard. The default value is 0,
+     * which means that the size of text nodes is not limited.
+     *
+     * @return the maximum size of text nodes or 0 for no limit.
+     * @see #setMaxTextSize(int)
+     */
+    public int getMaxTextSize() {
+        return maxTextSize;
+    }
+
+    /**
+     * Sets the maximum number of characters of a text node in an incoming stanza. Larger
+     * text nodes are handled according to the {@link #setTextSizePolicy(TextSizePolicy)
+     * text size policy}. The size is counted as received, before entities are replaced.
+     * The default value is 0, which means that the size of text nodes is not limited.
+     *
+     * @param maxTextSize the maximum size of text nodes or 0 for no limit.
+     */
+    public void setMaxTextSize(int maxTextSize) {
+        if (maxTextSize < 0) {
+            throw new IllegalArgumentException("Maximum size cannot be negative.");
+        }
+        this.maxTextSize = maxTextSize;
+    }
+
+    /**
+     * Returns what happens to text nodes of incoming stanzas that are larger than the
+     * maximum text size. The default is {@link TextSizePolicy#reject}.
+     *
+     * @return the policy applied to text nodes that are too large.
+     * @see #setMaxTextSize(int)
+     */
+    public TextSizePolicy getTextSizePolicy() {
+        return textSizePolicy;
+    }
+
+    /**
+     * Sets what happens to text nodes of incoming stanzas that are larger than the
+     * maximum text size.
+     *
+     * @param textSizePolicy the policy applied to text nodes that are too large.
+     * @see #setMaxTextSize(int)
+     */
+    public void setTextSizePolicy(TextSizePolicy textSizePolicy) {
+        if (textSizePolicy == null) {
+            throw new NullPointerException("Policy is null.");
+        }
+        this.textSizePolicy = textSizePolicy;
+    }
+
+    /**
+     * Returns the directory of the files that large text nodes are spilled to, or
+     * <tt>null</tt> if the default temporary-file directory is used.
+     *
+     * @return the directory of spilled text nodes.
+     * @see TextSizePolicy#spill
+     */
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Sets the directory of the files that large text nodes are spilled to. By default
+     * the files are created in the default temporary-file directory.
+     *
+     * @param spillDirectory the directory of spilled text nodes or <tt>null</tt> to use
+     *      the default temporary-file directory.
+     * @see TextSizePolicy#spill
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Returns true if the size of incoming stanzas or of their text nodes is limited.
+     *
+     * @return true if incoming stanzas have size limits.
+     */
+    boolean isSizeLimited() {
+        return maxStanzaSize > 0 || maxTextSize > 0;
+    }
+
+    /**
+     * Returns true if non-blocking I/O was enabled and can be used with the configured
+     * proxy and socket factory.
+     *
+     * @return true if the connection will use non-blocking I/O.
+     */
+    boolean isNonBlockingIOUsable() {
+        return nonBlockingIOEnabled && !customSocketFactory
+                && (proxy == null || proxy.getProxyType() == ProxyInfo.ProxyType.NONE)
+                && !SmackConfiguration.isDnsSecEnabled();
     }
 
     /**
@@ -620,6 +1146,29 @@ public class ConnectionConfiguration implements Cloneable {
         this.rosterLoadedAtLogin = rosterLoadedAtLogin;
     }
 
+    /**
+     * Returns the store of the roster, or <tt>null</tt> if the roster is not stored. By
+     * default the roster is not stored.
+     *
+     * @return the store of the roster, or <tt>null</tt> if the roster is not stored.
+     */
+    public RosterStore getRosterStore() {
+        return rosterStore;
+    }
+
+    /**
+     * Sets the store of the roster. The roster is loaded from the store when it's created,
+     * and when the server supports roster versioning (XEP-0237) only the changes since the
+     * stored version are requested from the server at login and applied to the store.
+     * Stores must not be shared between connections of different users.
+     *
+     * @param rosterStore the store of the roster, or <tt>null</tt> to not store the roster.
+     * @see DefaultRosterStore
+     */
+    public void setRosterStore(RosterStore rosterStore) {
+        this.rosterStore = rosterStore;
+    }
+
     /**
      * Returns a CallbackHandler to obtain information, such as the password or
      * principal information during the SASL authentication. A CallbackHandler
@@ -683,6 +1232,81 @@ public class ConnectionConfiguration implements Cloneable {
         disabled
     }
 
+    /**
+     * An enumeration for the orders in which incoming packets can be delivered to a packet
+     * listener when several listener threads are used.
+     */
+    public static enum ListenerOrdering {
+
+        /**
+         * Each listener is notified by one thread at a time and receives the packets in
+         * the order they were received. Different listeners are notified in parallel.
+         * This is the default setting.
+         */
+        listener,
+
+        /**
+         * Packets sent by the same entity, identified by its bare JID, are delivered to a
+         * listener in the order they were received. A listener may be notified in parallel
+         * of packets sent by different entities, so it must be thread-safe.
+         */
+        sender
+    }
+
+    /**
+     * An enumeration for the policies that can be applied to the text nodes of incoming
+     * stanzas that are larger than the {@link ConnectionConfiguration#setMaxTextSize(int)
+     * maximum text size}.
+     */
+    public static enum TextSizePolicy {
+
+        /**
+         * The connection is closed with a <tt>policy-violation</tt> stream error. This is
+         * the default setting.
+         */
+        reject,
+
+        /**
+         * The text is truncated to the maximum size and the rest of the text is
+         * discarded as it is received.
+         */
+        truncate,
+
+        /**
+         * The text is written to a temporary file as it is received and is removed from
+         * the stanza. The packet is given a {@link org.jivesoftware.smack.packet.SpilledText}
+         * extension for each spilled text node, which reads the text from the file.
+         */
+        spill
+    }
+
+    /**
+     * An enumeration for the policies that can be applied to incoming packets when a
+     * packet listener has too many packets waiting to be delivered.
+     */
+    public static enum ListenerQueuePolicy {
+
+        /**
+         * Reading from the connection stops until the listener has processed enough
+         * packets. No packet is lost but every listener and collector of the connection is
+         * delayed. This is the default setting.<p>
+         *
+         * A listener whose queue has a limit must not send a packet and then wait for the
+         * reply on the same connection, for example with a {@link PacketCollector} or
+         * {@link Connection#sendIQWithReply(org.jivesoftware.smack.packet.IQ)}: once its queue
+         * is full, reading stops until it returns, so the reply is never read and the
+         * connection is deadlocked. Such listeners should hand the work to another thread,
+         * or the {@link #drop} policy should be used.
+         */
+        block,
+
+        /**
+         * The packet is not delivered to the listener. Other listeners and collectors are
+         * not affected.
+         */
+        drop
+    }
+
     /**
      * Returns the username to use when trying to reconnect to the server.
      *
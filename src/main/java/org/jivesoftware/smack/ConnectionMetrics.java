@@ -0,0 +1,152 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Receives measurements of the activity of a connection. Metrics are installed with
+ * {@link ConnectionConfiguration#setConnectionMetrics(ConnectionMetrics)}; when no metrics
+ * are installed nothing is measured and the connection does no extra work.<p>
+ *
+ * Methods are invoked by the threads that do the measured work, such as the threads that
+ * read and write packets, so implementations must be thread-safe and return quickly. All
+ * times are in nanoseconds.
+ *
+ * @see org.jivesoftware.smack.util.SimpleConnectionMetrics
+ */
+public interface ConnectionMetrics {
+
+    /**
+     * An incoming packet was parsed.
+     *
+     * @param connection the connection that received the packet.
+     * @param packet the parsed packet.
+     * @param parseTime the time spent parsing the packet.
+     */
+    public void packetParsed(Connection connection, Packet packet, long parseTime);
+
+    /**
+     * A packet listener processed an incoming packet.
+     *
+     * @param connection the connection that received the packet.
+     * @param listener the packet listener.
+     * @param packet the processed packet.
+     * @param waitTime the time between the moment the packet was parsed and the moment
+     *      the listener started processing it.
+     * @param processingTime the time spent by the listener processing the packet.
+     */
+    public void listenerInvoked(Connection connection, PacketListener listener, Packet packet,
+            long waitTime, long processingTime);
+
+    /**
+     * An outgoing packet was queued to be written. This method is not invoked when
+     * non-blocking I/O is used since packets are then written by the sending threads.
+     *
+     * @param connection the connection sending the packet.
+     * @param packet the queued packet.
+     * @param queueSize the number of packets waiting to be written, including this one.
+     */
+    public void packetQueued(Connection connection, Packet packet, int queueSize);
+
+    /**
+     * An outgoing packet was written to the connection.
+     *
+     * @param connection the connection sending the packet.
+     * @param packet the written packet.
+     * @param writeTime the time spent serializing and writing the packet. When write
+     *      batching is enabled the time spent on a batch is shared evenly by its packets.
+     */
+    public void packetWritten(Connection connection, Packet packet, long writeTime);
+
+    /**
+     * A thread waited for a packet collector to receive a packet.
+     *
+     * @param connection the connection of the collector.
+     * @param collector the packet collector.
+     * @param waitTime the time the thread waited.
+     * @param received true if a packet was received, false if the wait timed out.
+     */
+    public void collectorWaited(Connection connection, PacketCollector collector,
+            long waitTime, boolean received);
+
+    /**
+     * A request sent with {@link Connection#sendIQWithReply(org.jivesoftware.smack.packet.IQ)}
+     * or {@link Connection#sendPacketWithReply(Packet, long)} completed.
+     *
+     * @param connection the connection that sent the request.
+     * @param request the request.
+     * @param reply the reply of the server, or <tt>null</tt> if no reply was received in time.
+     * @param roundTripTime the time between sending the request and receiving the reply or
+     *      giving up.
+     */
+    public void requestCompleted(Connection connection, Packet request, Packet reply,
+            long roundTripTime);
+
+    /**
+     * Bytes of the XML stream were received from the server. When stream compression is
+     * used this method is invoked both for the compressed bytes that were received and
+     * for the bytes of XML they were inflated to. TLS overhead is not included.
+     *
+     * @param connection the connection that received the bytes.
+     * @param count the number of bytes.
+     * @param compressed true if the bytes are compressed.
+     */
+    public void bytesReceived(Connection connection, int count, boolean compressed);
+
+    /**
+     * Bytes of the XML stream were sent to the server. When stream compression is used
+     * this method is invoked both for the bytes of XML and for the compressed bytes they
+     * were deflated to. TLS overhead is not included.
+     *
+     * @param connection the connection that sent the bytes.
+     * @param count the number of bytes.
+     * @param compressed true if the bytes are compressed.
+     */
+    public void bytesSent(Connection connection, int count, boolean compressed);
+
+    /**
+     * A negotiation with the server completed.
+     *
+     * @param connection the connection that negotiated with the server.
+     * @param negotiation the negotiated feature.
+     * @param successful true if the negotiation succeeded.
+     * @param time the time between the request of the feature and the end of the
+     *      negotiation.
+     */
+    public void negotiationCompleted(Connection connection, Negotiation negotiation,
+            boolean successful, long time);
+
+    /**
+     * The features that are negotiated with the server.
+     */
+    public static enum Negotiation {
+
+        /**
+         * TLS encryption of the connection.
+         */
+        tls,
+
+        /**
+         * Stream compression.
+         */
+        compression,
+
+        /**
+         * SASL authentication.
+         */
+        sasl
+    }
+}
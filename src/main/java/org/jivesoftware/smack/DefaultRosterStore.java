@@ -0,0 +1,384 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.RosterPacket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A roster store that keeps the roster in memory and in a journal file. Each change is
+ * appended to the file as a record with a checksum and synced to the disk before the
+ * method returns, so a crash can only lose the record being written, which is detected
+ * and discarded when the file is loaded again. When the whole roster is received, or
+ * when the journal has grown to several times the size of the roster, the roster is
+ * written to a new file that atomically replaces the journal.<p>
+ *
+ * If the file cannot be written, it is deleted and the version of the roster is reset so
+ * that the whole roster is requested at the next login.
+ *
+ * @see ConnectionConfiguration#setRosterStore(RosterStore)
+ */
+public class DefaultRosterStore implements RosterStore {
+
+    private static final int MAGIC = 0x52535452;
+    private static final int FORMAT = 1;
+
+    private static final int VERSION = 0;
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+
+    /**
+     * Number of records the journal may have beyond the items of the roster before it's
+     * compacted, in addition to one record per item.
+     */
+    private static final int COMPACTION_SLACK = 1000;
+
+    private final File file;
+    private final File tempFile;
+    private final Map<String, RosterPacket.Item> items =
+            new LinkedHashMap<String, RosterPacket.Item>();
+    private String version = "";
+    private RandomAccessFile journal;
+    private int recordCount;
+
+    /**
+     * Creates a store that uses a file, loading the roster the file contains. The file
+     * and its parent directories are created if they don't exist.
+     *
+     * @param file the file of the store.
+     * @throws IOException if the file cannot be opened.
+     */
+    public DefaultRosterStore(File file) throws IOException {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the directory " + directory);
+        }
+        // A crash may have happened after the journal was deleted to be replaced
+        if (!file.exists() && tempFile.exists() && !tempFile.renameTo(file)) {
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
+        tempFile.delete();
+        load();
+    }
+
+    public synchronized Collection<RosterPacket.Item> getEntries() {
+        return new ArrayList<RosterPacket.Item>(items.values());
+    }
+
+    public synchronized RosterPacket.Item getEntry(String user) {
+        return items.get(user);
+    }
+
+    public synchronized String getRosterVersion() {
+        return version;
+    }
+
+    public synchronized boolean addEntry(RosterPacket.Item item, String version) {
+        items.put(item.getUser(), item);
+        return append(ADD, version, item, null);
+    }
+
+    public synchronized boolean removeEntry(String user, String version) {
+        items.remove(user);
+        return append(REMOVE, version, null, user);
+    }
+
+    public synchronized boolean resetEntries(Collection<RosterPacket.Item> items,
+            String version)
+    {
+        this.items.clear();
+        for (RosterPacket.Item item : items) {
+            this.items.put(item.getUser(), item);
+        }
+        this.version = version != null ? version : "";
+        try {
+            compact();
+            return true;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            invalidate();
+            return false;
+        }
+    }
+
+    /**
+     * Loads the journal, discarding the record a crash interrupted, if any, and opens it
+     * for appending.
+     */
+    private void load() throws IOException {
+        if (!file.exists()) {
+            compact();
+            return;
+        }
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Unknown format");
+            }
+            validLength = 8;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > file.length() - validLength) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(record);
+                recordCount++;
+                validLength += 8 + length;
+            }
+        }
+        catch (EOFException e) {
+            // The last record is incomplete or the file ends after the last record
+        }
+        catch (IOException e) {
+            // The file is not a journal, so start a new one
+            e.printStackTrace();
+            items.clear();
+            version = "";
+            validLength = 0;
+        }
+        finally {
+            in.close();
+        }
+        if (validLength == 0) {
+            compact();
+            return;
+        }
+        journal = new RandomAccessFile(file, "rw");
+        journal.setLength(validLength);
+        journal.seek(validLength);
+    }
+
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        int type = in.readByte();
+        String recordVersion = readString(in);
+        if (type == ADD) {
+            RosterPacket.Item item = readItem(in);
+            items.put(item.getUser(), item);
+        }
+        else if (type == REMOVE) {
+            items.remove(readString(in));
+        }
+        else if (type != VERSION) {
+            throw new IOException("Unknown record " + type);
+        }
+        if (recordVersion != null) {
+            version = recordVersion;
+        }
+    }
+
+    /**
+     * Appends a change to the journal and compacts the journal if it has become too large.
+     */
+    private boolean append(int type, String version, RosterPacket.Item item, String user) {
+        if (version != null) {
+            this.version = version;
+        }
+        if (journal == null) {
+            // The file could not be written before
+            return false;
+        }
+        try {
+            journal.write(toRecord(type, version, item, user));
+            journal.getChannel().force(false);
+            recordCount++;
+            if (recordCount > items.size() * 2 + COMPACTION_SLACK) {
+                compact();
+            }
+            return true;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            invalidate();
+            return false;
+        }
+    }
+
+    /**
+     * Writes the roster to a new journal that replaces the current one.
+     */
+    private void compact() throws IOException {
+        closeJournal();
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            for (RosterPacket.Item item : items.values()) {
+                out.write(toRecord(ADD, null, item, null));
+            }
+            out.write(toRecord(VERSION, version, null, null));
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        finally {
+            fileOut.close();
+        }
+        // Renaming does not replace an existing file on every platform
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
+        recordCount = items.size() + 1;
+        journal = new RandomAccessFile(file, "rw");
+        journal.seek(journal.length());
+    }
+
+    /**
+     * Deletes the journal after it could not be written, so that the whole roster is
+     * requested at the next login.
+     */
+    private void invalidate() {
+        version = "";
+        closeJournal();
+        file.delete();
+        tempFile.delete();
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            journal = null;
+        }
+    }
+
+    private static byte[] toRecord(int type, String version, RosterPacket.Item item,
+            String user) throws IOException
+    {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(byteStream);
+        // Room for the length and the checksum
+        out.writeLong(0);
+        out.writeByte(type);
+        writeString(out, version);
+        if (type == ADD) {
+            writeItem(out, item);
+        }
+        else if (type == REMOVE) {
+            writeString(out, user);
+        }
+        out.flush();
+        byte[] record = byteStream.toByteArray();
+        int length = record.length - 8;
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, length);
+        writeInt(record, 0, length);
+        writeInt(record, 4, (int) crc.getValue());
+        return record;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void writeItem(DataOutputStream out, RosterPacket.Item item)
+            throws IOException
+    {
+        writeString(out, item.getUser());
+        writeString(out, item.getName());
+        writeString(out, item.getItemType() != null ? item.getItemType().name() : null);
+        writeString(out, item.getItemStatus() != null ? item.getItemStatus().toString() : null);
+        out.writeInt(item.getMc());
+        out.writeInt(item.getEmc());
+        out.writeInt(item.getW());
+        out.writeBoolean(item.isRejected());
+        writeString(out, item.getT());
+        out.writeBoolean(item.isAutosub());
+        writeString(out, item.getAliasFor());
+        writeString(out, item.getInv());
+        out.writeInt(item.getGroupNames().size());
+        for (String groupName : item.getGroupNames()) {
+            writeString(out, groupName);
+        }
+    }
+
+    private static RosterPacket.Item readItem(DataInputStream in) throws IOException {
+        String user = readString(in);
+        String name = readString(in);
+        String type = readString(in);
+        String status = readString(in);
+        RosterPacket.Item item = new RosterPacket.Item(user, name,
+                type != null ? RosterPacket.ItemType.valueOf(type) : null,
+                RosterPacket.ItemStatus.fromString(status), in.readInt(), in.readInt(),
+                in.readInt(), in.readBoolean(), readString(in), in.readBoolean(),
+                readString(in), readString(in));
+        int groupCount = in.readInt();
+        for (int i = 0; i < groupCount; i++) {
+            item.addGroupName(readString(in));
+        }
+        return item;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
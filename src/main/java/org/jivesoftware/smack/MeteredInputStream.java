@@ -0,0 +1,65 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that reports the number of bytes read from it to the metrics of a
+ * connection.
+ *
+ * @see ConnectionMetrics#bytesReceived(Connection, int, boolean)
+ */
+class MeteredInputStream extends FilterInputStream {
+
+    private final Connection connection;
+    private final ConnectionMetrics metrics;
+    private final boolean compressed;
+
+    /**
+     * Creates a new stream reporting the bytes read from the specified stream.
+     *
+     * @param in the stream to read from.
+     * @param connection the connection the bytes are received by.
+     * @param metrics the metrics to report the bytes to.
+     * @param compressed true if the bytes read are compressed.
+     */
+    MeteredInputStream(InputStream in, Connection connection, ConnectionMetrics metrics,
+            boolean compressed)
+    {
+        super(in);
+        this.connection = connection;
+        this.metrics = metrics;
+        this.compressed = compressed;
+    }
+
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            metrics.bytesReceived(connection, 1, compressed);
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = in.read(b, off, len);
+        if (count > 0) {
+            metrics.bytesReceived(connection, count, compressed);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that reports the number of bytes written to it to the metrics of a
+ * connection.
+ *
+ * @see ConnectionMetrics#bytesSent(Connection, int, boolean)
+ */
+class MeteredOutputStream extends FilterOutputStream {
+
+    private final Connection connection;
+    private final ConnectionMetrics metrics;
+    private final boolean compressed;
+
+    /**
+     * Creates a new stream reporting the bytes written to the specified stream.
+     *
+     * @param out the stream to write to.
+     * @param connection the connection the bytes are sent by.
+     * @param metrics the metrics to report the bytes to.
+     * @param compressed true if the bytes written are compressed.
+     */
+    MeteredOutputStream(OutputStream out, Connection connection, ConnectionMetrics metrics,
+            boolean compressed)
+    {
+        super(out);
+        this.connection = connection;
+        this.metrics = metrics;
+        this.compressed = compressed;
+    }
+
+    public void write(int b) throws IOException {
+        out.write(b);
+        metrics.bytesSent(connection, 1, compressed);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        // Write the bytes at once instead of one by one like FilterOutputStream
+        out.write(b, off, len);
+        if (len > 0) {
+            metrics.bytesSent(connection, len, compressed);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.SpilledText;
+import org.jivesoftware.smack.util.SerialExecutorService;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Packet reader of connections that use non-blocking I/O. No thread is owned by this
+ * reader: the {@link NioTransport} frames the incoming elements on a selector thread and
+ * each element is then parsed on the shared worker threads. Elements of the same
+ * connection are parsed one at a time and in the order they were received, and incoming
+ * packets are delivered to the listeners in order too.<p>
+ *
+ * Each element is parsed with the opening stream tag in front of it so that the namespace
+ * declarations of the stream are in scope.
+ */
+class NioPacketReader extends PacketReader implements NioTransport.Listener {
+
+    private NioTransport transport;
+    private ExecutorService parserExecutor;
+
+    /**
+     * The opening stream tag of the current stream. Only used by the selector thread.
+     */
+    private String streamHeader;
+
+    NioPacketReader(XMPPConnection connection) {
+        super(connection);
+    }
+
+    protected void init() {
+        transport = connection.nioTransport;
+        parserExecutor = new SerialExecutorService(transport.getWorkers());
+        streamHeader = DEFAULT_STREAM_HEADER;
+        super.init();
+    }
+
+    protected ExecutorService createListenerExecutor() {
+        return new SerialExecutorService(connection.nioTransport.getWorkers());
+    }
+
+    protected void resetParser() {
+        // Every element is parsed with a new parser
+    }
+
+    protected void startReading() {
+        transport.start(this);
+    }
+
+    public void shutdown() {
+        super.shutdown();
+        parserExecutor.shutdown();
+    }
+
+    public void streamOpened(String header) {
+        streamHeader = header;
+        parse(header, null, null);
+    }
+
+    public void elementFramed(String name, String element, List<SpilledText> spilledTexts) {
+        parse(streamHeader, element, spilledTexts);
+    }
+
+    public void streamClosed() {
+        execute(new Runnable() {
+            public void run() {
+                // Disconnect the connection
+                connection.disconnect();
+            }
+        });
+    }
+
+    public void policyViolated() {
+        execute(new Runnable() {
+            public void run() {
+                if (!done) {
+                    notifyPolicyViolation();
+                }
+            }
+        });
+    }
+
+    public void connectionLost(final Exception e) {
+        execute(new Runnable() {
+            public void run() {
+                if (!done) {
+                    notifyConnectionError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses a top-level element, or the opening stream tag if the element is
+     * <tt>null</tt>, on a worker thread.
+     *
+     * @param header the opening stream tag.
+     * @param element the element to parse or <tt>null</tt> to parse the stream tag.
+     * @param spilledTexts the text nodes of the element that were spilled to files, or
+     *      <tt>null</tt> if none.
+     */
+    private void parse(final String header, final String element,
+            final List<SpilledText> spilledTexts)
+    {
+        execute(new Runnable() {
+            public void run() {
+                if (done) {
+                    StanzaFramer.discard(spilledTexts);
+                    return;
+                }
+                try {
+                    if (spilledTexts != null) {
+                        // Only stanzas may have text nodes spilled by the framer
+                        processPacket(parseStanza(header, element, spilledTexts));
+                    }
+                    else {
+                        parseElement(createParser(header, element));
+                    }
+                }
+                catch (Exception e) {
+                    if (!done) {
+                        // Close the connection and notify connection listeners of the
+                        // error.
+                        notifyConnectionError(e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        try {
+            parserExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // The reader has been shut down
+        }
+    }
+}
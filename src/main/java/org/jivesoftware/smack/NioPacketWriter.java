@@ -0,0 +1,160 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.Packet;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet writer of connections that use non-blocking I/O. Packets are written by the
+ * sending thread since writing to a {@link NioTransport} never blocks: bytes that the
+ * socket can't accept right away are queued and sent by a selector thread. There is no
+ * queue of packets; instead the bytes queued by the transport are limited by
+ * {@link ConnectionConfiguration#getNonBlockingWriteLimit()}. Once the limit is reached,
+ * sending a packet waits for the queued bytes to be written, and the methods that limit
+ * the time to wait return false if the bytes were not written in time. The future of a
+ * packet sent asynchronously completes once the bytes of the packet have been written to
+ * the socket. Heartbeats are scheduled on the timer shared by the non-blocking connections.
+ */
+class NioPacketWriter extends PacketWriter {
+
+    private ScheduledFuture<?> keepAliveFuture;
+
+    NioPacketWriter(XMPPConnection connection) {
+        super(connection);
+    }
+
+    /**
+     * Writes the packet once the bytes queued by the transport are below the write limit.
+     * The timeout limits the time to wait for the queued bytes to be written.
+     */
+    protected boolean sendPacket(Packet packet, PacketWriteFuture future, long timeout)
+            throws InterruptedException
+    {
+        if (done) {
+            return false;
+        }
+        // Invoke interceptors for the new packet that is about to be sent. Interceptors
+        // may modify the content of the packet.
+        connection.firePacketInterceptors(packet);
+
+        if (!connection.nioTransport.awaitWritable(timeout)) {
+            return false;
+        }
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            synchronized (writer) {
+                packet.writeXML(writer);
+                writer.flush();
+                // Keep track of the last time a stanza was sent to the server
+                lastActive = System.currentTimeMillis();
+            }
+        }
+        catch (IOException ioe) {
+            if (future != null) {
+                future.fail(new XMPPException("Connection closed before the packet was written.",
+                        ioe));
+            }
+            if (!done) {
+                done = true;
+                // The reader is already done if the packet was sent while shutting down
+                // the connection after an error
+                if (!connection.packetReader.done) {
+                    connection.packetReader.notifyConnectionError(ioe);
+                }
+            }
+            return true;
+        }
+        if (metrics != null) {
+            metrics.packetWritten(connection, packet, System.nanoTime() - start);
+        }
+        if (future != null) {
+            // Complete the future once the bytes of the packet have reached the socket
+            connection.nioTransport.completeWhenSent(future);
+        }
+
+        // Process packet writer listeners. Note that we're using the sending
+        // thread so it's expected that listeners are fast.
+        connection.firePacketSendingListeners(packet);
+        return true;
+    }
+
+    /**
+     * Opens a stream to the server. No thread is started since packets are written by
+     * the sending threads.
+     */
+    public void startup() {
+        try {
+            openStream();
+        }
+        catch (IOException ioe) {
+            if (!done) {
+                done = true;
+                connection.packetReader.notifyConnectionError(ioe);
+            }
+        }
+    }
+
+    void startKeepAliveProcess() {
+        final int keepAliveInterval = SmackConfiguration.getKeepAliveInterval();
+        if (keepAliveInterval > 0) {
+            // Wait 15 seconds before sending first heartbeat. This will give time to
+            // properly finish TLS negotiation and then start sending heartbeats.
+            keepAliveFuture = connection.nioTransport.getTimer().scheduleWithFixedDelay(
+                    new Runnable() {
+                        public void run() {
+                            sendHeartbeat(keepAliveInterval);
+                        }
+                    }, 15000, keepAliveInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        super.shutdown();
+        if (keepAliveFuture != null) {
+            keepAliveFuture.cancel(false);
+            keepAliveFuture = null;
+        }
+        // Close the stream.
+        try {
+            closeStream();
+        }
+        catch (Exception e) {
+            // Do nothing
+        }
+    }
+
+    private void sendHeartbeat(int delay) {
+        if (done) {
+            return;
+        }
+        synchronized (writer) {
+            // Send heartbeat if no packet has been sent to the server for a given time
+            if (System.currentTimeMillis() - lastActive >= delay) {
+                try {
+                    writer.write(" ");
+                    writer.flush();
+                }
+                catch (Exception e) {
+                    // Do nothing
+                }
+            }
+        }
+    }
+}
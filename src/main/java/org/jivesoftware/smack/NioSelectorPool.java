@@ -0,0 +1,198 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by all the connections that use the non-blocking transport. The pool
+ * is made of:<ul>
+ *      <li> A fixed number of selector threads that perform all the socket I/O. Each
+ *          connection is assigned to one of them. See
+ *          {@link SmackConfiguration#setNioSelectorThreads(int)}.
+ *      <li> A bounded pool of worker threads that parse the incoming stanzas and notify
+ *          the packet listeners; work is queued while every worker is busy. See
+ *          {@link SmackConfiguration#setNioWorkerThreads(int)}. Worker threads are only
+ *          created while there is work to do and die after being idle for a minute, so
+ *          idle connections do not use any thread.
+ *      <li> A timer thread that runs the keep-alive tasks of all the connections.
+ * </ul>
+ *
+ * The pool is created the first time a non-blocking connection is established and its
+ * threads are daemon threads.
+ */
+final class NioSelectorPool {
+
+    private static NioSelectorPool instance;
+
+    private final SelectorThread[] selectorThreads;
+    private final AtomicInteger nextSelector = new AtomicInteger(0);
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Returns the shared pool, creating it if needed.
+     *
+     * @return the shared pool.
+     * @throws IOException if the selectors could not be opened.
+     */
+    static synchronized NioSelectorPool getInstance() throws IOException {
+        if (instance == null) {
+            instance = new NioSelectorPool(SmackConfiguration.getNioSelectorThreads(),
+                    SmackConfiguration.getNioWorkerThreads());
+        }
+        return instance;
+    }
+
+    private NioSelectorPool(int selectorCount, int workerCount) throws IOException {
+        selectorThreads = new SelectorThread[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            selectorThreads[i] = new SelectorThread(i);
+        }
+        for (SelectorThread selectorThread : selectorThreads) {
+            selectorThread.start();
+        }
+        ThreadPoolExecutor workerPool = new ThreadPoolExecutor(workerCount, workerCount,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("Smack NIO Worker"));
+        workerPool.allowCoreThreadTimeOut(true);
+        workers = workerPool;
+        timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Smack NIO Timer"));
+    }
+
+    /**
+     * Returns the selector thread that will serve the next registered connection. Selector
+     * threads are assigned in a round-robin fashion.
+     *
+     * @return the selector thread that will serve a new connection.
+     */
+    SelectorThread nextSelectorThread() {
+        int index = (nextSelector.getAndIncrement() & Integer.MAX_VALUE) % selectorThreads.length;
+        return selectorThreads[index];
+    }
+
+    /**
+     * Returns the executor whose threads are used to parse stanzas and notify listeners.
+     *
+     * @return the shared worker executor.
+     */
+    ExecutorService getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns the executor that is used to schedule the keep-alive tasks.
+     *
+     * @return the shared timer.
+     */
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    /**
+     * A thread that waits for I/O readiness of the connections registered with its selector.
+     * Registrations and changes in interest operations are queued as tasks that are run by
+     * this thread so that they never block on a selector that is selecting.
+     */
+    static final class SelectorThread extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        SelectorThread(int index) throws IOException {
+            super("Smack NIO Selector (" + index + ")");
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Runs the specified task on the selector thread.
+         *
+         * @param task the task to run.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioTransport transport = (NioTransport) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                transport.handleWrite();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                transport.handleRead();
+                            }
+                        }
+                        catch (CancelledKeyException e) {
+                            // The connection was closed while handling the event
+                        }
+                    }
+                }
+                catch (Throwable t) {
+                    // Catch and print any exception so that the other connections
+                    // served by this thread are not affected
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + " (" + counter.getAndIncrement() + ")");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,955 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.SpilledText;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A non-blocking socket connection to the XMPP server. All the socket I/O is performed
+ * by one of the selector threads of the shared {@link NioSelectorPool}.<p>
+ *
+ * Incoming bytes go through the optional TLS and zlib layers, are decoded and split into
+ * top-level elements by a {@link StanzaFramer}. Framed elements are reported to a
+ * {@link Listener} from the selector thread so the listener must not block. Reading is
+ * suspended after a TLS <tt>proceed</tt> or a compression <tt>compressed</tt> element
+ * was framed, until the corresponding layer is installed with {@link #startTLS(SSLEngine)}
+ * or {@link #startCompression()}.<p>
+ *
+ * Outgoing text is written through the {@link Writer} returned by {@link #getWriter()}.
+ * The text is encoded, compressed and encrypted by the writing thread when the writer is
+ * flushed, and written to the socket right away. Bytes that the socket could not accept
+ * are queued and written by the selector thread once the socket is writable again, so
+ * writing never blocks. Writers that must not outpace the socket wait with
+ * {@link #awaitWritable(long)} until the queued bytes are below the write limit.
+ */
+final class NioTransport {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final NioSelectorPool pool;
+    private final NioSelectorPool.SelectorThread selectorThread;
+    private final StanzaFramer framer = new StanzaFramer();
+    private final CharsetDecoder decoder = UTF8.newDecoder();
+    private final Writer writer = new TransportWriter();
+
+    private Listener listener;
+    private SelectionKey key;
+
+    // Inbound state, only used by the selector thread
+    private ByteBuffer netIn = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer appIn;
+    private ByteBuffer plainIn;
+    private final CharBuffer charsIn = CharBuffer.allocate(BUFFER_SIZE);
+    private boolean readingSuspended = false;
+
+    // Outbound state, guarded by outLock
+    private final Object outLock = new Object();
+    private final LinkedList<ByteBuffer> netOut = new LinkedList<ByteBuffer>();
+    private final LinkedList<ByteBuffer> pendingAppOut = new LinkedList<ByteBuffer>();
+    private final LinkedList<SentMark> sentMarks = new LinkedList<SentMark>();
+    private final List<PacketWriteFuture> handshakeWrites = new ArrayList<PacketWriteFuture>();
+    private long queuedBytes = 0;
+    private long sentBytes = 0;
+    private int writeLimit = Integer.MAX_VALUE;
+    private ByteBuffer wrapBuffer;
+    private volatile boolean writeInterest = false;
+
+    private volatile SSLEngine engine;
+    private volatile ZlibCodec zlib;
+    private volatile boolean closed = false;
+
+    private Connection connection;
+    private ConnectionMetrics metrics;
+
+    /**
+     * Opens a connection to the specified host and port. The connection is established
+     * before returning but the transport won't read until {@link #start(Listener)} is
+     * called.
+     *
+     * @param host the host where the XMPP server is running.
+     * @param port the port where the XMPP server is listening.
+     * @return the new transport.
+     * @throws IOException if the connection could not be established.
+     */
+    static NioTransport open(String host, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        NioSelectorPool pool = NioSelectorPool.getInstance();
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.connect(address);
+            channel.configureBlocking(false);
+        }
+        catch (IOException e) {
+            try {
+                channel.close();
+            }
+            catch (IOException ignore) { /* ignore */ }
+            throw e;
+        }
+        return new NioTransport(channel, pool);
+    }
+
+    private NioTransport(SocketChannel channel, NioSelectorPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        this.selectorThread = pool.nextSelectorThread();
+    }
+
+    /**
+     * Returns the socket of the underlying channel.
+     *
+     * @return the socket of the connection.
+     */
+    Socket getSocket() {
+        return channel.socket();
+    }
+
+    /**
+     * Returns the writer to use for sending text to the server. Written text is sent
+     * when the writer is flushed.
+     *
+     * @return the writer to use for sending text to the server.
+     */
+    Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Returns the executor whose threads are shared by the non-blocking connections for
+     * processing incoming stanzas.
+     *
+     * @return the shared worker executor.
+     */
+    ExecutorService getWorkers() {
+        return pool.getWorkers();
+    }
+
+    /**
+     * Returns the executor used to schedule the periodic tasks of the connections.
+     *
+     * @return the shared timer.
+     */
+    ScheduledExecutorService getTimer() {
+        return pool.getTimer();
+    }
+
+    /**
+     * Sets the metrics to report the number of bytes sent and received to. The metrics
+     * must be set before starting to read from the server.
+     *
+     * @param connection the connection using the transport.
+     * @param metrics the metrics of the connection.
+     */
+    void setMetrics(Connection connection, ConnectionMetrics metrics) {
+        this.connection = connection;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Applies the size limits of incoming elements of a connection configuration. The
+     * limits must be set before starting to read from the server.
+     *
+     * @param config the connection configuration.
+     */
+    void setSizeLimits(ConnectionConfiguration config) {
+        framer.setLimits(config);
+    }
+
+    /**
+     * Sets the maximum number of bytes that may be queued waiting for the socket before
+     * {@link #awaitWritable(long)} makes writers wait.
+     *
+     * @param writeLimit the maximum number of queued bytes.
+     */
+    void setWriteLimit(int writeLimit) {
+        synchronized (outLock) {
+            this.writeLimit = writeLimit;
+        }
+    }
+
+    /**
+     * Starts reading from the server. Framed elements will be reported to the listener.
+     *
+     * @param listener the listener of the incoming stream.
+     */
+    void start(Listener listener) {
+        this.listener = listener;
+        selectorThread.execute(new Runnable() {
+            public void run() {
+                try {
+                    key = channel.register(selectorThread.getSelector(), interestOps(),
+                            NioTransport.this);
+                }
+                catch (ClosedChannelException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Secures the connection with the specified engine. The handshake is started right away
+     * and text written until the handshake is finished will be sent once the connection has
+     * been secured.
+     *
+     * @param sslEngine the engine, in client mode, to use for securing the connection.
+     * @throws IOException if an error occurs while starting the handshake.
+     */
+    void startTLS(SSLEngine sslEngine) throws IOException {
+        synchronized (outLock) {
+            wrapBuffer = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+            engine = sslEngine;
+            sslEngine.beginHandshake();
+            handshake();
+        }
+        resumeReading();
+    }
+
+    /**
+     * Starts compressing and decompressing the stream using zlib.
+     */
+    void startCompression() {
+        synchronized (outLock) {
+            zlib = new ZlibCodec();
+        }
+        resumeReading();
+    }
+
+    /**
+     * Closes the connection. Bytes that are still queued won't be sent and the futures
+     * waiting for them fail.
+     */
+    void close() {
+        closed = true;
+        try {
+            channel.close();
+        }
+        catch (IOException ignore) { /* ignore */ }
+        synchronized (outLock) {
+            for (SentMark mark : sentMarks) {
+                failWrite(mark.future);
+            }
+            sentMarks.clear();
+            for (PacketWriteFuture future : handshakeWrites) {
+                failWrite(future);
+            }
+            handshakeWrites.clear();
+            // Wake up the writers waiting for room so that they fail
+            outLock.notifyAll();
+        }
+        // Release the buffers of the compressor and decompressor on the selector thread,
+        // which is the only thread that decompresses
+        selectorThread.execute(new Runnable() {
+            public void run() {
+                synchronized (outLock) {
+                    ZlibCodec codec = zlib;
+                    if (codec != null) {
+                        zlib = null;
+                        codec.end();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the specified bytes to the server. Bytes that cannot be written right away are
+     * queued and written by the selector thread.
+     *
+     * @param data the text to send, encoded in UTF-8.
+     * @throws IOException if the connection was closed or the bytes could not be sent.
+     */
+    void write(ByteBuffer data) throws IOException {
+        synchronized (outLock) {
+            if (closed) {
+                throw new IOException("Connection closed.");
+            }
+            if (metrics != null) {
+                metrics.bytesSent(connection, data.remaining(), false);
+            }
+            ZlibCodec codec = zlib;
+            if (codec != null) {
+                data = codec.deflate(data);
+                if (metrics != null) {
+                    metrics.bytesSent(connection, data.remaining(), true);
+                }
+            }
+            SSLEngine sslEngine = engine;
+            if (sslEngine == null) {
+                emit(data);
+                return;
+            }
+            if (pendingAppOut.isEmpty()
+                    && sslEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING)
+            {
+                wrap(data);
+            }
+            if (data.hasRemaining()) {
+                // A handshake is in progress so send the data once it has finished
+                pendingAppOut.add(copy(data));
+                handshake();
+            }
+        }
+    }
+
+    /**
+     * Waits until the number of bytes queued for the socket is below the write limit. The
+     * selector thread never waits since it is the thread that writes the queued bytes.
+     * Returns right away if the connection was closed so that the next write fails.
+     *
+     * @param timeout the maximum time to wait in milliseconds, 0 to not wait or a negative
+     *      value to wait as long as necessary.
+     * @return true if more bytes may be written, false if the limit is still reached.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    boolean awaitWritable(long timeout) throws InterruptedException {
+        if (Thread.currentThread() == selectorThread) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (outLock) {
+            while (!closed && queuedBytes - sentBytes >= writeLimit) {
+                if (timeout < 0) {
+                    outLock.wait();
+                }
+                else {
+                    long waitTime = deadline - System.currentTimeMillis();
+                    if (waitTime <= 0) {
+                        return false;
+                    }
+                    outLock.wait(waitTime);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Completes the specified future once all the bytes written so far have been written
+     * to the socket, which may be right away if nothing is queued. The future fails if the
+     * connection is closed first.
+     *
+     * @param future the future of the packet that was the last one written.
+     */
+    void completeWhenSent(PacketWriteFuture future) {
+        synchronized (outLock) {
+            if (closed) {
+                failWrite(future);
+            }
+            else if (!pendingAppOut.isEmpty()) {
+                // The packet will be sent once the TLS handshake has finished
+                handshakeWrites.add(future);
+            }
+            else {
+                markSent(future);
+            }
+        }
+    }
+
+    /**
+     * Completes the future when the bytes queued so far have been written to the socket.
+     * Must be invoked while holding the outbound lock.
+     */
+    private void markSent(PacketWriteFuture future) {
+        if (netOut.isEmpty()) {
+            future.complete();
+        }
+        else {
+            sentMarks.add(new SentMark(queuedBytes, future));
+        }
+    }
+
+    private static void failWrite(PacketWriteFuture future) {
+        future.fail(new XMPPException("Connection closed before the packet was written."));
+    }
+
+    /**
+     * Reads the available bytes from the socket. Invoked by the selector thread.
+     */
+    void handleRead() {
+        try {
+            if (!netIn.hasRemaining()) {
+                netIn = grow(netIn, netIn.capacity() * 2);
+            }
+            int count = channel.read(netIn);
+            if (count < 0) {
+                throw new EOFException("Connection closed by the server.");
+            }
+            netIn.flip();
+            try {
+                if (engine != null) {
+                    unwrapInbound();
+                }
+                else {
+                    consume(netIn);
+                }
+            }
+            finally {
+                if (readingSuspended) {
+                    netIn.clear();
+                }
+                else {
+                    netIn.compact();
+                }
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes the queued bytes to the socket. Invoked by the selector thread.
+     */
+    void handleWrite() {
+        try {
+            synchronized (outLock) {
+                flushNetOut();
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Closes the connection after an I/O error and reports the error to the listener.
+     *
+     * @param e the error.
+     */
+    private void fail(IOException e) {
+        if (closed) {
+            return;
+        }
+        close();
+        if (listener != null) {
+            listener.connectionLost(e);
+        }
+    }
+
+    private int interestOps() {
+        return (readingSuspended ? 0 : SelectionKey.OP_READ)
+                | (writeInterest ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Updates the operations the selector is interested in. The update is performed by the
+     * selector thread.
+     */
+    private void updateInterestOps() {
+        if (Thread.currentThread() == selectorThread) {
+            applyInterestOps();
+        }
+        else {
+            selectorThread.execute(new Runnable() {
+                public void run() {
+                    applyInterestOps();
+                }
+            });
+        }
+    }
+
+    private void applyInterestOps() {
+        if (key != null && key.isValid()) {
+            key.interestOps(interestOps());
+        }
+    }
+
+    private void suspendReading() {
+        readingSuspended = true;
+        applyInterestOps();
+    }
+
+    /**
+     * Resumes reading once a new layer was installed. Anything that was received after
+     * the element that suspended reading is discarded since the server must not send
+     * anything else before the new layer is in place.
+     */
+    private void resumeReading() {
+        selectorThread.execute(new Runnable() {
+            public void run() {
+                netIn.clear();
+                charsIn.clear();
+                decoder.reset();
+                framer.reset();
+                SSLEngine sslEngine = engine;
+                if (sslEngine != null) {
+                    int packetSize = sslEngine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < packetSize) {
+                        netIn = ByteBuffer.allocate(packetSize);
+                    }
+                    appIn = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+                }
+                if (zlib != null) {
+                    plainIn = ByteBuffer.allocate(BUFFER_SIZE);
+                }
+                readingSuspended = false;
+                applyInterestOps();
+            }
+        });
+    }
+
+    /**
+     * Decrypts the bytes read from the socket and consumes the resulting plain bytes.
+     *
+     * @throws IOException if the server closed the TLS session or an error occurs.
+     */
+    private void unwrapInbound() throws IOException {
+        int idle = 0;
+        while (!readingSuspended) {
+            SSLEngineResult result;
+            synchronized (outLock) {
+                result = engine.unwrap(netIn, appIn);
+                handshake();
+            }
+            appIn.flip();
+            consume(appIn);
+            appIn.compact();
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    // Wait for the rest of the TLS record
+                    return;
+                case BUFFER_OVERFLOW:
+                    int appSize = engine.getSession().getApplicationBufferSize();
+                    if (appIn.capacity() < appSize) {
+                        appIn = grow(appIn, appSize);
+                    }
+                    break;
+                case CLOSED:
+                    throw new EOFException("TLS session closed by the server.");
+                default:
+                    if (!netIn.hasRemaining()) {
+                        return;
+                    }
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        // Give the engine a second chance after the handshake made progress
+                        if (++idle > 1) {
+                            return;
+                        }
+                    }
+                    else {
+                        idle = 0;
+                    }
+            }
+        }
+    }
+
+    /**
+     * Decompresses, if needed, the plain bytes received from the server and frames the
+     * resulting text.
+     *
+     * @param src the plain bytes received from the server.
+     * @throws IOException if an error occurs while decompressing or decoding.
+     */
+    private void consume(ByteBuffer src) throws IOException {
+        ZlibCodec codec = zlib;
+        if (codec == null) {
+            decode(src);
+            return;
+        }
+        while (!readingSuspended) {
+            int consumed = src.position();
+            int produced = plainIn.position();
+            codec.inflate(src, plainIn);
+            if (metrics != null && src.position() != consumed) {
+                metrics.bytesReceived(connection, src.position() - consumed, true);
+            }
+            boolean progress = src.position() != consumed || plainIn.position() != produced;
+            boolean full = !plainIn.hasRemaining();
+            plainIn.flip();
+            decode(plainIn);
+            plainIn.compact();
+            if (!progress || (!src.hasRemaining() && !full)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes the text received from the server and reports the framed elements. Bytes of
+     * an incomplete character are kept in the buffer.
+     *
+     * @param bytes the UTF-8 encoded text.
+     * @throws IOException if the bytes are not valid UTF-8.
+     */
+    private void decode(ByteBuffer bytes) throws IOException {
+        while (!readingSuspended) {
+            int start = bytes.position();
+            CoderResult result = decoder.decode(bytes, charsIn, false);
+            if (metrics != null && bytes.position() != start) {
+                metrics.bytesReceived(connection, bytes.position() - start, false);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            charsIn.flip();
+            frame();
+            charsIn.compact();
+            if (result.isUnderflow()) {
+                return;
+            }
+        }
+    }
+
+    private void frame() {
+        while (!readingSuspended) {
+            int event = framer.next(charsIn);
+            if (event == StanzaFramer.NEED_INPUT) {
+                return;
+            }
+            else if (event == StanzaFramer.STREAM_START) {
+                listener.streamOpened(framer.getText());
+            }
+            else if (event == StanzaFramer.ELEMENT) {
+                String name = framer.getName();
+                listener.elementFramed(name, framer.getText(), framer.getSpilledTexts());
+                if (name.equals("proceed") || name.equals("compressed")) {
+                    // The bytes that follow will be encrypted or compressed
+                    suspendReading();
+                }
+            }
+            else if (event == StanzaFramer.STREAM_END) {
+                listener.streamClosed();
+            }
+            else if (event == StanzaFramer.OVERSIZED) {
+                if (!closed) {
+                    // Stop reading but keep the connection open so that the stream error
+                    // can be sent before the connection is closed
+                    suspendReading();
+                    framer.reset();
+                    listener.policyViolated();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Advances the TLS handshake as far as possible without data from the server. Once the
+     * handshake has finished, the data that was waiting for it is sent. Must be invoked
+     * while holding the outbound lock.
+     *
+     * @throws IOException if an error occurs while writing handshake data.
+     */
+    private void handshake() throws IOException {
+        while (true) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            else if (status == HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY_BUFFER);
+            }
+            else if (status == HandshakeStatus.NEED_UNWRAP) {
+                return;
+            }
+            else {
+                while (!pendingAppOut.isEmpty()) {
+                    ByteBuffer data = pendingAppOut.getFirst();
+                    wrap(data);
+                    if (data.hasRemaining()) {
+                        // A new handshake was started
+                        break;
+                    }
+                    pendingAppOut.removeFirst();
+                }
+                if (pendingAppOut.isEmpty() && !handshakeWrites.isEmpty()) {
+                    for (PacketWriteFuture future : handshakeWrites) {
+                        markSent(future);
+                    }
+                    handshakeWrites.clear();
+                }
+                return;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Encrypts the specified data and sends the resulting TLS records. Must be invoked
+     * while holding the outbound lock.
+     *
+     * @param src the data to encrypt.
+     * @throws IOException if the TLS session was closed or the records could not be sent.
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        do {
+            wrapBuffer.clear();
+            SSLEngineResult result = engine.wrap(src, wrapBuffer);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                wrapBuffer = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new IOException("TLS session closed.");
+            }
+            wrapBuffer.flip();
+            emit(wrapBuffer);
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            if (result.bytesConsumed() == 0) {
+                break;
+            }
+        }
+        while (src.hasRemaining());
+    }
+
+    /**
+     * Sends bytes to the socket. If bytes are already queued or the socket cannot accept
+     * all of them, the remaining bytes are copied and queued. Must be invoked while holding
+     * the outbound lock.
+     *
+     * @param bytes the bytes to send.
+     * @throws IOException if an error occurs while writing to the socket.
+     */
+    private void emit(ByteBuffer bytes) throws IOException {
+        if (!bytes.hasRemaining()) {
+            return;
+        }
+        if (netOut.isEmpty()) {
+            channel.write(bytes);
+            if (!bytes.hasRemaining()) {
+                return;
+            }
+        }
+        queuedBytes += bytes.remaining();
+        netOut.add(copy(bytes));
+        setWriteInterest(true);
+    }
+
+    /**
+     * Writes the queued bytes to the socket, completes the futures of the packets whose
+     * bytes have all been written and wakes up the writers waiting for room once the queued
+     * bytes are below the write limit. Must be invoked while holding the outbound lock.
+     *
+     * @throws IOException if an error occurs while writing to the socket.
+     */
+    private void flushNetOut() throws IOException {
+        long sent = sentBytes;
+        try {
+            while (!netOut.isEmpty()) {
+                ByteBuffer bytes = netOut.getFirst();
+                sentBytes += channel.write(bytes);
+                if (bytes.hasRemaining()) {
+                    setWriteInterest(true);
+                    return;
+                }
+                netOut.removeFirst();
+            }
+            setWriteInterest(false);
+        }
+        finally {
+            while (!sentMarks.isEmpty() && sentMarks.getFirst().bytes <= sentBytes) {
+                sentMarks.removeFirst().future.complete();
+            }
+            if (sent != sentBytes && queuedBytes - sentBytes < writeLimit) {
+                outLock.notifyAll();
+            }
+        }
+    }
+
+    private void setWriteInterest(boolean interested) {
+        if (writeInterest != interested) {
+            writeInterest = interested;
+            updateInterestOps();
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer bytes) {
+        ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+        copy.put(bytes);
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Returns a larger buffer, in write mode, with the content of the specified buffer.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /**
+     * The future of a packet that completes once the bytes that were queued when the
+     * packet was written have been written to the socket.
+     */
+    private static final class SentMark {
+
+        final long bytes;
+        final PacketWriteFuture future;
+
+        SentMark(long bytes, PacketWriteFuture future) {
+            this.bytes = bytes;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Receives the events of the incoming stream. Methods are invoked by the selector
+     * thread so they must return quickly.
+     */
+    interface Listener {
+
+        /**
+         * A new stream was opened by the server.
+         *
+         * @param header the opening stream tag.
+         */
+        void streamOpened(String header);
+
+        /**
+         * A top-level element of the stream was received.
+         *
+         * @param name the qualified name of the element.
+         * @param element the XML text of the element.
+         * @param spilledTexts the text nodes of the element that were spilled to files, or
+         *      <tt>null</tt> if none.
+         */
+        void elementFramed(String name, String element, List<SpilledText> spilledTexts);
+
+        /**
+         * The server closed the stream.
+         */
+        void streamClosed();
+
+        /**
+         * The server sent an element that exceeds the size limits. Reading has been
+         * suspended and the connection must be closed with a <tt>policy-violation</tt>
+         * stream error.
+         */
+        void policyViolated();
+
+        /**
+         * The connection was closed due to an error or because the server closed the
+         * socket.
+         *
+         * @param e the error.
+         */
+        void connectionLost(Exception e);
+    }
+
+    /**
+     * A writer that encodes the buffered text and sends it to the server when flushed. The
+     * text is encoded in chunks so that large stanzas don't require a large buffer.
+     */
+    private class TransportWriter extends Writer {
+
+        private final CharsetEncoder encoder = UTF8.newEncoder();
+        private final ByteBuffer encoded = ByteBuffer.allocate(BUFFER_SIZE);
+        private StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+
+        public void write(char[] cbuf, int off, int len) {
+            synchronized (lock) {
+                buffer.append(cbuf, off, len);
+            }
+        }
+
+        public void write(String str, int off, int len) {
+            synchronized (lock) {
+                buffer.append(str, off, off + len);
+            }
+        }
+
+        public void write(int c) {
+            synchronized (lock) {
+                buffer.append((char) c);
+            }
+        }
+
+        public void flush() throws IOException {
+            synchronized (lock) {
+                if (buffer.length() == 0) {
+                    return;
+                }
+                try {
+                    CharBuffer chars = CharBuffer.wrap(buffer);
+                    encoder.reset();
+                    CoderResult result;
+                    do {
+                        result = encoder.encode(chars, encoded, true);
+                        if (result.isError()) {
+                            result.throwException();
+                        }
+                        if (result.isUnderflow()) {
+                            result = encoder.flush(encoded);
+                        }
+                        encoded.flip();
+                        NioTransport.this.write(encoded);
+                        encoded.clear();
+                    }
+                    while (result.isOverflow());
+                }
+                finally {
+                    if (buffer.capacity() > BUFFER_SIZE * 8) {
+                        // Do not keep the memory used by a large stanza
+                        buffer = new StringBuilder(BUFFER_SIZE);
+                    }
+                    else {
+                        buffer.setLength(0);
+                    }
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            try {
+                flush();
+            }
+            finally {
+                NioTransport.this.close();
+            }
+        }
+    }
+}
@@ -126,13 +126,20 @@ public class PacketCollector {
      * @return the next available packet.
      */
     public synchronized Packet nextResult() {
-        // Wait indefinitely until there is a result to return.
-        while (resultQueue.isEmpty()) {
-            try {
-                wait();
+        if (resultQueue.isEmpty()) {
+            ConnectionMetrics metrics = getConnectionMetrics();
+            long waitStart = metrics != null ? System.nanoTime() : 0;
+            // Wait indefinitely until there is a result to return.
+            while (resultQueue.isEmpty()) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ie) {
+                    // Ignore.
+                }
             }
-            catch (InterruptedException ie) {
-                // Ignore.
+            if (metrics != null) {
+                metrics.collectorWaited(conection, this, System.nanoTime() - waitStart, true);
             }
         }
         return resultQueue.removeLast();
@@ -149,6 +156,8 @@ public class PacketCollector {
     public synchronized Packet nextResult(long timeout) {
         // Wait up to the specified amount of time for a result.
         if (resultQueue.isEmpty()) {
+            ConnectionMetrics metrics = getConnectionMetrics();
+            long waitStart = metrics != null ? System.nanoTime() : 0;
             long waitTime = timeout;
             long start = System.currentTimeMillis();
             try {
@@ -167,6 +176,10 @@ public class PacketCollector {
             catch (InterruptedException ie) {
                 // Ignore.
             }
+            if (metrics != null) {
+                metrics.collectorWaited(conection, this, System.nanoTime() - waitStart,
+                        !resultQueue.isEmpty());
+            }
             // Still haven't found a result, so return null.
             if (resultQueue.isEmpty()) {
                 return null;
@@ -182,6 +195,17 @@ public class PacketCollector {
         }
     }
 
+    /**
+     * Returns the metrics of the connection, or <tt>null</tt> if the connection is not
+     * measured.
+     *
+     * @return the metrics of the connection or <tt>null</tt>.
+     */
+    private ConnectionMetrics getConnectionMetrics() {
+        ConnectionConfiguration config = conection.getConfiguration();
+        return config != null ? config.getConnectionMetrics() : null;
+    }
+
     /**
      * Processes a packet to see if it meets the criteria for this packet collector.
      * If so, the packet is added to the result queue.
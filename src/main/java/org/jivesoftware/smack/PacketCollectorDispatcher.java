@@ -0,0 +1,189 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Delivers incoming packets to the packet collectors of a connection. Most collectors wait
+ * for the reply to a request and filter packets by ID, either with a {@link PacketIDFilter}
+ * or with an {@link AndFilter} that contains one. Those collectors are indexed by the
+ * packet ID they wait for so that they are found in constant time no matter how many
+ * requests are outstanding. Only the remaining collectors are checked for every packet.<p>
+ *
+ * Indexed collectors still run their complete filter, so an AND filter that also filters by
+ * packet type keeps working as expected.
+ */
+class PacketCollectorDispatcher {
+
+    private static final PacketCollector[] NO_COLLECTORS = new PacketCollector[0];
+
+    /**
+     * Collectors that filter by packet ID, indexed by that ID. Arrays are never modified
+     * once they are in the map so they can be read without locking.
+     */
+    private final Map<String, PacketCollector[]> collectorsByID =
+            new ConcurrentHashMap<String, PacketCollector[]>();
+
+    /**
+     * Collectors that have to be checked for every incoming packet.
+     */
+    private final Collection<PacketCollector> genericCollectors =
+            new ConcurrentLinkedQueue<PacketCollector>();
+
+    /**
+     * Adds a collector that will be notified of the incoming packets.
+     *
+     * @param collector the collector to add.
+     */
+    void addCollector(PacketCollector collector) {
+        String packetID = getPacketID(collector.getPacketFilter());
+        if (packetID == null) {
+            genericCollectors.add(collector);
+            return;
+        }
+        synchronized (collectorsByID) {
+            PacketCollector[] current = collectorsByID.get(packetID);
+            if (current == null) {
+                current = NO_COLLECTORS;
+            }
+            PacketCollector[] updated = new PacketCollector[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = collector;
+            collectorsByID.put(packetID, updated);
+        }
+    }
+
+    /**
+     * Removes a collector so that it's no longer notified of incoming packets.
+     *
+     * @param collector the collector to remove.
+     */
+    void removeCollector(PacketCollector collector) {
+        String packetID = getPacketID(collector.getPacketFilter());
+        if (packetID == null || !removeIndexedCollector(packetID, collector)) {
+            // The collector was not indexed or its filter was modified after it was added
+            genericCollectors.remove(collector);
+        }
+    }
+
+    private boolean removeIndexedCollector(String packetID, PacketCollector collector) {
+        synchronized (collectorsByID) {
+            PacketCollector[] current = collectorsByID.get(packetID);
+            if (current == null) {
+                return false;
+            }
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == collector) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            if (current.length == 1) {
+                collectorsByID.remove(packetID);
+            }
+            else {
+                PacketCollector[] updated = new PacketCollector[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, updated.length - index);
+                collectorsByID.put(packetID, updated);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Delivers a packet to the collectors waiting for its packet ID and to the collectors
+     * that are not indexed.
+     *
+     * @param packet the incoming packet.
+     */
+    void dispatch(Packet packet) {
+        String packetID = packet.getPacketID();
+        if (packetID != null) {
+            PacketCollector[] collectors = collectorsByID.get(packetID);
+            if (collectors != null) {
+                for (PacketCollector collector : collectors) {
+                    collector.processPacket(packet);
+                }
+            }
+        }
+        for (PacketCollector collector : genericCollectors) {
+            collector.processPacket(packet);
+        }
+    }
+
+    /**
+     * Removes all the collectors.
+     */
+    void clear() {
+        synchronized (collectorsByID) {
+            collectorsByID.clear();
+        }
+        genericCollectors.clear();
+    }
+
+    /**
+     * Returns the active collectors.
+     *
+     * @return an unmodifiable snapshot of the collectors.
+     */
+    Collection<PacketCollector> getCollectors() {
+        List<PacketCollector> collectors = new ArrayList<PacketCollector>(genericCollectors);
+        for (PacketCollector[] indexed : collectorsByID.values()) {
+            collectors.addAll(Arrays.asList(indexed));
+        }
+        return Collections.unmodifiableList(collectors);
+    }
+
+    /**
+     * Returns the packet ID that a packet must have to pass the specified filter, or
+     * <tt>null</tt> if the filter may accept packets with any ID. Filters are only added,
+     * never removed, from an AND filter so a packet ID that was found stays valid.
+     *
+     * @param filter the filter of a collector.
+     * @return the packet ID required by the filter or <tt>null</tt> if there is none.
+     */
+    private static String getPacketID(PacketFilter filter) {
+        if (filter instanceof PacketIDFilter) {
+            return ((PacketIDFilter) filter).getPacketID();
+        }
+        if (filter instanceof AndFilter) {
+            for (PacketFilter nested : ((AndFilter) filter).getFilters()) {
+                String packetID = getPacketID(nested);
+                if (packetID != null) {
+                    return packetID;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.Connection.ListenerWrapper;
+import org.jivesoftware.smack.ConnectionConfiguration.ListenerOrdering;
+import org.jivesoftware.smack.ConnectionConfiguration.ListenerQueuePolicy;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.SerialExecutorService;
+import org.jivesoftware.smack.util.StringUtils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers incoming packets to the packet listeners of a connection using a pool of
+ * threads. Every listener has its own queues, so a slow listener only delays its own
+ * packets. Each queue is a {@link SerialExecutorService} on the shared pool, which keeps
+ * the packets of a queue in order:<ul>
+ *
+ *  <li>With {@link ListenerOrdering#listener} a listener has a single queue and is
+ *      notified by one thread at a time.
+ *  <li>With {@link ListenerOrdering#sender} a listener has one queue per thread and the
+ *      packets are assigned to a queue according to the bare JID of their sender.
+ * </ul>
+ *
+ * The number of packets waiting to be delivered to a listener can be limited, in which
+ * case the dispatching thread either waits or drops the packet when the limit is reached.
+ * Packets are filtered before being queued, so only the packets a listener is interested
+ * in count against its limit.<p>
+ *
+ * Packets are dispatched by a single thread at a time, the one that reads the packets.
+ * With the {@link ListenerQueuePolicy#block} policy that thread waits while a listener's
+ * queue is full, so a listener that waits for the reply to a packet it sent on the same
+ * connection deadlocks the connection once its queue is full.
+ */
+class PacketListenerDispatcher {
+
+    private final Connection connection;
+    private final ExecutorService executor;
+    private final int queuesPerListener;
+    private final int capacity;
+    private final ListenerQueuePolicy policy;
+    private final ConnectionMetrics metrics;
+
+    private final Map<ListenerWrapper, ListenerQueue> queues =
+            new ConcurrentHashMap<ListenerWrapper, ListenerQueue>();
+
+    private volatile boolean shutdown = false;
+
+    private final AtomicInteger threadCount = new AtomicInteger(0);
+
+    /**
+     * Creates a new dispatcher for the packet listeners of a connection.
+     *
+     * @param connection the connection whose listeners will be notified.
+     * @param threadName the name of the threads of the pool, which is followed by the
+     *      number of each thread.
+     */
+    PacketListenerDispatcher(Connection connection, final String threadName) {
+        ConnectionConfiguration config = connection.getConfiguration();
+        int threads = config.getListenerThreads();
+        this.connection = connection;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        threadName + " #" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.queuesPerListener =
+                config.getListenerOrdering() == ListenerOrdering.sender ? threads : 1;
+        this.capacity = config.getListenerQueueCapacity();
+        this.policy = config.getListenerQueuePolicy();
+        this.metrics = config.getConnectionMetrics();
+    }
+
+    /**
+     * Queues the packet for every listener whose filter accepts it. Depending on the
+     * queue policy this method may block until the listeners have room for the packet.
+     *
+     * @param packet the incoming packet.
+     */
+    void dispatch(Packet packet) {
+        if (shutdown) {
+            return;
+        }
+        for (ListenerWrapper wrapper : connection.recvListeners.values()) {
+            if (!wrapper.accept(packet)) {
+                continue;
+            }
+            ListenerQueue queue = queues.get(wrapper);
+            if (queue == null) {
+                queue = new ListenerQueue(wrapper.getPacketListener());
+                queues.put(wrapper, queue);
+                if (queues.size() > connection.recvListeners.size()) {
+                    removeUnusedQueues();
+                }
+            }
+            queue.offer(packet);
+        }
+    }
+
+    /**
+     * Stops delivering packets. Packets that are waiting to be delivered may be discarded
+     * and threads waiting for room in a queue are released.
+     */
+    void shutdown() {
+        shutdown = true;
+        for (ListenerQueue queue : queues.values()) {
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+        queues.clear();
+        executor.shutdown();
+    }
+
+    /**
+     * Forgets the queues of the listeners that were removed from the connection. Packets
+     * already queued for them are still delivered.
+     */
+    private void removeUnusedQueues() {
+        for (Iterator<ListenerWrapper> it = queues.keySet().iterator(); it.hasNext();) {
+            if (!connection.recvListeners.containsValue(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * The packets waiting to be delivered to a listener.
+     */
+    private class ListenerQueue {
+
+        private final PacketListener listener;
+        private final SerialExecutorService[] lanes;
+        private int pending = 0;
+
+        ListenerQueue(PacketListener listener) {
+            this.listener = listener;
+            this.lanes = new SerialExecutorService[queuesPerListener];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new SerialExecutorService(executor);
+            }
+        }
+
+        void offer(final Packet packet) {
+            if (capacity > 0) {
+                synchronized (this) {
+                    while (pending >= capacity) {
+                        if (policy == ListenerQueuePolicy.drop || shutdown) {
+                            return;
+                        }
+                        try {
+                            wait();
+                        }
+                        catch (InterruptedException ie) {
+                            // Ignore.
+                        }
+                    }
+                    pending++;
+                }
+            }
+            final long queueTime = metrics != null ? System.nanoTime() : 0;
+            try {
+                getLane(packet).execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (metrics == null) {
+                                listener.processPacket(packet);
+                            }
+                            else {
+                                long start = System.nanoTime();
+                                listener.processPacket(packet);
+                                metrics.listenerInvoked(connection, listener, packet,
+                                        start - queueTime, System.nanoTime() - start);
+                            }
+                        }
+                        finally {
+                            if (capacity > 0) {
+                                release();
+                            }
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // The dispatcher was shut down while the packet was being queued
+                if (capacity > 0) {
+                    release();
+                }
+            }
+        }
+
+        private synchronized void release() {
+            pending--;
+            notifyAll();
+        }
+
+        private SerialExecutorService getLane(Packet packet) {
+            if (lanes.length == 1) {
+                return lanes[0];
+            }
+            String from = packet.getFrom();
+            if (from == null) {
+                return lanes[0];
+            }
+            int hash = StringUtils.parseBareAddress(from).hashCode();
+            return lanes[(hash & 0x7fffffff) % lanes.length];
+        }
+    }
+}
@@ -30,24 +30,54 @@ import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.*;
 
 /**
  * Listens for XML traffic from the XMPP server and parses it into packet objects.
  * The packet reader also invokes all packet listeners and collectors.<p>
  *
+ * When several parser threads are configured with
+ * {@link ConnectionConfiguration#setParserThreads(int)}, the reader thread only frames the
+ * top-level elements of the stream with a {@link StanzaFramer}. Messages, presences and IQs
+ * are then parsed by a pool of parser threads and delivered in the order they were
+ * received, while the elements that negotiate the stream are still processed by the
+ * reader thread.<p>
+ *
  * @see Connection#createPacketCollector
  * @see Connection#addPacketListener
  * @author Matt Tucker
  */
 class PacketReader {
 
+    /**
+     * The opening stream tag used to parse framed elements until the server opens a stream.
+     */
+    static final String DEFAULT_STREAM_HEADER =
+            "<stream:stream xmlns=\"jabber:client\" " +
+            "xmlns:stream=\"http://etherx.jabber.org/streams\">";
+
+    /**
+     * Maximum number of framed packets that are being parsed or waiting to be delivered.
+     * The reader thread stops reading from the server when the parser threads fall behind.
+     */
+    private static final int MAX_PENDING_PACKETS = 256;
+
     private Thread readerThread;
+    private StanzaPipeline pipeline;
     private ExecutorService listenerExecutor;
+    private PacketListenerDispatcher listenerDispatcher;
+    private ConnectionMetrics metrics;
+    private boolean lazyExtensions;
 
-    private XMPPConnection connection;
+    final XMPPConnection connection;
     private XmlPullParser parser;
-    private boolean done;
+    volatile boolean done;
 
     private String connectionID = null;
     private Semaphore connectionSemaphore;
@@ -65,17 +95,32 @@ class PacketReader {
         done = false;
         connectionID = null;
 
-        readerThread = new Thread() {
-            public void run() {
-                parsePackets(this);
-            }
-        };
-        readerThread.setName("Smack Packet Reader (" + connection.connectionCounterValue + ")");
-        readerThread.setDaemon(true);
+        // Create an executor to deliver incoming packets to listeners. Listeners have their
+        // own queues when several threads are used or when the queues are bounded.
+        ConnectionConfiguration config = connection.getConfiguration();
+        metrics = config.getConnectionMetrics();
+        lazyExtensions = config.isLazyExtensionParsingEnabled();
+        if (config.getListenerThreads() > 1 || config.getListenerQueueCapacity() > 0) {
+            listenerExecutor = null;
+            listenerDispatcher = new PacketListenerDispatcher(connection,
+                    "Smack Listener Processor (" + connection.connectionCounterValue + ")");
+        }
+        else {
+            listenerDispatcher = null;
+            listenerExecutor = createListenerExecutor();
+        }
+
+        resetParser();
+    }
 
-        // Create an executor to deliver incoming packets to listeners. We'll use a single
-        // thread with an unbounded queue.
-        listenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    /**
+     * Creates the executor that will deliver incoming packets to listeners. We'll use a
+     * single thread with an unbounded queue.
+     *
+     * @return the executor used to notify the packet listeners.
+     */
+    protected ExecutorService createListenerExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
 
             public Thread newThread(Runnable runnable) {
                 Thread thread = new Thread(runnable,
@@ -84,8 +129,32 @@ class PacketReader {
                 return thread;
             }
         });
+    }
 
-        resetParser();
+    /**
+     * Starts reading from the connection. By default a dedicated thread is started that
+     * will parse the incoming packets.
+     */
+    protected void startReading() {
+        ConnectionConfiguration config = connection.getConfiguration();
+        int parserThreads = config.getParserThreads();
+        final StanzaPipeline pipeline = parserThreads > 1 ? new StanzaPipeline(parserThreads) : null;
+        // Size limits are enforced while framing, before the packets are parsed
+        final boolean framing = pipeline != null || config.isSizeLimited();
+        this.pipeline = pipeline;
+        readerThread = new Thread() {
+            public void run() {
+                if (framing) {
+                    framePackets(this, pipeline);
+                }
+                else {
+                    parsePackets(this);
+                }
+            }
+        };
+        readerThread.setName("Smack Packet Reader (" + connection.connectionCounterValue + ")");
+        readerThread.setDaemon(true);
+        readerThread.start();
     }
 
     /**
@@ -99,7 +168,7 @@ class PacketReader {
     public void startup() throws XMPPException {
         connectionSemaphore = new Semaphore(1);
 
-        readerThread.start();
+        startReading();
         // Wait for stream tag before returing. We'll wait a couple of seconds before
         // giving up and throwing an error.
         try {
@@ -142,8 +211,16 @@ class PacketReader {
         }
         done = true;
 
-        // Shut down the listener executor.
-        listenerExecutor.shutdown();
+        // Shut down the parser threads and the listener executor.
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        if (listenerExecutor != null) {
+            listenerExecutor.shutdown();
+        }
+        else {
+            listenerDispatcher.shutdown();
+        }
     }
 
     /**
@@ -151,7 +228,7 @@ class PacketReader {
      */
     void cleanup() {
         connection.recvListeners.clear();
-        connection.collectors.clear();
+        connection.collectorDispatcher.clear();
     }
 
     /**
@@ -179,6 +256,16 @@ class PacketReader {
         }
     }
 
+    /**
+     * Closes the connection with a <tt>policy-violation</tt> stream error because the server
+     * sent an element that exceeds the size limits, and notifies the connection listeners
+     * of the error.
+     */
+    void notifyPolicyViolation() {
+        connection.packetWriter.setStreamError("policy-violation");
+        notifyConnectionError(new XMPPException(new StreamError("policy-violation")));
+    }
+
     /**
      * Sends a notification indicating that the connection was reconnected successfully.
      */
@@ -201,7 +288,7 @@ class PacketReader {
      * when the plain connection has been secured or when a new opening stream element is going
      * to be sent by the server.
      */
-    private void resetParser() {
+    protected void resetParser() {
         try {
             parser = new MXParser();
             parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
@@ -222,108 +309,96 @@ class PacketReader {
             int eventType = parser.getEventType();
             do {
                 if (eventType == XmlPullParser.START_TAG) {
-                    if (parser.getName().equals("message")) {
-                        processPacket(PacketParserUtils.parseMessage(parser));
-                    }
-                    else if (parser.getName().equals("iq")) {
-                        processPacket(PacketParserUtils.parseIQ(parser, connection));
-                    }
-                    else if (parser.getName().equals("presence")) {
-                        processPacket(PacketParserUtils.parsePresence(parser));
-                    }
-                    // We found an opening stream. Record information about it, then notify
-                    // the connectionID lock so that the packet reader startup can finish.
-                    else if (parser.getName().equals("stream")) {
-                        // Ensure the correct jabber:client namespace is being used.
-                        if ("jabber:client".equals(parser.getNamespace(null))) {
-                            // Get the connection id.
-                            for (int i=0; i<parser.getAttributeCount(); i++) {
-                                if (parser.getAttributeName(i).equals("id")) {
-                                    // Save the connectionID
-                                    connectionID = parser.getAttributeValue(i);
-                                    if (!"1.0".equals(parser.getAttributeValue("", "version"))) {
-                                        // Notify that a stream has been opened if the
-                                        // server is not XMPP 1.0 compliant otherwise make the
-                                        // notification after TLS has been negotiated or if TLS
-                                        // is not supported
-                                        releaseConnectionIDLock();
-                                    }
-                                }
-                                else if (parser.getAttributeName(i).equals("from")) {
-                                    // Use the server name that the server says that it is.
-                                    connection.config.setServiceName(parser.getAttributeValue(i));
-                                }
-                            }
-                        }
+                    parseElement(parser);
+                }
+                else if (eventType == XmlPullParser.END_TAG) {
+                    if (parser.getName().equals("stream")) {
+                        // Disconnect the connection
+                        connection.disconnect();
                     }
-                    else if (parser.getName().equals("error")) {
-                        throw new XMPPException(PacketParserUtils.parseStreamError(parser));
+                }
+                eventType = parser.next();
+            } while (!done && eventType != XmlPullParser.END_DOCUMENT && thread == readerThread);
+        }
+        catch (Exception e) {
+            if (!done) {
+                // Close the connection and notify connection listeners of the
+                // error.
+                notifyConnectionError(e);
+            }
+        }
+    }
+
+    /**
+     * Frames the top-level elements of the stream and hands the packets to the parser threads,
+     * or parses them on the calling thread if there are no parser threads. The elements that
+     * negotiate the stream are processed by the calling thread once all the packets received
+     * before them have been delivered, so they are handled in order and the stream can be
+     * restarted on a new reader when TLS or compression are started.
+     *
+     * @param thread the thread that is being used by the reader to frame incoming elements.
+     * @param pipeline the parser threads, or <tt>null</tt> to parse on the calling thread.
+     */
+    private void framePackets(Thread thread, StanzaPipeline pipeline) {
+        StanzaFramer framer = new StanzaFramer();
+        framer.setLimits(connection.getConfiguration());
+        CharBuffer in = CharBuffer.allocate(8192);
+        in.limit(0);
+        Reader reader = connection.reader;
+        String header = DEFAULT_STREAM_HEADER;
+        try {
+            while (!done && thread == readerThread) {
+                int event = framer.next(in);
+                if (event == StanzaFramer.NEED_INPUT) {
+                    in.clear();
+                    int count = reader.read(in.array(), 0, in.capacity());
+                    if (count == -1) {
+                        break;
                     }
-                    else if (parser.getName().equals("features")) {
-                        parseFeatures(parser);
+                    in.limit(count);
+                }
+                else if (event == StanzaFramer.OVERSIZED) {
+                    if (!done) {
+                        notifyPolicyViolation();
                     }
-                    else if (parser.getName().equals("proceed")) {
-                        // Secure the connection by negotiating TLS
-                        connection.proceedTLSReceived();
-                        // Reset the state of the parser since a new stream element is going
-                        // to be sent by the server
-                        resetParser();
+                    break;
+                }
+                else if (event == StanzaFramer.ELEMENT && isStanza(framer.getName())) {
+                    if (pipeline != null) {
+                        pipeline.parse(header, framer.getText(), framer.getSpilledTexts());
                     }
-                    else if (parser.getName().equals("failure")) {
-                        String namespace = parser.getNamespace(null);
-                        if ("urn:ietf:params:xml:ns:xmpp-tls".equals(namespace)) {
-                            // TLS negotiation has failed. The server will close the connection
-                            throw new Exception("TLS negotiation has failed");
-                        }
-                        else if ("http://jabber.org/protocol/compress".equals(namespace)) {
-                            // Stream compression has been denied. This is a recoverable
-                            // situation. It is still possible to authenticate and
-                            // use the connection but using an uncompressed connection
-                            connection.streamCompressionDenied();
-                        }
-                        else {
-                            // SASL authentication has failed. The server may close the connection
-                            // depending on the number of retries
-                            final Failure failure = PacketParserUtils.parseSASLFailure(parser);
-                            processPacket(failure);
-                            connection.getSASLAuthentication().authenticationFailed(failure.getCondition());
-                        }
+                    else {
+                        processPacket(parseStanza(header, framer.getText(),
+                                framer.getSpilledTexts()));
                     }
-                    else if (parser.getName().equals("challenge")) {
-                        // The server is challenging the SASL authentication made by the client
-                        String challengeData = parser.nextText();
-                        processPacket(new Challenge(challengeData));
-                        connection.getSASLAuthentication().challengeReceived(challengeData);
+                }
+                else {
+                    if (pipeline != null) {
+                        pipeline.awaitDelivery();
                     }
-                    else if (parser.getName().equals("success")) {
-                        processPacket(new Success(parser.nextText()));
-                        // We now need to bind a resource for the connection
-                        // Open a new stream and wait for the response
-                        connection.packetWriter.openStream();
-                        // Reset the state of the parser since a new stream element is going
-                        // to be sent by the server
-                        resetParser();
-                        // The SASL authentication with the server was successful. The next step
-                        // will be to bind the resource
-                        connection.getSASLAuthentication().authenticated();
+                    if (event == StanzaFramer.STREAM_START) {
+                        header = framer.getText();
+                        parseElement(createParser(header, null));
                     }
-                    else if (parser.getName().equals("compressed")) {
-                        // Server confirmed that it's possible to use stream compression. Start
-                        // stream compression
-                        connection.startStreamCompression();
-                        // Reset the state of the parser since a new stream element is going
-                        // to be sent by the server
-                        resetParser();
+                    else if (event == StanzaFramer.ELEMENT) {
+                        StanzaFramer.discard(framer.getSpilledTexts());
+                        parseElement(createParser(header, framer.getText()));
                     }
-                }
-                else if (eventType == XmlPullParser.END_TAG) {
-                    if (parser.getName().equals("stream")) {
+                    else {
                         // Disconnect the connection
                         connection.disconnect();
                     }
+                    if (connection.reader != reader) {
+                        // TLS or stream compression was started. The server does not send
+                        // anything until a new stream is opened, so nothing read from the
+                        // previous reader is lost.
+                        reader = connection.reader;
+                        framer.reset();
+                        in.clear();
+                        in.limit(0);
+                    }
                 }
-                eventType = parser.next();
-            } while (!done && eventType != XmlPullParser.END_DOCUMENT && thread == readerThread);
+            }
         }
         catch (Exception e) {
             if (!done) {
@@ -332,6 +407,149 @@ class PacketReader {
                 notifyConnectionError(e);
             }
         }
+        finally {
+            framer.reset();
+        }
+    }
+
+    private static boolean isStanza(String name) {
+        return name.equals("message") || name.equals("iq") || name.equals("presence");
+    }
+
+    /**
+     * Creates a parser for a framed top-level element. The element is parsed with the
+     * opening stream tag in front of it so that the namespace declarations of the stream
+     * are in scope.
+     *
+     * @param header the opening stream tag.
+     * @param element the element to parse or <tt>null</tt> to parse the stream tag.
+     * @return a parser positioned on the start tag of the element or of the stream.
+     * @throws XmlPullParserException if the element is not valid XML.
+     * @throws IOException if an IO error occurs.
+     */
+    static XmlPullParser createParser(String header, String element)
+            throws XmlPullParserException, IOException
+    {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(element == null ? header : header + element));
+        // Move to the stream tag
+        parser.next();
+        if (element != null) {
+            // Move to the element
+            parser.next();
+        }
+        return parser;
+    }
+
+    /**
+     * Processes a top-level element of the stream. The parser must be positioned on the
+     * start tag of the element, which is either a packet or a stream-level element such as
+     * the stream features or the TLS, SASL and compression negotiation elements.
+     *
+     * @param parser the parser positioned on the start tag of the element.
+     * @throws Exception if an error occurs while processing the element.
+     */
+    void parseElement(XmlPullParser parser) throws Exception {
+        if (parser.getName().equals("message") || parser.getName().equals("iq")
+                || parser.getName().equals("presence"))
+        {
+            processPacket(parseStanza(parser));
+        }
+        // We found an opening stream. Record information about it, then notify
+        // the connectionID lock so that the packet reader startup can finish.
+        else if (parser.getName().equals("stream")) {
+            // Ensure the correct jabber:client namespace is being used.
+            if ("jabber:client".equals(parser.getNamespace(null))) {
+                // Get the connection id.
+                for (int i=0; i<parser.getAttributeCount(); i++) {
+                    if (parser.getAttributeName(i).equals("id")) {
+                        // Save the connectionID
+                        connectionID = parser.getAttributeValue(i);
+                        if (!"1.0".equals(parser.getAttributeValue("", "version"))) {
+                            // Notify that a stream has been opened if the
+                            // server is not XMPP 1.0 compliant otherwise make the
+                            // notification after TLS has been negotiated or if TLS
+                            // is not supported
+                            releaseConnectionIDLock();
+                        }
+                    }
+                    else if (parser.getAttributeName(i).equals("from")) {
+                        // Use the server name that the server says that it is.
+                        connection.config.setServiceName(parser.getAttributeValue(i));
+                    }
+                }
+            }
+        }
+        else if (parser.getName().equals("error")) {
+            throw new XMPPException(PacketParserUtils.parseStreamError(parser));
+        }
+        else if (parser.getName().equals("features")) {
+            parseFeatures(parser);
+        }
+        else if (parser.getName().equals("proceed")) {
+            // Secure the connection by negotiating TLS
+            try {
+                connection.proceedTLSReceived();
+            }
+            catch (Exception e) {
+                connection.negotiationCompleted(ConnectionMetrics.Negotiation.tls, false);
+                throw e;
+            }
+            connection.negotiationCompleted(ConnectionMetrics.Negotiation.tls, true);
+            // Reset the state of the parser since a new stream element is going
+            // to be sent by the server
+            resetParser();
+        }
+        else if (parser.getName().equals("failure")) {
+            String namespace = parser.getNamespace(null);
+            if ("urn:ietf:params:xml:ns:xmpp-tls".equals(namespace)) {
+                // TLS negotiation has failed. The server will close the connection
+                connection.negotiationCompleted(ConnectionMetrics.Negotiation.tls, false);
+                throw new Exception("TLS negotiation has failed");
+            }
+            else if ("http://jabber.org/protocol/compress".equals(namespace)) {
+                // Stream compression has been denied. This is a recoverable
+                // situation. It is still possible to authenticate and
+                // use the connection but using an uncompressed connection
+                connection.negotiationCompleted(ConnectionMetrics.Negotiation.compression, false);
+                connection.streamCompressionDenied();
+            }
+            else {
+                // SASL authentication has failed. The server may close the connection
+                // depending on the number of retries
+                final Failure failure = PacketParserUtils.parseSASLFailure(parser);
+                processPacket(failure);
+                connection.getSASLAuthentication().authenticationFailed(failure.getCondition());
+            }
+        }
+        else if (parser.getName().equals("challenge")) {
+            // The server is challenging the SASL authentication made by the client
+            String challengeData = parser.nextText();
+            processPacket(new Challenge(challengeData));
+            connection.getSASLAuthentication().challengeReceived(challengeData);
+        }
+        else if (parser.getName().equals("success")) {
+            processPacket(new Success(parser.nextText()));
+            // We now need to bind a resource for the connection
+            // Open a new stream and wait for the response
+            connection.packetWriter.openStream();
+            // Reset the state of the parser since a new stream element is going
+            // to be sent by the server
+            resetParser();
+            // The SASL authentication with the server was successful. The next step
+            // will be to bind the resource
+            connection.getSASLAuthentication().authenticated();
+        }
+        else if (parser.getName().equals("compressed")) {
+            // Server confirmed that it's possible to use stream compression. Start
+            // stream compression
+            connection.startStreamCompression();
+            connection.negotiationCompleted(ConnectionMetrics.Negotiation.compression, true);
+            // Reset the state of the parser since a new stream element is going
+            // to be sent by the server
+            resetParser();
+        }
     }
 
     /**
@@ -347,6 +565,65 @@ class PacketReader {
         connectionSemaphore.release();
     }
 
+    /**
+     * Parses a framed packet and gives it the text nodes that were spilled to files while
+     * it was framed. The files are deleted if the packet cannot be parsed.
+     *
+     * @param header the opening stream tag.
+     * @param element the framed packet.
+     * @param spilledTexts the spilled text nodes of the packet, or <tt>null</tt> if none.
+     * @return the packet, or <tt>null</tt> if it was handled while being parsed.
+     * @throws Exception if an error occurs while parsing the packet.
+     */
+    Packet parseStanza(String header, String element, List<SpilledText> spilledTexts)
+            throws Exception
+    {
+        Packet packet = null;
+        try {
+            packet = parseStanza(createParser(header, element));
+        }
+        finally {
+            if (packet == null) {
+                StanzaFramer.discard(spilledTexts);
+            }
+        }
+        if (packet == null) {
+            return null;
+        }
+        if (spilledTexts != null) {
+            for (SpilledText spilledText : spilledTexts) {
+                packet.addExtension(spilledText);
+            }
+        }
+        return packet;
+    }
+
+    /**
+     * Parses a message, IQ or presence packet and reports the time spent parsing it to the
+     * metrics of the connection.
+     *
+     * @param parser the parser positioned on the start tag of the packet.
+     * @return the parsed packet, or <tt>null</tt> if it was handled while being parsed.
+     * @throws Exception if an error occurs while parsing the packet.
+     */
+    private Packet parseStanza(XmlPullParser parser) throws Exception {
+        long start = metrics != null ? System.nanoTime() : 0;
+        Packet packet;
+        if (parser.getName().equals("message")) {
+            packet = PacketParserUtils.parseMessage(parser, lazyExtensions);
+        }
+        else if (parser.getName().equals("iq")) {
+            packet = PacketParserUtils.parseIQ(parser, connection);
+        }
+        else {
+            packet = PacketParserUtils.parsePresence(parser, lazyExtensions);
+        }
+        if (metrics != null && packet != null) {
+            metrics.packetParsed(connection, packet, System.nanoTime() - start);
+        }
+        return packet;
+    }
+
     /**
      * Processes a packet after it's been fully parsed by looping through the installed
      * packet collectors and listeners and letting them examine the packet to see if
@@ -354,18 +631,21 @@ class PacketReader {
      *
      * @param packet the packet to process.
      */
-    private void processPacket(Packet packet) {
+    void processPacket(Packet packet) {
         if (packet == null) {
             return;
         }
 
-        // Loop through all collectors and notify the appropriate ones.
-        for (PacketCollector collector: connection.getPacketCollectors()) {
-            collector.processPacket(packet);
-        }
+        // Notify the collectors waiting for the packet ID and the other collectors.
+        connection.collectorDispatcher.dispatch(packet);
 
         // Deliver the incoming packet to listeners.
-        listenerExecutor.submit(new ListenerNotification(packet));
+        if (listenerExecutor != null) {
+            listenerExecutor.submit(new ListenerNotification(packet));
+        }
+        else {
+            listenerDispatcher.dispatch(packet);
+        }
     }
 
     private void parseFeatures(XmlPullParser parser) throws Exception {
@@ -401,6 +681,12 @@ class PacketReader {
                 else if (parser.getName().equals("register")) {
                     connection.getAccountManager().setSupportsAccountCreation(true);
                 }
+                else if (parser.getName().equals("ver") &&
+                        "urn:xmpp:features:rosterver".equals(parser.getNamespace()))
+                {
+                    // The server supports roster versioning
+                    connection.setRosterVersioningSupported(true);
+                }
             }
             else if (eventType == XmlPullParser.END_TAG) {
                 if (parser.getName().equals("starttls")) {
@@ -437,20 +723,180 @@ class PacketReader {
         }
     }
 
+    /**
+     * Parses framed packets on a pool of threads and delivers them to the collectors and
+     * listeners in the order they were framed. A parsed packet waits until the packets
+     * framed before it were delivered, and the thread that finds the oldest packet parsed
+     * delivers it along with the following packets that are already parsed.
+     */
+    private class StanzaPipeline {
+
+        private final ExecutorService executor;
+        private final Semaphore permits = new Semaphore(MAX_PENDING_PACKETS);
+        private final LinkedList<FramedStanza> stanzas = new LinkedList<FramedStanza>();
+        private boolean delivering = false;
+
+        StanzaPipeline(int threads) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "Smack Packet Parser (" + connection.connectionCounterValue + ")");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * Parses a framed packet on a parser thread, waiting while too many packets are
+         * pending.
+         *
+         * @param header the opening stream tag.
+         * @param element the framed packet.
+         * @param spilledTexts the spilled text nodes of the packet, or <tt>null</tt> if none.
+         * @throws InterruptedException if the thread is interrupted while waiting.
+         */
+        void parse(String header, String element, List<SpilledText> spilledTexts)
+                throws InterruptedException
+        {
+            permits.acquire();
+            FramedStanza stanza = new FramedStanza(header, element, spilledTexts);
+            synchronized (this) {
+                stanzas.add(stanza);
+            }
+            try {
+                executor.execute(stanza);
+            }
+            catch (RejectedExecutionException e) {
+                // The reader has been shut down
+                parsed(stanza);
+            }
+        }
+
+        /**
+         * Waits until all the framed packets were delivered.
+         *
+         * @throws InterruptedException if the thread is interrupted while waiting.
+         */
+        synchronized void awaitDelivery() throws InterruptedException {
+            while (delivering || !stanzas.isEmpty()) {
+                wait();
+            }
+        }
+
+        void shutdown() {
+            executor.shutdown();
+        }
+
+        private void parsed(FramedStanza stanza) {
+            synchronized (this) {
+                stanza.parsed = true;
+                if (delivering) {
+                    // The delivering thread will find the packet
+                    return;
+                }
+                delivering = true;
+            }
+            while (true) {
+                synchronized (this) {
+                    stanza = stanzas.peek();
+                    if (stanza == null || !stanza.parsed) {
+                        delivering = false;
+                        notifyAll();
+                        return;
+                    }
+                    stanzas.remove();
+                }
+                permits.release();
+                deliver(stanza);
+            }
+        }
+
+        private void deliver(FramedStanza stanza) {
+            if (done) {
+                return;
+            }
+            try {
+                if (stanza.error != null) {
+                    throw stanza.error;
+                }
+                processPacket(stanza.packet);
+            }
+            catch (Exception e) {
+                if (!done) {
+                    // Close the connection and notify connection listeners of the
+                    // error.
+                    notifyConnectionError(e);
+                }
+            }
+        }
+
+        /**
+         * A framed packet that is parsed by a parser thread.
+         */
+        private class FramedStanza implements Runnable {
+
+            private final String header;
+            private final String element;
+            private final List<SpilledText> spilledTexts;
+            private Packet packet;
+            private Exception error;
+            private boolean parsed = false;
+
+            FramedStanza(String header, String element, List<SpilledText> spilledTexts) {
+                this.header = header;
+                this.element = element;
+                this.spilledTexts = spilledTexts;
+            }
+
+            public void run() {
+                if (!done) {
+                    try {
+                        packet = parseStanza(header, element, spilledTexts);
+                    }
+                    catch (Exception e) {
+                        error = e;
+                    }
+                }
+                else {
+                    StanzaFramer.discard(spilledTexts);
+                }
+                parsed(this);
+            }
+        }
+    }
+
     /**
      * A runnable to notify all listeners of a packet.
      */
     private class ListenerNotification implements Runnable {
 
         private Packet packet;
+        private long queueTime;
 
         public ListenerNotification(Packet packet) {
             this.packet = packet;
+            if (metrics != null) {
+                queueTime = System.nanoTime();
+            }
         }
 
         public void run() {
+            if (metrics == null) {
+                for (ListenerWrapper listenerWrapper : connection.recvListeners.values()) {
+                    listenerWrapper.notifyListener(packet);
+                }
+                return;
+            }
             for (ListenerWrapper listenerWrapper : connection.recvListeners.values()) {
-                listenerWrapper.notifyListener(packet);
+                if (listenerWrapper.accept(packet)) {
+                    PacketListener listener = listenerWrapper.getPacketListener();
+                    long start = System.nanoTime();
+                    listener.processPacket(packet);
+                    metrics.listenerInvoked(connection, listener, packet, start - queueTime,
+                            System.nanoTime() - start);
+                }
             }
         }
     }
@@ -0,0 +1,319 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.TimerWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending reply to a request sent to the server. No thread waits for the reply: the
+ * future completes when the reply is received, fails with an {@link XMPPException} if the
+ * server replies with an error, and fails when the timeout elapses without a reply.
+ * Timeouts of all the requests are handled by a single shared {@link TimerWheel}, so a
+ * single thread can have hundreds of requests in flight.<p>
+ *
+ * The outcome can be obtained by blocking on {@link #getReply()} or {@link #get()}, or
+ * by registering a {@link PacketReplyListener}:
+ *
+ * <pre>
+ * PacketReplyFuture&lt;IQ&gt; future = connection.sendIQWithReply(discoverInfo);
+ * future.addListener(new PacketReplyListener&lt;IQ&gt;() {
+ *     public void replyReceived(IQ reply) {
+ *         // Process the reply
+ *     }
+ *
+ *     public void requestFailed(XMPPException e) {
+ *         // Handle the error
+ *     }
+ * });
+ * </pre>
+ *
+ * @see Connection#sendIQWithReply(org.jivesoftware.smack.packet.IQ)
+ * @see Connection#sendPacketWithReply(Packet, long)
+ */
+public class PacketReplyFuture<P extends Packet> implements Future<P> {
+
+    /**
+     * Timer shared by all the requests. A tick of 100 ms is precise enough for timeouts
+     * measured in seconds.
+     */
+    private static final TimerWheel timer = new TimerWheel("Smack Reply Timer", 100, 512);
+
+    private final Connection connection;
+    private final Class<P> replyType;
+    private final ReplyCollector collector;
+    private TimerWheel.Timeout timeout;
+    private ConnectionMetrics metrics;
+    private Packet request;
+    private long sendTime;
+
+    private boolean done = false;
+    private boolean cancelled = false;
+    private P reply;
+    private XMPPException failure;
+    private List<PacketReplyListener<? super P>> listeners;
+
+    PacketReplyFuture(Connection connection, PacketFilter replyFilter, Class<P> replyType) {
+        this.connection = connection;
+        this.replyType = replyType;
+        this.collector = new ReplyCollector(connection, replyFilter);
+    }
+
+    /**
+     * Starts waiting for the reply and sends the request.
+     *
+     * @param request the request to send.
+     * @param replyTimeout the time to wait for the reply in milliseconds.
+     */
+    void send(Packet request, long replyTimeout) {
+        ConnectionConfiguration config = connection.getConfiguration();
+        if (config != null && config.getConnectionMetrics() != null) {
+            this.metrics = config.getConnectionMetrics();
+            this.request = request;
+            this.sendTime = System.nanoTime();
+        }
+        connection.addPacketCollector(collector);
+        timeout = timer.schedule(new Runnable() {
+            public void run() {
+                fail(new XMPPException("No response from server."));
+            }
+        }, replyTimeout);
+        try {
+            connection.sendPacket(request);
+        }
+        catch (RuntimeException e) {
+            cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the reply of the server, waiting for it if necessary.
+     *
+     * @return the reply of the server.
+     * @throws XMPPException if the server replied with an error, did not reply in time or
+     *      if the request was cancelled.
+     */
+    public P getReply() throws XMPPException {
+        synchronized (this) {
+            while (!done) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ie) {
+                    // Ignore.
+                }
+            }
+        }
+        if (cancelled) {
+            throw new XMPPException("Request was cancelled.");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return reply;
+    }
+
+    /**
+     * Adds a listener that will be notified of the outcome of the request. If the request
+     * has already completed the listener is notified right away by the calling thread.
+     * Listeners are not notified if the request is cancelled.
+     *
+     * @param listener the listener to notify.
+     */
+    public void addListener(PacketReplyListener<? super P> listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<PacketReplyListener<? super P>>(1);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        if (!cancelled) {
+            notifyListener(listener);
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            cancelled = true;
+            listeners = null;
+            notifyAll();
+        }
+        cleanup();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public P get() throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            while (!done) {
+                wait();
+            }
+        }
+        return getResult();
+    }
+
+    public P get(long time, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + unit.toMillis(time);
+        synchronized (this) {
+            while (!done) {
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    throw new TimeoutException();
+                }
+                wait(waitTime);
+            }
+        }
+        return getResult();
+    }
+
+    private P getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return reply;
+    }
+
+    private void complete(Packet packet) {
+        if (packet.getError() != null) {
+            fail(new XMPPException(packet.getError()), packet);
+            return;
+        }
+        List<PacketReplyListener<? super P>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            reply = replyType.cast(packet);
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        requestCompleted(packet);
+        cleanup();
+        notifyListeners(toNotify);
+    }
+
+    private void fail(XMPPException e) {
+        fail(e, null);
+    }
+
+    private void fail(XMPPException e, Packet errorReply) {
+        List<PacketReplyListener<? super P>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            failure = e;
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        requestCompleted(errorReply);
+        cleanup();
+        notifyListeners(toNotify);
+    }
+
+    /**
+     * Reports the round trip of the request to the metrics of the connection.
+     *
+     * @param reply the reply of the server, or <tt>null</tt> if no reply was received.
+     */
+    private void requestCompleted(Packet reply) {
+        if (metrics != null) {
+            metrics.requestCompleted(connection, request, reply, System.nanoTime() - sendTime);
+        }
+    }
+
+    /**
+     * Stops waiting for the reply.
+     */
+    private void cleanup() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        collector.cancel();
+    }
+
+    private void notifyListeners(List<PacketReplyListener<? super P>> toNotify) {
+        if (toNotify != null) {
+            for (PacketReplyListener<? super P> listener : toNotify) {
+                notifyListener(listener);
+            }
+        }
+    }
+
+    private void notifyListener(PacketReplyListener<? super P> listener) {
+        try {
+            if (failure != null) {
+                listener.requestFailed(failure);
+            }
+            else {
+                listener.replyReceived(reply);
+            }
+        }
+        catch (Exception e) {
+            // Catch and print any exception so we can recover
+            // from a faulty listener
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A collector that completes the future instead of queuing the reply.
+     */
+    private class ReplyCollector extends PacketCollector {
+
+        ReplyCollector(Connection connection, PacketFilter packetFilter) {
+            super(connection, packetFilter);
+        }
+
+        protected void processPacket(Packet packet) {
+            if (packet != null && getPacketFilter().accept(packet)) {
+                complete(packet);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Listens for the outcome of a request sent with
+ * {@link Connection#sendIQWithReply(org.jivesoftware.smack.packet.IQ)} or
+ * {@link Connection#sendPacketWithReply(Packet, long)}. Exactly one of the methods is
+ * invoked once the request has completed, unless the request was cancelled.<p>
+ *
+ * The listener is invoked by the thread that processes incoming packets or by the thread
+ * of the reply timer, so it's very important that implementations of this interface not
+ * block for any extended period of time.
+ *
+ * @see PacketReplyFuture#addListener(PacketReplyListener)
+ */
+public interface PacketReplyListener<P extends Packet> {
+
+    /**
+     * The server replied to the request with a packet that is not an error.
+     *
+     * @param reply the reply of the server.
+     */
+    public void replyReceived(P reply);
+
+    /**
+     * The request failed because the server replied with an error or did not reply in time.
+     *
+     * @param e the exception describing the failure.
+     */
+    public void requestFailed(XMPPException e);
+}
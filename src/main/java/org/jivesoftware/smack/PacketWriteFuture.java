@@ -0,0 +1,131 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending write of a packet sent with {@link Connection#sendPacketAsync(Packet)}. The
+ * future completes with the sent packet once it has been written to the connection, or
+ * fails with an {@link XMPPException} if the packet could not be queued or if the
+ * connection was closed before the packet was written. A write cannot be cancelled.
+ */
+public class PacketWriteFuture implements Future<Packet> {
+
+    private final Packet packet;
+    private boolean done = false;
+    private XMPPException failure;
+
+    PacketWriteFuture(Packet packet) {
+        this.packet = packet;
+    }
+
+    /**
+     * Returns the packet being sent.
+     *
+     * @return the packet being sent.
+     */
+    public Packet getPacket() {
+        return packet;
+    }
+
+    /**
+     * Returns true if the packet was written to the connection. Returns false if the
+     * write is still pending or if it failed.
+     *
+     * @return true if the packet was written to the connection.
+     */
+    public synchronized boolean isWritten() {
+        return done && failure == null;
+    }
+
+    /**
+     * Returns false since a write cannot be cancelled.
+     *
+     * @param mayInterruptIfRunning ignored.
+     * @return false.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public Packet get() throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            while (!done) {
+                wait();
+            }
+        }
+        return getResult();
+    }
+
+    public Packet get(long time, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + unit.toMillis(time);
+        synchronized (this) {
+            while (!done) {
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    throw new TimeoutException();
+                }
+                wait(waitTime);
+            }
+        }
+        return getResult();
+    }
+
+    private synchronized Packet getResult() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return packet;
+    }
+
+    /**
+     * Completes the future once the packet has been written.
+     */
+    synchronized void complete() {
+        if (!done) {
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Fails the future since the packet will not be written.
+     *
+     * @param e the exception describing the failure.
+     */
+    synchronized void fail(XMPPException e) {
+        if (!done) {
+            done = true;
+            failure = e;
+            notifyAll();
+        }
+    }
+}
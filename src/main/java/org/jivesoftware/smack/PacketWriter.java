@@ -24,13 +24,21 @@ import org.jivesoftware.smack.packet.Packet;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Writes packets to a XMPP server. Packets are sent using a dedicated thread. Packet
  * interceptors can be registered to dynamically modify packets before they're actually
- * sent. Packet listeners can be registered to listen for all outgoing packets.
+ * sent. Packet listeners can be registered to listen for all outgoing packets.<p>
+ *
+ * When write batching is enabled the writer thread writes all the packets waiting in the
+ * queue before flushing the connection. See
+ * {@link ConnectionConfiguration#setWriteBatchingEnabled(boolean)}.
  *
  * @see Connection#addPacketInterceptor
  * @see Connection#addPacketSendingListener
@@ -41,16 +49,40 @@ class PacketWriter {
 
     private Thread writerThread;
     private Thread keepAliveThread;
-    private Writer writer;
-    private XMPPConnection connection;
-    private final BlockingQueue<Packet> queue;
-    private boolean done;
+    Writer writer;
+    final XMPPConnection connection;
+    private final BlockingQueue<QueuedPacket> queue;
+    volatile boolean done;
+    ConnectionMetrics metrics;
+
+    /**
+     * The packets of the batch being written, used to complete their futures once the
+     * batch was written or to fail them if it could not be written.
+     */
+    private final List<QueuedPacket> batchPackets = new ArrayList<QueuedPacket>();
+
+    /**
+     * The buffer through which the characters of a batch are copied to the writer, so that
+     * the batch is written without creating a String of it.
+     */
+    private final char[] batchChars = new char[8192];
+
+    /**
+     * The maximum number of packets that were waiting in the queue at the same time.
+     */
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+
+    /**
+     * The condition of the stream error to send to the server when closing the stream, or
+     * <tt>null</tt> to close the stream normally.
+     */
+    private volatile String streamError;
 
     /**
      * Timestamp when the last stanza was sent to the server. This information is used
      * by the keep alive process to only send heartbeats when the connection has been idle.
      */
-    private long lastActive = System.currentTimeMillis();
+    volatile long lastActive = System.currentTimeMillis();
 
     /**
      * Creates a new packet writer with the specified connection.
@@ -58,7 +90,9 @@ class PacketWriter {
      * @param connection the connection.
      */
     protected PacketWriter(XMPPConnection connection) {
-        this.queue = new ArrayBlockingQueue<Packet>(500, true);
+        ConnectionConfiguration config = connection.getConfiguration();
+        this.queue = new ArrayBlockingQueue<QueuedPacket>(config.getPacketQueueCapacity(),
+                config.isPacketQueueFair());
         this.connection = connection;
         init();
     }
@@ -69,42 +103,174 @@ class PacketWriter {
     */ 
     protected void init() {
         this.writer = connection.writer;
+        this.metrics = connection.getConfiguration().getConnectionMetrics();
         done = false;
-
-        writerThread = new Thread() {
-            public void run() {
-                writePackets(this);
-            }
-        };
-        writerThread.setName("Smack Packet Writer (" + connection.connectionCounterValue + ")");
-        writerThread.setDaemon(true);
     }
 
     /**
-     * Sends the specified packet to the server.
+     * Sends the specified packet to the server. The calling thread waits as long as the
+     * queue of packets is full.
      *
      * @param packet the packet to send.
      */
     public void sendPacket(Packet packet) {
-        if (!done) {
-            // Invoke interceptors for the new packet that is about to be sent. Interceptors
-            // may modify the content of the packet.
-            connection.firePacketInterceptors(packet);
+        try {
+            sendPacket(packet, null, -1);
+        }
+        catch (InterruptedException ie) {
+            ie.printStackTrace();
+            // Restore the interrupted status so that the caller knows the packet was not sent
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            try {
-                queue.put(packet);
-            }
-            catch (InterruptedException ie) {
-                ie.printStackTrace();
-                return;
-            }
-            synchronized (queue) {
-                queue.notifyAll();
+    /**
+     * Sends the specified packet to the server if there is room for it in the queue of
+     * packets. This method never blocks.
+     *
+     * @param packet the packet to send.
+     * @return true if the packet was queued, false if the queue is full or the writer has
+     *      been shut down.
+     */
+    public boolean trySendPacket(Packet packet) {
+        try {
+            return sendPacket(packet, null, 0);
+        }
+        catch (InterruptedException ie) {
+            // Never happens since the thread does not wait
+            return false;
+        }
+    }
+
+    /**
+     * Sends the specified packet to the server, waiting up to the specified time for room
+     * in the queue of packets.
+     *
+     * @param packet the packet to send.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return true if the packet was queued, false if the timeout elapsed or the writer has
+     *      been shut down.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public boolean sendPacket(Packet packet, long timeout) throws InterruptedException {
+        return sendPacket(packet, null, Math.max(timeout, 0));
+    }
+
+    /**
+     * Sends the specified packet to the server without blocking. The returned future
+     * completes once the packet has been written to the connection, or fails right away if
+     * the queue of packets is full.
+     *
+     * @param packet the packet to send.
+     * @return the future of the write.
+     */
+    public PacketWriteFuture sendPacketAsync(Packet packet) {
+        PacketWriteFuture future = new PacketWriteFuture(packet);
+        try {
+            if (!sendPacket(packet, future, 0)) {
+                future.fail(new XMPPException(done ? "Connection closed." : "Packet queue is full."));
             }
+        }
+        catch (InterruptedException ie) {
+            // Never happens since the thread does not wait
+        }
+        return future;
+    }
+
+    /**
+     * Queues the specified packet to be written by the writer thread. Packet interceptors
+     * are invoked before queuing the packet, and packet sending listeners once the packet
+     * was queued.
+     *
+     * @param packet the packet to send.
+     * @param future the future to complete once the packet is written, or <tt>null</tt>.
+     * @param timeout the maximum time to wait for room in the queue in milliseconds, or a
+     *      negative value to wait as long as necessary.
+     * @return true if the packet was queued.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    protected boolean sendPacket(Packet packet, PacketWriteFuture future, long timeout)
+            throws InterruptedException
+    {
+        if (done) {
+            return false;
+        }
+        // Invoke interceptors for the new packet that is about to be sent. Interceptors
+        // may modify the content of the packet.
+        connection.firePacketInterceptors(packet);
+
+        // Each send is queued with its own future, so a packet that is sent more than once
+        // has a future for each send
+        QueuedPacket queuedPacket = new QueuedPacket(packet, future);
+        boolean queued;
+        if (timeout < 0) {
+            queue.put(queuedPacket);
+            queued = true;
+        }
+        else if (timeout == 0) {
+            queued = queue.offer(queuedPacket);
+        }
+        else {
+            queued = queue.offer(queuedPacket, timeout, TimeUnit.MILLISECONDS);
+        }
+        if (!queued) {
+            return false;
+        }
+        updateHighWaterMark();
+        if (metrics != null) {
+            metrics.packetQueued(connection, packet, queue.size());
+        }
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+        if (done && future != null && queue.remove(queuedPacket)) {
+            // The writer thread stopped while the packet was being queued
+            future.fail(new XMPPException("Connection closed."));
+        }
 
-            // Process packet writer listeners. Note that we're using the sending
-            // thread so it's expected that listeners are fast.
-            connection.firePacketSendingListeners(packet);
+        // Process packet writer listeners. Note that we're using the sending
+        // thread so it's expected that listeners are fast.
+        connection.firePacketSendingListeners(packet);
+        return true;
+    }
+
+    private void updateHighWaterMark() {
+        int size = queue.size();
+        int max = highWaterMark.get();
+        while (size > max && !highWaterMark.compareAndSet(max, size)) {
+            max = highWaterMark.get();
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting to be written.
+     *
+     * @return the number of packets waiting to be written.
+     */
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the maximum number of packets that were waiting to be written at the same
+     * time.
+     *
+     * @return the high-water mark of the queue of packets.
+     */
+    int getQueueHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    /**
+     * Fails the futures of all the packets that were not written: those of the batch being
+     * written and those still in the queue, which is emptied.
+     */
+    void failPendingWrites() {
+        List<QueuedPacket> pending = new ArrayList<QueuedPacket>(batchPackets);
+        batchPackets.clear();
+        queue.drainTo(pending);
+        for (QueuedPacket queuedPacket : pending) {
+            queuedPacket.failed();
         }
     }
 
@@ -114,6 +280,13 @@ class PacketWriter {
      * error occurs.
      */
     public void startup() {
+        writerThread = new Thread() {
+            public void run() {
+                writePackets(this);
+            }
+        };
+        writerThread.setName("Smack Packet Writer (" + connection.connectionCounterValue + ")");
+        writerThread.setDaemon(true);
         writerThread.start();
     }
 
@@ -151,6 +324,38 @@ class PacketWriter {
         }
     }
 
+    /**
+     * Makes the writer close the stream with a stream error when it is shut down, because
+     * the server violated the rules of the stream. No more packets are accepted and the
+     * packets that are still queued are dropped since nothing but the closing stream tag
+     * may follow a stream error.
+     *
+     * @param condition the defined condition of the stream error, for instance
+     *      <tt>policy-violation</tt>.
+     */
+    void setStreamError(String condition) {
+        streamError = condition;
+        done = true;
+    }
+
+    /**
+     * Writes the closing stream tag, preceded by the stream error if one was set.
+     *
+     * @throws IOException if an error occurs while writing to the server.
+     */
+    void closeStream() throws IOException {
+        synchronized (writer) {
+            String condition = streamError;
+            if (condition != null) {
+                writer.write("<stream:error><");
+                writer.write(condition);
+                writer.write(" xmlns=\"urn:ietf:params:xml:ns:xmpp-streams\"/></stream:error>");
+            }
+            writer.write("</stream:stream>");
+            writer.flush();
+        }
+    }
+
     /**
      * Cleans up all resources used by the packet writer.
      */
@@ -164,8 +369,8 @@ class PacketWriter {
      *
      * @return the next packet for writing.
      */
-    private Packet nextPacket() {
-        Packet packet = null;
+    private QueuedPacket nextPacket() {
+        QueuedPacket packet = null;
         // Wait until there's a packet or we're done.
         while (!done && (packet = queue.poll()) == null) {
             try {
@@ -184,41 +389,62 @@ class PacketWriter {
         try {
             // Open the stream.
             openStream();
+            ConnectionConfiguration config = connection.getConfiguration();
+            boolean batching = config.isWriteBatchingEnabled();
+            StringBuilder batch = batching ? new StringBuilder(1024) : null;
             // Write out packets from the queue.
             while (!done && (writerThread == thisThread)) {
-                Packet packet = nextPacket();
-                if (packet != null) {
+                QueuedPacket queuedPacket = nextPacket();
+                if (queuedPacket != null) {
+                    if (batching) {
+                        writeBatch(queuedPacket, batch, config.getWriteBatchMaxSize(),
+                                config.getWriteBatchMaxDelay());
+                        continue;
+                    }
+                    long start = metrics != null ? System.nanoTime() : 0;
+                    batchPackets.add(queuedPacket);
                     synchronized (writer) {
-                        writer.write(packet.toXML());
+                        queuedPacket.packet.writeXML(writer);
                         writer.flush();
                         // Keep track of the last time a stanza was sent to the server
                         lastActive = System.currentTimeMillis();
                     }
+                    batchPackets.clear();
+                    if (metrics != null) {
+                        metrics.packetWritten(connection, queuedPacket.packet,
+                                System.nanoTime() - start);
+                    }
+                    queuedPacket.written();
                 }
             }
             // Flush out the rest of the queue. If the queue is extremely large, it's possible
             // we won't have time to entirely flush it before the socket is forced closed
-            // by the shutdown process.
+            // by the shutdown process. The queue is dropped if the stream is closed with an
+            // error.
             try {
                 synchronized (writer) {
-                   while (!queue.isEmpty()) {
-                       Packet packet = queue.remove();
-                        writer.write(packet.toXML());
+                    QueuedPacket queuedPacket;
+                    while (streamError == null && (queuedPacket = queue.poll()) != null) {
+                        batchPackets.add(queuedPacket);
+                        queuedPacket.packet.writeXML(writer);
                     }
                     writer.flush();
                 }
+                for (QueuedPacket queuedPacket : batchPackets) {
+                    queuedPacket.written();
+                }
+                batchPackets.clear();
             }
             catch (Exception e) {
                 e.printStackTrace();
             }
 
             // Delete the queue contents (hopefully nothing is left).
-            queue.clear();
+            failPendingWrites();
 
             // Close the stream.
             try {
-                writer.write("</stream:stream>");
-                writer.flush();
+                closeStream();
             }
             catch (Exception e) {
                 // Do nothing
@@ -237,6 +463,87 @@ class PacketWriter {
                 done = true;
                 connection.packetReader.notifyConnectionError(ioe);
             }
+            failPendingWrites();
+        }
+    }
+
+    /**
+     * Writes the specified packet together with the packets that are waiting in the queue
+     * and flushes the writer once for all of them. The batch is written when the queue is
+     * empty, when the batch reaches the maximum size or when the maximum delay has elapsed
+     * since the first packet was taken. The time spent serializing and writing the batch
+     * is reported to the metrics of the connection as shared evenly by its packets.
+     *
+     * @param first the first packet of the batch.
+     * @param batch the buffer used to serialize the packets.
+     * @param maxSize the maximum number of characters of a batch.
+     * @param maxDelay the maximum time to wait for more packets in milliseconds.
+     * @throws IOException if an error occurs while writing to the server.
+     */
+    private void writeBatch(QueuedPacket first, StringBuilder batch, int maxSize,
+            long maxDelay) throws IOException
+    {
+        long deadline = System.currentTimeMillis() + maxDelay;
+        long writeTime = 0;
+        QueuedPacket packet = first;
+        while (packet != null) {
+            long start = metrics != null ? System.nanoTime() : 0;
+            packet.packet.writeXML(batch);
+            if (metrics != null) {
+                writeTime += System.nanoTime() - start;
+            }
+            batchPackets.add(packet);
+            if (batch.length() >= maxSize) {
+                break;
+            }
+            packet = queue.poll();
+            if (packet == null && maxDelay > 0 && !done) {
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime > 0) {
+                    try {
+                        packet = queue.poll(waitTime, TimeUnit.MILLISECONDS);
+                    }
+                    catch (InterruptedException ie) {
+                        // Do nothing
+                    }
+                }
+            }
+        }
+        try {
+            long start = metrics != null ? System.nanoTime() : 0;
+            synchronized (writer) {
+                int length = batch.length();
+                for (int offset = 0; offset < length; offset += batchChars.length) {
+                    int end = Math.min(length, offset + batchChars.length);
+                    batch.getChars(offset, end, batchChars, 0);
+                    writer.write(batchChars, 0, end - offset);
+                }
+                writer.flush();
+                // Keep track of the last time a stanza was sent to the server
+                lastActive = System.currentTimeMillis();
+            }
+            if (metrics != null) {
+                writeTime += System.nanoTime() - start;
+                for (QueuedPacket written : batchPackets) {
+                    metrics.packetWritten(connection, written.packet,
+                            writeTime / batchPackets.size());
+                }
+            }
+            for (QueuedPacket written : batchPackets) {
+                written.written();
+            }
+            // A batch that could not be written is left to fail its futures
+            batchPackets.clear();
+        }
+        finally {
+            if (batch.capacity() > maxSize * 2) {
+                // Do not keep the memory used by a large batch
+                batch.setLength(0);
+                batch.trimToSize();
+            }
+            else {
+                batch.setLength(0);
+            }
         }
     }
 
@@ -307,4 +614,36 @@ class PacketWriter {
             }
         }
     }
+
+    /**
+     * A packet in the queue together with the future of the send that queued it, if any.
+     */
+    static final class QueuedPacket {
+
+        final Packet packet;
+        final PacketWriteFuture future;
+
+        QueuedPacket(Packet packet, PacketWriteFuture future) {
+            this.packet = packet;
+            this.future = future;
+        }
+
+        /**
+         * Completes the future of the send once the packet was written to the connection.
+         */
+        void written() {
+            if (future != null) {
+                future.complete();
+            }
+        }
+
+        /**
+         * Fails the future of the send since the packet could not be written.
+         */
+        void failed() {
+            if (future != null) {
+                future.fail(new XMPPException("Connection closed before the packet was written."));
+            }
+        }
+    }
 }
\ No newline at end of file
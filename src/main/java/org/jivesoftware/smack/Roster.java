@@ -24,6 +24,7 @@ import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.JID;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.RosterPacket;
@@ -31,7 +32,12 @@ import org.jivesoftware.smack.util.StringUtils;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents a user's roster, which is the collection of users a person receives
@@ -58,16 +64,45 @@ public class Roster {
     private Connection connection;
     private final Map<String, RosterGroup> groups;
     private final Map<String,RosterEntry> entries;
-    private final List<RosterEntry> unfiledEntries;
+    private final Set<RosterEntry> unfiledEntries;
+    /**
+     * The names of the groups of each entry, which are the inverse of the entries of the
+     * groups. The sets are replaced rather than modified.
+     */
+    private final Map<String, Set<String>> entryGroups;
+    private final RosterStore rosterStore;
     private final List<RosterListener> rosterListeners;
-    private Map<String, Map<String, Presence>> presenceMap;
+    /**
+     * The presences of each user, which are replaced rather than modified so that they
+     * can be read without locking.
+     */
+    private final ConcurrentMap<String, UserPresences> presenceMap;
     // The roster is marked as initialized when at least a single roster packet
     // has been received and processed.
     boolean rosterInitialized = false;
+    /**
+     * The IDs of the roster requests sent by {@link #reload()}, whose results are the whole
+     * roster unlike the results of roster sets.
+     */
+    private final Set<String> pendingReloads =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private PresencePacketListener presencePacketListener;
 
     private SubscriptionMode subscriptionMode = getDefaultSubscriptionMode();
 
+    /**
+     * Schedules the delivery of coalesced presence changes of all the rosters.
+     */
+    private static ScheduledExecutorService presenceTimer;
+
+    private volatile long presenceCoalescingWindow = 0;
+    /**
+     * The latest presence change of each address that was not delivered yet, in the order
+     * of the first change of each address.
+     */
+    private final Map<String, Presence> pendingPresences = new LinkedHashMap<String, Presence>();
+    private boolean presenceFlushScheduled = false;
+
     /**
      * Returns the default subscription processing mode to use when a new Roster is created. The
      * subscription processing mode dictates what action Smack will take when subscription
@@ -100,10 +135,18 @@ public class Roster {
     Roster(final Connection connection) {
         this.connection = connection;
         groups = new ConcurrentHashMap<String, RosterGroup>();
-        unfiledEntries = new CopyOnWriteArrayList<RosterEntry>();
+        unfiledEntries = Collections.newSetFromMap(new ConcurrentHashMap<RosterEntry, Boolean>());
         entries = new ConcurrentHashMap<String,RosterEntry>();
+        entryGroups = new ConcurrentHashMap<String, Set<String>>();
+        rosterStore = connection.getConfiguration() != null ?
+                connection.getConfiguration().getRosterStore() : null;
+        if (rosterStore != null) {
+            // Load the stored roster, which the server will bring up to date
+            applyItems(rosterStore.getEntries(), true, new HashSet<String>(),
+                    new HashSet<String>(), new HashSet<String>());
+        }
         rosterListeners = new CopyOnWriteArrayList<RosterListener>();
-        presenceMap = new ConcurrentHashMap<String, Map<String, Presence>>();
+        presenceMap = new ConcurrentHashMap<String, UserPresences>();
         // Listen for any roster packets.
         PacketFilter rosterFilter = new PacketTypeFilter(RosterPacket.class);
         connection.addPacketListener(new RosterPacketListener(), rosterFilter);
@@ -173,10 +216,48 @@ public class Roster {
         this.subscriptionMode = subscriptionMode;
     }
 
+    /**
+     * Returns the time during which presence changes are coalesced before being delivered
+     * to the roster listeners, or 0 if each change is delivered as it's received.
+     *
+     * @return the coalescing window in milliseconds.
+     * @see #setPresenceCoalescingWindow(long)
+     */
+    public long getPresenceCoalescingWindow() {
+        return presenceCoalescingWindow;
+    }
+
+    /**
+     * Sets the time during which presence changes are coalesced before being delivered to
+     * the roster listeners. By default each change is delivered as it's received, which
+     * during the presence flood that follows the login means one event per contact and
+     * resource.<p>
+     *
+     * When the window is positive, the presence changes received during the window are
+     * delivered together when it ends, keeping only the latest presence of each address.
+     * Listeners that implement {@link RosterBatchListener} receive them in a single
+     * event, other listeners receive one event per address.
+     *
+     * @param millis the coalescing window in milliseconds, or 0 to deliver each change as
+     *      it's received.
+     */
+    public void setPresenceCoalescingWindow(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The coalescing window cannot be negative");
+        }
+        presenceCoalescingWindow = millis;
+        if (millis == 0) {
+            flushPresences();
+        }
+    }
+
     /**
      * Reloads the entire roster from the server. This is an asynchronous operation,
      * which means the method will return immediately, and the roster will be
-     * reloaded at a later point when the server responds to the reload request.
+     * reloaded at a later point when the server responds to the reload request.<p>
+     *
+     * If the connection has a {@link RosterStore} and the server supports roster
+     * versioning (XEP-0237), only the changes since the stored version are requested.
      * 
      * @throws IllegalStateException if connection is not logged in or logged in anonymously
      */
@@ -188,7 +269,14 @@ public class Roster {
             throw new IllegalStateException("Anonymous users can't have a roster.");
         }
 
-        connection.sendPacket(new RosterPacket());
+        RosterPacket packet = new RosterPacket();
+        if (rosterStore != null && connection.isRosterVersioningSupported()) {
+            packet.setVersion(rosterStore.getRosterVersion());
+        }
+        pendingReloads.add(packet.getPacketID());
+        connection.addPacketListener(new RosterResultListener(),
+                new PacketIDFilter(packet.getPacketID()));
+        connection.sendPacket(packet);
     }
 
     /**
@@ -340,7 +428,7 @@ public class Roster {
      * @return the number of entries in the roster.
      */
     public int getEntryCount() {
-        return getEntries().size();
+        return entries.size();
     }
 
     /**
@@ -350,15 +438,7 @@ public class Roster {
      * @return all entries in the roster.
      */
     public Collection<RosterEntry> getEntries() {
-        Set<RosterEntry> allEntries = new HashSet<RosterEntry>();
-        // Loop through all roster groups and add their entries to the answer
-        for (RosterGroup rosterGroup : getGroups()) {
-            allEntries.addAll(rosterGroup.getEntries());
-        }
-        // Add the roster unfiled entries to the answer
-        allEntries.addAll(unfiledEntries);
-
-        return Collections.unmodifiableCollection(allEntries);
+        return Collections.unmodifiableCollection(new ArrayList<RosterEntry>(entries.values()));
     }
 
     /**
@@ -378,7 +458,7 @@ public class Roster {
      * @return the unfiled roster entries.
      */
     public Collection<RosterEntry> getUnfiledEntries() {
-        return Collections.unmodifiableList(unfiledEntries);
+        return Collections.unmodifiableCollection(unfiledEntries);
     }
 
     /**
@@ -437,6 +517,27 @@ public class Roster {
         return Collections.unmodifiableCollection(groups.values());
     }
 
+    /**
+     * Returns the groups that an entry belongs to.
+     *
+     * @param user the user of the entry.
+     * @return the groups of the entry.
+     */
+    Collection<RosterGroup> getGroups(String user) {
+        Set<String> groupNames = entryGroups.get(user);
+        if (groupNames == null) {
+            return Collections.emptyList();
+        }
+        List<RosterGroup> results = new ArrayList<RosterGroup>(groupNames.size());
+        for (String groupName : groupNames) {
+            RosterGroup group = groups.get(groupName);
+            if (group != null) {
+                results.add(group);
+            }
+        }
+        return results;
+    }
+
     /**
      * Returns the presence info for a particular user. If the user is offline, or
      * if no presence data is available (such as when you are not subscribed to the
@@ -466,53 +567,14 @@ public class Roster {
      *         or if no presence information is available..
      */
     public Presence getPresence(String user) {
-        String key = getPresenceMapKey(StringUtils.parseBareAddress(user));
-        Map<String, Presence> userPresences = presenceMap.get(key);
-        if (userPresences == null) {
+        String key = getPresenceMapKey(JID.valueOf(user).getBareJID());
+        UserPresences userPresences = presenceMap.get(key);
+        if (userPresences == null || userPresences.best == null) {
             Presence presence = new Presence(Presence.Type.unavailable);
             presence.setFrom(user);
             return presence;
         }
-        else {
-            // Find the resource with the highest priority
-            // Might be changed to use the resource with the highest availability instead.
-            Presence presence = null;
-
-            for (String resource : userPresences.keySet()) {
-                Presence p = userPresences.get(resource);
-                if (!p.isAvailable()) {
-                    continue;
-                }
-                // Chose presence with highest priority first.
-                if (presence == null || p.getPriority() > presence.getPriority()) {
-                    presence = p;
-                }
-                // If equal priority, choose "most available" by the mode value.
-                else if (p.getPriority() == presence.getPriority()) {
-                    Presence.Mode pMode = p.getMode();
-                    // Default to presence mode of available.
-                    if (pMode == null) {
-                        pMode = Presence.Mode.available;
-                    }
-                    Presence.Mode presenceMode = presence.getMode();
-                    // Default to presence mode of available.
-                    if (presenceMode == null) {
-                        presenceMode = Presence.Mode.available;
-                    }
-                    if (pMode.compareTo(presenceMode) < 0) {
-                        presence = p;
-                    }
-                }
-            }
-            if (presence == null) {
-                presence = new Presence(Presence.Type.unavailable);
-                presence.setFrom(user);
-                return presence;
-            }
-            else {
-                return presence;
-            }
-        }
+        return userPresences.best;
     }
 
     /**
@@ -525,25 +587,16 @@ public class Roster {
      *         or if no presence information is available.
      */
     public Presence getPresenceResource(String userWithResource) {
-        String key = getPresenceMapKey(userWithResource);
-        String resource = StringUtils.parseResource(userWithResource);
-        Map<String, Presence> userPresences = presenceMap.get(key);
-        if (userPresences == null) {
-            Presence presence = new Presence(Presence.Type.unavailable);
+        JID jid = JID.valueOf(userWithResource);
+        String key = getPresenceMapKey(jid);
+        UserPresences userPresences = presenceMap.get(key);
+        Presence presence = userPresences != null ?
+                userPresences.resources.get(jid.getResource()) : null;
+        if (presence == null) {
+            presence = new Presence(Presence.Type.unavailable);
             presence.setFrom(userWithResource);
-            return presence;
-        }
-        else {
-            Presence presence = userPresences.get(resource);
-            if (presence == null) {
-                presence = new Presence(Presence.Type.unavailable);
-                presence.setFrom(userWithResource);
-                return presence;
-            }
-            else {
-                return presence;
-            }
         }
+        return presence;
     }
 
     /**
@@ -559,7 +612,7 @@ public class Roster {
      */
     public Iterator<Presence> getPresences(String user) {
         String key = getPresenceMapKey(user);
-        Map<String, Presence> userPresences = presenceMap.get(key);
+        UserPresences userPresences = presenceMap.get(key);
         if (userPresences == null) {
             Presence presence = new Presence(Presence.Type.unavailable);
             presence.setFrom(user);
@@ -567,7 +620,7 @@ public class Roster {
         }
         else {
             Collection<Presence> answer = new ArrayList<Presence>();
-            for (Presence presence : userPresences.values()) {
+            for (Presence presence : userPresences.resources.values()) {
                 if (presence.isAvailable()) {
                     answer.add(presence);
                 }
@@ -588,6 +641,9 @@ public class Roster {
      */
     void cleanup() {
         rosterListeners.clear();
+        synchronized (pendingPresences) {
+            pendingPresences.clear();
+        }
     }
 
     /**
@@ -604,14 +660,24 @@ public class Roster {
      * @return the key to use in the presenceMap for the fully qualified XMPP ID.
      */
     private String getPresenceMapKey(String user) {
+        return getPresenceMapKey(JID.valueOf(user));
+    }
+
+    /**
+     * Returns the key to use in the presenceMap for a JID.
+     *
+     * @param user the bare or full JID.
+     * @return the key to use in the presenceMap for the JID.
+     * @see #getPresenceMapKey(String)
+     */
+    private String getPresenceMapKey(JID user) {
         if (user == null) {
             return null;
         }
-        String key = user;
-        if (!contains(user)) {
-            key = StringUtils.parseBareAddress(user);
+        if (entries.containsKey(user.toLowerCase())) {
+            return user.toLowerCase();
         }
-        return key.toLowerCase();
+        return user.getBareAddressLowerCase();
     }
 
     /**
@@ -621,14 +687,12 @@ public class Roster {
      */
     private void setOfflinePresences() {
         Presence packetUnavailable;
-        for (String user : presenceMap.keySet()) {
-            Map<String, Presence> resources = presenceMap.get(user);
-            if (resources != null) {
-                for (String resource : resources.keySet()) {
-                    packetUnavailable = new Presence(Presence.Type.unavailable);
-                    packetUnavailable.setFrom(user + "/" + resource);
-                    presencePacketListener.processPacket(packetUnavailable);
-                }
+        for (Map.Entry<String, UserPresences> entry : presenceMap.entrySet()) {
+            String user = entry.getKey();
+            for (String resource : entry.getValue().resources.keySet()) {
+                packetUnavailable = new Presence(Presence.Type.unavailable);
+                packetUnavailable.setFrom(user + "/" + resource);
+                presencePacketListener.processPacket(packetUnavailable);
             }
         }
     }
@@ -663,8 +727,111 @@ public class Roster {
      * @param presence the presence change.
      */
     private void fireRosterPresenceEvent(Presence presence) {
+        long window = presenceCoalescingWindow;
+        if (window == 0) {
+            for (RosterListener listener : rosterListeners) {
+                listener.presenceChanged(presence);
+            }
+            return;
+        }
+        synchronized (pendingPresences) {
+            String from = presence.getFrom();
+            // Keep the position of the first change of the address
+            pendingPresences.put(from, presence);
+            if (!presenceFlushScheduled) {
+                presenceFlushScheduled = true;
+                getPresenceTimer().schedule(new Runnable() {
+                    public void run() {
+                        flushPresences();
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Delivers the coalesced presence changes to the roster listeners.
+     */
+    private void flushPresences() {
+        List<Presence> presences;
+        synchronized (pendingPresences) {
+            presenceFlushScheduled = false;
+            if (pendingPresences.isEmpty()) {
+                return;
+            }
+            presences = new ArrayList<Presence>(pendingPresences.values());
+            pendingPresences.clear();
+        }
+        presences = Collections.unmodifiableList(presences);
         for (RosterListener listener : rosterListeners) {
-            listener.presenceChanged(presence);
+            try {
+                if (listener instanceof RosterBatchListener) {
+                    ((RosterBatchListener) listener).presencesChanged(presences);
+                }
+                else {
+                    for (Presence presence : presences) {
+                        listener.presenceChanged(presence);
+                    }
+                }
+            }
+            catch (Exception e) {
+                // Catch and print any exception so the timer keeps delivering events
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getPresenceTimer() {
+        if (presenceTimer == null) {
+            presenceTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Smack Roster Presence Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return presenceTimer;
+    }
+
+    /**
+     * Updates the presences of a user with a presence received from one of its resources,
+     * replacing the presences atomically so that concurrent updates are not lost.
+     *
+     * @param key the key of the user in the presenceMap.
+     * @param resource the resource the presence was received from.
+     * @param presence the presence.
+     */
+    private void updatePresences(String key, String resource, Presence presence) {
+        while (true) {
+            UserPresences oldPresences = presenceMap.get(key);
+            Map<String, Presence> resources;
+            if (presence.getType() == Presence.Type.error) {
+                // Any other presence data is invalidated by the error packet.
+                resources = new HashMap<String, Presence>(2);
+            }
+            else if (oldPresences != null) {
+                resources = new HashMap<String, Presence>(oldPresences.resources);
+            }
+            else if (presence.getType() == Presence.Type.unavailable && resource.length() > 0) {
+                // An offline presence of a resource that was never online
+                return;
+            }
+            else {
+                resources = new HashMap<String, Presence>(2);
+            }
+            if (presence.getType() == Presence.Type.available) {
+                // Remove the offline presence since we now have an online presence.
+                resources.remove("");
+            }
+            resources.put(resource, presence);
+            UserPresences newPresences = new UserPresences(resources);
+            if (oldPresences == null ?
+                    presenceMap.putIfAbsent(key, newPresences) == null :
+                    presenceMap.replace(key, oldPresences, newPresences))
+            {
+                return;
+            }
         }
     }
 
@@ -701,59 +868,27 @@ public class Roster {
 
         public void processPacket(Packet packet) {
             Presence presence = (Presence) packet;
-            String from = presence.getFrom();
+            JID from = presence.getFromJID();
             String key = getPresenceMapKey(from);
 
-            // If an "available" presence, add it to the presence map. Each presence
-            // map will hold for a particular user a map with the presence
-            // packets saved for each resource.
+            // If an "available" presence, add it to the presences of the user, replacing
+            // the presence of the same resource and any offline presence.
             if (presence.getType() == Presence.Type.available) {
-                Map<String, Presence> userPresences;
-                // Get the user presence map
-                if (presenceMap.get(key) == null) {
-                    userPresences = new ConcurrentHashMap<String, Presence>();
-                    presenceMap.put(key, userPresences);
-                }
-                else {
-                    userPresences = presenceMap.get(key);
-                }
-                // See if an offline presence was being stored in the map. If so, remove
-                // it since we now have an online presence.
-                userPresences.remove("");
-                // Add the new presence, using the resources as a key.
-                userPresences.put(StringUtils.parseResource(from), presence);
+                updatePresences(key, from.getResource(), presence);
                 // If the user is in the roster, fire an event.
-                RosterEntry entry = entries.get(key);
-                if (entry != null) {
+                if (entries.containsKey(key)) {
                     fireRosterPresenceEvent(presence);
                 }
             }
             // If an "unavailable" packet.
             else if (presence.getType() == Presence.Type.unavailable) {
                 // If no resource, this is likely an offline presence as part of
-                // a roster presence flood. In that case, we store it.
-                if ("".equals(StringUtils.parseResource(from))) {
-                    Map<String, Presence> userPresences;
-                    // Get the user presence map
-                    if (presenceMap.get(key) == null) {
-                        userPresences = new ConcurrentHashMap<String, Presence>();
-                        presenceMap.put(key, userPresences);
-                    }
-                    else {
-                        userPresences = presenceMap.get(key);
-                    }
-                    userPresences.put("", presence);
-                }
-                // Otherwise, this is a normal offline presence.
-                else if (presenceMap.get(key) != null) {
-                    Map<String, Presence> userPresences = presenceMap.get(key);
-                    // Store the offline presence, as it may include extra information
-                    // such as the user being on vacation.
-                    userPresences.put(StringUtils.parseResource(from), presence);
-                }
+                // a roster presence flood. In that case, we store it. Otherwise, this is a
+                // normal offline presence, which is stored as it may include extra
+                // information such as the user being on vacation.
+                updatePresences(key, from.getResource(), presence);
                 // If the user is in the roster, fire an event.
-                RosterEntry entry = entries.get(key);
-                if (entry != null) {
+                if (entries.containsKey(key)) {
                     fireRosterPresenceEvent(presence);
                 }
             }
@@ -786,23 +921,11 @@ public class Roster {
             // Error presence packets from a bare JID mean we invalidate all existing
             // presence info for the user.
             else if (presence.getType() == Presence.Type.error &&
-                    "".equals(StringUtils.parseResource(from)))
+                    from != null && from.isBare())
             {
-                Map<String, Presence> userPresences;
-                if (!presenceMap.containsKey(key)) {
-                    userPresences = new ConcurrentHashMap<String, Presence>();
-                    presenceMap.put(key, userPresences);
-                }
-                else {
-                    userPresences = presenceMap.get(key);
-                    // Any other presence data is invalidated by the error packet.
-                    userPresences.clear();
-                }
-                // Set the new presence using the empty resource as a key.
-                userPresences.put("", presence);
+                updatePresences(key, "", presence);
                 // If the user is in the roster, fire an event.
-                RosterEntry entry = entries.get(key);
-                if (entry != null) {
+                if (entries.containsKey(key)) {
                     fireRosterPresenceEvent(presence);
                 }
             }
@@ -810,135 +933,266 @@ public class Roster {
     }
 
     /**
-     * Listens for all roster packets and processes them.
+     * Applies roster items to the roster, keeping a registry of the net change of each
+     * entry: an entry added and then updated is reported as added, and an entry added and
+     * then removed is not reported.
+     *
+     * @param items the roster items.
+     * @param fullRoster true if the items are the whole roster, in which case the entries
+     *      that are not among them are removed.
+     * @param addedEntries the addresses of the added entries.
+     * @param updatedEntries the addresses of the updated entries.
+     * @param deletedEntries the addresses of the deleted entries.
      */
-    private class RosterPacketListener implements PacketListener {
+    private void applyItems(Collection<RosterPacket.Item> items, boolean fullRoster,
+            Collection<String> addedEntries, Collection<String> updatedEntries,
+            Collection<String> deletedEntries)
+    {
+        if (fullRoster) {
+            // The entries missing from the whole roster were removed while disconnected
+            Set<String> users = new HashSet<String>();
+            for (RosterPacket.Item item : items) {
+                users.add(item.getUser());
+            }
+            for (String user : entries.keySet()) {
+                if (!users.contains(user)) {
+                    deleteEntry(user, addedEntries, updatedEntries, deletedEntries);
+                }
+            }
+        }
+        for (RosterPacket.Item item : items) {
+            if (RosterPacket.ItemType.remove.equals(item.getItemType())) {
+                deleteEntry(item.getUser(), addedEntries, updatedEntries, deletedEntries);
+            }
+            else {
+                putEntry(item, addedEntries, updatedEntries, deletedEntries);
+            }
+        }
 
-        public RosterPacketListener() {}
-        public void processPacket(Packet packet) {
-            // Keep a registry of the entries that were added, deleted or updated. An event
-            // will be fired for each affected entry
-            Collection<String> addedEntries = new ArrayList<String>();
-            Collection<String> updatedEntries = new ArrayList<String>();
-            Collection<String> deletedEntries = new ArrayList<String>();
+        // Remove the groups left with no entries, including the groups created with
+        // createGroup(String) that never had any. This is done once for the items rather
+        // than once for each item.
+        for (RosterGroup group : getGroups()) {
+            if (group.getEntryCount() == 0) {
+                groups.remove(group.getName());
+            }
+        }
+    }
 
-            RosterPacket rosterPacket = (RosterPacket) packet;
-            for (RosterPacket.Item item : rosterPacket.getRosterItems()) {
-                //RosterEntry entry = new RosterEntry(item.getUser(), item.getName(),
-                //        item.getItemType(), item.getItemStatus(), Roster.this, connection);
-                RosterEntry entry = new RosterEntry(item, Roster.this, connection);
+    private void putEntry(RosterPacket.Item item, Collection<String> addedEntries,
+            Collection<String> updatedEntries, Collection<String> deletedEntries)
+    {
+        RosterEntry entry = new RosterEntry(item, this, connection);
+        String user = item.getUser();
+        Set<String> oldGroupNames = entryGroups.get(user);
+        if (oldGroupNames == null) {
+            oldGroupNames = Collections.emptySet();
+        }
+        Set<String> newGroupNames = new LinkedHashSet<String>(item.getGroupNames());
+        RosterEntry oldEntry = entries.put(user, entry);
+        if (oldEntry == null) {
+            // An entry deleted earlier was updated.
+            if (deletedEntries.remove(user)) {
+                updatedEntries.add(user);
+            }
+            else {
+                addedEntries.add(user);
+            }
+        }
+        else if (!oldEntry.equalsDeep(entry) || !newGroupNames.equals(oldGroupNames)) {
+            if (!addedEntries.contains(user)) {
+                updatedEntries.add(user);
+            }
+        }
 
-                // If the packet is of the type REMOVE then remove the entry
-                if (RosterPacket.ItemType.remove.equals(item.getItemType())) {
-                    // Remove the entry from the entry list.
-                    if (entries.containsKey(item.getUser())) {
-                        entries.remove(item.getUser());
-                    }
-                    // Remove the entry from the unfiled entry list.
-                    if (unfiledEntries.contains(entry)) {
-                        unfiledEntries.remove(entry);
-                    }
-                    // Removing the user from the roster, so remove any presence information
-                    // about them.
-                    String key = StringUtils.parseName(item.getUser()) + "@" +
-                            StringUtils.parseServer(item.getUser());
-                    presenceMap.remove(key);
-                    // Keep note that an entry has been removed
-                    deletedEntries.add(item.getUser());
-                }
-                else {
-                    // Make sure the entry is in the entry list.
-                    if (!entries.containsKey(item.getUser())) {
-                        entries.put(item.getUser(), entry);
-                        // Keep note that an entry has been added
-                        addedEntries.add(item.getUser());
-                    }
-                    else {
-                        // If the entry was in then list then update its state with the new values
-                        RosterEntry oldEntry = entries.put(item.getUser(), entry);
-
-                        RosterPacket.Item oldItem = RosterEntry.toRosterItem(oldEntry);
-                        //We have also to check if only the group names have changed from the item
-                        if (oldEntry == null || !oldEntry.equalsDeep(entry) || !item.getGroupNames().equals(oldItem.getGroupNames()))
-                        {
-                        updatedEntries.add(item.getUser());
-                        }
-                    }
-                    // If the roster entry belongs to any groups, remove it from the
-                    // list of unfiled entries.
-                    if (!item.getGroupNames().isEmpty()) {
-                        unfiledEntries.remove(entry);
-                    }
-                    // Otherwise add it to the list of unfiled entries.
-                    else {
-                        if (!unfiledEntries.contains(entry)) {
-                            unfiledEntries.add(entry);
-                        }
-                    }
+        // Replace the previous entry, which is equal to the new one.
+        unfiledEntries.remove(entry);
+        if (newGroupNames.isEmpty()) {
+            unfiledEntries.add(entry);
+        }
+
+        // Add the entry to its groups, replacing the previous entry.
+        for (String groupName : newGroupNames) {
+            RosterGroup group = groups.get(groupName);
+            if (group == null) {
+                group = new RosterGroup(groupName, connection);
+                groups.put(groupName, group);
+            }
+            group.addEntryLocal(entry);
+        }
+        // Remove the entry from the groups it no longer belongs to.
+        for (String groupName : oldGroupNames) {
+            if (!newGroupNames.contains(groupName)) {
+                RosterGroup group = groups.get(groupName);
+                if (group != null) {
+                    group.removeEntryLocal(entry);
                 }
+            }
+        }
+        if (newGroupNames.isEmpty()) {
+            entryGroups.remove(user);
+        }
+        else {
+            entryGroups.put(user, Collections.unmodifiableSet(newGroupNames));
+        }
+    }
 
-                // Find the list of groups that the user currently belongs to.
-                List<String> currentGroupNames = new ArrayList<String>();
-                for (RosterGroup group: getGroups()) {
-                    if (group.contains(entry)) {
-                        currentGroupNames.add(group.getName());
-                    }
+    private void deleteEntry(String user, Collection<String> addedEntries,
+            Collection<String> updatedEntries, Collection<String> deletedEntries)
+    {
+        RosterEntry entry = entries.remove(user);
+        if (entry != null) {
+            unfiledEntries.remove(entry);
+        }
+        Set<String> oldGroupNames = entryGroups.remove(user);
+        if (oldGroupNames != null) {
+            for (String groupName : oldGroupNames) {
+                RosterGroup group = groups.get(groupName);
+                if (group != null && entry != null) {
+                    group.removeEntryLocal(entry);
                 }
+            }
+        }
+        // Removing the user from the roster, so remove any presence information
+        // about them.
+        String key = StringUtils.parseName(user) + "@" + StringUtils.parseServer(user);
+        presenceMap.remove(key);
+        // An entry added earlier was never seen by the listeners.
+        if (!addedEntries.remove(user)) {
+            updatedEntries.remove(user);
+            deletedEntries.add(user);
+        }
+    }
 
-                // If the packet is not of the type REMOVE then add the entry to the groups
+    /**
+     * Saves the changes of a roster packet to the roster store.
+     *
+     * @param rosterPacket the roster packet.
+     * @param fullRoster true if the packet has the whole roster.
+     */
+    private void storeItems(RosterPacket rosterPacket, boolean fullRoster) {
+        String version = rosterPacket.getVersion();
+        if (fullRoster) {
+            Collection<RosterPacket.Item> items = new ArrayList<RosterPacket.Item>();
+            for (RosterPacket.Item item : rosterPacket.getRosterItems()) {
                 if (!RosterPacket.ItemType.remove.equals(item.getItemType())) {
-                    // Create the new list of groups the user belongs to.
-                    List<String> newGroupNames = new ArrayList<String>();
-                    for (String groupName : item.getGroupNames()) {
-                        // Add the group name to the list.
-                        newGroupNames.add(groupName);
-
-                        // Add the entry to the group.
-                        RosterGroup group = getGroup(groupName);
-                        if (group == null) {
-                            group = createGroup(groupName);
-                            groups.put(groupName, group);
-                        }
-                        // Add the entry.
-                        group.addEntryLocal(entry);
-                    }
-
-                    // We have the list of old and new group names. We now need to
-                    // remove the entry from the all the groups it may no longer belong
-                    // to. We do this by subtracting the new group set from the old.
-                    for (String newGroupName : newGroupNames) {
-                        currentGroupNames.remove(newGroupName);
-                    }
+                    items.add(item);
                 }
-
-                // Loop through any groups that remain and remove the entries.
-                // This is necessary for the case of remote entry removals.
-                for (String groupName : currentGroupNames) {
-                    RosterGroup group = getGroup(groupName);
-                    group.removeEntryLocal(entry);
-                    if (group.getEntryCount() == 0) {
-                        groups.remove(groupName);
-                    }
+            }
+            rosterStore.resetEntries(items, version != null ? version : "");
+        }
+        else {
+            for (RosterPacket.Item item : rosterPacket.getRosterItems()) {
+                if (RosterPacket.ItemType.remove.equals(item.getItemType())) {
+                    rosterStore.removeEntry(item.getUser(), version);
                 }
-                // Remove all the groups with no entries. We have to do this because
-                // RosterGroup.removeEntry removes the entry immediately (locally) and the
-                // group could remain empty.
-                // TODO Check the performance/logic for rosters with large number of groups
-                for (RosterGroup group : getGroups()) {
-                    if (group.getEntryCount() == 0) {
-                        groups.remove(group.getName());
-                    }
+                else {
+                    rosterStore.addEntry(item, version);
                 }
             }
+        }
+    }
 
-            // Mark the roster as initialized.
-            synchronized (Roster.this) {
-                rosterInitialized = true;
-                Roster.this.notifyAll();
+    /**
+     * Marks the roster as initialized and wakes up the threads waiting for it.
+     */
+    private void setRosterInitialized() {
+        synchronized (this) {
+            rosterInitialized = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Listens for all roster packets and processes them.
+     */
+    private class RosterPacketListener implements PacketListener {
+
+        public RosterPacketListener() {}
+        public void processPacket(Packet packet) {
+            // Keep a registry of the entries that were added, deleted or updated. A single
+            // event is fired for the whole packet, with the net change of each entry.
+            Collection<String> addedEntries = new LinkedHashSet<String>();
+            Collection<String> updatedEntries = new LinkedHashSet<String>();
+            Collection<String> deletedEntries = new LinkedHashSet<String>();
+
+            RosterPacket rosterPacket = (RosterPacket) packet;
+            if (rosterPacket.getType() == IQ.Type.ERROR) {
+                // Errors are processed by the RosterResultListener
+                return;
             }
+            // The result of a roster request has the whole roster, while pushes and the
+            // results of roster sets only have changes
+            boolean fullRoster = rosterPacket.getType() == IQ.Type.RESULT &&
+                    pendingReloads.remove(rosterPacket.getPacketID());
+            applyItems(rosterPacket.getRosterItems(), fullRoster, addedEntries, updatedEntries,
+                    deletedEntries);
+            if (rosterStore != null) {
+                storeItems(rosterPacket, fullRoster);
+            }
+
+            // Mark the roster as initialized.
+            setRosterInitialized();
 
             // Fire event for roster listeners.
             fireRosterChangedEvent(addedEntries, updatedEntries, deletedEntries);
         }
     }
+
+    /**
+     * Listens for the reply to a roster request that has no roster. A result without a
+     * roster replies to a request with a version, when the roster has not changed since
+     * that version or the changes are sent as pushes. An error leaves the roster as it is.
+     */
+    private class RosterResultListener implements PacketListener {
+
+        public void processPacket(Packet packet) {
+            connection.removePacketListener(this);
+            IQ.Type type = ((IQ) packet).getType();
+            // Results with a roster are processed by the RosterPacketListener
+            if (type == IQ.Type.ERROR ||
+                    (type == IQ.Type.RESULT && !(packet instanceof RosterPacket)))
+            {
+                pendingReloads.remove(packet.getPacketID());
+                // Wake up the threads waiting for the roster, which stays as it is
+                setRosterInitialized();
+            }
+        }
+    }
+
+    /**
+     * The presences of the resources of a user and the best of them, which is the
+     * available presence with the highest priority or, among those, the most available
+     * mode.
+     */
+    private static class UserPresences {
+
+        final Map<String, Presence> resources;
+        final Presence best;
+
+        UserPresences(Map<String, Presence> resources) {
+            this.resources = Collections.unmodifiableMap(resources);
+            Presence presence = null;
+            for (Presence p : resources.values()) {
+                if (!p.isAvailable()) {
+                    continue;
+                }
+                // Chose presence with highest priority first.
+                if (presence == null || p.getPriority() > presence.getPriority()) {
+                    presence = p;
+                }
+                // If equal priority, choose "most available" by the mode value.
+                else if (p.getPriority() == presence.getPriority()) {
+                    // Default to presence mode of available.
+                    Presence.Mode pMode = p.getMode() != null ? p.getMode() : Presence.Mode.available;
+                    Presence.Mode presenceMode = presence.getMode() != null ?
+                            presence.getMode() : Presence.Mode.available;
+                    if (pMode.compareTo(presenceMode) < 0) {
+                        presence = p;
+                    }
+                }
+            }
+            best = presence;
+        }
+    }
 }
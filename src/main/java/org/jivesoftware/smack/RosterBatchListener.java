@@ -0,0 +1,39 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.Presence;
+
+import java.util.Collection;
+
+/**
+ * A roster listener that receives coalesced presence changes in a single event. When the
+ * roster coalesces presence changes, this listener is called once for each coalescing
+ * window instead of once for each changed presence.
+ *
+ * @see Roster#setPresenceCoalescingWindow(long)
+ */
+public interface RosterBatchListener extends RosterListener {
+
+    /**
+     * Called with the presence changes received during a coalescing window. Only the
+     * latest presence of each address is included, in the order of the first change of
+     * each address. {@link #presenceChanged(Presence)} is only called when presence
+     * changes are not coalesced.
+     *
+     * @param presences the presences that changed.
+     */
+    public void presencesChanged(Collection<Presence> presences);
+}
@@ -149,15 +149,7 @@ public class RosterEntry {
      * @return an iterator for the groups this entry belongs to.
      */
     public Collection<RosterGroup> getGroups() {
-        List<RosterGroup> results = new ArrayList<RosterGroup>();
-        // Loop through all roster groups and find the ones that contain this
-        // entry. This algorithm should be fine
-        for (RosterGroup group: roster.getGroups()) {
-            if (group.contains(this)) {
-                results.add(group);
-            }
-        }
-        return Collections.unmodifiableCollection(results);
+        return Collections.unmodifiableCollection(roster.getGroups(user));
     }
 
     /**
@@ -250,6 +242,10 @@ public class RosterEntry {
         }
     }
 
+    public int hashCode() {
+        return user != null ? user.hashCode() : 0;
+    }
+
     /**
      * Indicates whether some other object is "equal to" this by comparing all members.
      * <p>
@@ -28,7 +28,8 @@ import org.jivesoftware.smack.util.StringUtils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A group of roster entries.
@@ -40,7 +41,10 @@ public class RosterGroup {
 
     private String name;
     private Connection connection;
-    private final List<RosterEntry> entries;
+    /**
+     * The entries of the group by user, in the order they were added.
+     */
+    private final Map<String, RosterEntry> entries;
 
     /**
      * Creates a new roster group instance.
@@ -51,7 +55,7 @@ public class RosterGroup {
     RosterGroup(String name, Connection connection) {
         this.name = name;
         this.connection = connection;
-        entries = new ArrayList<RosterEntry>();
+        entries = new LinkedHashMap<String, RosterEntry>();
     }
 
     /**
@@ -73,7 +77,7 @@ public class RosterGroup {
      */
     public void setName(String name) {
         synchronized (entries) {
-            for (RosterEntry entry : entries) {
+            for (RosterEntry entry : entries.values()) {
                 RosterPacket packet = new RosterPacket();
                 packet.setType(IQ.Type.SET);
                 RosterPacket.Item item = RosterEntry.toRosterItem(entry);
@@ -103,7 +107,7 @@ public class RosterGroup {
      */
     public Collection<RosterEntry> getEntries() {
         synchronized (entries) {
-            return Collections.unmodifiableList(new ArrayList<RosterEntry>(entries));
+            return Collections.unmodifiableList(new ArrayList<RosterEntry>(entries.values()));
         }
     }
 
@@ -123,13 +127,8 @@ public class RosterGroup {
         user = StringUtils.parseBareAddress(user);
         String userLowerCase = user.toLowerCase();
         synchronized (entries) {
-            for (RosterEntry entry : entries) {
-                if (entry.getUser().equals(userLowerCase)) {
-                    return entry;
-                }
-            }
+            return entries.get(userLowerCase);
         }
-        return null;
     }
 
     /**
@@ -140,7 +139,7 @@ public class RosterGroup {
      */
     public boolean contains(RosterEntry entry) {
         synchronized (entries) {
-            return entries.contains(entry);
+            return entries.containsKey(entry.getUser());
         }
     }
 
@@ -167,7 +166,7 @@ public class RosterGroup {
         PacketCollector collector = null;
         // Only add the entry if it isn't already in the list.
         synchronized (entries) {
-            if (!entries.contains(entry)) {
+            if (!entries.containsKey(entry.getUser())) {
                 RosterPacket packet = new RosterPacket();
                 packet.setType(IQ.Type.SET);
                 RosterPacket.Item item = RosterEntry.toRosterItem(entry);
@@ -209,7 +208,7 @@ public class RosterGroup {
         // to take place the entry will exist in the group until a packet is received from the 
         // server.
         synchronized (entries) {
-            if (entries.contains(entry)) {
+            if (entries.containsKey(entry.getUser())) {
                 RosterPacket packet = new RosterPacket();
                 packet.setType(IQ.Type.SET);
                 RosterPacket.Item item = RosterEntry.toRosterItem(entry);
@@ -235,19 +234,15 @@ public class RosterGroup {
     }
 
     void addEntryLocal(RosterEntry entry) {
-        // Only add the entry if it isn't already in the list.
+        // Replace the previous entry of the user, if any.
         synchronized (entries) {
-            entries.remove(entry);
-            entries.add(entry);
+            entries.put(entry.getUser(), entry);
         }
     }
 
     void removeEntryLocal(RosterEntry entry) {
-         // Only remove the entry if it's in the entry list.
         synchronized (entries) {
-            if (entries.contains(entry)) {
-                entries.remove(entry);
-            }
+            entries.remove(entry.getUser());
         }
     }
 }
\ No newline at end of file
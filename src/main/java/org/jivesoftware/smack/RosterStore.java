@@ -0,0 +1,83 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.RosterPacket;
+
+import java.util.Collection;
+
+/**
+ * Stores the items of a roster and the version of the roster (XEP-0237) between
+ * connections. When the server supports roster versioning, the roster is loaded from the
+ * store and only the changes since the stored version are requested from the server,
+ * which are then applied to the store. A store that fails to save a change must return
+ * false; the roster then requests the whole roster at the next login.
+ *
+ * @see ConnectionConfiguration#setRosterStore(RosterStore)
+ * @see DefaultRosterStore
+ */
+public interface RosterStore {
+
+    /**
+     * Returns all the items of the stored roster.
+     *
+     * @return the items of the roster.
+     */
+    Collection<RosterPacket.Item> getEntries();
+
+    /**
+     * Returns the stored item of a user, or <tt>null</tt> if the user is not in the
+     * roster.
+     *
+     * @param user the bare address of the user.
+     * @return the item of the user, or <tt>null</tt> if the user is not in the roster.
+     */
+    RosterPacket.Item getEntry(String user);
+
+    /**
+     * Returns the version of the stored roster, or an empty String if no roster was
+     * stored yet.
+     *
+     * @return the version of the stored roster.
+     */
+    String getRosterVersion();
+
+    /**
+     * Adds or replaces an item of the roster.
+     *
+     * @param item the item.
+     * @param version the version of the roster after the change.
+     * @return true if the change was saved.
+     */
+    boolean addEntry(RosterPacket.Item item, String version);
+
+    /**
+     * Removes the item of a user from the roster.
+     *
+     * @param user the bare address of the user.
+     * @param version the version of the roster after the change.
+     * @return true if the change was saved.
+     */
+    boolean removeEntry(String user, String version);
+
+    /**
+     * Replaces all the items of the roster, when the whole roster was received.
+     *
+     * @param items the items of the roster.
+     * @param version the version of the roster.
+     * @return true if the roster was saved.
+     */
+    boolean resetEntries(Collection<RosterPacket.Item> items, String version);
+}
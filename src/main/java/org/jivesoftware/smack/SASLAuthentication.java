@@ -601,6 +601,7 @@ public class SASLAuthentication implements UserAuthentication {
      * would be to bind the resource.
      */
     void authenticated() {
+        connection.negotiationCompleted(ConnectionMetrics.Negotiation.sasl, true);
         synchronized (this) {
             saslNegotiated = true;
             // Wake up the thread that is waiting in the #authenticate method
@@ -625,6 +626,7 @@ public class SASLAuthentication implements UserAuthentication {
      * @param condition the error condition provided by the server.
      */
     void authenticationFailed(String condition) {
+        connection.negotiationCompleted(ConnectionMetrics.Negotiation.sasl, false);
         synchronized (this) {
             saslFailed = true;
             errorCondition = condition;
@@ -646,6 +648,9 @@ public class SASLAuthentication implements UserAuthentication {
     }
 
     public void send(Packet stanza) {
+        if (stanza instanceof SASLMechanism.AuthMechanism) {
+            connection.negotiationStarted(ConnectionMetrics.Negotiation.sasl);
+        }
         connection.sendPacket(stanza);
     }
 
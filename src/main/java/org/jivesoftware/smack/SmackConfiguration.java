@@ -53,6 +53,8 @@ public final class SmackConfiguration {
     private static boolean localSocks5ProxyEnabled = true;
     private static int localSocks5ProxyPort = 7777;
     private static int packetCollectorSize = 5000;
+    private static int nioSelectorThreads = Runtime.getRuntime().availableProcessors();
+    private static int nioWorkerThreads = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
     
     private static boolean dnsSecEnabled;
 
@@ -105,6 +107,12 @@ public final class SmackConfiguration {
                                 else if (parser.getName().equals("packetCollectorSize")) {
                                     packetCollectorSize = parseIntProperty(parser, packetCollectorSize);
                                 }
+                                else if (parser.getName().equals("nioSelectorThreads")) {
+                                    nioSelectorThreads = parseIntProperty(parser, nioSelectorThreads);
+                                }
+                                else if (parser.getName().equals("nioWorkerThreads")) {
+                                    nioWorkerThreads = parseIntProperty(parser, nioWorkerThreads);
+                                }
                             }
                             eventType = parser.next();
                         }
@@ -209,6 +217,64 @@ public final class SmackConfiguration {
     	packetCollectorSize = collectorSize;
     }
     
+    /**
+     * Returns the number of selector threads that perform the socket I/O of the connections
+     * that use non-blocking I/O. The default value is the number of available processors.
+     *
+     * @return the number of selector threads shared by the non-blocking connections.
+     * @see ConnectionConfiguration#setNonBlockingIOEnabled(boolean)
+     */
+    public static int getNioSelectorThreads() {
+        return nioSelectorThreads;
+    }
+
+    /**
+     * Sets the number of selector threads that perform the socket I/O of the connections
+     * that use non-blocking I/O. The default value is the number of available processors.
+     * The selector threads are created when the first non-blocking connection is established
+     * so changing this value afterwards has no effect.
+     *
+     * @param selectorThreads the number of selector threads shared by the non-blocking
+     *      connections.
+     */
+    public static void setNioSelectorThreads(int selectorThreads) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("At least one selector thread is required.");
+        }
+        nioSelectorThreads = selectorThreads;
+    }
+
+    /**
+     * Returns the maximum number of worker threads that parse the incoming stanzas and
+     * notify the packet listeners of the connections that use non-blocking I/O. The default
+     * value is four times the number of available processors, and at least 16.
+     *
+     * @return the maximum number of worker threads shared by the non-blocking connections.
+     * @see ConnectionConfiguration#setNonBlockingIOEnabled(boolean)
+     */
+    public static int getNioWorkerThreads() {
+        return nioWorkerThreads;
+    }
+
+    /**
+     * Sets the maximum number of worker threads that parse the incoming stanzas and notify
+     * the packet listeners of the connections that use non-blocking I/O. Each connection
+     * uses at most one worker at a time to parse its stanzas, and other work is queued until
+     * a worker is free, so packet listeners that block for long, for example waiting for the
+     * reply of a request, should be given enough workers. The workers are created when the
+     * first non-blocking connection is established so changing this value afterwards has no
+     * effect.
+     *
+     * @param workerThreads the maximum number of worker threads shared by the non-blocking
+     *      connections.
+     */
+    public static void setNioWorkerThreads(int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is required.");
+        }
+        nioWorkerThreads = workerThreads;
+    }
+
     /**
      * Add a SASL mechanism to the list to be used.
      *
@@ -0,0 +1,569 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.ConnectionConfiguration.TextSizePolicy;
+import org.jivesoftware.smack.packet.SpilledText;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the character stream received from the server into its top-level elements
+ * without building any object model. The framer only tracks tags, quoted attribute values,
+ * comments, CDATA sections and processing instructions, which is enough to find where each
+ * child of the root <tt>stream</tt> element starts and ends. Framed elements can then be
+ * handed to a real XML parser on any thread.<p>
+ *
+ * The framer is fed incrementally in a pull fashion: {@link #next(CharBuffer)} consumes
+ * characters until an event is complete or the input is exhausted. Character buffers must
+ * be backed by an accessible array.<p>
+ *
+ * Whenever a new opening <tt>stream</tt> tag is found (for instance after TLS, SASL or
+ * compression were negotiated) the framer is reset and the tag is reported as a new stream.<p>
+ *
+ * The framer enforces the size limits of the {@link ConnectionConfiguration} as the
+ * characters are received, so an element never takes much more memory than allowed. Text
+ * nodes that are too large are truncated or written to a temporary file on the fly, in
+ * which case they are removed from the framed element and reported with
+ * {@link #getSpilledTexts()}.
+ */
+class StanzaFramer {
+
+    /**
+     * More characters are needed to complete the next event.
+     */
+    static final int NEED_INPUT = 0;
+
+    /**
+     * An opening stream tag was found. {@link #getText()} returns the tag.
+     */
+    static final int STREAM_START = 1;
+
+    /**
+     * A complete top-level element was found. {@link #getText()} returns the element.
+     */
+    static final int ELEMENT = 2;
+
+    /**
+     * The closing stream tag was found.
+     */
+    static final int STREAM_END = 3;
+
+    /**
+     * An element or one of its text nodes exceeded the size limits. The framer must be
+     * reset before it can be used again.
+     */
+    static final int OVERSIZED = 4;
+
+    // States of the tokenizer
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int START_TAG_NAME = 2;
+    private static final int START_TAG = 3;
+    private static final int ATTRIBUTE_VALUE = 4;
+    private static final int EMPTY_TAG = 5;
+    private static final int END_TAG = 6;
+    private static final int PROCESSING_INSTRUCTION = 7;
+    private static final int DECLARATION = 8;
+    private static final int COMMENT = 9;
+    private static final int CDATA = 10;
+
+    private final StringBuilder buffer = new StringBuilder(1024);
+    private final StringBuilder name = new StringBuilder(32);
+
+    private int state = TEXT;
+    private int depth = 0;
+    private char quote;
+    private char previous;
+    private int repeated;
+    private boolean capturing = false;
+
+    private String text;
+    private String elementName;
+
+    // Size limits, 0 if not limited
+    private int maxElementSize = 0;
+    private int maxTextSize = 0;
+    private TextSizePolicy textSizePolicy = TextSizePolicy.reject;
+    private File spillDirectory;
+
+    // The text node being framed when the size of text nodes is limited
+    private int textLength;
+    private int textStart;
+    private boolean discardingText = false;
+    private File spillFile;
+    private Writer spillWriter;
+
+    /**
+     * Names of the open elements of the element being framed, only kept when text nodes
+     * are spilled.
+     */
+    private List<String> openElements;
+    private List<SpilledText> spilledTexts;
+    private List<SpilledText> elementSpilledTexts;
+
+    /**
+     * Applies the size limits of a connection configuration.
+     *
+     * @param config the connection configuration.
+     */
+    void setLimits(ConnectionConfiguration config) {
+        maxElementSize = config.getMaxStanzaSize();
+        maxTextSize = config.getMaxTextSize();
+        textSizePolicy = config.getTextSizePolicy();
+        spillDirectory = config.getSpillDirectory();
+        openElements = maxTextSize > 0 && textSizePolicy == TextSizePolicy.spill ?
+                new ArrayList<String>() : null;
+    }
+
+    /**
+     * Discards any partially framed element and waits for a new opening stream tag.
+     */
+    void reset() {
+        state = TEXT;
+        depth = 0;
+        capturing = false;
+        buffer.setLength(0);
+        name.setLength(0);
+        text = null;
+        elementName = null;
+        discardText();
+        discard(spilledTexts);
+        discard(elementSpilledTexts);
+        spilledTexts = null;
+        elementSpilledTexts = null;
+        if (openElements != null) {
+            openElements.clear();
+        }
+    }
+
+    /**
+     * Returns the text of the last framed element or opening stream tag.
+     *
+     * @return the text of the last framed event.
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the qualified name (e.g. <tt>stream:features</tt>) of the last framed element.
+     *
+     * @return the qualified name of the last framed element.
+     */
+    String getName() {
+        return elementName;
+    }
+
+    /**
+     * Returns the number of characters that have been captured for the element that is
+     * currently being framed.
+     *
+     * @return the size of the partially framed element.
+     */
+    int getPendingLength() {
+        return capturing ? buffer.length() : 0;
+    }
+
+    /**
+     * Returns the text nodes of the last framed element that were spilled to files, and
+     * forgets them so that the caller is responsible for deleting their files.
+     *
+     * @return the spilled text nodes of the last framed element, or <tt>null</tt> if none.
+     */
+    List<SpilledText> getSpilledTexts() {
+        List<SpilledText> texts = elementSpilledTexts;
+        elementSpilledTexts = null;
+        return texts;
+    }
+
+    /**
+     * Consumes characters from the specified buffer until the next event is complete or
+     * all the characters were consumed.
+     *
+     * @param in the characters received from the server.
+     * @return the event that was completed or {@link #NEED_INPUT} if all the characters were
+     *      consumed without completing an event.
+     */
+    int next(CharBuffer in) {
+        char[] chars = in.array();
+        int offset = in.arrayOffset();
+        int pos = offset + in.position();
+        int limit = offset + in.limit();
+        int mark = pos;
+        while (pos < limit) {
+            char c = chars[pos++];
+            int event = NEED_INPUT;
+            switch (state) {
+                case TEXT:
+                    if (c == '<') {
+                        state = TAG_OPEN;
+                        if (textLength > 0) {
+                            event = textEnded();
+                        }
+                        if (depth <= 1) {
+                            // Markup at the top-level may be the start of a new element
+                            capturing = true;
+                            buffer.setLength(0);
+                            mark = pos - 1;
+                        }
+                    }
+                    else if (maxTextSize > 0 && depth >= 2) {
+                        if (textLength++ == 0) {
+                            textStart = buffer.length() + pos - 1 - mark;
+                        }
+                        if (discardingText) {
+                            mark = pos;
+                        }
+                        else if (spillWriter != null) {
+                            event = spill(c);
+                            mark = pos;
+                        }
+                        else if (textLength > maxTextSize) {
+                            buffer.append(chars, mark, pos - mark);
+                            mark = pos;
+                            event = textTooLarge();
+                        }
+                    }
+                    break;
+                case TAG_OPEN:
+                    if (c == '/') {
+                        state = END_TAG;
+                    }
+                    else if (c == '?') {
+                        state = PROCESSING_INSTRUCTION;
+                        previous = 0;
+                    }
+                    else if (c == '!') {
+                        state = DECLARATION;
+                        repeated = 0;
+                    }
+                    else {
+                        state = START_TAG_NAME;
+                        name.setLength(0);
+                        name.append(c);
+                    }
+                    break;
+                case START_TAG_NAME:
+                    if (c == '>') {
+                        event = startTagClosed(false);
+                    }
+                    else if (c == '/') {
+                        state = EMPTY_TAG;
+                    }
+                    else if (Character.isWhitespace(c)) {
+                        state = START_TAG;
+                    }
+                    else {
+                        name.append(c);
+                    }
+                    break;
+                case START_TAG:
+                    if (c == '>') {
+                        event = startTagClosed(false);
+                    }
+                    else if (c == '/') {
+                        state = EMPTY_TAG;
+                    }
+                    else if (c == '"' || c == '\'') {
+                        quote = c;
+                        state = ATTRIBUTE_VALUE;
+                    }
+                    break;
+                case ATTRIBUTE_VALUE:
+                    if (c == quote) {
+                        state = START_TAG;
+                    }
+                    break;
+                case EMPTY_TAG:
+                    if (c == '>') {
+                        event = startTagClosed(true);
+                    }
+                    else {
+                        state = START_TAG;
+                    }
+                    break;
+                case END_TAG:
+                    if (c == '>') {
+                        event = endTagClosed();
+                    }
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    if (c == '>' && previous == '?') {
+                        state = TEXT;
+                        discardTopLevelMarkup();
+                    }
+                    previous = c;
+                    break;
+                case DECLARATION:
+                    if (c == '-') {
+                        state = COMMENT;
+                    }
+                    else if (c == '[') {
+                        state = CDATA;
+                    }
+                    else if (c == '>') {
+                        state = TEXT;
+                        discardTopLevelMarkup();
+                    }
+                    break;
+                case COMMENT:
+                    // The second dash of the opening "<!--" is counted as well so
+                    // "<!-->" is not mistaken for the end of the comment
+                    if (c == '-') {
+                        repeated++;
+                    }
+                    else {
+                        if (c == '>' && repeated >= 2) {
+                            state = TEXT;
+                            discardTopLevelMarkup();
+                        }
+                        repeated = 0;
+                    }
+                    break;
+                case CDATA:
+                    if (c == ']') {
+                        repeated++;
+                    }
+                    else {
+                        if (c == '>' && repeated >= 2) {
+                            state = TEXT;
+                        }
+                        repeated = 0;
+                    }
+                    break;
+            }
+            if (event != NEED_INPUT) {
+                if (event != STREAM_END && event != OVERSIZED) {
+                    buffer.append(chars, mark, pos - mark);
+                    if (maxElementSize > 0 && buffer.length() > maxElementSize) {
+                        event = OVERSIZED;
+                    }
+                    else {
+                        text = buffer.toString();
+                    }
+                }
+                if (event == ELEMENT) {
+                    discard(elementSpilledTexts);
+                    elementSpilledTexts = spilledTexts;
+                    spilledTexts = null;
+                }
+                capturing = false;
+                in.position(pos - offset);
+                return event;
+            }
+            if (!capturing) {
+                mark = pos;
+            }
+        }
+        in.position(limit - offset);
+        if (capturing) {
+            buffer.append(chars, mark, limit - mark);
+            if (maxElementSize > 0 && buffer.length() > maxElementSize) {
+                capturing = false;
+                return OVERSIZED;
+            }
+        }
+        return NEED_INPUT;
+    }
+
+    /**
+     * Applies the text size policy to the text node being framed, which just exceeded the
+     * maximum size. The text received so far is in the buffer.
+     */
+    private int textTooLarge() {
+        if (textSizePolicy == TextSizePolicy.truncate) {
+            // Do not cut an entity or a surrogate pair in half
+            int length = buffer.length() - 1;
+            for (int i = length - 1; i >= textStart && i >= length - 12; i--) {
+                char c = buffer.charAt(i);
+                if (c == ';') {
+                    break;
+                }
+                if (c == '&') {
+                    length = i;
+                    break;
+                }
+            }
+            if (length > textStart && Character.isHighSurrogate(buffer.charAt(length - 1))) {
+                length--;
+            }
+            buffer.setLength(length);
+            discardingText = true;
+            return NEED_INPUT;
+        }
+        if (textSizePolicy == TextSizePolicy.spill) {
+            try {
+                spillFile = File.createTempFile("smack-text", ".xml", spillDirectory);
+                spillFile.deleteOnExit();
+                spillWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(spillFile), "UTF-8"), 8192);
+                spillWriter.append(buffer, textStart, buffer.length());
+                buffer.setLength(textStart);
+                return NEED_INPUT;
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                discardText();
+            }
+        }
+        return OVERSIZED;
+    }
+
+    private int spill(char c) {
+        try {
+            spillWriter.write(c);
+            return NEED_INPUT;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            discardText();
+            return OVERSIZED;
+        }
+    }
+
+    /**
+     * Ends the text node being framed when the size of text nodes is limited.
+     */
+    private int textEnded() {
+        int length = textLength;
+        textLength = 0;
+        discardingText = false;
+        if (spillWriter == null) {
+            return NEED_INPUT;
+        }
+        try {
+            spillWriter.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            discardText();
+            return OVERSIZED;
+        }
+        if (spilledTexts == null) {
+            spilledTexts = new ArrayList<SpilledText>(2);
+        }
+        String parent = openElements.get(openElements.size() - 1);
+        spilledTexts.add(new SpilledText(parent, spillFile, length));
+        spillWriter = null;
+        spillFile = null;
+        return NEED_INPUT;
+    }
+
+    /**
+     * Discards the text node being framed, deleting its file if it was being spilled.
+     */
+    private void discardText() {
+        textLength = 0;
+        discardingText = false;
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            }
+            catch (IOException e) {
+                // Ignore
+            }
+            spillFile.delete();
+            spillWriter = null;
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Deletes the files of spilled text nodes that will not be read.
+     *
+     * @param texts the spilled text nodes, or <tt>null</tt>.
+     */
+    static void discard(List<SpilledText> texts) {
+        if (texts != null) {
+            for (SpilledText text : texts) {
+                text.delete();
+            }
+        }
+    }
+
+    /**
+     * Markup such as comments or processing instructions found at the top-level is not
+     * part of any element so it's discarded.
+     */
+    private void discardTopLevelMarkup() {
+        if (depth <= 1) {
+            capturing = false;
+        }
+    }
+
+    private int startTagClosed(boolean empty) {
+        state = TEXT;
+        if (depth <= 1) {
+            String tagName = name.toString();
+            if (tagName.equals("stream") || tagName.endsWith(":stream")) {
+                // A new stream was opened. Any element being framed is discarded.
+                depth = 1;
+                elementName = tagName;
+                discardText();
+                discard(spilledTexts);
+                spilledTexts = null;
+                if (openElements != null) {
+                    openElements.clear();
+                }
+                return STREAM_START;
+            }
+            if (empty) {
+                elementName = tagName;
+                return ELEMENT;
+            }
+            elementName = tagName;
+            depth = 2;
+            if (openElements != null) {
+                openElements.add(tagName);
+            }
+            return NEED_INPUT;
+        }
+        if (!empty) {
+            depth++;
+            if (openElements != null) {
+                openElements.add(name.toString());
+            }
+        }
+        return NEED_INPUT;
+    }
+
+    private int endTagClosed() {
+        state = TEXT;
+        if (openElements != null && depth >= 2) {
+            openElements.remove(openElements.size() - 1);
+        }
+        if (depth > 2) {
+            depth--;
+            return NEED_INPUT;
+        }
+        if (depth == 2) {
+            depth = 1;
+            return ELEMENT;
+        }
+        // The root stream element was closed
+        depth = 0;
+        capturing = false;
+        return STREAM_END;
+    }
+}
@@ -29,6 +29,7 @@ import org.jivesoftware.smack.util.StringUtils;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
@@ -42,6 +43,7 @@ import java.security.KeyStore;
 import java.security.Provider;
 import java.security.Security;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates a socket connection to a XMPP server. This is the default connection
@@ -57,6 +59,12 @@ public class XMPPConnection extends Connection {
      */
     Socket socket;
 
+    /**
+     * The non-blocking transport which is used for this connection when non-blocking I/O
+     * is enabled, or <tt>null</tt> if the connection uses blocking I/O.
+     */
+    NioTransport nioTransport;
+
     String connectionID = null;
     private String user = null;
     private boolean connected = false;
@@ -415,6 +423,9 @@ public class XMPPConnection extends Connection {
         catch (Exception e) {
             // Ignore.
         }
+        if (nioTransport != null) {
+            nioTransport.close();
+        }
 
         saslAuthentication.init();
     }
@@ -450,6 +461,63 @@ public class XMPPConnection extends Connection {
         packetWriter.sendPacket(packet);
     }
 
+    public boolean trySendPacket(Packet packet) {
+        if (!isConnected()) {
+            throw new IllegalStateException("Not connected to server.");
+        }
+        if (packet == null) {
+            throw new NullPointerException("Packet is null.");
+        }
+        return packetWriter.trySendPacket(packet);
+    }
+
+    public boolean sendPacket(Packet packet, long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        if (!isConnected()) {
+            throw new IllegalStateException("Not connected to server.");
+        }
+        if (packet == null) {
+            throw new NullPointerException("Packet is null.");
+        }
+        return packetWriter.sendPacket(packet, unit.toMillis(timeout));
+    }
+
+    public PacketWriteFuture sendPacketAsync(Packet packet) {
+        if (!isConnected()) {
+            throw new IllegalStateException("Not connected to server.");
+        }
+        if (packet == null) {
+            throw new NullPointerException("Packet is null.");
+        }
+        return packetWriter.sendPacketAsync(packet);
+    }
+
+    /**
+     * Returns the number of outgoing packets that are waiting to be written to the server.
+     * Returns 0 when not connected.
+     *
+     * @return the number of packets waiting to be written.
+     * @see ConnectionConfiguration#setPacketQueueCapacity(int)
+     */
+    public int getPacketQueueSize() {
+        PacketWriter writer = packetWriter;
+        return writer != null ? writer.getQueueSize() : 0;
+    }
+
+    /**
+     * Returns the maximum number of outgoing packets that were waiting to be written to
+     * the server at the same time. A value close to the capacity of the queue means that
+     * packets are being sent faster than the connection can write them.
+     *
+     * @return the high-water mark of the queue of outgoing packets.
+     * @see ConnectionConfiguration#setPacketQueueCapacity(int)
+     */
+    public int getPacketQueueHighWaterMark() {
+        PacketWriter writer = packetWriter;
+        return writer != null ? writer.getQueueHighWaterMark() : 0;
+    }
+
     /**
      * Registers a packet interceptor with this connection. The interceptor will be
      * invoked every time a packet is about to be sent by this connection. Interceptors
@@ -505,7 +573,17 @@ public class XMPPConnection extends Connection {
         String host = config.getHost();
         int port = config.getPort();
         try {
-            if (config.getSocketFactory() == null) {
+            nioTransport = null;
+            if (config.isNonBlockingIOUsable()) {
+                nioTransport = NioTransport.open(host, port);
+                this.socket = nioTransport.getSocket();
+                nioTransport.setSizeLimits(config);
+                nioTransport.setWriteLimit(config.getNonBlockingWriteLimit());
+                if (config.getConnectionMetrics() != null) {
+                    nioTransport.setMetrics(this, config.getConnectionMetrics());
+                }
+            }
+            else if (config.getSocketFactory() == null) {
                 this.socket = new Socket(host, port);
             }
             else {
@@ -538,14 +616,22 @@ public class XMPPConnection extends Connection {
         if (!isFirstInitialization) {
             usingCompression = false;
         }
+        // The stream features of the new stream tell whether roster versioning is supported
+        setRosterVersioningSupported(false);
 
         // Set the reader and writer instance variables
         initReaderAndWriter();
 
         try {
             if (isFirstInitialization) {
-                packetWriter = new PacketWriter(this);
-                packetReader = new PacketReader(this);
+                if (nioTransport != null) {
+                    packetWriter = new NioPacketWriter(this);
+                    packetReader = new NioPacketReader(this);
+                }
+                else {
+                    packetWriter = new PacketWriter(this);
+                    packetReader = new PacketReader(this);
+                }
 
                 // If debugging is enabled, we should start the thread that will listen for
                 // all packets and then log them.
@@ -624,6 +710,10 @@ public class XMPPConnection extends Connection {
                 catch (Exception e) { /* ignore */ }
                 socket = null;
             }
+            if (nioTransport != null) {
+                nioTransport.close();
+                nioTransport = null;
+            }
             this.setWasAuthenticated(authenticated);
             authenticated = false;
             connected = false;
@@ -634,36 +724,43 @@ public class XMPPConnection extends Connection {
 
     private void initReaderAndWriter() throws XMPPException {
         try {
-            if (!usingCompression) {
-                reader =
-                        new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            if (nioTransport != null) {
+                // Incoming data is framed by the transport so there is nothing to read
+                // from the reader. TLS and compression are handled by the transport too.
+                reader = new StringReader("");
+                writer = nioTransport.getWriter();
+            }
+            else if (!usingCompression) {
+                reader = new BufferedReader(
+                        new InputStreamReader(meter(socket.getInputStream(), false), "UTF-8"));
                 writer = new BufferedWriter(
-                        new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                        new OutputStreamWriter(meter(socket.getOutputStream(), false), "UTF-8"));
             }
             else {
                 try {
                     Class<?> zoClass = Class.forName("com.jcraft.jzlib.ZOutputStream");
                     Constructor<?> constructor =
                             zoClass.getConstructor(OutputStream.class, Integer.TYPE);
-                    Object out = constructor.newInstance(socket.getOutputStream(), 9);
+                    Object out = constructor.newInstance(meter(socket.getOutputStream(), true), 9);
                     Method method = zoClass.getMethod("setFlushMode", Integer.TYPE);
                     method.invoke(out, 2);
-                    writer =
-                            new BufferedWriter(new OutputStreamWriter((OutputStream) out, "UTF-8"));
+                    writer = new BufferedWriter(
+                            new OutputStreamWriter(meter((OutputStream) out, false), "UTF-8"));
 
                     Class<?> ziClass = Class.forName("com.jcraft.jzlib.ZInputStream");
                     constructor = ziClass.getConstructor(InputStream.class);
-                    Object in = constructor.newInstance(socket.getInputStream());
+                    Object in = constructor.newInstance(meter(socket.getInputStream(), true));
                     method = ziClass.getMethod("setFlushMode", Integer.TYPE);
                     method.invoke(in, 2);
-                    reader = new BufferedReader(new InputStreamReader((InputStream) in, "UTF-8"));
+                    reader = new BufferedReader(
+                            new InputStreamReader(meter((InputStream) in, false), "UTF-8"));
                 }
                 catch (Exception e) {
                     e.printStackTrace();
                     reader = new BufferedReader(
-                            new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                            new InputStreamReader(meter(socket.getInputStream(), false), "UTF-8"));
                     writer = new BufferedWriter(
-                            new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                            new OutputStreamWriter(meter(socket.getOutputStream(), false), "UTF-8"));
                 }
             }
         }
@@ -679,6 +776,32 @@ public class XMPPConnection extends Connection {
         initDebugger();
     }
 
+    /**
+     * Wraps the stream so that the bytes read from it are reported to the metrics of the
+     * connection. The stream is returned as is when the connection is not measured.
+     *
+     * @param in the stream to read from.
+     * @param compressed true if the stream provides compressed bytes.
+     * @return the stream to read from.
+     */
+    private InputStream meter(InputStream in, boolean compressed) {
+        ConnectionMetrics metrics = config.getConnectionMetrics();
+        return metrics != null ? new MeteredInputStream(in, this, metrics, compressed) : in;
+    }
+
+    /**
+     * Wraps the stream so that the bytes written to it are reported to the metrics of the
+     * connection. The stream is returned as is when the connection is not measured.
+     *
+     * @param out the stream to write to.
+     * @param compressed true if the bytes written to the stream are compressed.
+     * @return the stream to write to.
+     */
+    private OutputStream meter(OutputStream out, boolean compressed) {
+        ConnectionMetrics metrics = config.getConnectionMetrics();
+        return metrics != null ? new MeteredOutputStream(out, this, metrics, compressed) : out;
+    }
+
     /***********************************************
      * TLS code below
      **********************************************/
@@ -711,6 +834,7 @@ public class XMPPConnection extends Connection {
             // Do not secure the connection using TLS since TLS was disabled
             return;
         }
+        negotiationStarted(ConnectionMetrics.Negotiation.tls);
         try {
             writer.write("<starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
             writer.flush();
@@ -728,6 +852,69 @@ public class XMPPConnection extends Connection {
      * @throws Exception if an exception occurs.
      */
     void proceedTLSReceived() throws Exception {
+        SSLContext context = createSSLContext();
+        if (nioTransport != null) {
+            Socket plain = socket;
+            SSLEngine engine = context.createSSLEngine(plain.getInetAddress().getHostName(),
+                    plain.getPort());
+            engine.setUseClientMode(true);
+            engine.setEnabledCipherSuites(getCipherSuitesToUse(engine.getEnabledCipherSuites()));
+            // The handshake is performed by the transport. Data sent meanwhile will be
+            // encrypted and sent once the handshake has finished.
+            nioTransport.startTLS(engine);
+            // Set that TLS was successful
+            usingTLS = true;
+            // Send a new opening stream to the server
+            packetWriter.openStream();
+            return;
+        }
+        Socket plain = socket;
+        // Secure the plain connection
+        socket = context.getSocketFactory().createSocket(plain,
+                plain.getInetAddress().getHostName(), plain.getPort(), true);
+        socket.setSoTimeout(0);
+        socket.setKeepAlive(true);
+        // Initialize the reader and writer with the new secured version
+        initReaderAndWriter();
+        // Proceed to do the handshake
+        //((SSLSocket) socket).startHandshake();
+        
+        final SSLSocket ssl = (SSLSocket) socket;
+        //System.err.println("SUITES: "+Arrays.asList(ssl.getSupportedCipherSuites()));
+        
+        final String[] toUse = getCipherSuitesToUse(ssl.getEnabledCipherSuites());
+        //log.info("Enabled cipher suites: {}", Arrays.asList(toUse));
+        ssl.setEnabledCipherSuites(toUse);
+         // Proceed to do the handshake
+        ssl.startHandshake();
+                
+
+        //if (((SSLSocket) socket).getWantClientAuth()) {
+        //    System.err.println("Connection wants client auth");
+        //}
+        //else if (((SSLSocket) socket).getNeedClientAuth()) {
+        //    System.err.println("Connection needs client auth");
+        //}
+        //else {
+        //    System.err.println("Connection does not require client auth");
+       // }
+        // Set that TLS was successful
+        usingTLS = true;
+
+        // Set the new  writer to use
+        packetWriter.setWriter(writer);
+        // Send a new opening stream to the server
+        packetWriter.openStream();
+    }
+
+    /**
+     * Creates the SSL context used for securing the connection, loading the keystore
+     * configured for the connection if client authentication is possible.
+     *
+     * @return the initialized SSL context.
+     * @throws Exception if an exception occurs.
+     */
+    private SSLContext createSSLContext() throws Exception {
         SSLContext context = SSLContext.getInstance("TLS");
         KeyStore ks = null;
         KeyManager[] kms = null;
@@ -794,50 +981,22 @@ public class XMPPConnection extends Connection {
         context.init(null, null, null);//kms,
                 //new javax.net.ssl.TrustManager[]{new ServerTrustManager(getServiceName(), config)},
                 //new java.security.SecureRandom());
-        Socket plain = socket;
-        // Secure the plain connection
-        socket = context.getSocketFactory().createSocket(plain,
-                plain.getInetAddress().getHostName(), plain.getPort(), true);
-        socket.setSoTimeout(0);
-        socket.setKeepAlive(true);
-        // Initialize the reader and writer with the new secured version
-        initReaderAndWriter();
-        // Proceed to do the handshake
-        //((SSLSocket) socket).startHandshake();
-        
-        final SSLSocket ssl = (SSLSocket) socket;
-        //System.err.println("SUITES: "+Arrays.asList(ssl.getSupportedCipherSuites()));
-        
-        final String[] toUse;
-        final String[] standard = ssl.getEnabledCipherSuites();
+        return context;
+    }
+
+    /**
+     * Returns the cipher suites to enable, which are the ones specified in the connection
+     * configuration if any.
+     *
+     * @param standard the cipher suites enabled by default.
+     * @return the cipher suites to enable.
+     */
+    private String[] getCipherSuitesToUse(String[] standard) {
         final String[] cs = config.getCipherSuites();
         if (cs != null && cs.length > 0) {
-            toUse = cs;
-        } else {
-            toUse = standard;
+            return cs;
         }
-        //log.info("Enabled cipher suites: {}", Arrays.asList(toUse));
-        ssl.setEnabledCipherSuites(toUse);
-         // Proceed to do the handshake
-        ssl.startHandshake();
-                
-
-        //if (((SSLSocket) socket).getWantClientAuth()) {
-        //    System.err.println("Connection wants client auth");
-        //}
-        //else if (((SSLSocket) socket).getNeedClientAuth()) {
-        //    System.err.println("Connection needs client auth");
-        //}
-        //else {
-        //    System.err.println("Connection does not require client auth");
-       // }
-        // Set that TLS was successful
-        usingTLS = true;
-
-        // Set the new  writer to use
-        packetWriter.setWriter(writer);
-        // Send a new opening stream to the server
-        packetWriter.openStream();
+        return standard;
     }
 
     /**
@@ -911,6 +1070,7 @@ public class XMPPConnection extends Connection {
      * compression is being used the stream compression should not be used.
      */
     private void requestStreamCompression() {
+        negotiationStarted(ConnectionMetrics.Negotiation.compression);
         try {
             writer.write("<compress xmlns='http://jabber.org/protocol/compress'>");
             writer.write("<method>zlib</method></compress>");
@@ -929,11 +1089,17 @@ public class XMPPConnection extends Connection {
     void startStreamCompression() throws Exception {
         // Secure the plain connection
         usingCompression = true;
-        // Initialize the reader and writer with the new secured version
-        initReaderAndWriter();
+        if (nioTransport != null) {
+            // Compression is performed by the transport
+            nioTransport.startCompression();
+        }
+        else {
+            // Initialize the reader and writer with the new secured version
+            initReaderAndWriter();
 
-        // Set the new  writer to use
-        packetWriter.setWriter(writer);
+            // Set the new  writer to use
+            packetWriter.setWriter(writer);
+        }
         // Send a new opening stream to the server
         packetWriter.openStream();
         // Notify that compression is being used
@@ -0,0 +1,109 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffer oriented zlib compression used for stream compression (XEP-0138) by the
+ * non-blocking transport. Each call to {@link #deflate(ByteBuffer)} ends with a sync flush
+ * so that the server can inflate every stanza as soon as it's received. All the buffers
+ * must be backed by an accessible array.
+ */
+final class ZlibCodec {
+
+    private final ZStream deflater = new ZStream();
+    private final ZStream inflater = new ZStream();
+    private ByteBuffer deflated = ByteBuffer.allocate(4096);
+
+    ZlibCodec() {
+        deflater.deflateInit(9);
+        inflater.inflateInit();
+    }
+
+    /**
+     * Compresses all the remaining bytes of the specified buffer. The returned buffer is
+     * reused by the next call so its content must be consumed before compressing more data.
+     *
+     * @param src the bytes to compress.
+     * @return a buffer, ready to be read, with the compressed bytes.
+     * @throws IOException if an error occurs while compressing.
+     */
+    ByteBuffer deflate(ByteBuffer src) throws IOException {
+        deflater.next_in = src.array();
+        deflater.next_in_index = src.arrayOffset() + src.position();
+        deflater.avail_in = src.remaining();
+        deflated.clear();
+        do {
+            if (!deflated.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(deflated.capacity() * 2);
+                deflated.flip();
+                larger.put(deflated);
+                deflated = larger;
+            }
+            deflater.next_out = deflated.array();
+            deflater.next_out_index = deflated.position();
+            deflater.avail_out = deflated.remaining();
+            int err = deflater.deflate(JZlib.Z_SYNC_FLUSH);
+            if (err != JZlib.Z_OK && err != JZlib.Z_BUF_ERROR) {
+                throw new IOException("Error compressing stream: " + deflater.msg);
+            }
+            deflated.position(deflater.next_out_index);
+        }
+        while (deflater.avail_in > 0 || !deflated.hasRemaining());
+        src.position(src.limit());
+        deflated.flip();
+        return deflated;
+    }
+
+    /**
+     * Decompresses as many bytes as possible from the source buffer into the destination
+     * buffer. Output that did not fit in the destination buffer is kept by the decompressor
+     * and returned by the next call, even if there are no more compressed bytes.
+     *
+     * @param src the compressed bytes.
+     * @param dst the buffer where decompressed bytes are written to.
+     * @throws IOException if the compressed data is corrupt.
+     */
+    void inflate(ByteBuffer src, ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return;
+        }
+        inflater.next_in = src.array();
+        inflater.next_in_index = src.arrayOffset() + src.position();
+        inflater.avail_in = src.remaining();
+        inflater.next_out = dst.array();
+        inflater.next_out_index = dst.arrayOffset() + dst.position();
+        inflater.avail_out = dst.remaining();
+        int err = inflater.inflate(JZlib.Z_SYNC_FLUSH);
+        if (err != JZlib.Z_OK && err != JZlib.Z_BUF_ERROR && err != JZlib.Z_STREAM_END) {
+            throw new IOException("Error decompressing stream: " + inflater.msg);
+        }
+        src.position(inflater.next_in_index - src.arrayOffset());
+        dst.position(inflater.next_out_index - dst.arrayOffset());
+    }
+
+    /**
+     * Releases the resources used by the compressor and decompressor.
+     */
+    void end() {
+        deflater.deflateEnd();
+        inflater.inflateEnd();
+    }
+}
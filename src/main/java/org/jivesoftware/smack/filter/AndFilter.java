@@ -24,6 +24,7 @@ import org.jivesoftware.smack.packet.Packet;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * Implements the logical AND operation over two or more packet filters.
@@ -76,6 +77,15 @@ public class AndFilter implements PacketFilter {
         filters.add(filter);
     }
 
+    /**
+     * Returns an unmodifiable view of the filters of the AND operation.
+     *
+     * @return the filters of the AND operation.
+     */
+    public List<PacketFilter> getFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
     public boolean accept(Packet packet) {
         for (PacketFilter filter : filters) {
             if (!filter.accept(packet)) {
@@ -20,8 +20,8 @@
 
 package org.jivesoftware.smack.filter;
 
+import org.jivesoftware.smack.packet.JID;
 import org.jivesoftware.smack.packet.Packet;
-import org.jivesoftware.smack.util.StringUtils;
 
 /**
  * Filter for packets where the "from" field exactly matches a specified JID. If the specified
@@ -51,21 +51,23 @@ public class FromMatchesFilter implements PacketFilter {
         if (address == null) {
             throw new IllegalArgumentException("Parameter cannot be null.");
         }
-        this.address = address.toLowerCase();
-        matchBareJID = "".equals(StringUtils.parseResource(address));
+        JID jid = JID.valueOf(address);
+        matchBareJID = jid.isBare();
+        this.address = matchBareJID ? jid.getBareAddressLowerCase() : jid.toLowerCase();
     }
 
     public boolean accept(Packet packet) {
-        if (packet.getFrom() == null) {
+        JID from = packet.getFromJID();
+        if (from == null) {
             return false;
         }
         else if (matchBareJID) {
             // Check if the bare JID of the sender of the packet matches the specified JID
-            return packet.getFrom().toLowerCase().startsWith(address);
+            return address.equals(from.getBareAddressLowerCase());
         }
         else {
             // Check if the full JID of the sender of the packet matches the specified JID
-            return address.equals(packet.getFrom().toLowerCase());
+            return address.equals(from.toLowerCase());
         }
     }
 
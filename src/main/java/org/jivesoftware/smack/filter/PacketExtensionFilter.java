@@ -56,6 +56,6 @@ public class PacketExtensionFilter implements PacketFilter {
     }
 
     public boolean accept(Packet packet) {
-        return packet.getExtension(elementName, namespace) != null;
+        return packet.hasExtension(elementName, namespace);
     }
 }
@@ -43,6 +43,15 @@ public class PacketIDFilter implements PacketFilter {
         this.packetID = packetID;
     }
 
+    /**
+     * Returns the packet ID to filter for.
+     *
+     * @return the packet ID to filter for.
+     */
+    public String getPacketID() {
+        return packetID;
+    }
+
     public boolean accept(Packet packet) {
         return packetID.equals(packet.getPacketID());
     }
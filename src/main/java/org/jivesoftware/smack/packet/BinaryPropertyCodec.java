@@ -0,0 +1,269 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The codec of lists, sets and maps. The elements are written in a compact binary form,
+ * each preceded by a tag byte, and the result is encoded in Base64. Strings, the wrappers
+ * of the primitives, byte arrays, UUIDs, dates and nested collections have their own tags.
+ * Other elements are written with the type and the text of their codec.
+ */
+class BinaryPropertyCodec implements PropertyCodec {
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int LONG = 3;
+    private static final int FLOAT = 4;
+    private static final int DOUBLE = 5;
+    private static final int BOOLEAN = 6;
+    private static final int BYTES = 7;
+    private static final int UUID_VALUE = 8;
+    private static final int DATE = 9;
+    private static final int LIST = 10;
+    private static final int SET = 11;
+    private static final int MAP = 12;
+    private static final int CODEC = 13;
+
+    /**
+     * The maximum nesting depth of collections, which keeps a hostile value from
+     * exhausting the stack of the thread that decodes it.
+     */
+    static final int MAX_DEPTH = 32;
+
+    private final PropertyCodecManager manager;
+    private final String type;
+    private final Class<?> valueClass;
+
+    BinaryPropertyCodec(PropertyCodecManager manager, String type, Class<?> valueClass) {
+        this.manager = manager;
+        this.type = type;
+        this.valueClass = valueClass;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Class<?> getValueClass() {
+        return valueClass;
+    }
+
+    public String encode(Object value) throws Exception {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(byteStream);
+        writeValue(out, value, 0);
+        out.flush();
+        return StringUtils.encodeBase64(byteStream.toByteArray(), false);
+    }
+
+    public Object decode(String text) throws Exception {
+        byte[] bytes = StringUtils.decodeBase64(text);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        Object value = readValue(in, 0);
+        if (!valueClass.isInstance(value)) {
+            throw new IOException("Expected a value of type " + type);
+        }
+        return value;
+    }
+
+    private void writeValue(DataOutputStream out, Object value, int depth) throws Exception {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if (value instanceof UUID) {
+            UUID uuid = (UUID) value;
+            out.writeByte(UUID_VALUE);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+        else if (value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        }
+        else if (value instanceof List || value instanceof Set) {
+            checkDepth(depth);
+            Collection<?> collection = (Collection<?>) value;
+            out.writeByte(value instanceof List ? LIST : SET);
+            out.writeInt(collection.size());
+            for (Object element : collection) {
+                writeValue(out, element, depth + 1);
+            }
+        }
+        else if (value instanceof Map) {
+            checkDepth(depth);
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey(), depth + 1);
+                writeValue(out, entry.getValue(), depth + 1);
+            }
+        }
+        else {
+            PropertyCodec codec = manager.getCodec(value);
+            if (codec == null) {
+                throw new IllegalArgumentException("No codec for " + value.getClass().getName());
+            }
+            out.writeByte(CODEC);
+            writeString(out, codec.getType());
+            writeString(out, codec.encode(value));
+        }
+    }
+
+    private Object readValue(DataInputStream in, int depth) throws Exception {
+        int tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case BYTES:
+                byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                return bytes;
+            case UUID_VALUE:
+                return new UUID(in.readLong(), in.readLong());
+            case DATE:
+                return new Date(in.readLong());
+            case LIST: {
+                checkDepth(depth);
+                int size = readLength(in);
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, depth + 1));
+                }
+                return list;
+            }
+            case SET: {
+                checkDepth(depth);
+                int size = readLength(in);
+                Set<Object> set = new LinkedHashSet<Object>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    set.add(readValue(in, depth + 1));
+                }
+                return set;
+            }
+            case MAP: {
+                checkDepth(depth);
+                int size = readLength(in);
+                Map<Object, Object> map = new LinkedHashMap<Object, Object>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(in, depth + 1);
+                    map.put(key, readValue(in, depth + 1));
+                }
+                return map;
+            }
+            case CODEC: {
+                String elementType = readString(in);
+                String text = readString(in);
+                PropertyCodec codec = manager.getCodec(elementType);
+                if (codec == null) {
+                    throw new IOException("No codec for type " + elementType);
+                }
+                return codec.decode(text);
+            }
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    private static void checkDepth(int depth) throws IOException {
+        if (depth >= MAX_DEPTH) {
+            throw new IOException("Collections nested deeper than " + MAX_DEPTH + " levels");
+        }
+    }
+
+    /**
+     * Reads the length of a byte array or collection, which cannot exceed the remaining
+     * input since every element takes at least one byte.
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
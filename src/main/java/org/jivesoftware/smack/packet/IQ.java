@@ -21,6 +21,9 @@
 package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.WeakClassMap;
+
+import java.io.IOException;
 
 /**
  * The base IQ (Info/Query) packet. IQ packets are used to get and set information
@@ -41,6 +44,13 @@ import org.jivesoftware.smack.util.StringUtils;
  */
 public abstract class IQ extends Packet {
 
+    /**
+     * Whether each IQ class overrides getChildElementXML() without overriding
+     * appendChildElementXML(Appendable).
+     */
+    private static final WeakClassMap<Boolean> stringChildElementClasses =
+            new WeakClassMap<Boolean>();
+
     private Type type = Type.GET;
 
     /**
@@ -67,35 +77,49 @@ public abstract class IQ extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<iq ");
+        return getStreamedXML();
+    }
+
+    public void toXML(Appendable out) throws IOException {
+        out.append("<iq ");
         if (getPacketID() != null) {
-            buf.append("id=\"" + getPacketID() + "\" ");
+            out.append("id=\"").append(getPacketID()).append("\" ");
         }
         if (getTo() != null) {
-            buf.append("to=\"").append(StringUtils.escapeForXML(getTo())).append("\" ");
+            out.append("to=\"");
+            StringUtils.escapeForXML(getTo(), out);
+            out.append("\" ");
         }
         if (getFrom() != null) {
-            buf.append("from=\"").append(StringUtils.escapeForXML(getFrom())).append("\" ");
+            out.append("from=\"");
+            StringUtils.escapeForXML(getFrom(), out);
+            out.append("\" ");
         }
         if (type == null) {
-            buf.append("type=\"get\">");
+            out.append("type=\"get\">");
         }
         else {
-            buf.append("type=\"").append(getType()).append("\">");
+            out.append("type=\"").append(getType().toString()).append("\">");
         }
-        // Add the query section if there is one.
-        String queryXML = getChildElementXML();
-        if (queryXML != null) {
-            buf.append(queryXML);
+        // Add the query section if there is one. Sub-classes that override
+        // getChildElementXML() only are not streamed so that their XML is not lost.
+        if (overridesStringOnly(stringChildElementClasses, getClass(), "getChildElementXML",
+                "appendChildElementXML"))
+        {
+            String childElementXML = getChildElementXML();
+            if (childElementXML != null) {
+                out.append(childElementXML);
+            }
+        }
+        else {
+            appendChildElementXML(out);
         }
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
         if (error != null) {
-            buf.append(error.toXML());
+            out.append(error.toXML());
         }
-        buf.append("</iq>");
-        return buf.toString();
+        out.append("</iq>");
     }
 
     /**
@@ -108,6 +132,24 @@ public abstract class IQ extends Packet {
      */
     public abstract String getChildElementXML();
 
+    /**
+     * Writes the sub-element XML section of the IQ packet to the specified output. By
+     * default the String returned by {@link #getChildElementXML()} is written. IQ packets
+     * with large child elements may override this method to write their XML directly to
+     * the output, in which case it must write the same XML as {@link #getChildElementXML()}.
+     * A sub-class of such a packet that only overrides {@link #getChildElementXML()} is
+     * written with the String it returns.
+     *
+     * @param out the output to write the XML to.
+     * @throws IOException if an error occurs while writing to the output.
+     */
+    protected void appendChildElementXML(Appendable out) throws IOException {
+        String childElementXML = getChildElementXML();
+        if (childElementXML != null) {
+            out.append(childElementXML);
+        }
+    }
+
     /**
      * Convenience method to create a new empty {@link Type#RESULT IQ.Type.RESULT}
      * IQ based on a {@link Type#GET IQ.Type.GET} or {@link Type#SET IQ.Type.SET}
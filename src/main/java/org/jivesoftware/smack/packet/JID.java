@@ -0,0 +1,212 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import org.jivesoftware.smack.util.ConcurrentCache;
+
+/**
+ * An XMPP address, such as "matt@jivesoftware.com/Smack". The address is parsed once into
+ * its node, domain and resource, and its bare form and lower case forms are computed when
+ * the JID is created, so they can be used repeatedly without parsing the address again.<p>
+ *
+ * JIDs are immutable and are obtained with {@link #valueOf(String)}, which returns the
+ * same instance for an address as long as it remains in a bounded cache of recently used
+ * addresses. Packets from the same contacts therefore share their JIDs, along with the
+ * hash codes of their strings once computed.<p>
+ *
+ * Two JIDs are equal if their addresses are equal ignoring case, which is how addresses
+ * are compared by the roster and the packet filters.
+ *
+ * @see Packet#getFromJID()
+ * @see Packet#getToJID()
+ */
+public final class JID {
+
+    /**
+     * Maximum number of JIDs kept in the cache.
+     */
+    private static final int CACHE_SIZE = 4096;
+
+    private static final ConcurrentCache<String, JID> cache =
+            new ConcurrentCache<String, JID>(CACHE_SIZE, -1);
+
+    private final String address;
+    private final String node;
+    private final String domain;
+    private final String resource;
+    private final String bareAddress;
+    private final String lowerCaseAddress;
+    private final String lowerCaseBareAddress;
+    private JID bareJID;
+
+    /**
+     * Returns the JID of an address.
+     *
+     * @param address an XMPP address in any valid format, e.g. "domain", "user@domain",
+     *      "domain/resource" or "user@domain/resource".
+     * @return the JID of the address, or <tt>null</tt> if the address is <tt>null</tt>.
+     */
+    public static JID valueOf(String address) {
+        if (address == null) {
+            return null;
+        }
+        JID jid = cache.get(address);
+        if (jid == null) {
+            jid = new JID(address);
+            cache.put(address, jid);
+        }
+        return jid;
+    }
+
+    private JID(String address) {
+        this.address = address;
+        int slashIndex = address.indexOf('/');
+        if (slashIndex < 0) {
+            bareAddress = address;
+            resource = "";
+        }
+        else {
+            bareAddress = address.substring(0, slashIndex);
+            resource = address.substring(slashIndex + 1);
+        }
+        // The resource may contain '@' so it's only looked for in the bare address
+        int atIndex = bareAddress.lastIndexOf('@');
+        node = atIndex <= 0 ? "" : bareAddress.substring(0, atIndex);
+        domain = bareAddress.substring(atIndex + 1);
+        lowerCaseAddress = address.toLowerCase();
+        lowerCaseBareAddress = slashIndex < 0 ? lowerCaseAddress : bareAddress.toLowerCase();
+        if (slashIndex < 0) {
+            bareJID = this;
+        }
+    }
+
+    /**
+     * Returns the node of the address, which is usually the user name. For example, for
+     * the address "matt@jivesoftware.com/Smack", "matt" would be returned. If no node is
+     * present in the address, the empty string will be returned.
+     *
+     * @return the node of the address.
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Returns the domain of the address. For example, for the address
+     * "matt@jivesoftware.com/Smack", "jivesoftware.com" would be returned.
+     *
+     * @return the domain of the address.
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Returns the resource of the address. For example, for the address
+     * "matt@jivesoftware.com/Smack", "Smack" would be returned. If no resource is present
+     * in the address, the empty string will be returned.
+     *
+     * @return the resource of the address.
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * Returns true if the address has no resource.
+     *
+     * @return true if the address has no resource.
+     */
+    public boolean isBare() {
+        return resource.length() == 0;
+    }
+
+    /**
+     * Returns the address without its resource. For example, for the address
+     * "matt@jivesoftware.com/Smack", "matt@jivesoftware.com" would be returned.
+     *
+     * @return the bare address.
+     */
+    public String getBareAddress() {
+        return bareAddress;
+    }
+
+    /**
+     * Returns the JID of the address without its resource.
+     *
+     * @return the bare JID.
+     */
+    public JID getBareJID() {
+        JID jid = bareJID;
+        if (jid == null) {
+            jid = valueOf(bareAddress);
+            bareJID = jid;
+        }
+        return jid;
+    }
+
+    /**
+     * Returns the address in lower case.
+     *
+     * @return the address in lower case.
+     */
+    public String toLowerCase() {
+        return lowerCaseAddress;
+    }
+
+    /**
+     * Returns the address without its resource in lower case. This is the key used to
+     * look up users in the roster.
+     *
+     * @return the bare address in lower case.
+     */
+    public String getBareAddressLowerCase() {
+        return lowerCaseBareAddress;
+    }
+
+    /**
+     * Returns true if the bare address of this JID and the bare address of another JID
+     * are equal ignoring case.
+     *
+     * @param jid the other JID.
+     * @return true if both JIDs have the same bare address.
+     */
+    public boolean equalsBare(JID jid) {
+        return jid != null && lowerCaseBareAddress.equals(jid.lowerCaseBareAddress);
+    }
+
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof JID)) {
+            return false;
+        }
+        return lowerCaseAddress.equals(((JID) object).lowerCaseAddress);
+    }
+
+    public int hashCode() {
+        return lowerCaseAddress.hashCode();
+    }
+
+    /**
+     * Returns the address as it was given.
+     *
+     * @return the address.
+     */
+    public String toString() {
+        return address;
+    }
+}
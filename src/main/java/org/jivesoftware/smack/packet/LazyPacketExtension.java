@@ -0,0 +1,127 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+/**
+ * A packet extension that was received but not parsed yet. The XML of the extension is
+ * kept along with the provider registered for it when the packet was received, and is
+ * parsed by the provider the first time the extension is requested from its packet. The
+ * parsed extension then replaces this extension in the packet.<p>
+ *
+ * Packets only contain lazy extensions when lazy extension parsing is enabled with
+ * {@link org.jivesoftware.smack.ConnectionConfiguration#setLazyExtensionParsingEnabled(boolean)}.
+ * Applications normally never see them since {@link Packet#getExtension(String, String)}
+ * and {@link Packet#getExtensions()} return parsed extensions.
+ */
+public class LazyPacketExtension implements PacketExtension {
+
+    private final String elementName;
+    private final String namespace;
+    private final String xml;
+    private Object provider;
+    private PacketExtension extension;
+    private Exception parseException;
+
+    /**
+     * Creates a new lazy packet extension.
+     *
+     * @param elementName the XML element name of the extension.
+     * @param namespace the XML namespace of the extension.
+     * @param provider the provider that parses the extension, a PacketExtensionProvider or
+     *      the Class of a JavaBean.
+     * @param xml the XML of the extension.
+     */
+    public LazyPacketExtension(String elementName, String namespace, Object provider,
+            String xml)
+    {
+        this.elementName = elementName;
+        this.namespace = namespace;
+        this.provider = provider;
+        this.xml = xml;
+    }
+
+    public String getElementName() {
+        return elementName;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Returns the XML of the extension as it was received. Sending the extension again
+     * does not parse it.
+     *
+     * @return the XML of the extension.
+     */
+    public String toXML() {
+        return xml;
+    }
+
+    /**
+     * Returns whether the extension was parsed, successfully or not.
+     *
+     * @return true if the extension was parsed.
+     */
+    public synchronized boolean isParsed() {
+        return provider == null;
+    }
+
+    /**
+     * Returns the error of the provider if it failed to parse the extension, or
+     * <tt>null</tt> if the extension was not parsed yet or was parsed successfully.
+     *
+     * @return the error of the provider, or <tt>null</tt>.
+     */
+    public synchronized Exception getParseException() {
+        return parseException;
+    }
+
+    /**
+     * Returns the parsed extension, parsing it with its provider on the first call. If the
+     * provider fails to parse the extension, the error is printed and kept, and
+     * <tt>null</tt> is returned, as if the packet did not have the extension. The packet
+     * then keeps this extension, so the XML of the extension is not lost.
+     *
+     * @return the parsed extension, or <tt>null</tt> if it could not be parsed.
+     * @see #getParseException()
+     */
+    public synchronized PacketExtension getExtension() {
+        if (provider != null) {
+            try {
+                XmlPullParser parser = new MXParser();
+                parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+                parser.setInput(new StringReader(xml));
+                parser.next();
+                extension = PacketParserUtils.parsePacketExtension(elementName, namespace,
+                        provider, parser);
+            }
+            catch (Exception e) {
+                // Print the error as is done for the errors of packet listeners, which
+                // are the ones requesting the extension
+                e.printStackTrace();
+                parseException = e;
+            }
+            provider = null;
+        }
+        return extension;
+    }
+}
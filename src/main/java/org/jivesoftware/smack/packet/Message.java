@@ -22,6 +22,7 @@ package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -46,16 +47,23 @@ import java.util.*;
  * <tr><td><i>error</i></td>   <td>MUST NOT</td><td>MUST NOT</td><td>MUST NOT</td><td>MUST NOT</td><td>MUST</td></tr>
  * </table>
  *
+ * The subjects and bodies of a message are kept in arrays that are replaced when a subject
+ * or body is added or removed. Most messages have a single body and no subject, so they
+ * only hold an array of one body and a shared empty array.
+ *
  * @author Matt Tucker
  */
 public class Message extends Packet {
 
+    private static final Subject[] NO_SUBJECTS = new Subject[0];
+    private static final Body[] NO_BODIES = new Body[0];
+
     private Type type = Type.normal;
     private String thread = null;
     private String language;
 
-    private final Set<Subject> subjects = new HashSet<Subject>();
-    private final Set<Body> bodies = new HashSet<Body>();
+    private Subject[] subjects = NO_SUBJECTS;
+    private Body[] bodies = NO_BODIES;
 
     /**
      * Creates a new, "normal" message.
@@ -150,7 +158,10 @@ public class Message extends Packet {
      * @return a collection of all subjects in this message.
      */
     public Collection<Subject> getSubjects() {
-        return Collections.unmodifiableCollection(subjects);
+        if (subjects.length == 0) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(subjects));
     }
 
     /**
@@ -178,7 +189,7 @@ public class Message extends Packet {
     public Subject addSubject(String language, String subject) {
         language = determineLanguage(language);
         Subject messageSubject = new Subject(language, subject);
-        subjects.add(messageSubject);
+        subjects = add(subjects, messageSubject);
         return messageSubject;
     }
 
@@ -192,7 +203,7 @@ public class Message extends Packet {
         language = determineLanguage(language);
         for (Subject subject : subjects) {
             if (language.equals(subject.language)) {
-                return subjects.remove(subject);
+                return removeSubject(subject);
             }
         }
         return false;
@@ -205,7 +216,12 @@ public class Message extends Packet {
      * @return true if the subject was successfully removed and false if it was not.
      */
     public boolean removeSubject(Subject subject) {
-        return subjects.remove(subject);
+        Subject[] newSubjects = remove(subjects, subject);
+        if (newSubjects == subjects) {
+            return false;
+        }
+        subjects = newSubjects;
+        return true;
     }
 
     /**
@@ -270,7 +286,10 @@ public class Message extends Packet {
      * @since 3.0.2
      */
     public Collection<Body> getBodies() {
-        return Collections.unmodifiableCollection(bodies);
+        if (bodies.length == 0) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(bodies));
     }
 
     /**
@@ -298,7 +317,7 @@ public class Message extends Packet {
     public Body addBody(String language, String body) {
         language = determineLanguage(language);
         Body messageBody = new Body(language, body);
-        bodies.add(messageBody);
+        bodies = add(bodies, messageBody);
         return messageBody;
     }
 
@@ -312,7 +331,7 @@ public class Message extends Packet {
         language = determineLanguage(language);
         for (Body body : bodies) {
             if (language.equals(body.language)) {
-                return bodies.remove(body);
+                return removeBody(body);
             }
         }
         return false;
@@ -326,7 +345,12 @@ public class Message extends Packet {
      * @since 3.0.2
      */
     public boolean removeBody(Body body) {
-        return bodies.remove(body);
+        Body[] newBodies = remove(bodies, body);
+        if (newBodies == bodies) {
+            return false;
+        }
+        bodies = newBodies;
+        return true;
     }
 
     /**
@@ -405,69 +429,79 @@ public class Message extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<message");
+        return getStreamedXML();
+    }
+
+    public void toXML(Appendable out) throws IOException {
+        out.append("<message");
         if (getXmlns() != null) {
-            buf.append(" xmlns=\"").append(getXmlns()).append("\"");
+            out.append(" xmlns=\"").append(getXmlns()).append("\"");
         }
         if (language != null) {
-            buf.append(" xml:lang=\"").append(getLanguage()).append("\"");
+            out.append(" xml:lang=\"").append(getLanguage()).append("\"");
         }
         if (getPacketID() != null) {
-            buf.append(" id=\"").append(getPacketID()).append("\"");
+            out.append(" id=\"").append(getPacketID()).append("\"");
         }
         if (getTo() != null) {
-            buf.append(" to=\"").append(StringUtils.escapeForXML(getTo())).append("\"");
+            out.append(" to=\"");
+            StringUtils.escapeForXML(getTo(), out);
+            out.append("\"");
         }
         if (getFrom() != null) {
-            buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
+            out.append(" from=\"");
+            StringUtils.escapeForXML(getFrom(), out);
+            out.append("\"");
         }
         if (type != Type.normal) {
-            buf.append(" type=\"").append(type).append("\"");
+            out.append(" type=\"").append(type.toString()).append("\"");
         }
-        buf.append(">");
+        out.append(">");
         // Add the subject in the default language
         Subject defaultSubject = getMessageSubject(null);
         if (defaultSubject != null) {
-            buf.append("<subject>").append(StringUtils.escapeForXML(defaultSubject.subject)).append("</subject>");
+            out.append("<subject>");
+            StringUtils.escapeForXML(defaultSubject.subject, out);
+            out.append("</subject>");
         }
         // Add the subject in other languages
-        for (Subject subject : getSubjects()) {
+        for (Subject subject : subjects) {
             // Skip the default language
             if(subject.equals(defaultSubject))
                 continue;
-            buf.append("<subject xml:lang=\"").append(subject.language).append("\">");
-            buf.append(StringUtils.escapeForXML(subject.subject));
-            buf.append("</subject>");
+            out.append("<subject xml:lang=\"").append(subject.language).append("\">");
+            StringUtils.escapeForXML(subject.subject, out);
+            out.append("</subject>");
         }
         // Add the body in the default language
         Body defaultBody = getMessageBody(null);
         if (defaultBody != null) {
-            buf.append("<body>").append(StringUtils.escapeForXML(defaultBody.message)).append("</body>");
+            out.append("<body>");
+            StringUtils.escapeForXML(defaultBody.message, out);
+            out.append("</body>");
         }
         // Add the bodies in other languages
-        for (Body body : getBodies()) {
+        for (Body body : bodies) {
             // Skip the default language
             if(body.equals(defaultBody))
                 continue;
-            buf.append("<body xml:lang=\"").append(body.getLanguage()).append("\">");
-            buf.append(StringUtils.escapeForXML(body.getMessage()));
-            buf.append("</body>");
+            out.append("<body xml:lang=\"").append(body.getLanguage()).append("\">");
+            StringUtils.escapeForXML(body.getMessage(), out);
+            out.append("</body>");
         }
         if (thread != null) {
-            buf.append("<thread>").append(thread).append("</thread>");
+            out.append("<thread>").append(thread).append("</thread>");
         }
         // Append the error subpacket if the message type is an error.
         if (type == Type.error) {
             XMPPError error = getError();
             if (error != null) {
-                buf.append(error.toXML());
+                out.append(error.toXML());
             }
         }
         // Add packet extensions, if any are defined.
-        buf.append(getExtensionsXML());
-        buf.append("</message>");
-        return buf.toString();
+        appendExtensionsXML(out);
+        out.append("</message>");
     }
 
 
@@ -478,13 +512,13 @@ public class Message extends Packet {
         Message message = (Message) o;
 
         if(!super.equals(message)) { return false; }
-        if (bodies.size() != message.bodies.size() || !bodies.containsAll(message.bodies)) {
+        if (!sameElements(bodies, message.bodies)) {
             return false;
         }
         if (language != null ? !language.equals(message.language) : message.language != null) {
             return false;
         }
-        if (subjects.size() != message.subjects.size() || !subjects.containsAll(message.subjects)) {
+        if (!sameElements(subjects, message.subjects)) {
             return false;
         }
         if (thread != null ? !thread.equals(message.thread) : message.thread != null) {
@@ -497,13 +531,77 @@ public class Message extends Packet {
     public int hashCode() {
         int result;
         result = (type != null ? type.hashCode() : 0);
-        result = 31 * result + subjects.hashCode();
+        result = 31 * result + elementsHashCode(subjects);
         result = 31 * result + (thread != null ? thread.hashCode() : 0);
         result = 31 * result + (language != null ? language.hashCode() : 0);
-        result = 31 * result + bodies.hashCode();
+        result = 31 * result + elementsHashCode(bodies);
         return result;
     }
 
+    /**
+     * Returns an array with the element added at the end, or the same array if the array
+     * already contains the element.
+     */
+    private static <T> T[] add(T[] array, T element) {
+        for (T existing : array) {
+            if (existing.equals(element)) {
+                return array;
+            }
+        }
+        T[] newArray = Arrays.copyOf(array, array.length + 1);
+        newArray[array.length] = element;
+        return newArray;
+    }
+
+    /**
+     * Returns an array without the element, or the same array if the array does not
+     * contain the element.
+     */
+    private static <T> T[] remove(T[] array, Object element) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(element)) {
+                T[] newArray = Arrays.copyOf(array, array.length - 1);
+                System.arraycopy(array, i + 1, newArray, i, newArray.length - i);
+                return newArray;
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Returns true if both arrays contain the same elements in any order. The elements of
+     * each array are unique.
+     */
+    private static boolean sameElements(Object[] array, Object[] otherArray) {
+        if (array.length != otherArray.length) {
+            return false;
+        }
+        for (Object element : array) {
+            boolean found = false;
+            for (Object otherElement : otherArray) {
+                if (element.equals(otherElement)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the hash code of the elements of an array regardless of their order.
+     */
+    private static int elementsHashCode(Object[] array) {
+        int hashCode = 0;
+        for (Object element : array) {
+            hashCode += element.hashCode();
+        }
+        return hashCode;
+    }
+
     /**
      * Represents a message subject, its language and the content of the subject.
      */
@@ -21,12 +21,10 @@
 package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.WeakClassMap;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Base class for XMPP packets. Every packet has a unique ID (which is automatically
@@ -34,9 +32,17 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * as well as an arbitrary number of properties.
  *
  * Properties provide an easy mechanism for clients to share data. Each property has a
- * String name, and a value that is a Java primitive (int, long, float, double, boolean)
- * or any Serializable object (a Java object is Serializable when it implements the
- * Serializable interface).
+ * String name, and a value that is a Java primitive (int, long, float, double, boolean),
+ * a String, or any other object that has a codec registered with the
+ * {@link PropertyCodecManager}, which include byte arrays, UUIDs, dates, lists, sets and
+ * maps. Other Serializable objects are sent with Java serialization unless it was disabled,
+ * as are the values of the types that previous versions don't know until the manager is
+ * told to send them.<p>
+ *
+ * Packets keep their extensions in an array that is replaced whenever an extension is
+ * added or removed, so most packets, which have no extension or a few, only hold a small
+ * array or a shared empty one, and extensions are read without locking or copying. The
+ * map of properties is only created when the first property is set.
  *
  * @author Matt Tucker
  */
@@ -47,6 +53,13 @@ public abstract class Packet {
 
     private static String DEFAULT_XML_NS = null;
 
+    private static final PacketExtension[] NO_EXTENSIONS = new PacketExtension[0];
+
+    /**
+     * Whether each packet class overrides toXML() without overriding toXML(Appendable).
+     */
+    private static final WeakClassMap<Boolean> stringXMLClasses = new WeakClassMap<Boolean>();
+
     /**
      * Constant used as packetID to indicate that a packet has no id. To indicate that a packet
      * has no id set this constant as the packet's id. When the packet is asked for its id the
@@ -84,10 +97,10 @@ public abstract class Packet {
     private String packetID = null;
     private String to = null;
     private String from = null;
-    private final List<PacketExtension> packetExtensions
-            = new CopyOnWriteArrayList<PacketExtension>();
-
-    private final Map<String,Object> properties = new HashMap<String, Object>();
+    private JID toJID = null;
+    private JID fromJID = null;
+    private volatile PacketExtension[] packetExtensions = NO_EXTENSIONS;
+    private Map<String,Object> properties = null;
     private XMPPError error = null;
 
     /**
@@ -144,6 +157,22 @@ public abstract class Packet {
      */
     public void setTo(String to) {
         this.to = to;
+        this.toJID = null;
+    }
+
+    /**
+     * Returns the JID the packet is being sent "to", or <tt>null</tt> if the value is
+     * not set. The JID is created the first time it is requested and shares its parsed
+     * components with the other packets sent to the same address.
+     *
+     * @return the JID the packet is being sent to, or <tt>null</tt> if the value has
+     *      not been set.
+     */
+    public JID getToJID() {
+        if (toJID == null) {
+            toJID = JID.valueOf(to);
+        }
+        return toJID;
     }
 
     /**
@@ -174,6 +203,23 @@ public abstract class Packet {
      */
     public void setFrom(String from) {
         this.from = from;
+        this.fromJID = null;
+    }
+
+    /**
+     * Returns the JID the packet is being sent "from", or <tt>null</tt> if the value is
+     * not set. The JID is created the first time it is requested and shares its parsed
+     * components with the other packets sent from the same address, so it is cheaper
+     * than parsing the "from" field with the StringUtils class every time it is needed.
+     *
+     * @return the JID the packet is being sent from, or <tt>null</tt> if the value has
+     *      not been set.
+     */
+    public JID getFromJID() {
+        if (fromJID == null) {
+            fromJID = JID.valueOf(from);
+        }
+        return fromJID;
     }
 
     /**
@@ -197,14 +243,28 @@ public abstract class Packet {
 
     /**
      * Returns an unmodifiable collection of the packet extensions attached to the packet.
+     * Extensions that were not parsed yet are parsed; those that their provider failed to
+     * parse are returned as a {@link LazyPacketExtension}.
      *
      * @return the packet extensions.
+     * @see LazyPacketExtension
      */
-    public synchronized Collection<PacketExtension> getExtensions() {
-        if (packetExtensions == null) {
+    public Collection<PacketExtension> getExtensions() {
+        PacketExtension[] extensions = packetExtensions;
+        if (extensions.length == 0) {
             return Collections.emptyList();
         }
-        return Collections.unmodifiableList(new ArrayList<PacketExtension>(packetExtensions));
+        for (int i = 0; i < extensions.length; i++) {
+            if (extensions[i] instanceof LazyPacketExtension) {
+                PacketExtension extension = parseExtension((LazyPacketExtension) extensions[i]);
+                if (extension != null) {
+                    extensions[i] = extension;
+                }
+            }
+        }
+        // A new array is created when extensions are added or removed, so the array is
+        // returned without copying it
+        return Collections.unmodifiableList(Arrays.asList(extensions));
     }
 
     /**
@@ -226,11 +286,13 @@ public abstract class Packet {
      * PacketExtensionProvider instances can be registered with the 
      * {@link org.jivesoftware.smack.provider.ProviderManager ProviderManager}
      * class to handle custom parsing. In that case, the type of the Object
-     * will be determined by the provider.
+     * will be determined by the provider. Extensions that were not parsed yet are parsed,
+     * and <tt>null</tt> is returned if their provider fails to parse them.
      *
      * @param elementName the XML element name of the packet extension. (May be null)
      * @param namespace the XML element namespace of the packet extension.
      * @return the extension, or <tt>null</tt> if it doesn't exist.
+     * @see LazyPacketExtension
      */
     public PacketExtension getExtension(String elementName, String namespace) {
         if (namespace == null) {
@@ -240,19 +302,77 @@ public abstract class Packet {
             if ((elementName == null || elementName.equals(ext.getElementName()))
                     && namespace.equals(ext.getNamespace()))
             {
+                if (ext instanceof LazyPacketExtension) {
+                    return parseExtension((LazyPacketExtension) ext);
+                }
                 return ext;
             }
         }
         return null;
     }
 
+    /**
+     * Returns true if the packet has a packet extension that matches the specified element
+     * name and namespace. If the provided elementName is null than only the provided
+     * namespace is attempted to be matched. Unlike {@link #getExtension(String, String)},
+     * this method does not parse extensions that were not parsed yet, which makes it the
+     * better choice for packet filters.
+     *
+     * @param elementName the XML element name of the packet extension. (May be null)
+     * @param namespace the XML element namespace of the packet extension.
+     * @return true if the packet has a matching extension.
+     */
+    public boolean hasExtension(String elementName, String namespace) {
+        if (namespace == null) {
+            return false;
+        }
+        for (PacketExtension ext : packetExtensions) {
+            if ((elementName == null || elementName.equals(ext.getElementName()))
+                    && namespace.equals(ext.getNamespace()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses an extension that was not parsed yet, and replaces it with the parsed
+     * extension. The extension is kept if it could not be parsed.
+     *
+     * @param lazyExtension the extension to parse.
+     * @return the parsed extension, or <tt>null</tt> if it could not be parsed.
+     */
+    private PacketExtension parseExtension(LazyPacketExtension lazyExtension) {
+        PacketExtension extension = lazyExtension.getExtension();
+        if (extension == null) {
+            return null;
+        }
+        synchronized (this) {
+            // The extension is replaced in place since both represent the same XML. Threads
+            // that still see the lazy extension get the same parsed extension from it.
+            PacketExtension[] extensions = packetExtensions;
+            for (int i = 0; i < extensions.length; i++) {
+                if (extensions[i] == lazyExtension) {
+                    extensions[i] = extension;
+                    break;
+                }
+            }
+        }
+        return extension;
+    }
+
     /**
      * Adds a packet extension to the packet.
      *
      * @param extension a packet extension.
      */
-    public void addExtension(PacketExtension extension) {
-        packetExtensions.add(extension);
+    public synchronized void addExtension(PacketExtension extension) {
+        PacketExtension[] extensions = packetExtensions;
+        PacketExtension[] newExtensions = new PacketExtension[extensions.length + 1];
+        System.arraycopy(extensions, 0, newExtensions, 0, extensions.length);
+        newExtensions[extensions.length] = extension;
+        packetExtensions = newExtensions;
     }
 
     /**
@@ -260,8 +380,21 @@ public abstract class Packet {
      *
      * @param extension the packet extension to remove.
      */
-    public void removeExtension(PacketExtension extension)  {
-        packetExtensions.remove(extension);
+    public synchronized void removeExtension(PacketExtension extension)  {
+        PacketExtension[] extensions = packetExtensions;
+        for (int i = 0; i < extensions.length; i++) {
+            if (extensions[i].equals(extension)) {
+                if (extensions.length == 1) {
+                    packetExtensions = NO_EXTENSIONS;
+                    return;
+                }
+                PacketExtension[] newExtensions = new PacketExtension[extensions.length - 1];
+                System.arraycopy(extensions, 0, newExtensions, 0, i);
+                System.arraycopy(extensions, i + 1, newExtensions, i, newExtensions.length - i);
+                packetExtensions = newExtensions;
+                return;
+            }
+        }
     }
 
     /**
@@ -281,15 +414,19 @@ public abstract class Packet {
     }
 
     /**
-     * Sets a property with an Object as the value. The value must be Serializable
-     * or an IllegalArgumentException will be thrown.
+     * Sets a property with an Object as the value. The value must have a codec registered
+     * with the {@link PropertyCodecManager} or be Serializable while Java serialization is
+     * enabled, or an IllegalArgumentException will be thrown.
      *
      * @param name the name of the property.
      * @param value the value of the property.
      */
     public synchronized void setProperty(String name, Object value) {
-        if (!(value instanceof Serializable)) {
-            throw new IllegalArgumentException("Value must be serialiazble");
+        if (PropertyCodecManager.getInstance().getCodec(value) == null) {
+            throw new IllegalArgumentException("Value has no codec and cannot be sent");
+        }
+        if (properties == null) {
+            properties = new HashMap<String, Object>(4);
         }
         properties.put(name, value);
     }
@@ -327,6 +464,105 @@ public abstract class Packet {
      */
     public abstract String toXML();
 
+    /**
+     * Writes the packet as XML to the specified output. Packets are sent to the server
+     * with this method so that the XML of large packets is written directly to the
+     * connection instead of being built as a String first. By default the String returned
+     * by {@link #toXML()} is written. Sub-classes that override this method should
+     * implement {@link #toXML()} with {@link #getStreamedXML()} so that both methods
+     * always return the same XML.
+     *
+     * @param out the output to write the XML to.
+     * @throws IOException if an error occurs while writing to the output.
+     * @see #writeXML(Appendable)
+     */
+    public void toXML(Appendable out) throws IOException {
+        out.append(toXML());
+    }
+
+    /**
+     * Writes the packet as XML to the specified output, as it's sent to the server. The
+     * XML is written with {@link #toXML(Appendable)}, unless a sub-class overrides
+     * {@link #toXML()} without also overriding {@link #toXML(Appendable)}, as sub-classes
+     * written before packets could be streamed do. The String returned by {@link #toXML()}
+     * is then written, so that the XML of such sub-classes is not lost.
+     *
+     * @param out the output to write the XML to.
+     * @throws IOException if an error occurs while writing to the output.
+     */
+    public final void writeXML(Appendable out) throws IOException {
+        if (overridesStringOnly(stringXMLClasses, getClass(), "toXML", "toXML")) {
+            out.append(toXML());
+        }
+        else {
+            toXML(out);
+        }
+    }
+
+    /**
+     * Returns true if a method that returns XML as a String is declared by a sub-class of
+     * the most derived class that declares the method that writes the same XML to an
+     * Appendable. The result is computed once per class and cached in a map that is read
+     * without locking and whose keys are weak, so that the classes can be unloaded.
+     *
+     * @param cache the cache of the results of the method.
+     * @param packetClass the class of the packet.
+     * @param stringMethod the name of the method that returns the XML as a String.
+     * @param streamMethod the name of the method that writes the XML to an Appendable.
+     * @return true if the XML must be obtained with the method that returns a String.
+     */
+    static boolean overridesStringOnly(WeakClassMap<Boolean> cache, Class<?> packetClass,
+            String stringMethod, String streamMethod)
+    {
+        Boolean stringOnly = cache.get(packetClass);
+        if (stringOnly == null) {
+            // Computing the result again in concurrent threads is harmless
+            int stringDepth = -1;
+            int streamDepth = -1;
+            int depth = 0;
+            for (Class<?> c = packetClass; c != null; c = c.getSuperclass(), depth++) {
+                if (stringDepth < 0 && declares(c, stringMethod)) {
+                    stringDepth = depth;
+                }
+                if (streamDepth < 0 && declares(c, streamMethod, Appendable.class)) {
+                    streamDepth = depth;
+                }
+            }
+            stringOnly = stringDepth >= 0 && (streamDepth < 0 || stringDepth < streamDepth);
+            cache.put(packetClass, stringOnly);
+        }
+        return stringOnly;
+    }
+
+    private static boolean declares(Class<?> c, String name, Class<?>... parameterTypes) {
+        try {
+            c.getDeclaredMethod(name, parameterTypes);
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+        catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the XML written by {@link #toXML(Appendable)} as a String.
+     *
+     * @return the XML format of the packet as a String.
+     */
+    protected String getStreamedXML() {
+        StringBuilder buf = new StringBuilder();
+        try {
+            toXML(buf);
+        }
+        catch (IOException ioe) {
+            // Never happens since a StringBuilder is used
+        }
+        return buf.toString();
+    }
+
     /**
      * Returns the extension sub-packets (including properties data) as an XML
      * String, or the Empty String if there are no packet extensions.
@@ -334,82 +570,92 @@ public abstract class Packet {
      * @return the extension sub-packets as XML or the Empty String if there
      * are no packet extensions.
      */
-    protected synchronized String getExtensionsXML() {
+    protected String getExtensionsXML() {
         StringBuilder buf = new StringBuilder();
+        try {
+            appendExtensionsXML(buf);
+        }
+        catch (IOException ioe) {
+            // Never happens since a StringBuilder is used
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Writes the extension sub-packets (including properties data) as XML to the
+     * specified output. Nothing is written if there are no packet extensions.
+     *
+     * @param out the output to write the XML to.
+     * @throws IOException if an error occurs while writing to the output.
+     */
+    protected void appendExtensionsXML(Appendable out) throws IOException {
         // Add in all standard extension sub-packets.
-        for (PacketExtension extension : getExtensions()) {
-            buf.append(extension.toXML());
+        for (PacketExtension extension : packetExtensions) {
+            appendExtensionXML(extension, out);
         }
         // Add in packet properties.
-        if (properties != null && !properties.isEmpty()) {
-            buf.append("<properties xmlns=\"http://www.jivesoftware.com/xmlns/xmpp/properties\">");
-            // Loop through all properties and write them out.
-            for (String name : getPropertyNames()) {
-                Object value = getProperty(name);
-                buf.append("<property>");
-                buf.append("<name>").append(StringUtils.escapeForXML(name)).append("</name>");
-                buf.append("<value type=\"");
-                if (value instanceof Integer) {
-                    buf.append("integer\">").append(value).append("</value>");
-                }
-                else if (value instanceof Long) {
-                    buf.append("long\">").append(value).append("</value>");
-                }
-                else if (value instanceof Float) {
-                    buf.append("float\">").append(value).append("</value>");
-                }
-                else if (value instanceof Double) {
-                    buf.append("double\">").append(value).append("</value>");
-                }
-                else if (value instanceof Boolean) {
-                    buf.append("boolean\">").append(value).append("</value>");
-                }
-                else if (value instanceof String) {
-                    buf.append("string\">");
-                    buf.append(StringUtils.escapeForXML((String)value));
-                    buf.append("</value>");
+        synchronized (this) {
+            if (properties != null && !properties.isEmpty()) {
+                appendPropertiesXML(out);
+            }
+        }
+    }
+
+    /**
+     * Writes the packet properties as XML to the specified output.
+     */
+    private void appendPropertiesXML(Appendable out) throws IOException {
+        out.append("<properties xmlns=\"http://www.jivesoftware.com/xmlns/xmpp/properties\">");
+        PropertyCodecManager codecManager = PropertyCodecManager.getInstance();
+        // Loop through all properties and write them out.
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            PropertyCodec codec = codecManager.getCodec(property.getValue());
+            String encodedVal = null;
+            if (codec != null) {
+                try {
+                    encodedVal = codec.encode(property.getValue());
                 }
-                // Otherwise, it's a generic Serializable object. Serialized objects are in
-                // a binary format, which won't work well inside of XML. Therefore, we base-64
-                // encode the binary data before adding it.
-                else {
-                    ByteArrayOutputStream byteStream = null;
-                    ObjectOutputStream out = null;
-                    try {
-                        byteStream = new ByteArrayOutputStream();
-                        out = new ObjectOutputStream(byteStream);
-                        out.writeObject(value);
-                        buf.append("java-object\">");
-                        String encodedVal = StringUtils.encodeBase64(byteStream.toByteArray());
-                        buf.append(encodedVal).append("</value>");
-                    }
-                    catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    finally {
-                        if (out != null) {
-                            try {
-                                out.close();
-                            }
-                            catch (Exception e) {
-                                // Ignore.
-                            }
-                        }
-                        if (byteStream != null) {
-                            try {
-                                byteStream.close();
-                            }
-                            catch (Exception e) {
-                                // Ignore.
-                            }
-                        }
-                    }
+                catch (Exception e) {
+                    e.printStackTrace();
                 }
-                buf.append("</property>");
             }
-            buf.append("</properties>");
+            if (encodedVal == null) {
+                // Skip the property since the value could not be encoded
+                continue;
+            }
+            out.append("<property>");
+            out.append("<name>");
+            StringUtils.escapeForXML(property.getKey(), out);
+            out.append("</name>");
+            out.append("<value type=\"");
+            StringUtils.escapeForXML(codec.getType(), out);
+            out.append("\">");
+            StringUtils.escapeForXML(encodedVal, out);
+            out.append("</value>");
+            out.append("</property>");
+        }
+        out.append("</properties>");
+    }
+
+    /**
+     * Writes the XML of a packet extension to the specified output. Extensions that
+     * implement {@link StreamablePacketExtension} write their XML directly to the output,
+     * the XML of other extensions is obtained with {@link PacketExtension#toXML()}.
+     * Extensions that contain other extensions may use this method to write them.
+     *
+     * @param extension the packet extension to write.
+     * @param out the output to write the XML to.
+     * @throws IOException if an error occurs while writing to the output.
+     */
+    public static void appendExtensionXML(PacketExtension extension, Appendable out)
+            throws IOException
+    {
+        if (extension instanceof StreamablePacketExtension) {
+            ((StreamablePacketExtension) extension).toXML(out);
+        }
+        else {
+            out.append(extension.toXML());
         }
-        return buf.toString();
     }
 
     public String getXmlns() {
@@ -433,12 +679,13 @@ public abstract class Packet {
 
         if (error != null ? !error.equals(packet.error) : packet.error != null) { return false; }
         if (from != null ? !from.equals(packet.from) : packet.from != null) { return false; }
-        if (!packetExtensions.equals(packet.packetExtensions)) { return false; }
+        if (!Arrays.equals(packetExtensions, packet.packetExtensions)) { return false; }
         if (packetID != null ? !packetID.equals(packet.packetID) : packet.packetID != null) {
             return false;
         }
-        if (properties != null ? !properties.equals(packet.properties)
-                : packet.properties != null) {
+        if (properties != null && !properties.isEmpty()
+                ? !properties.equals(packet.properties)
+                : packet.properties != null && !packet.properties.isEmpty()) {
             return false;
         }
         if (to != null ? !to.equals(packet.to) : packet.to != null)  { return false; }
@@ -451,8 +698,8 @@ public abstract class Packet {
         result = 31 * result + (packetID != null ? packetID.hashCode() : 0);
         result = 31 * result + (to != null ? to.hashCode() : 0);
         result = 31 * result + (from != null ? from.hashCode() : 0);
-        result = 31 * result + packetExtensions.hashCode();
-        result = 31 * result + properties.hashCode();
+        result = 31 * result + Arrays.hashCode(packetExtensions);
+        result = 31 * result + (properties != null ? properties.hashCode() : 0);
         result = 31 * result + (error != null ? error.hashCode() : 0);
         return result;
     }
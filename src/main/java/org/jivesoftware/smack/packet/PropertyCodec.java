@@ -0,0 +1,66 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+/**
+ * Encodes the values of a class of packet properties as text and decodes them back. Each
+ * property is sent as a <tt>value</tt> element whose <tt>type</tt> attribute is the type
+ * of the codec and whose text is the encoded value:
+ *
+ * <pre>
+ * &lt;property&gt;&lt;name&gt;session&lt;/name&gt;&lt;value type="uuid"&gt;f81d4fae-7dec-11d0-a765-00a0c91e6bf6&lt;/value&gt;&lt;/property&gt;
+ * </pre>
+ *
+ * Codecs are registered with the {@link PropertyCodecManager}. The peer must have a codec
+ * registered for the same type in order to decode the value.
+ *
+ * @see Packet#setProperty(String, Object)
+ */
+public interface PropertyCodec {
+
+    /**
+     * Returns the type of the values, sent in the <tt>type</tt> attribute of the
+     * <tt>value</tt> element.
+     *
+     * @return the type of the values.
+     */
+    String getType();
+
+    /**
+     * Returns the class of the values encoded by the codec. The codec is used for the
+     * values of the class and of its sub-classes.
+     *
+     * @return the class of the values.
+     */
+    Class<?> getValueClass();
+
+    /**
+     * Encodes a value as text. The text is escaped when it's written as XML.
+     *
+     * @param value the value to encode, an instance of the class of the values.
+     * @return the encoded value.
+     * @throws Exception if the value cannot be encoded.
+     */
+    String encode(Object value) throws Exception;
+
+    /**
+     * Decodes a value encoded by a codec of the same type.
+     *
+     * @param text the encoded value.
+     * @return the value.
+     * @throws Exception if the text is not a valid encoded value.
+     */
+    Object decode(String text) throws Exception;
+}
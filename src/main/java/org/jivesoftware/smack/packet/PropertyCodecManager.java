@@ -0,0 +1,360 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Manages the codecs of packet property values. The codec of a value is the most recently
+ * registered codec whose value class is the class of the value or a super-class or
+ * interface of it, and the codec of a received value is the codec registered for its type.
+ * The following codecs are registered by default:
+ *
+ * <table border="1">
+ * <tr><td><b>Type</b></td><td><b>Values</b></td><td><b>Encoding</b></td></tr>
+ * <tr><td>string, integer, long, float, double, boolean</td><td>String and the wrappers
+ *      of the primitives</td><td>the value as text</td></tr>
+ * <tr><td>bytes</td><td>byte[]</td><td>Base64</td></tr>
+ * <tr><td>uuid</td><td>UUID</td><td>the standard form of the UUID</td></tr>
+ * <tr><td>date</td><td>Date</td><td>milliseconds since the epoch</td></tr>
+ * <tr><td>list, set, map</td><td>List, Set, Map</td><td>a compact binary form of the
+ *      elements, encoded in Base64</td></tr>
+ * </table><p>
+ *
+ * The elements of lists, sets and maps may be <tt>null</tt>, values of the default types,
+ * or values of any registered codec. Received lists, sets and maps are an ArrayList, a
+ * LinkedHashSet and a LinkedHashMap.<p>
+ *
+ * Values that have no codec but are Serializable are sent with Java serialization using
+ * the <tt>java-object</tt> type, which is the only way previous versions sent values other
+ * than strings and primitives. Java serialization is slow, produces large values, and lets
+ * the peer create objects of any class that is available to the application, so it can be
+ * disabled with {@link #setJavaSerializationEnabled(boolean)}.<p>
+ *
+ * Peers running previous versions ignore the properties of the bytes, uuid, date, list,
+ * set and map types, so these types are always decoded but are only used to send values
+ * once {@link #setExtendedTypesSent(boolean)} is enabled, which should be done when every
+ * peer runs this version. Until then their values are sent with Java serialization as
+ * before, or with their own type if Java serialization is disabled or the value is not
+ * Serializable, since previous versions could not send such values at all.
+ *
+ * @see Packet#setProperty(String, Object)
+ */
+public final class PropertyCodecManager {
+
+    /**
+     * The type of values sent with Java serialization.
+     */
+    public static final String JAVA_OBJECT_TYPE = "java-object";
+
+    private static final PropertyCodecManager instance = new PropertyCodecManager();
+
+    private static final PropertyCodec JAVA_OBJECT = new JavaObjectCodec();
+
+    /**
+     * Marks the classes that have no codec in the cache of codecs by class.
+     */
+    private static final PropertyCodec NO_CODEC = new TextCodec("none", Void.class);
+
+    private final Map<String, PropertyCodec> codecsByType =
+            new ConcurrentHashMap<String, PropertyCodec>();
+    private final List<PropertyCodec> codecs = new CopyOnWriteArrayList<PropertyCodec>();
+    private final Map<Class<?>, PropertyCodec> codecsByClass =
+            new ConcurrentHashMap<Class<?>, PropertyCodec>();
+    private final List<PropertyCodec> extendedCodecs = new CopyOnWriteArrayList<PropertyCodec>();
+    private volatile boolean javaSerializationEnabled = true;
+    private volatile boolean extendedTypesSent = false;
+
+    /**
+     * Returns the manager of the codecs of packet property values.
+     *
+     * @return the manager of the codecs.
+     */
+    public static PropertyCodecManager getInstance() {
+        return instance;
+    }
+
+    private PropertyCodecManager() {
+        addCodec(new TextCodec("string", String.class));
+        addCodec(new TextCodec("integer", Integer.class) {
+            public Object decode(String text) {
+                return Integer.valueOf(text);
+            }
+        });
+        addCodec(new TextCodec("long", Long.class) {
+            public Object decode(String text) {
+                return Long.valueOf(text);
+            }
+        });
+        addCodec(new TextCodec("float", Float.class) {
+            public Object decode(String text) {
+                return Float.valueOf(text);
+            }
+        });
+        addCodec(new TextCodec("double", Double.class) {
+            public Object decode(String text) {
+                return Double.valueOf(text);
+            }
+        });
+        addCodec(new TextCodec("boolean", Boolean.class) {
+            public Object decode(String text) {
+                return Boolean.valueOf(text);
+            }
+        });
+        addExtendedCodec(new TextCodec("bytes", byte[].class) {
+            public String encode(Object value) {
+                return StringUtils.encodeBase64((byte[]) value, false);
+            }
+
+            public Object decode(String text) {
+                return StringUtils.decodeBase64(text);
+            }
+        });
+        addExtendedCodec(new TextCodec("uuid", UUID.class) {
+            public Object decode(String text) {
+                return UUID.fromString(text);
+            }
+        });
+        addExtendedCodec(new TextCodec("date", Date.class) {
+            public String encode(Object value) {
+                return Long.toString(((Date) value).getTime());
+            }
+
+            public Object decode(String text) {
+                return new Date(Long.parseLong(text));
+            }
+        });
+        addExtendedCodec(new BinaryPropertyCodec(this, "list", List.class));
+        addExtendedCodec(new BinaryPropertyCodec(this, "set", Set.class));
+        addExtendedCodec(new BinaryPropertyCodec(this, "map", Map.class));
+    }
+
+    /**
+     * Registers a built-in codec of a type that previous versions don't know.
+     */
+    private void addExtendedCodec(PropertyCodec codec) {
+        addCodec(codec);
+        extendedCodecs.add(0, codec);
+    }
+
+    /**
+     * Registers a codec. The codec replaces the codec registered for the same type, and
+     * takes precedence over the codecs registered before it for the values of its class.
+     *
+     * @param codec the codec to register.
+     */
+    public synchronized void addCodec(PropertyCodec codec) {
+        removeCodec(codec.getType());
+        codecsByType.put(codec.getType(), codec);
+        codecs.add(0, codec);
+        codecsByClass.clear();
+    }
+
+    /**
+     * Unregisters the codec of a type.
+     *
+     * @param type the type of the codec.
+     */
+    public synchronized void removeCodec(String type) {
+        PropertyCodec codec = codecsByType.remove(type);
+        if (codec != null) {
+            codecs.remove(codec);
+            extendedCodecs.remove(codec);
+            codecsByClass.clear();
+        }
+    }
+
+    /**
+     * Returns the codec of a received value type, or <tt>null</tt> if the type has no
+     * codec. The codec of the <tt>java-object</tt> type is only returned when Java
+     * serialization is enabled.
+     *
+     * @param type the type of the value.
+     * @return the codec of the type, or <tt>null</tt> if the type has no codec.
+     */
+    public PropertyCodec getCodec(String type) {
+        if (type == null) {
+            return null;
+        }
+        PropertyCodec codec = codecsByType.get(type);
+        if (codec == null && javaSerializationEnabled && JAVA_OBJECT_TYPE.equals(type)) {
+            return JAVA_OBJECT;
+        }
+        return codec;
+    }
+
+    /**
+     * Returns the codec of a value to send, or <tt>null</tt> if the value cannot be sent.
+     * Values that have no codec are sent with Java serialization if it's enabled and the
+     * value is Serializable. The built-in codecs of the types that previous versions don't
+     * know are only returned when they are sent or when the value cannot be sent otherwise.
+     *
+     * @param value the value.
+     * @return the codec of the value, or <tt>null</tt> if the value cannot be sent.
+     */
+    public PropertyCodec getCodec(Object value) {
+        if (value == null) {
+            return null;
+        }
+        Class<?> valueClass = value.getClass();
+        PropertyCodec codec = codecsByClass.get(valueClass);
+        if (codec == null) {
+            codec = NO_CODEC;
+            boolean skipExtended = !extendedTypesSent;
+            for (PropertyCodec candidate : codecs) {
+                if (candidate.getValueClass().isAssignableFrom(valueClass)
+                        && !(skipExtended && extendedCodecs.contains(candidate)))
+                {
+                    codec = candidate;
+                    break;
+                }
+            }
+            codecsByClass.put(valueClass, codec);
+        }
+        if (codec != NO_CODEC) {
+            return codec;
+        }
+        if (javaSerializationEnabled && value instanceof Serializable) {
+            return JAVA_OBJECT;
+        }
+        for (PropertyCodec candidate : extendedCodecs) {
+            if (candidate.getValueClass().isAssignableFrom(valueClass)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if values of the bytes, uuid, date, list, set and map types are sent with
+     * their own type instead of Java serialization. Previous versions ignore the properties
+     * of these types, so by default they are only received.
+     *
+     * @return true if the values of the types that previous versions don't know are sent.
+     */
+    public boolean isExtendedTypesSent() {
+        return extendedTypesSent;
+    }
+
+    /**
+     * Sets whether values of the bytes, uuid, date, list, set and map types are sent with
+     * their own type instead of Java serialization. This should only be enabled when no
+     * peer runs a previous version, since those ignore the properties of these types.
+     *
+     * @param extendedTypesSent true to send the values of the types that previous versions
+     *      don't know with their own type.
+     */
+    public synchronized void setExtendedTypesSent(boolean extendedTypesSent) {
+        this.extendedTypesSent = extendedTypesSent;
+        codecsByClass.clear();
+    }
+
+    /**
+     * Returns true if values that have no codec are sent and received with Java
+     * serialization. By default Java serialization is enabled.
+     *
+     * @return true if Java serialization is enabled.
+     */
+    public boolean isJavaSerializationEnabled() {
+        return javaSerializationEnabled;
+    }
+
+    /**
+     * Sets whether values that have no codec are sent and received with Java serialization.
+     * When disabled, received <tt>java-object</tt> values are ignored and properties that
+     * have no codec cannot be set.
+     *
+     * @param javaSerializationEnabled true to enable Java serialization.
+     */
+    public void setJavaSerializationEnabled(boolean javaSerializationEnabled) {
+        this.javaSerializationEnabled = javaSerializationEnabled;
+    }
+
+    /**
+     * A codec of values whose text is returned by <tt>toString()</tt>.
+     */
+    private static class TextCodec implements PropertyCodec {
+
+        private final String type;
+        private final Class<?> valueClass;
+
+        TextCodec(String type, Class<?> valueClass) {
+            this.type = type;
+            this.valueClass = valueClass;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public Class<?> getValueClass() {
+            return valueClass;
+        }
+
+        public String encode(Object value) {
+            return value.toString();
+        }
+
+        public Object decode(String text) {
+            return text;
+        }
+    }
+
+    /**
+     * The codec of values sent with Java serialization, encoded in Base64.
+     */
+    private static class JavaObjectCodec implements PropertyCodec {
+
+        public String getType() {
+            return JAVA_OBJECT_TYPE;
+        }
+
+        public Class<?> getValueClass() {
+            return Serializable.class;
+        }
+
+        public String encode(Object value) throws Exception {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(byteStream);
+            out.writeObject(value);
+            out.close();
+            return StringUtils.encodeBase64(byteStream.toByteArray());
+        }
+
+        public Object decode(String text) throws Exception {
+            byte[] bytes = StringUtils.decodeBase64(text);
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return in.readObject();
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 public class RosterPacket extends IQ {
 
     private final List<Item> rosterItems = new ArrayList<Item>();
+    private String version;
 
     /**
      * Adds a roster item to the packet.
@@ -68,10 +69,36 @@ public class RosterPacket extends IQ {
         }
     }
 
+    /**
+     * Returns the version of the roster (XEP-0237), or <tt>null</tt> if the packet has no
+     * version. A request with a version asks the server for the changes since that version
+     * only, and a result or push with a version tells the version the roster has after
+     * applying it.
+     *
+     * @return the version of the roster, or <tt>null</tt> if the packet has no version.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the roster (XEP-0237). An empty version requests the whole
+     * roster from a server that supports roster versioning.
+     *
+     * @param version the version of the roster, or <tt>null</tt> to send no version.
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
     public String getChildElementXML() {
         StringBuilder buf = new StringBuilder();
         //buf.append("<query xmlns=\"jabber:iq:roster\">");
-        buf.append("<query xmlns=\"jabber:iq:roster\" xmlns:gr=\"google:roster\" gr:ext=\"2\">");
+        buf.append("<query xmlns=\"jabber:iq:roster\" xmlns:gr=\"google:roster\" gr:ext=\"2\"");
+        if (version != null) {
+            buf.append(" ver=\"").append(StringUtils.escapeForXML(version)).append("\"");
+        }
+        buf.append(">");
         synchronized (rosterItems) {
             for (Item entry : rosterItems) {
                 buf.append(entry.toXML());
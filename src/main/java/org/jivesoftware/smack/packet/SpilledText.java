@@ -0,0 +1,262 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A text node of an incoming stanza that was too large to be kept in memory and was
+ * written to a temporary file as it was received. The text is removed from the stanza
+ * before it is parsed, so the element that contained it appears empty, and the packet is
+ * given one of these extensions for each spilled text node. The text is read from the
+ * file on demand, with the entities of the XML replaced.<p>
+ *
+ * Text nodes are only spilled when the connection was configured to do so with
+ * {@link org.jivesoftware.smack.ConnectionConfiguration.TextSizePolicy#spill}. The files
+ * are deleted when the application exits, but long-running applications should
+ * {@link #delete()} them once they were read. The extension is not sent if the packet is
+ * sent again.
+ *
+ * @see #getSpilledTexts(Packet)
+ */
+public final class SpilledText implements PacketExtension {
+
+    public static final String ELEMENT_NAME = "spilled-text";
+
+    public static final String NAMESPACE = "http://www.jivesoftware.com/xmlns/xmpp/spilled-text";
+
+    private final String parentElementName;
+    private final File file;
+    private final long length;
+
+    /**
+     * Creates a handle of a spilled text node.
+     *
+     * @param parentElementName the name of the element that contained the text.
+     * @param file the file that contains the text as it was received.
+     * @param length the number of characters of the text as it was received.
+     */
+    public SpilledText(String parentElementName, File file, long length) {
+        this.parentElementName = parentElementName;
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Returns the spilled text nodes of a packet, in the order they were received.
+     *
+     * @param packet the packet.
+     * @return the spilled text nodes of the packet, or an empty list if no text was spilled.
+     */
+    public static List<SpilledText> getSpilledTexts(Packet packet) {
+        List<SpilledText> spilledTexts = new ArrayList<SpilledText>();
+        for (PacketExtension extension : packet.getExtensions()) {
+            if (extension instanceof SpilledText) {
+                spilledTexts.add((SpilledText) extension);
+            }
+        }
+        return spilledTexts;
+    }
+
+    public String getElementName() {
+        return ELEMENT_NAME;
+    }
+
+    public String getNamespace() {
+        return NAMESPACE;
+    }
+
+    /**
+     * Returns the qualified name of the element that contained the text, for example
+     * <tt>body</tt> or <tt>BINVAL</tt>.
+     *
+     * @return the name of the element that contained the text.
+     */
+    public String getParentElementName() {
+        return parentElementName;
+    }
+
+    /**
+     * Returns the file that contains the text as it was received, encoded in UTF-8 and
+     * with its entities not replaced.
+     *
+     * @return the file that contains the text.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of characters of the text as it was received, before entities
+     * are replaced.
+     *
+     * @return the length of the text as it was received.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns a reader of the text, with the entities of the XML replaced by the
+     * characters they stand for. The reader must be closed.
+     *
+     * @return a reader of the text.
+     * @throws IOException if the file cannot be read.
+     */
+    public Reader getReader() throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        return new UnescapingReader(new PushbackReader(new BufferedReader(in, 8192)));
+    }
+
+    /**
+     * Reads the whole text into memory.
+     *
+     * @return the text.
+     * @throws IOException if the file cannot be read.
+     */
+    public String getText() throws IOException {
+        StringBuilder text = new StringBuilder((int) Math.min(length, Integer.MAX_VALUE));
+        Reader reader = getReader();
+        try {
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return text.toString();
+    }
+
+    /**
+     * Deletes the file that contains the text.
+     *
+     * @return true if the file was deleted.
+     */
+    public boolean delete() {
+        return file.delete();
+    }
+
+    /**
+     * Returns an empty String since the text is not sent again.
+     *
+     * @return an empty String.
+     */
+    public String toXML() {
+        return "";
+    }
+
+    /**
+     * Replaces the predefined entities and the character references of the text, and
+     * normalizes line breaks as an XML parser does.
+     */
+    private static class UnescapingReader extends Reader {
+
+        private final PushbackReader in;
+        private int pending = -1;
+
+        UnescapingReader(PushbackReader in) {
+            this.in = in;
+        }
+
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int count = 0;
+            while (count < length) {
+                int c = next();
+                if (c == -1) {
+                    break;
+                }
+                buffer[offset + count++] = (char) c;
+            }
+            return count == 0 && length > 0 ? -1 : count;
+        }
+
+        private int next() throws IOException {
+            if (pending != -1) {
+                int c = pending;
+                pending = -1;
+                return c;
+            }
+            int c = in.read();
+            if (c == '\r') {
+                int next = in.read();
+                if (next != '\n' && next != -1) {
+                    in.unread(next);
+                }
+                return '\n';
+            }
+            if (c != '&') {
+                return c;
+            }
+            StringBuilder entity = new StringBuilder(8);
+            while ((c = in.read()) != ';') {
+                if (c == -1 || entity.length() > 10) {
+                    throw new IOException("Invalid entity: &" + entity);
+                }
+                entity.append((char) c);
+            }
+            String name = entity.toString();
+            if (name.equals("lt")) {
+                return '<';
+            }
+            if (name.equals("gt")) {
+                return '>';
+            }
+            if (name.equals("amp")) {
+                return '&';
+            }
+            if (name.equals("quot")) {
+                return '"';
+            }
+            if (name.equals("apos")) {
+                return '\'';
+            }
+            try {
+                int codePoint;
+                if (name.startsWith("#x")) {
+                    codePoint = Integer.parseInt(name.substring(2), 16);
+                }
+                else if (name.startsWith("#")) {
+                    codePoint = Integer.parseInt(name.substring(1));
+                }
+                else {
+                    throw new IOException("Unknown entity: &" + name + ";");
+                }
+                char[] chars = Character.toChars(codePoint);
+                if (chars.length == 2) {
+                    pending = chars[1];
+                }
+                return chars[0];
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Invalid character reference: &" + name + ";");
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
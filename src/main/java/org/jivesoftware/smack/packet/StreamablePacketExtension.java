@@ -0,0 +1,39 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import java.io.IOException;
+
+/**
+ * A packet extension that can write its XML directly to the connection. Packets write
+ * their extensions while they are being sent, so extensions that carry large payloads
+ * should implement this interface to avoid building the XML as a String first. Extensions
+ * that only implement {@link PacketExtension#toXML()} are still supported: their XML is
+ * appended to the output as is.
+ *
+ * @see Packet#toXML(Appendable)
+ * @see Packet#appendExtensionXML(PacketExtension, Appendable)
+ */
+public interface StreamablePacketExtension extends PacketExtension {
+
+    /**
+     * Writes the XML representation of the extension. The output must be the same as
+     * the String returned by {@link #toXML()}.
+     *
+     * @param out the output to write the XML to.
+     * @throws IOException if an error occurs while writing to the output.
+     */
+    public void toXML(Appendable out) throws IOException;
+}
@@ -28,7 +28,6 @@ import org.xmlpull.v1.XmlPullParser;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manages providers for parsing custom XML sub-documents of XMPP packets. Two types of
@@ -119,8 +118,8 @@ public class ProviderManager {
 
     private static ProviderManager instance;
 
-    private Map<String, Object> extensionProviders = new ConcurrentHashMap<String, Object>();
-    private Map<String, Object> iqProviders = new ConcurrentHashMap<String, Object>();
+    private final ProviderMap extensionProviders = new ProviderMap();
+    private final ProviderMap iqProviders = new ProviderMap();
 
     /**
      * Returns the only ProviderManager valid instance.  Use {@link #setInstance(ProviderManager)}
@@ -182,8 +181,7 @@ public class ProviderManager {
                                     String className = parser.nextText();
                                     // Only add the provider for the namespace if one isn't
                                     // already registered.
-                                    String key = getProviderKey(elementName, namespace);
-                                    if (!iqProviders.containsKey(key)) {
+                                    if (iqProviders.get(elementName, namespace) == null) {
                                         // Attempt to load the provider class and then create
                                         // a new instance if it's an IQProvider. Otherwise, if it's
                                         // an IQ class, add the class object itself, then we'll use
@@ -192,10 +190,11 @@ public class ProviderManager {
                                             // Add the provider to the map.
                                             Class provider = Class.forName(className);
                                             if (IQProvider.class.isAssignableFrom(provider)) {
-                                                iqProviders.put(key, provider.newInstance());
+                                                iqProviders.put(elementName, namespace,
+                                                        provider.newInstance());
                                             }
                                             else if (IQ.class.isAssignableFrom(provider)) {
-                                                iqProviders.put(key, provider);
+                                                iqProviders.put(elementName, namespace, provider);
                                             }
                                         }
                                         catch (ClassNotFoundException cnfe) {
@@ -215,8 +214,7 @@ public class ProviderManager {
                                     String className = parser.nextText();
                                     // Only add the provider for the namespace if one isn't
                                     // already registered.
-                                    String key = getProviderKey(elementName, namespace);
-                                    if (!extensionProviders.containsKey(key)) {
+                                    if (extensionProviders.get(elementName, namespace) == null) {
                                         // Attempt to load the provider class and then create
                                         // a new instance if it's a Provider. Otherwise, if it's
                                         // a PacketExtension, add the class object itself and
@@ -227,11 +225,13 @@ public class ProviderManager {
                                             Class provider = Class.forName(className);
                                             if (PacketExtensionProvider.class.isAssignableFrom(
                                                     provider)) {
-                                                extensionProviders.put(key, provider.newInstance());
+                                                extensionProviders.put(elementName, namespace,
+                                                        provider.newInstance());
                                             }
                                             else if (PacketExtension.class.isAssignableFrom(
                                                     provider)) {
-                                                extensionProviders.put(key, provider);
+                                                extensionProviders.put(elementName, namespace,
+                                                        provider);
                                             }
                                         }
                                         catch (ClassNotFoundException cnfe) {
@@ -281,8 +281,7 @@ public class ProviderManager {
      * @return the IQ provider.
      */
     public Object getIQProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        return iqProviders.get(key);
+        return iqProviders.get(elementName, namespace);
     }
 
     /**
@@ -293,7 +292,7 @@ public class ProviderManager {
      * @return all IQProvider instances.
      */
     public Collection<Object> getIQProviders() {
-        return Collections.unmodifiableCollection(iqProviders.values());
+        return iqProviders.values();
     }
 
     /**
@@ -314,8 +313,7 @@ public class ProviderManager {
             throw new IllegalArgumentException("Provider must be an IQProvider " +
                     "or a Class instance.");
         }
-        String key = getProviderKey(elementName, namespace);
-        iqProviders.put(key, provider);
+        iqProviders.put(elementName, namespace, provider);
     }
 
     /**
@@ -327,8 +325,7 @@ public class ProviderManager {
      * @param namespace the XML namespace.
      */
     public void removeIQProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        iqProviders.remove(key);
+        iqProviders.remove(elementName, namespace);
     }
 
     /**
@@ -351,8 +348,7 @@ public class ProviderManager {
      * @return the extenion provider.
      */
     public Object getExtensionProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        return extensionProviders.get(key);
+        return extensionProviders.get(elementName, namespace);
     }
 
     /**
@@ -371,8 +367,7 @@ public class ProviderManager {
             throw new IllegalArgumentException("Provider must be a PacketExtensionProvider " +
                     "or a Class instance.");
         }
-        String key = getProviderKey(elementName, namespace);
-        extensionProviders.put(key, provider);
+        extensionProviders.put(elementName, namespace, provider);
     }
 
     /**
@@ -384,8 +379,7 @@ public class ProviderManager {
      * @param namespace the XML namespace.
      */
     public void removeExtensionProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        extensionProviders.remove(key);
+        extensionProviders.remove(elementName, namespace);
     }
 
     /**
@@ -396,20 +390,7 @@ public class ProviderManager {
      * @return all PacketExtensionProvider instances.
      */
     public Collection<Object> getExtensionProviders() {
-        return Collections.unmodifiableCollection(extensionProviders.values());
-    }
-
-    /**
-     * Returns a String key for a given element name and namespace.
-     *
-     * @param elementName the element name.
-     * @param namespace the namespace.
-     * @return a unique key for the element name and namespace pair.
-     */
-    private String getProviderKey(String elementName, String namespace) {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<").append(elementName).append("/><").append(namespace).append("/>");
-        return buf.toString();
+        return extensionProviders.values();
     }
 
     /**
@@ -435,4 +416,67 @@ public class ProviderManager {
         super();
         initialize();
     }
+
+    /**
+     * Providers indexed by element name and then by namespace. Lookups read an immutable
+     * snapshot of the maps without locking or allocating, which matters since a lookup is
+     * made for every IQ child element and packet extension received. Registrations are
+     * rare, and replace the snapshot with an updated copy.<p>
+     *
+     * Element names and namespaces are interned when registered. The parser interns the
+     * namespaces it reads, so the namespace of a lookup is usually the same instance as the
+     * key of the map and is compared by reference.
+     */
+    private static class ProviderMap {
+
+        private volatile Map<String, Map<String, Object>> providers =
+                Collections.emptyMap();
+
+        public Object get(String elementName, String namespace) {
+            Map<String, Object> namespaces = providers.get(elementName);
+            if (namespaces == null) {
+                return null;
+            }
+            return namespaces.get(namespace);
+        }
+
+        public synchronized void put(String elementName, String namespace, Object provider) {
+            elementName = elementName != null ? elementName.intern() : null;
+            namespace = namespace != null ? namespace.intern() : null;
+            Map<String, Map<String, Object>> newProviders =
+                    new HashMap<String, Map<String, Object>>(providers);
+            Map<String, Object> namespaces = newProviders.get(elementName);
+            namespaces = namespaces != null ? new HashMap<String, Object>(namespaces)
+                    : new HashMap<String, Object>(2);
+            namespaces.put(namespace, provider);
+            newProviders.put(elementName, namespaces);
+            providers = newProviders;
+        }
+
+        public synchronized void remove(String elementName, String namespace) {
+            Map<String, Object> namespaces = providers.get(elementName);
+            if (namespaces == null || !namespaces.containsKey(namespace)) {
+                return;
+            }
+            Map<String, Map<String, Object>> newProviders =
+                    new HashMap<String, Map<String, Object>>(providers);
+            if (namespaces.size() == 1) {
+                newProviders.remove(elementName);
+            }
+            else {
+                namespaces = new HashMap<String, Object>(namespaces);
+                namespaces.remove(namespace);
+                newProviders.put(elementName, namespaces);
+            }
+            providers = newProviders;
+        }
+
+        public Collection<Object> values() {
+            List<Object> values = new ArrayList<Object>();
+            for (Map<String, Object> namespaces : providers.values()) {
+                values.addAll(namespaces.values());
+            }
+            return Collections.unmodifiableCollection(values);
+        }
+    }
 }
\ No newline at end of file
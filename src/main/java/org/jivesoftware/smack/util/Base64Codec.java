@@ -0,0 +1,311 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes Base64 (RFC 4648) without building intermediate strings or byte
+ * arrays. Bytes are encoded directly into the output a packet is written to, such as the
+ * writer of the connection, and text is decoded from a range of characters, such as the
+ * buffer of the XML parser returned by
+ * {@link org.xmlpull.v1.XmlPullParser#getTextCharacters(int[])}, into a buffer provided by
+ * the caller.<p>
+ *
+ * The encoded text has no line breaks. Decoding ignores whitespace, accepts a final group
+ * that is not padded, and rejects any other character, including padding that is not at
+ * the end of the text, as required for the data of in-band bytestreams.
+ *
+ * @see StringUtils#encodeBase64(byte[])
+ * @see StringUtils#decodeBase64(String)
+ */
+public final class Base64Codec {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final char PAD = '=';
+
+    /**
+     * Value of each character below 128: the 6 bits of Base64 characters, WHITESPACE or
+     * INVALID.
+     */
+    private static final byte[] VALUES = new byte[128];
+
+    private static final byte INVALID = -1;
+    private static final byte WHITESPACE = -2;
+
+    /**
+     * Number of characters encoded at once when the output is a Writer.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    static {
+        java.util.Arrays.fill(VALUES, INVALID);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+        VALUES[' '] = WHITESPACE;
+        VALUES['\t'] = WHITESPACE;
+        VALUES['\r'] = WHITESPACE;
+        VALUES['\n'] = WHITESPACE;
+    }
+
+    /**
+     * Returns the number of characters of the encoded form of a number of bytes.
+     *
+     * @param length the number of bytes.
+     * @return the number of characters of the encoded bytes.
+     */
+    public static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Encodes bytes to a String.
+     *
+     * @param data the bytes to encode.
+     * @param offset the offset of the first byte to encode.
+     * @param length the number of bytes to encode.
+     * @return the encoded bytes.
+     */
+    public static String encode(byte[] data, int offset, int length) {
+        char[] chars = new char[encodedLength(length)];
+        encode(data, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Encodes bytes to an output. The characters are appended to a StringBuilder or
+     * written to a Writer in blocks, or appended one by one to other outputs.
+     *
+     * @param data the bytes to encode.
+     * @param offset the offset of the first byte to encode.
+     * @param length the number of bytes to encode.
+     * @param out the output to write the encoded bytes to.
+     * @throws IOException if an error occurs while writing to the output.
+     */
+    public static void encode(byte[] data, int offset, int length, Appendable out)
+            throws IOException
+    {
+        if (out instanceof StringBuilder) {
+            StringBuilder builder = (StringBuilder) out;
+            builder.ensureCapacity(builder.length() + encodedLength(length));
+        }
+        else if (out instanceof Writer) {
+            encode(data, offset, length, (Writer) out);
+            return;
+        }
+        char[] alphabet = ALPHABET;
+        int end = offset + length - length % 3;
+        for (int i = offset; i < end; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            out.append(alphabet[bits >>> 18]);
+            out.append(alphabet[(bits >>> 12) & 0x3f]);
+            out.append(alphabet[(bits >>> 6) & 0x3f]);
+            out.append(alphabet[bits & 0x3f]);
+        }
+        int remaining = offset + length - end;
+        if (remaining > 0) {
+            int bits = (data[end] & 0xff) << 16;
+            if (remaining == 2) {
+                bits |= (data[end + 1] & 0xff) << 8;
+            }
+            out.append(alphabet[bits >>> 18]);
+            out.append(alphabet[(bits >>> 12) & 0x3f]);
+            out.append(remaining == 2 ? alphabet[(bits >>> 6) & 0x3f] : PAD);
+            out.append(PAD);
+        }
+    }
+
+    private static void encode(byte[] data, int offset, int length, Writer out)
+            throws IOException
+    {
+        char[] chunk = new char[Math.min(CHUNK_SIZE, encodedLength(length))];
+        int bytesPerChunk = chunk.length / 4 * 3;
+        for (int i = offset; i < offset + length; i += bytesPerChunk) {
+            int count = Math.min(bytesPerChunk, offset + length - i);
+            out.write(chunk, 0, encode(data, i, count, chunk, 0));
+        }
+    }
+
+    /**
+     * Encodes bytes to an array of characters.
+     *
+     * @param data the bytes to encode.
+     * @param offset the offset of the first byte to encode.
+     * @param length the number of bytes to encode.
+     * @param chars the array to write the characters to, which must have room for
+     *      {@link #encodedLength(int)} characters.
+     * @param charOffset the offset of the first character to write.
+     * @return the number of characters written.
+     */
+    public static int encode(byte[] data, int offset, int length, char[] chars,
+            int charOffset)
+    {
+        char[] alphabet = ALPHABET;
+        int end = offset + length - length % 3;
+        int j = charOffset;
+        for (int i = offset; i < end; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            chars[j++] = alphabet[bits >>> 18];
+            chars[j++] = alphabet[(bits >>> 12) & 0x3f];
+            chars[j++] = alphabet[(bits >>> 6) & 0x3f];
+            chars[j++] = alphabet[bits & 0x3f];
+        }
+        int remaining = offset + length - end;
+        if (remaining > 0) {
+            encodeTail(data, end, remaining, chars, j);
+            j += 4;
+        }
+        return j - charOffset;
+    }
+
+    /**
+     * Encodes the last one or two bytes, padding them to four characters.
+     */
+    private static void encodeTail(byte[] data, int offset, int remaining, char[] chars,
+            int charOffset)
+    {
+        int bits = (data[offset] & 0xff) << 16;
+        if (remaining == 2) {
+            bits |= (data[offset + 1] & 0xff) << 8;
+        }
+        chars[charOffset] = ALPHABET[bits >>> 18];
+        chars[charOffset + 1] = ALPHABET[(bits >>> 12) & 0x3f];
+        chars[charOffset + 2] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : PAD;
+        chars[charOffset + 3] = PAD;
+    }
+
+    /**
+     * Returns the number of bytes encoded in a range of characters, or -1 if the
+     * characters are not valid Base64.
+     *
+     * @param chars the encoded characters.
+     * @param offset the offset of the first character.
+     * @param length the number of characters.
+     * @return the number of bytes encoded in the characters, or -1 if they are not valid.
+     */
+    public static int decodedLength(char[] chars, int offset, int length) {
+        int count = 0;
+        int pads = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+            if (c == PAD) {
+                pads++;
+                continue;
+            }
+            byte value = c < 128 ? VALUES[c] : INVALID;
+            if (value == INVALID || (value >= 0 && pads > 0)) {
+                return -1;
+            }
+            if (value >= 0) {
+                count++;
+            }
+        }
+        if (count % 4 == 1 || pads > 2 || (pads > 0 && (count + pads) % 4 != 0)) {
+            return -1;
+        }
+        return count / 4 * 3 + (count % 4 == 0 ? 0 : count % 4 - 1);
+    }
+
+    /**
+     * Decodes a String.
+     *
+     * @param text the encoded text.
+     * @return the decoded bytes.
+     * @throws IllegalArgumentException if the text is not valid Base64.
+     */
+    public static byte[] decode(String text) {
+        char[] chars = text.toCharArray();
+        return decode(chars, 0, chars.length);
+    }
+
+    /**
+     * Decodes a range of characters into a new array.
+     *
+     * @param chars the encoded characters.
+     * @param offset the offset of the first character.
+     * @param length the number of characters.
+     * @return the decoded bytes.
+     * @throws IllegalArgumentException if the characters are not valid Base64.
+     */
+    public static byte[] decode(char[] chars, int offset, int length) {
+        int decodedLength = decodedLength(chars, offset, length);
+        if (decodedLength < 0) {
+            throw new IllegalArgumentException("Invalid Base64 data");
+        }
+        byte[] bytes = new byte[decodedLength];
+        decode(chars, offset, length, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Decodes a range of characters into a buffer. The bytes are written at the position
+     * of the buffer, which is advanced past them.
+     *
+     * @param chars the encoded characters.
+     * @param offset the offset of the first character.
+     * @param length the number of characters.
+     * @param out the buffer to write the decoded bytes to.
+     * @return the number of bytes decoded.
+     * @throws IllegalArgumentException if the characters are not valid Base64.
+     * @throws java.nio.BufferOverflowException if the buffer is too small.
+     */
+    public static int decode(char[] chars, int offset, int length, ByteBuffer out) {
+        byte[] values = VALUES;
+        int start = out.position();
+        int bits = 0;
+        int count = 0;
+        int pads = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+            int value = c < 128 ? values[c] : INVALID;
+            if (value >= 0 && pads == 0) {
+                bits = bits << 6 | value;
+                if (++count % 4 == 0) {
+                    out.put((byte) (bits >>> 16));
+                    out.put((byte) (bits >>> 8));
+                    out.put((byte) bits);
+                    bits = 0;
+                }
+            }
+            else if (c == PAD) {
+                pads++;
+            }
+            else if (value != WHITESPACE) {
+                throw new IllegalArgumentException("Invalid Base64 character at " + i);
+            }
+        }
+        int remaining = count % 4;
+        if (remaining == 1 || pads > 2 || (pads > 0 && remaining + pads != 4)) {
+            throw new IllegalArgumentException("Invalid Base64 padding");
+        }
+        if (remaining == 2) {
+            out.put((byte) (bits >>> 4));
+        }
+        else if (remaining == 3) {
+            out.put((byte) (bits >>> 10));
+            out.put((byte) (bits >>> 2));
+        }
+        return out.position() - start;
+    }
+
+    private Base64Codec() {
+        // Not instantiable.
+    }
+}
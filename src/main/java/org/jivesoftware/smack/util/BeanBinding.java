@@ -0,0 +1,205 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.beans.PropertyDescriptor;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses the XML of a JavaBean registered as a provider by class, as described in
+ * {@link PacketParserUtils#parseWithIntrospection(String, Class, XmlPullParser)}. The
+ * binding of a class caches its constructor and, for each child element name, the setter
+ * of the matching property and the converter of the property type. The introspection
+ * needed to find them is done once per class and element name instead of once per child
+ * element of every packet, and converters are chosen by the identity of the property type
+ * instead of comparing type names.<p>
+ *
+ * The bindings are cached in a map that is read without locking, whose keys are weak and
+ * whose values are soft, since a binding references its class. The cache thus never prevents the class loader of a bean
+ * from being unloaded: a binding is kept while memory is available, and once it's cleared
+ * its class can be collected.
+ */
+final class BeanBinding {
+
+    private static final WeakClassMap<SoftReference<BeanBinding>> bindings =
+            new WeakClassMap<SoftReference<BeanBinding>>();
+
+    private final Class<?> beanClass;
+    private final Constructor<?> constructor;
+    private final Map<String, Property> properties = new ConcurrentHashMap<String, Property>();
+
+    /**
+     * Returns the binding of a class, creating it on first use.
+     *
+     * @param beanClass the class of the bean.
+     * @return the binding of the class.
+     * @throws Exception if the class does not have a public constructor without arguments.
+     */
+    static BeanBinding getBinding(Class<?> beanClass) throws Exception {
+        SoftReference<BeanBinding> reference = bindings.get(beanClass);
+        BeanBinding binding = reference != null ? reference.get() : null;
+        if (binding == null) {
+            // Creating the binding again in concurrent threads is harmless
+            binding = new BeanBinding(beanClass);
+            bindings.put(beanClass, new SoftReference<BeanBinding>(binding));
+        }
+        return binding;
+    }
+
+    private BeanBinding(Class<?> beanClass) throws Exception {
+        this.beanClass = beanClass;
+        this.constructor = beanClass.getConstructor();
+    }
+
+    /**
+     * Creates a bean and sets its properties from the child elements of the element the
+     * parser is positioned at.
+     *
+     * @param elementName the name of the element of the bean.
+     * @param parser the XML parser, positioned at the start of the element of the bean.
+     * @return the bean.
+     * @throws Exception if a child element does not match a property of the bean or its
+     *      value cannot be set.
+     */
+    Object parse(String elementName, XmlPullParser parser) throws Exception {
+        Object bean = constructor.newInstance();
+        while (true) {
+            int eventType = parser.next();
+            if (eventType == XmlPullParser.START_TAG) {
+                Property property = getProperty(parser.getName());
+                String value = parser.nextText();
+                property.setter.invoke(bean, property.converter.convert(value));
+            }
+            else if (eventType == XmlPullParser.END_TAG) {
+                if (parser.getName().equals(elementName)) {
+                    return bean;
+                }
+            }
+        }
+    }
+
+    private Property getProperty(String name) throws Exception {
+        Property property = properties.get(name);
+        if (property == null) {
+            PropertyDescriptor descriptor = new PropertyDescriptor(name, beanClass);
+            property = new Property(descriptor.getWriteMethod(),
+                    Converter.forType(descriptor.getPropertyType()));
+            properties.put(name, property);
+        }
+        return property;
+    }
+
+    /**
+     * The setter of a property and the converter of its type.
+     */
+    private static class Property {
+
+        final Method setter;
+        final Converter converter;
+
+        Property(Method setter, Converter converter) {
+            this.setter = setter;
+            this.converter = converter;
+        }
+    }
+
+    /**
+     * Converts the text of an element to the type of a property. Types that are not
+     * supported are set to <tt>null</tt>.
+     */
+    private static abstract class Converter {
+
+        static final Converter STRING = new Converter() {
+            Object convert(String value) {
+                return value;
+            }
+        };
+
+        static final Converter BOOLEAN = new Converter() {
+            Object convert(String value) {
+                return Boolean.valueOf(value);
+            }
+        };
+
+        static final Converter INT = new Converter() {
+            Object convert(String value) {
+                return Integer.valueOf(value);
+            }
+        };
+
+        static final Converter LONG = new Converter() {
+            Object convert(String value) {
+                return Long.valueOf(value);
+            }
+        };
+
+        static final Converter FLOAT = new Converter() {
+            Object convert(String value) {
+                return Float.valueOf(value);
+            }
+        };
+
+        static final Converter DOUBLE = new Converter() {
+            Object convert(String value) {
+                return Double.valueOf(value);
+            }
+        };
+
+        static final Converter CLASS = new Converter() {
+            Object convert(String value) throws Exception {
+                return Class.forName(value);
+            }
+        };
+
+        static final Converter UNSUPPORTED = new Converter() {
+            Object convert(String value) {
+                return null;
+            }
+        };
+
+        abstract Object convert(String value) throws Exception;
+
+        static Converter forType(Class<?> type) {
+            if (type == String.class) {
+                return STRING;
+            }
+            if (type == Boolean.TYPE) {
+                return BOOLEAN;
+            }
+            if (type == Integer.TYPE) {
+                return INT;
+            }
+            if (type == Long.TYPE) {
+                return LONG;
+            }
+            if (type == Float.TYPE) {
+                return FLOAT;
+            }
+            if (type == Double.TYPE) {
+                return DOUBLE;
+            }
+            if (type == Class.class) {
+                return CLASS;
+            }
+            return UNSUPPORTED;
+        }
+    }
+}
@@ -44,9 +44,13 @@ import java.util.*;
  * to the CacheObject that wraps the real object we are looking for.
  * The object is subsequently moved to the front of the accessed linked list
  * and any necessary cache cleanups are performed. Cache deletion and expiration
- * is performed as needed.
+ * is performed as needed.<p>
+ *
+ * Every operation holds the lock of the cache, including reads, so caches that are
+ * shared by many threads should use {@link ConcurrentCache} instead.
  *
  * @author Matt Tucker
+ * @see ConcurrentCache
  */
 public class Cache<K, V> implements Map<K, V> {
 
@@ -0,0 +1,930 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size-limited map with an optional expiration time for its entries, like {@link Cache},
+ * for caches shared by many threads. Reads do not lock: the entries are kept in a
+ * ConcurrentHashMap, and reads are recorded in small per-thread buffers that are applied
+ * to the eviction policy in batches by whichever thread gets the policy lock. Writes
+ * update the map concurrently and then apply the change to the policy under the lock.<p>
+ *
+ * The eviction policy keeps the entries that are used often rather than only the ones
+ * used recently, so a scan of many entries used once does not flush the cache. New
+ * entries enter a small window of the most recently added entries. An entry that leaves
+ * the window is only admitted to the main space of the cache if it has been used more
+ * often than the least recently used entry of the main space, which is evicted in its
+ * place, according to a compact count-min sketch of the recent frequency of the keys.
+ * The main space is split into a probation segment and a protected segment for the entries
+ * used again since they were admitted. The sketch is halved periodically so that old
+ * usage is forgotten.<p>
+ *
+ * Expired entries are never returned. They are removed in the order they were written,
+ * as part of the maintenance that follows writes and batches of reads, rather than by a
+ * sweep on every read. The cache keeps counts of hits, misses and evictions. As for other
+ * concurrent maps, the size of the cache is only exact when it's not modified, and the
+ * size limit may be briefly exceeded while writes are being applied.
+ *
+ * @see Cache
+ */
+public class ConcurrentCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    /**
+     * Queue of the nodes that are not in the eviction policy.
+     */
+    private static final int NONE = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+
+    /**
+     * Number of read buffers, each shared by the threads whose id maps to it.
+     */
+    private static final int STRIPES = stripeCount();
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+
+    /**
+     * Guards the eviction policy: the queues, their sizes and the frequency sketch.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+    private final WriteQueue<K, V> writeQueue = new WriteQueue<K, V>();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private int windowSize;
+    private int mainSize;
+    private int protectedSize;
+    private int windowMaximum;
+    private int mainMaximum;
+    private int protectedMaximum;
+
+    private final ReadBuffer<K, V>[] readBuffers;
+
+    private final StripedCounter hits = new StripedCounter(STRIPES);
+    private final StripedCounter misses = new StripedCounter(STRIPES);
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile int maxCacheSize;
+    private volatile long maxLifetime;
+
+    private Set<Map.Entry<K, V>> entrySet;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize the maximum number of entries the cache will hold. -1 means the
+     *      cache has no max size.
+     * @param maxLifetime the maximum amount of time (in ms) entries can exist in cache
+     *      before being deleted. -1 means entries never expire.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentCache(int maxSize, long maxLifetime) {
+        if (maxSize == 0) {
+            throw new IllegalArgumentException("Max cache size cannot be 0.");
+        }
+        map = new ConcurrentHashMap<K, Node<K, V>>(maxSize > 0 ? Math.min(maxSize, 1024) : 16);
+        readBuffers = new ReadBuffer[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            readBuffers[i] = new ReadBuffer<K, V>();
+        }
+        this.maxLifetime = maxLifetime;
+        setMaxCacheSize(maxSize);
+    }
+
+    public V get(Object key) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        if (maxLifetime > 0 && isExpired(node, System.nanoTime())) {
+            misses.increment();
+            removeNode(node);
+            return null;
+        }
+        hits.increment();
+        afterRead(node);
+        return node.value;
+    }
+
+    public boolean containsKey(Object key) {
+        Node<K, V> node = map.get(key);
+        return node != null && (maxLifetime <= 0 || !isExpired(node, System.nanoTime()));
+    }
+
+    public boolean containsValue(Object value) {
+        long now = System.nanoTime();
+        for (Node<K, V> node : map.values()) {
+            if (node.value.equals(value) && !isExpired(node, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public V put(K key, V value) {
+        Node<K, V> node = new Node<K, V>(key, value, System.nanoTime());
+        Node<K, V> oldNode = map.put(key, node);
+        afterWrite(node, oldNode);
+        return valueOf(oldNode, node.writeTime);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        Node<K, V> node = new Node<K, V>(key, value, System.nanoTime());
+        while (true) {
+            Node<K, V> oldNode = map.putIfAbsent(key, node);
+            if (oldNode == null) {
+                afterWrite(node, null);
+                return null;
+            }
+            if (!isExpired(oldNode, node.writeTime)) {
+                afterRead(oldNode);
+                return oldNode.value;
+            }
+            // Replace the expired entry as if it was absent
+            if (map.replace(key, oldNode, node)) {
+                afterWrite(node, oldNode);
+                return null;
+            }
+        }
+    }
+
+    public V replace(K key, V value) {
+        Node<K, V> node = new Node<K, V>(key, value, System.nanoTime());
+        while (true) {
+            Node<K, V> oldNode = map.get(key);
+            if (oldNode == null || isExpired(oldNode, node.writeTime)) {
+                return null;
+            }
+            if (map.replace(key, oldNode, node)) {
+                afterWrite(node, oldNode);
+                return oldNode.value;
+            }
+        }
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        Node<K, V> node = new Node<K, V>(key, newValue, System.nanoTime());
+        while (true) {
+            Node<K, V> oldNode = map.get(key);
+            if (oldNode == null || isExpired(oldNode, node.writeTime) ||
+                    !oldNode.value.equals(oldValue))
+            {
+                return false;
+            }
+            if (map.replace(key, oldNode, node)) {
+                afterWrite(node, oldNode);
+                return true;
+            }
+        }
+    }
+
+    public V remove(Object key) {
+        Node<K, V> node = map.remove(key);
+        if (node == null) {
+            return null;
+        }
+        afterRemove(node);
+        return valueOf(node, System.nanoTime());
+    }
+
+    public boolean remove(Object key, Object value) {
+        Node<K, V> node = map.get(key);
+        if (node == null || !node.value.equals(value) || !map.remove(key, node)) {
+            return false;
+        }
+        afterRemove(node);
+        return !isExpired(node, System.nanoTime());
+    }
+
+    public int size() {
+        if (maxLifetime > 0) {
+            cleanUp();
+        }
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        evictionLock.lock();
+        try {
+            for (Node<K, V> node : map.values()) {
+                if (map.remove(node.key, node)) {
+                    unlink(node);
+                }
+            }
+            drainReadBuffers();
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    /**
+     * Removes the expired entries and applies the pending reads to the eviction policy.
+     * This is done as part of the writes and of batches of reads, so it only needs to be
+     * called to release the expired entries of a cache that is not used anymore.
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of reads that found an entry.
+     *
+     * @return the number of cache hits.
+     */
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of reads that did not find an entry, including the entries that
+     * had expired.
+     *
+     * @return the number of cache misses.
+     */
+    public long getCacheMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries removed to keep the cache within its max size. Expired
+     * and explicitly removed entries are not counted.
+     *
+     * @return the number of evictions.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Resets the counts of hits, misses and evictions.
+     */
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.set(0);
+    }
+
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of entries the cache will hold, evicting entries if the
+     * cache is larger.
+     *
+     * @param maxCacheSize the maximum number of entries, or -1 if the cache has no max
+     *      size.
+     */
+    public void setMaxCacheSize(int maxCacheSize) {
+        evictionLock.lock();
+        try {
+            this.maxCacheSize = maxCacheSize;
+            if (maxCacheSize < 0) {
+                windowMaximum = Integer.MAX_VALUE;
+                mainMaximum = Integer.MAX_VALUE;
+                protectedMaximum = Integer.MAX_VALUE;
+                return;
+            }
+            // The window is 1% of the cache and the protected segment 80% of the rest
+            windowMaximum = Math.max(1, maxCacheSize / 100);
+            mainMaximum = maxCacheSize - windowMaximum;
+            protectedMaximum = (int) (mainMaximum * 0.8);
+            sketch.ensureCapacity(maxCacheSize);
+            evictEntries();
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * Sets the maximum amount of time entries can exist in cache before being deleted,
+     * which also applies to the entries already in the cache.
+     *
+     * @param maxLifetime the maximum lifetime in ms, or -1 if entries never expire.
+     */
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        long lifetime = maxLifetime;
+        return lifetime > 0 && now - node.writeTime > TimeUnit.MILLISECONDS.toNanos(lifetime);
+    }
+
+    private V valueOf(Node<K, V> node, long now) {
+        return node == null || isExpired(node, now) ? null : node.value;
+    }
+
+    /**
+     * Records a read in the buffer of the thread, and applies the buffered reads if the
+     * buffer is full and no other thread is doing it. Reads are dropped if the buffer is
+     * full, which only makes the eviction policy less precise.
+     */
+    private void afterRead(Node<K, V> node) {
+        if (maxCacheSize < 0) {
+            return;
+        }
+        if (readBuffers[stripe()].offer(node) && evictionLock.tryLock()) {
+            try {
+                maintenance();
+            }
+            finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void afterWrite(Node<K, V> node, Node<K, V> oldNode) {
+        evictionLock.lock();
+        try {
+            if (oldNode != null) {
+                unlink(oldNode);
+            }
+            // The entry may have been removed or replaced by another thread
+            if (map.get(node.key) == node) {
+                sketch.increment(node.key);
+                node.queue = WINDOW;
+                window.addLast(node);
+                windowSize++;
+                writeQueue.addLast(node);
+            }
+            maintenance();
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void afterRemove(Node<K, V> node) {
+        evictionLock.lock();
+        try {
+            unlink(node);
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void removeNode(Node<K, V> node) {
+        if (map.remove(node.key, node)) {
+            afterRemove(node);
+        }
+    }
+
+    /**
+     * Applies the buffered reads, removes the expired entries and evicts entries if the
+     * cache is too large.
+     */
+    private void maintenance() {
+        drainReadBuffers();
+        expireEntries();
+        evictEntries();
+    }
+
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            buffer.drainTo(this);
+        }
+    }
+
+    private void expireEntries() {
+        if (maxLifetime <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Node<K, V> node = writeQueue.first;
+        while (node != null && isExpired(node, now)) {
+            Node<K, V> next = node.writeNext;
+            map.remove(node.key, node);
+            unlink(node);
+            node = next;
+        }
+    }
+
+    /**
+     * Moves the entries that overflow the window to the main space of the cache, where
+     * each one is compared with the least recently used entry of the main space and the
+     * one that is used less often is evicted.
+     */
+    private void evictEntries() {
+        if (maxCacheSize < 0) {
+            return;
+        }
+        while (windowSize > windowMaximum) {
+            Node<K, V> candidate = window.first;
+            window.unlink(candidate);
+            windowSize--;
+            candidate.queue = PROBATION;
+            probation.addLast(candidate);
+            mainSize++;
+            if (mainSize > mainMaximum) {
+                Node<K, V> victim = probation.first != candidate ?
+                        probation.first : protectedQueue.first;
+                if (victim == null ||
+                        sketch.frequency(candidate.key) <= sketch.frequency(victim.key))
+                {
+                    victim = candidate;
+                }
+                evict(victim);
+            }
+        }
+        while (windowSize + mainSize > maxCacheSize) {
+            Node<K, V> victim = probation.first;
+            if (victim == null) {
+                victim = protectedQueue.first != null ? protectedQueue.first : window.first;
+            }
+            evict(victim);
+        }
+    }
+
+    private void evict(Node<K, V> node) {
+        if (map.remove(node.key, node)) {
+            evictions.incrementAndGet();
+        }
+        unlink(node);
+    }
+
+    /**
+     * Records a read of an entry in the eviction policy.
+     */
+    void onAccess(Node<K, V> node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                // An entry used again is protected, and the least recently used protected
+                // entries go back to probation
+                probation.unlink(node);
+                node.queue = PROTECTED;
+                protectedQueue.addLast(node);
+                protectedSize++;
+                while (protectedSize > protectedMaximum) {
+                    Node<K, V> demoted = protectedQueue.first;
+                    protectedQueue.unlink(demoted);
+                    protectedSize--;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedQueue.moveToLast(node);
+                break;
+            default:
+                // The entry was removed
+                break;
+        }
+    }
+
+    /**
+     * Removes a node from the eviction policy.
+     */
+    private void unlink(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.unlink(node);
+                windowSize--;
+                break;
+            case PROBATION:
+                probation.unlink(node);
+                mainSize--;
+                break;
+            case PROTECTED:
+                protectedQueue.unlink(node);
+                mainSize--;
+                protectedSize--;
+                break;
+            default:
+                return;
+        }
+        node.queue = NONE;
+        writeQueue.unlink(node);
+    }
+
+    private static int stripeCount() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 16) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * Returns the stripe of the current thread in the read buffers and the counters.
+     */
+    private static int stripe() {
+        int hash = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * An entry of the cache. The entries are immutable except for their links in the
+     * queues of the eviction policy, which are guarded by the eviction lock.
+     */
+    static final class Node<K, V> {
+
+        final K key;
+        final V value;
+        final long writeTime;
+
+        int queue = NONE;
+        Node<K, V> accessPrevious;
+        Node<K, V> accessNext;
+        Node<K, V> writePrevious;
+        Node<K, V> writeNext;
+
+        Node(K key, V value, long writeTime) {
+            if (key == null || value == null) {
+                throw new NullPointerException();
+            }
+            this.key = key;
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    /**
+     * A queue of nodes in access order, from the least recently used to the most
+     * recently used.
+     */
+    private static final class AccessQueue<K, V> {
+
+        Node<K, V> first;
+        Node<K, V> last;
+
+        void addLast(Node<K, V> node) {
+            node.accessPrevious = last;
+            node.accessNext = null;
+            if (last == null) {
+                first = node;
+            }
+            else {
+                last.accessNext = node;
+            }
+            last = node;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.accessPrevious == null) {
+                first = node.accessNext;
+            }
+            else {
+                node.accessPrevious.accessNext = node.accessNext;
+            }
+            if (node.accessNext == null) {
+                last = node.accessPrevious;
+            }
+            else {
+                node.accessNext.accessPrevious = node.accessPrevious;
+            }
+            node.accessPrevious = null;
+            node.accessNext = null;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            if (node != last) {
+                unlink(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * A queue of nodes in the order they were written, from the oldest to the newest.
+     */
+    private static final class WriteQueue<K, V> {
+
+        Node<K, V> first;
+        Node<K, V> last;
+
+        void addLast(Node<K, V> node) {
+            node.writePrevious = last;
+            node.writeNext = null;
+            if (last == null) {
+                first = node;
+            }
+            else {
+                last.writeNext = node;
+            }
+            last = node;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.writePrevious == null) {
+                if (first != node) {
+                    // The node is not in the queue
+                    return;
+                }
+                first = node.writeNext;
+            }
+            else {
+                node.writePrevious.writeNext = node.writeNext;
+            }
+            if (node.writeNext == null) {
+                last = node.writePrevious;
+            }
+            else {
+                node.writeNext.writePrevious = node.writePrevious;
+            }
+            node.writePrevious = null;
+            node.writeNext = null;
+        }
+    }
+
+    /**
+     * A lossy ring buffer of reads, written by the threads of a stripe without locking
+     * and drained under the eviction lock.
+     */
+    private static final class ReadBuffer<K, V> {
+
+        private static final int SIZE = 16;
+        private static final int MASK = SIZE - 1;
+
+        private final AtomicReferenceArray<Node<K, V>> slots =
+                new AtomicReferenceArray<Node<K, V>>(SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        /**
+         * Adds a read to the buffer, unless the buffer is full or another thread is
+         * adding one at the same time.
+         *
+         * @return true if the buffer should be drained.
+         */
+        boolean offer(Node<K, V> node) {
+            long tail = writeCounter.get();
+            long size = tail - readCounter;
+            if (size >= SIZE) {
+                return true;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & MASK), node);
+                return size + 1 >= SIZE;
+            }
+            return false;
+        }
+
+        void drainTo(ConcurrentCache<K, V> cache) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & MASK);
+                Node<K, V> node = slots.get(index);
+                if (node == null) {
+                    // The read is being added
+                    break;
+                }
+                slots.lazySet(index, null);
+                cache.onAccess(node);
+            }
+            readCounter = head;
+        }
+    }
+
+    /**
+     * A counter that spreads its increments over cells in different cache lines so that
+     * threads don't contend on a single value.
+     */
+    private static final class StripedCounter {
+
+        /**
+         * Distance between cells, so that each cell has its own cache line.
+         */
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray cells;
+
+        StripedCounter(int stripes) {
+            cells = new AtomicLongArray(stripes * PADDING);
+        }
+
+        void increment() {
+            cells.incrementAndGet(stripe() * PADDING);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < cells.length(); i += PADDING) {
+                sum += cells.get(i);
+            }
+            return sum;
+        }
+
+        void reset() {
+            for (int i = 0; i < cells.length(); i += PADDING) {
+                cells.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * A count-min sketch of the recent frequency of keys, with four 4-bit counters per key
+     * packed in longs. When the number of increments reaches ten times the size of the
+     * table, all the counters are halved so that the sketch follows changes of usage.
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private long[] table = new long[0];
+        private int tableMask;
+        private int sampleSize;
+        private int size;
+
+        void ensureCapacity(int maximumSize) {
+            int capacity = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 24)));
+            if (capacity < maximumSize && capacity < (1 << 24)) {
+                capacity <<= 1;
+            }
+            if (table.length >= capacity) {
+                return;
+            }
+            table = new long[capacity];
+            tableMask = capacity - 1;
+            sampleSize = 10 * capacity;
+            size = 0;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            if (table.length == 0) {
+                return;
+            }
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++size == sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            int offset = counter << 2;
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size /= 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & tableMask;
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+    }
+
+    /**
+     * The entries of the cache that have not expired. The entries cannot be modified,
+     * but they can be removed.
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new Iterator<Map.Entry<K, V>>() {
+
+                private final Iterator<Node<K, V>> it = map.values().iterator();
+                private final long now = System.nanoTime();
+                private Node<K, V> next;
+                private Node<K, V> current;
+
+                public boolean hasNext() {
+                    while (next == null && it.hasNext()) {
+                        Node<K, V> node = it.next();
+                        if (!isExpired(node, now)) {
+                            next = node;
+                        }
+                    }
+                    return next != null;
+                }
+
+                public Map.Entry<K, V> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    current = next;
+                    next = null;
+                    return new SimpleImmutableEntry<K, V>(current.key, current.value);
+                }
+
+                public void remove() {
+                    if (current == null) {
+                        throw new IllegalStateException();
+                    }
+                    removeNode(current);
+                    current = null;
+                }
+            };
+        }
+
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            Node<K, V> node = map.get(entry.getKey());
+            return node != null && node.value.equals(entry.getValue()) &&
+                    !isExpired(node, System.nanoTime());
+        }
+
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            return ConcurrentCache.this.remove(entry.getKey(), entry.getValue());
+        }
+
+        public int size() {
+            return ConcurrentCache.this.size();
+        }
+
+        public void clear() {
+            ConcurrentCache.this.clear();
+        }
+    }
+}
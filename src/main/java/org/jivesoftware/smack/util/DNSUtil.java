@@ -39,7 +39,8 @@ public class DNSUtil {
      * Create a cache to hold the 100 most recently accessed DNS lookups for a period of
      * 10 minutes.
      */
-    private static Map cache = new Cache(100, 1000*60*10);
+    private static Map<String, HostAddress> cache =
+            new ConcurrentCache<String, HostAddress>(100, 1000*60*10);
 
     private static DirContext context;
 
@@ -85,7 +86,7 @@ public class DNSUtil {
         String key = "c" + domain;
         // Return item from cache if it exists.
         if (cache.containsKey(key)) {
-            HostAddress address = (HostAddress)cache.get(key);
+            HostAddress address = cache.get(key);
             if (address != null) {
                 return address;
             }
@@ -163,7 +164,7 @@ public class DNSUtil {
         String key = "s" + domain;
         // Return item from cache if it exists.
         if (cache.containsKey(key)) {
-            HostAddress address = (HostAddress)cache.get(key);
+            HostAddress address = cache.get(key);
             if (address != null) {
                 return address;
             }
@@ -29,15 +29,14 @@ import org.jivesoftware.smack.sasl.SASLMechanism.Failure;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
-import java.beans.PropertyDescriptor;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Utility class that helps to parse packets. Any parsing packets method that must be shared
@@ -61,6 +60,22 @@ public class PacketParserUtils {
      * @throws Exception if an exception occurs while parsing the packet.
      */
     public static Packet parseMessage(XmlPullParser parser) throws Exception {
+        return parseMessage(parser, false);
+    }
+
+    /**
+     * Parses a message packet, optionally leaving its packet extensions to be parsed on
+     * demand.
+     *
+     * @param parser the XML parser, positioned at the start of a message packet.
+     * @param lazyExtensions true to keep the extensions that have a provider as
+     *      {@link LazyPacketExtension}s, which are parsed when first requested.
+     * @return a Message packet.
+     * @throws Exception if an exception occurs while parsing the packet.
+     */
+    public static Packet parseMessage(XmlPullParser parser, boolean lazyExtensions)
+            throws Exception
+    {
         Message message = new Message();
         String id = parser.getAttributeValue("", "id");
         message.setPacketID(id == null ? Packet.ID_NOT_AVAILABLE : id);
@@ -130,7 +145,7 @@ public class PacketParserUtils {
                 // Otherwise, it must be a packet extension.
                 else {
                     message.addExtension(
-                    PacketParserUtils.parsePacketExtension(elementName, namespace, parser));
+                            parseExtension(elementName, namespace, parser, lazyExtensions));
                 }
             }
             else if (eventType == XmlPullParser.END_TAG) {
@@ -151,7 +166,9 @@ public class PacketParserUtils {
     }
 
     /**
-     * Returns the content of a tag as string regardless of any tags included.
+     * Returns the content of a tag as string regardless of any tags included. The content
+     * is usually a single text, which is returned as is, otherwise the parts are appended
+     * to a single buffer.
      * 
      * @param parser the XML pull parser
      * @return the content of a tag as string
@@ -160,13 +177,26 @@ public class PacketParserUtils {
      */
     private static String parseContent(XmlPullParser parser)
                     throws XmlPullParserException, IOException {
-        String content = "";
+        String content = null;
+        StringBuilder builder = null;
         int parserDepth = parser.getDepth();
         while (!(parser.next() == XmlPullParser.END_TAG && parser
                         .getDepth() == parserDepth)) {
-            content += parser.getText();
+            String text = parser.getText();
+            if (content == null) {
+                content = text;
+            }
+            else {
+                if (builder == null) {
+                    builder = new StringBuilder(content);
+                }
+                builder.append(text);
+            }
+        }
+        if (builder != null) {
+            return builder.toString();
         }
-        return content;
+        return content != null ? content : "";
     }
 
     /**
@@ -177,6 +207,22 @@ public class PacketParserUtils {
      * @throws Exception if an exception occurs while parsing the packet.
      */
     public static Presence parsePresence(XmlPullParser parser) throws Exception {
+        return parsePresence(parser, false);
+    }
+
+    /**
+     * Parses a presence packet, optionally leaving its packet extensions to be parsed on
+     * demand.
+     *
+     * @param parser the XML parser, positioned at the start of a presence packet.
+     * @param lazyExtensions true to keep the extensions that have a provider as
+     *      {@link LazyPacketExtension}s, which are parsed when first requested.
+     * @return a Presence packet.
+     * @throws Exception if an exception occurs while parsing the packet.
+     */
+    public static Presence parsePresence(XmlPullParser parser, boolean lazyExtensions)
+            throws Exception
+    {
         Presence.Type type = Presence.Type.available;
         String typeString = parser.getAttributeValue("", "type");
         if (typeString != null && !typeString.equals("")) {
@@ -246,7 +292,7 @@ public class PacketParserUtils {
                 // Otherwise, it must be a packet extension.
                 else {
                     presence.addExtension(
-                        PacketParserUtils.parsePacketExtension(elementName, namespace, parser));
+                            parseExtension(elementName, namespace, parser, lazyExtensions));
                 }
             }
             else if (eventType == XmlPullParser.END_TAG) {
@@ -387,6 +433,7 @@ public class PacketParserUtils {
 
     private static RosterPacket parseRoster(XmlPullParser parser) throws Exception {
         RosterPacket roster = new RosterPacket();
+        roster.setVersion(parser.getAttributeValue("", "ver"));
         boolean done = false;
         RosterPacket.Item item = null;
         while (!done) {
@@ -583,17 +630,19 @@ public class PacketParserUtils {
     }
 
     /**
-     * Parse a properties sub-packet. If any errors occur while de-serializing Java object
-     * properties, an exception will be printed and not thrown since a thrown
-     * exception will shut down the entire connection. ClassCastExceptions will occur
-     * when both the sender and receiver of the packet don't have identical versions
-     * of the same class.
+     * Parse a properties sub-packet. The values are decoded by the codecs registered with
+     * the {@link PropertyCodecManager} for their types, and properties of types that have
+     * no codec are ignored. If any errors occur while decoding a value, an exception will
+     * be printed and not thrown since a thrown exception will shut down the entire
+     * connection. ClassCastExceptions will occur when both the sender and receiver of a
+     * Java object property don't have identical versions of the same class.
      *
      * @param parser the XML parser, positioned at the start of a properties sub-packet.
      * @return a map of the properties.
      * @throws Exception if an error occurs while parsing the properties.
      */
     public static Map<String, Object> parseProperties(XmlPullParser parser) throws Exception {
+        PropertyCodecManager codecManager = PropertyCodecManager.getInstance();
         Map<String, Object> properties = new HashMap<String, Object>();
         while (true) {
             int eventType = parser.next();
@@ -618,29 +667,10 @@ public class PacketParserUtils {
                     }
                     else if (eventType == XmlPullParser.END_TAG) {
                         if (parser.getName().equals("property")) {
-                            if ("integer".equals(type)) {
-                                value = Integer.valueOf(valueText);
-                            }
-                            else if ("long".equals(type))  {
-                                value = Long.valueOf(valueText);
-                            }
-                            else if ("float".equals(type)) {
-                                value = Float.valueOf(valueText);
-                            }
-                            else if ("double".equals(type)) {
-                                value = Double.valueOf(valueText);
-                            }
-                            else if ("boolean".equals(type)) {
-                                value = Boolean.valueOf(valueText);
-                            }
-                            else if ("string".equals(type)) {
-                                value = valueText;
-                            }
-                            else if ("java-object".equals(type)) {
+                            PropertyCodec codec = codecManager.getCodec(type);
+                            if (codec != null && valueText != null) {
                                 try {
-                                    byte [] bytes = StringUtils.decodeBase64(valueText);
-                                    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
-                                    value = in.readObject();
+                                    value = codec.decode(valueText);
                                 }
                                 catch (Exception e) {
                                     e.printStackTrace();
@@ -780,6 +810,129 @@ public class PacketParserUtils {
         return new XMPPError(Integer.parseInt(errorCode), errorType, condition, message, extensions);
     }
 
+    /**
+     * Parses a packet extension of a message or a presence. When extensions are parsed
+     * lazily, the XML of an extension that has a provider is kept to be parsed later; an
+     * extension without provider is parsed right away since parsing it as a
+     * {@link DefaultPacketExtension} costs no more than keeping its XML.
+     *
+     * @param elementName the XML element name of the packet extension.
+     * @param namespace the XML namespace of the packet extension.
+     * @param parser the XML parser, positioned at the starting element of the extension.
+     * @param lazy true to keep the XML of the extension to be parsed later.
+     * @return a PacketExtension.
+     * @throws Exception if a parsing error occurs.
+     */
+    private static PacketExtension parseExtension(String elementName, String namespace,
+            XmlPullParser parser, boolean lazy) throws Exception
+    {
+        Object provider = ProviderManager.getInstance().getExtensionProvider(elementName, namespace);
+        if (lazy && provider != null) {
+            return new LazyPacketExtension(elementName, namespace, provider, parseXML(parser));
+        }
+        return parsePacketExtension(elementName, namespace, provider, parser);
+    }
+
+    /**
+     * Returns the XML of the element the parser is positioned at, including its attributes,
+     * the namespaces it declares and its content. Comments and processing instructions are
+     * left out. The namespaces that the element inherits from its ancestors, including the
+     * prefixes they declare, are declared on the element, so the XML can be parsed on its
+     * own. The parser is left positioned at the end of the element.
+     *
+     * @param parser the XML parser, positioned at the start of an element.
+     * @return the XML of the element.
+     * @throws XmlPullParserException if parser encounters invalid XML
+     * @throws IOException if an IO error occurs
+     */
+    private static String parseXML(XmlPullParser parser)
+            throws XmlPullParserException, IOException
+    {
+        StringBuilder xml = new StringBuilder(256);
+        int depth = parser.getDepth();
+        int eventType = XmlPullParser.START_TAG;
+        boolean emptyElement = false;
+        while (true) {
+            if (eventType == XmlPullParser.START_TAG) {
+                String prefix = parser.getPrefix();
+                xml.append('<');
+                if (prefix != null) {
+                    xml.append(prefix).append(':');
+                }
+                xml.append(parser.getName());
+                int currentDepth = parser.getDepth();
+                Set<String> declaredPrefixes = currentDepth == depth ? new HashSet<String>() : null;
+                for (int i = parser.getNamespaceCount(currentDepth - 1);
+                        i < parser.getNamespaceCount(currentDepth); i++)
+                {
+                    appendNamespace(parser, i, xml);
+                    if (declaredPrefixes != null) {
+                        declaredPrefixes.add(String.valueOf(parser.getNamespacePrefix(i)));
+                    }
+                }
+                if (declaredPrefixes != null) {
+                    // Declare the namespaces inherited from the ancestors, the innermost
+                    // declaration of each prefix being the one in scope
+                    for (int i = parser.getNamespaceCount(currentDepth - 1) - 1; i >= 0; i--) {
+                        String inheritedPrefix = parser.getNamespacePrefix(i);
+                        if ("xml".equals(inheritedPrefix) || "xmlns".equals(inheritedPrefix)) {
+                            continue;
+                        }
+                        if (declaredPrefixes.add(String.valueOf(inheritedPrefix))) {
+                            appendNamespace(parser, i, xml);
+                        }
+                    }
+                }
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    xml.append(' ');
+                    String attributePrefix = parser.getAttributePrefix(i);
+                    if (attributePrefix != null) {
+                        xml.append(attributePrefix).append(':');
+                    }
+                    xml.append(parser.getAttributeName(i)).append("=\"");
+                    StringUtils.escapeForXML(parser.getAttributeValue(i), xml);
+                    xml.append('"');
+                }
+                emptyElement = parser.isEmptyElementTag();
+                xml.append(emptyElement ? "/>" : ">");
+            }
+            else if (eventType == XmlPullParser.END_TAG) {
+                if (!emptyElement) {
+                    xml.append("</");
+                    String prefix = parser.getPrefix();
+                    if (prefix != null) {
+                        xml.append(prefix).append(':');
+                    }
+                    xml.append(parser.getName()).append('>');
+                }
+                emptyElement = false;
+                if (parser.getDepth() == depth) {
+                    return xml.toString();
+                }
+            }
+            else if (eventType == XmlPullParser.TEXT) {
+                StringUtils.escapeForXML(parser.getText(), xml);
+            }
+            eventType = parser.next();
+        }
+    }
+
+    /**
+     * Appends the declaration of a namespace known to the parser.
+     */
+    private static void appendNamespace(XmlPullParser parser, int index, StringBuilder xml)
+            throws XmlPullParserException, IOException
+    {
+        String prefix = parser.getNamespacePrefix(index);
+        xml.append(prefix == null ? " xmlns" : " xmlns:");
+        if (prefix != null) {
+            xml.append(prefix);
+        }
+        xml.append("=\"");
+        StringUtils.escapeForXML(parser.getNamespaceUri(index), xml);
+        xml.append('"');
+    }
+
     /**
      * Parses a packet extension sub-packet.
      *
@@ -794,6 +947,24 @@ public class PacketParserUtils {
     {
         // See if a provider is registered to handle the extension.
         Object provider = ProviderManager.getInstance().getExtensionProvider(elementName, namespace);
+        return parsePacketExtension(elementName, namespace, provider, parser);
+    }
+
+    /**
+     * Parses a packet extension sub-packet with a provider that was already looked up
+     * in the {@link ProviderManager}, which saves a second lookup.
+     *
+     * @param elementName the XML element name of the packet extension.
+     * @param namespace the XML namespace of the packet extension.
+     * @param provider the provider registered for the element name and namespace, or
+     *      <tt>null</tt> to parse the extension as a default extension.
+     * @param parser the XML parser, positioned at the starting element of the extension.
+     * @return a PacketExtension.
+     * @throws Exception if a parsing error occurs.
+     */
+    public static PacketExtension parsePacketExtension(String elementName, String namespace,
+            Object provider, XmlPullParser parser) throws Exception
+    {
         if (provider != null) {
             if (provider instanceof PacketExtensionProvider) {
                 return ((PacketExtensionProvider)provider).parseExtension(parser);
@@ -832,7 +1003,14 @@ public class PacketParserUtils {
         return extension;
     }
 
-    private static String getLanguageAttribute(XmlPullParser parser) {
+    /**
+     * Returns the value of the xml:lang attribute of the current element, whether or not
+     * the parser processes namespaces.
+     *
+     * @param parser the XML parser, positioned at the start of an element.
+     * @return the xml:lang of the element, or <tt>null</tt> if it has none.
+     */
+    public static String getLanguageAttribute(XmlPullParser parser) {
     	for (int i = 0; i < parser.getAttributeCount(); i++) {
             String attributeName = parser.getAttributeName(i);
             if ( "xml:lang".equals(attributeName) ||
@@ -844,65 +1022,22 @@ public class PacketParserUtils {
     	return null;
     }
 
-    public static Object parseWithIntrospection(String elementName,
-            Class objectClass, XmlPullParser parser) throws Exception
-    {
-        boolean done = false;
-        Object object = objectClass.newInstance();
-        while (!done) {
-            int eventType = parser.next();
-            if (eventType == XmlPullParser.START_TAG) {
-                String name = parser.getName();
-                String stringValue = parser.nextText();
-                PropertyDescriptor descriptor = new PropertyDescriptor(name, objectClass);
-                // Load the class type of the property.
-                Class propertyType = descriptor.getPropertyType();
-                // Get the value of the property by converting it from a
-                // String to the correct object type.
-                Object value = decode(propertyType, stringValue);
-                // Set the value of the bean.
-                descriptor.getWriteMethod().invoke(object, value);
-            }
-            else if (eventType == XmlPullParser.END_TAG) {
-                if (parser.getName().equals(elementName)) {
-                    done = true;
-                }
-            }
-        }
-        return object;
-    }
-
     /**
-     * Decodes a String into an object of the specified type. If the object
-     * type is not supported, null will be returned.
+     * Parses a JavaBean registered as a provider by class. The bean is created with its
+     * public constructor without arguments, and each child element of the element of the
+     * bean sets the bean property of the same name. Properties can be of type String,
+     * boolean, int, long, float, double or Class; other types are set to <tt>null</tt>.
+     * The properties of each class are introspected once and cached.
      *
-     * @param type the type of the property.
-     * @param value the encode String value to decode.
-     * @return the String value decoded into the specified type.
-     * @throws Exception If decoding failed due to an error.
+     * @param elementName the XML element name of the bean.
+     * @param objectClass the class of the bean.
+     * @param parser the XML parser, positioned at the start of the element of the bean.
+     * @return the bean.
+     * @throws Exception if a parsing error occurs.
      */
-    private static Object decode(Class type, String value) throws Exception {
-        if (type.getName().equals("java.lang.String")) {
-            return value;
-        }
-        if (type.getName().equals("boolean")) {
-            return Boolean.valueOf(value);
-        }
-        if (type.getName().equals("int")) {
-            return Integer.valueOf(value);
-        }
-        if (type.getName().equals("long")) {
-            return Long.valueOf(value);
-        }
-        if (type.getName().equals("float")) {
-            return Float.valueOf(value);
-        }
-        if (type.getName().equals("double")) {
-            return Double.valueOf(value);
-        }
-        if (type.getName().equals("java.lang.Class")) {
-            return Class.forName(value);
-        }
-        return null;
+    public static Object parseWithIntrospection(String elementName,
+            Class objectClass, XmlPullParser parser) throws Exception
+    {
+        return BeanBinding.getBinding(objectClass).parse(elementName, parser);
     }
 }
@@ -0,0 +1,176 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor service that runs its tasks one at a time, in submission order, on the
+ * threads of a shared executor. No thread is owned by a serial executor; a task that
+ * drains the queue is only handed to the shared executor while there is work to do.
+ * This allows a large number of independent ordered queues (e.g. one per connection)
+ * to be multiplexed over a small pool of threads.<p>
+ *
+ * To be fair with other serial executors sharing the same pool, the draining task gives
+ * its thread back to the shared executor after a batch of tasks has been run.
+ */
+public class SerialExecutorService extends AbstractExecutorService {
+
+    /**
+     * Maximum number of tasks that are run before the draining task is resubmitted.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private final Executor executor;
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    private boolean running = false;
+    private boolean shutdown = false;
+
+    /**
+     * Creates a new serial executor that will run its tasks on the specified executor.
+     *
+     * @param executor the executor whose threads will run the tasks.
+     */
+    public SerialExecutorService(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("Executor is null.");
+        }
+        this.executor = executor;
+    }
+
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException("Task is null.");
+        }
+        synchronized (tasks) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down.");
+            }
+            tasks.add(command);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Returns the number of tasks that are waiting to be run.
+     *
+     * @return the number of pending tasks.
+     */
+    public int getQueueSize() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+
+    public void shutdown() {
+        synchronized (tasks) {
+            shutdown = true;
+            tasks.notifyAll();
+        }
+    }
+
+    public List<Runnable> shutdownNow() {
+        synchronized (tasks) {
+            shutdown = true;
+            List<Runnable> pending = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            tasks.notifyAll();
+            return pending;
+        }
+    }
+
+    public boolean isShutdown() {
+        synchronized (tasks) {
+            return shutdown;
+        }
+    }
+
+    public boolean isTerminated() {
+        synchronized (tasks) {
+            return shutdown && !running && tasks.isEmpty();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (tasks) {
+            while (!(shutdown && !running && tasks.isEmpty())) {
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    return false;
+                }
+                tasks.wait(waitTime);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Hands the draining task to the shared executor. If the shared executor rejects the
+     * task then the pending tasks are discarded.
+     */
+    private void schedule() {
+        try {
+            executor.execute(drainer);
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (tasks) {
+                tasks.clear();
+                running = false;
+                tasks.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    tasks.notifyAll();
+                    return;
+                }
+            }
+            try {
+                task.run();
+            }
+            catch (Throwable t) {
+                // Catch and print any exception so that a faulty task does not prevent
+                // the following tasks from being run
+                t.printStackTrace();
+            }
+        }
+        // Give the thread back to the shared executor and continue later
+        schedule();
+    }
+}
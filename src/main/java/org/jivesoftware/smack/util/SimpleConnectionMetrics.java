@@ -0,0 +1,337 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionMetrics;
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.Presence;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Connection metrics that keep counters and histograms in memory. The same instance may
+ * be shared by several connections, in which case their measurements are added up. The
+ * following counters and histograms are kept:<ul>
+ *
+ *  <li><tt>received.&lt;kind&gt;</tt> and <tt>sent.&lt;kind&gt;</tt>: the number of packets
+ *      by kind (<tt>message</tt>, <tt>presence</tt>, <tt>iq</tt> or the class name of other
+ *      packets).
+ *  <li><tt>received.&lt;kind&gt; &lt;namespace&gt;</tt>: the number of packets received by
+ *      namespace of their extensions. IQ packets are also counted by class.
+ *  <li><tt>parse.&lt;kind&gt;</tt>: histograms of the time spent parsing packets.
+ *  <li><tt>listener.&lt;class&gt;</tt> and <tt>listener.wait</tt>: histograms of the time
+ *      spent by each listener class and of the time packets waited to be processed.
+ *  <li><tt>write.queue</tt> and <tt>write</tt>: histograms of the number of packets waiting
+ *      to be written and of the time spent writing packets.
+ *  <li><tt>collector.wait</tt> and <tt>collector.timeout</tt>: a histogram of the waits
+ *      for packet collectors and the number of waits that timed out.
+ *  <li><tt>request.roundtrip</tt> and <tt>request.timeout</tt>: a histogram of the round
+ *      trip of requests and the number of requests without a reply.
+ *  <li><tt>bytes.received</tt>, <tt>bytes.sent</tt> and their <tt>.compressed</tt>
+ *      variants: the number of bytes of the XML stream.
+ *  <li><tt>negotiation.&lt;feature&gt;</tt> and <tt>negotiation.&lt;feature&gt;.failed</tt>:
+ *      a histogram of the duration of the negotiations and the number of failures.
+ * </ul>
+ *
+ * Times are in nanoseconds. The metrics can be printed with {@link #toString()}:
+ *
+ * <pre>
+ * SimpleConnectionMetrics metrics = new SimpleConnectionMetrics();
+ * config.setConnectionMetrics(metrics);
+ * ...
+ * System.out.println(metrics);
+ * </pre>
+ */
+public class SimpleConnectionMetrics implements ConnectionMetrics {
+
+    private final ConcurrentMap<String, AtomicLong> counters =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Histogram> histograms =
+            new ConcurrentHashMap<String, Histogram>();
+
+    public void packetParsed(Connection connection, Packet packet, long parseTime) {
+        String kind = getKind(packet);
+        increment("received." + kind, 1);
+        if (packet instanceof IQ && packet.getClass() != IQ.class
+                && !packet.getClass().isAnonymousClass())
+        {
+            increment("received.iq " + packet.getClass().getName(), 1);
+        }
+        for (PacketExtension extension : packet.getExtensions()) {
+            increment("received." + kind + " " + extension.getNamespace(), 1);
+        }
+        record("parse." + kind, parseTime);
+    }
+
+    public void listenerInvoked(Connection connection, PacketListener listener, Packet packet,
+            long waitTime, long processingTime)
+    {
+        record("listener.wait", waitTime);
+        record("listener." + listener.getClass().getName(), processingTime);
+    }
+
+    public void packetQueued(Connection connection, Packet packet, int queueSize) {
+        record("write.queue", queueSize);
+    }
+
+    public void packetWritten(Connection connection, Packet packet, long writeTime) {
+        increment("sent." + getKind(packet), 1);
+        record("write", writeTime);
+    }
+
+    public void collectorWaited(Connection connection, PacketCollector collector,
+            long waitTime, boolean received)
+    {
+        record("collector.wait", waitTime);
+        if (!received) {
+            increment("collector.timeout", 1);
+        }
+    }
+
+    public void requestCompleted(Connection connection, Packet request, Packet reply,
+            long roundTripTime)
+    {
+        if (reply != null) {
+            record("request.roundtrip", roundTripTime);
+        }
+        else {
+            increment("request.timeout", 1);
+        }
+    }
+
+    public void bytesReceived(Connection connection, int count, boolean compressed) {
+        increment(compressed ? "bytes.received.compressed" : "bytes.received", count);
+    }
+
+    public void bytesSent(Connection connection, int count, boolean compressed) {
+        increment(compressed ? "bytes.sent.compressed" : "bytes.sent", count);
+    }
+
+    public void negotiationCompleted(Connection connection, Negotiation negotiation,
+            boolean successful, long time)
+    {
+        record("negotiation." + negotiation, time);
+        if (!successful) {
+            increment("negotiation." + negotiation + ".failed", 1);
+        }
+    }
+
+    /**
+     * Returns the value of a counter, or 0 if the counter does not exist.
+     *
+     * @param name the name of the counter.
+     * @return the value of the counter.
+     */
+    public long getCount(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * Returns a histogram, or <tt>null</tt> if nothing was recorded in the histogram.
+     *
+     * @param name the name of the histogram.
+     * @return the histogram or <tt>null</tt>.
+     */
+    public Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    /**
+     * Returns the values of all the counters sorted by name.
+     *
+     * @return the values of the counters.
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Returns all the histograms sorted by name.
+     *
+     * @return the histograms.
+     */
+    public Map<String, Histogram> getHistograms() {
+        return new TreeMap<String, Histogram>(histograms);
+    }
+
+    /**
+     * Discards all the measurements.
+     */
+    public void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String, Long> entry : getCounts().entrySet()) {
+            buf.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            buf.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        return buf.toString();
+    }
+
+    private void increment(String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    private void record(String name, long value) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(value);
+    }
+
+    private static String getKind(Packet packet) {
+        if (packet instanceof Message) {
+            return "message";
+        }
+        else if (packet instanceof Presence) {
+            return "presence";
+        }
+        else if (packet instanceof IQ) {
+            return "iq";
+        }
+        return packet.getClass().getName();
+    }
+
+    /**
+     * A histogram of non-negative values. Values are counted in buckets whose bounds are
+     * powers of two, so percentiles are only known within a factor of two.
+     */
+    public static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records a value. Negative values are recorded as 0.
+         *
+         * @param value the value to record.
+         */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * Returns the number of recorded values.
+         *
+         * @return the number of recorded values.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Returns the sum of the recorded values.
+         *
+         * @return the sum of the recorded values.
+         */
+        public long getSum() {
+            return sum.get();
+        }
+
+        /**
+         * Returns the largest recorded value.
+         *
+         * @return the largest recorded value.
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns the mean of the recorded values, or 0 if no value was recorded.
+         *
+         * @return the mean of the recorded values.
+         */
+        public long getMean() {
+            long n = count.get();
+            return n > 0 ? sum.get() / n : 0;
+        }
+
+        /**
+         * Returns an upper bound of the specified percentile of the recorded values: the
+         * upper bound of the bucket that contains the percentile, capped by the largest
+         * recorded value.
+         *
+         * @param percentile the percentile, between 0 and 100.
+         * @return an upper bound of the percentile, or 0 if no value was recorded.
+         */
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    long bound = i == 0 ? 0 : (i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(bound, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public String toString() {
+            return "count=" + getCount() + " mean=" + getMean() + " p50<=" + getPercentile(50)
+                    + " p99<=" + getPercentile(99) + " max=" + getMax();
+        }
+    }
+}
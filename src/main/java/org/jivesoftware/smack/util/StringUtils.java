@@ -20,7 +20,9 @@
 
 package org.jivesoftware.smack.util;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
@@ -388,6 +390,85 @@ public class StringUtils {
         return out.toString();
     }
 
+    /**
+     * Escapes all necessary characters in the String and writes the result to the
+     * specified output. This method escapes the same characters as
+     * {@link #escapeForXML(String)} without creating an escaped copy of the String, so it
+     * should be preferred when writing large values to a stream. Nothing is written if the String is <tt>null</tt>.
+     *
+     * @param string the string to escape.
+     * @param out the output to write the escaped string to.
+     * @throws IOException if an error occurs while writing to the output.
+     */
+    public static void escapeForXML(String string, Appendable out) throws IOException {
+        if (string == null) {
+            return;
+        }
+        int last = 0;
+        int len = string.length();
+        for (int i = 0; i < len; i++) {
+            char ch = string.charAt(i);
+            String encoded;
+            if (ch > '>') {
+                continue;
+            }
+            else if (ch == '<') {
+                encoded = "&lt;";
+            }
+            else if (ch == '>') {
+                encoded = "&gt;";
+            }
+            else if (ch == '&') {
+                // Do nothing if the string is of the form &#235; (unicode value)
+                if (len > i + 5
+                    && string.charAt(i + 1) == '#'
+                    && Character.isDigit(string.charAt(i + 2))
+                    && Character.isDigit(string.charAt(i + 3))
+                    && Character.isDigit(string.charAt(i + 4))
+                    && string.charAt(i + 5) == ';') {
+                    continue;
+                }
+                encoded = "&amp;";
+            }
+            else if (ch == '"') {
+                encoded = "&quot;";
+            }
+            else if (ch == '\'') {
+                encoded = "&apos;";
+            }
+            else {
+                continue;
+            }
+            append(out, string, last, i);
+            out.append(encoded);
+            last = i + 1;
+        }
+        if (last == 0) {
+            out.append(string);
+        }
+        else {
+            append(out, string, last, len);
+        }
+    }
+
+    /**
+     * Appends a part of a String to the output. Writers are given the String itself since
+     * {@link java.io.Writer#append(CharSequence, int, int)} copies the characters first.
+     */
+    private static void append(Appendable out, String string, int start, int end)
+            throws IOException
+    {
+        if (start >= end) {
+            return;
+        }
+        if (out instanceof Writer) {
+            ((Writer) out).write(string, start, end - start);
+        }
+        else {
+            out.append(string, start, end);
+        }
+    }
+
     /**
      * Used by the hash method.
      */
@@ -496,17 +577,26 @@ public class StringUtils {
      * @return A base64 encoded String.
      */
     public static String encodeBase64(byte[] data, int offset, int len, boolean lineBreaks) {
-        return Base64.encodeBytes(data, offset, len, (lineBreaks ?  Base64.NO_OPTIONS : Base64.DONT_BREAK_LINES));
+        if (!lineBreaks) {
+            return Base64Codec.encode(data, offset, len);
+        }
+        return Base64.encodeBytes(data, offset, len, Base64.NO_OPTIONS);
     }
 
     /**
-     * Decodes a base64 String.
+     * Decodes a base64 String. Whitespace in the String is ignored.
      *
      * @param data a base64 encoded String to decode.
-     * @return the decoded String.
+     * @return the decoded String, or <tt>null</tt> if the String is not valid base64.
+     * @see Base64Codec
      */
     public static byte[] decodeBase64(String data) {
-        return Base64.decode(data);
+        try {
+            return Base64Codec.decode(data);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     /**
@@ -0,0 +1,218 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel for a large number of short-lived timeouts, such as the timeouts of
+ * requests waiting for a reply. Timeouts are hashed into the buckets of a circular wheel
+ * that a single thread advances one bucket per tick, so scheduling and cancelling a timeout
+ * take constant time no matter how many timeouts are pending. The price is precision:
+ * tasks run up to one tick after their deadline.<p>
+ *
+ * The thread of the wheel is a daemon thread. It is started when a timeout is scheduled and
+ * stops once no timeout has been pending for a minute.
+ */
+public class TimerWheel {
+
+    private static final long IDLE_TIME = 60000;
+
+    private final String name;
+    private final long tickDuration;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final Object lock = new Object();
+
+    private Thread worker;
+    private long startTime;
+    private long tick;
+    private int pending;
+
+    /**
+     * Creates a new timer wheel.
+     *
+     * @param name the name of the thread of the timer.
+     * @param tickDuration the duration of a tick in milliseconds.
+     * @param ticksPerWheel the number of buckets of the wheel. It is rounded up to a power
+     *      of two.
+     */
+    public TimerWheel(String name, long tickDuration, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive.");
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid number of ticks per wheel.");
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickDuration = tickDuration;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules a task to be run once the specified delay has elapsed. The task is run by
+     * the thread of the timer so it must complete quickly.
+     *
+     * @param task the task to run.
+     * @param delay the delay in milliseconds.
+     * @return a handle that can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (task == null) {
+            throw new NullPointerException("Task is null.");
+        }
+        Timeout timeout = new Timeout(task);
+        synchronized (lock) {
+            if (worker == null) {
+                startTime = System.currentTimeMillis();
+                tick = 0;
+                worker = new Thread(new Worker(), name);
+                worker.setDaemon(true);
+                worker.start();
+            }
+            long elapsed = System.currentTimeMillis() - startTime + Math.max(delay, 0);
+            // Round up so that the task never runs before its deadline. The current tick has
+            // already been processed so the task will run on the next tick at the earliest.
+            long target = Math.max((elapsed + tickDuration - 1) / tickDuration, tick + 1);
+            timeout.rounds = (target - tick - 1) / wheel.length;
+            timeout.bucket = (int) (target & mask);
+            timeout.next = wheel[timeout.bucket];
+            if (timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+            wheel[timeout.bucket] = timeout;
+            pending++;
+        }
+        return timeout;
+    }
+
+    /**
+     * Returns the number of tasks that are waiting to be run.
+     *
+     * @return the number of pending tasks.
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    private boolean remove(Timeout timeout) {
+        synchronized (lock) {
+            if (timeout.bucket < 0) {
+                return false;
+            }
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            }
+            else {
+                wheel[timeout.bucket] = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.bucket = -1;
+            timeout.next = null;
+            timeout.previous = null;
+            pending--;
+            return true;
+        }
+    }
+
+    /**
+     * A task scheduled on the timer.
+     */
+    public final class Timeout {
+
+        private final Runnable task;
+        private long rounds;
+        private int bucket = -1;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancels the task. Returns false if the task was already run or cancelled.
+         *
+         * @return true if the task was cancelled.
+         */
+        public boolean cancel() {
+            return remove(this);
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        public void run() {
+            List<Timeout> expired = new ArrayList<Timeout>();
+            long idleSince = System.currentTimeMillis();
+            while (true) {
+                synchronized (lock) {
+                    long wait = startTime + (tick + 1) * tickDuration - System.currentTimeMillis();
+                    while (wait > 0) {
+                        try {
+                            lock.wait(wait);
+                        }
+                        catch (InterruptedException ie) {
+                            // Ignore.
+                        }
+                        wait = startTime + (tick + 1) * tickDuration - System.currentTimeMillis();
+                    }
+                    tick++;
+                    int bucket = (int) (tick & mask);
+                    Timeout timeout = wheel[bucket];
+                    while (timeout != null) {
+                        Timeout next = timeout.next;
+                        if (timeout.rounds > 0) {
+                            timeout.rounds--;
+                        }
+                        else {
+                            remove(timeout);
+                            expired.add(timeout);
+                        }
+                        timeout = next;
+                    }
+                    if (pending > 0 || !expired.isEmpty()) {
+                        idleSince = System.currentTimeMillis();
+                    }
+                    else if (System.currentTimeMillis() - idleSince >= IDLE_TIME) {
+                        // Stop the thread. A new one is started by the next schedule.
+                        worker = null;
+                        return;
+                    }
+                }
+                for (Timeout timeout : expired) {
+                    try {
+                        timeout.task.run();
+                    }
+                    catch (Throwable t) {
+                        // Catch and print any exception so that a faulty task does not
+                        // stop the timer
+                        t.printStackTrace();
+                    }
+                }
+                expired.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map from classes to values whose keys are weak, so that caching a value for
+ * a class never prevents the class loader of the class from being unloaded. Unlike a
+ * WeakHashMap, which must be locked since reading it removes the collected entries, values
+ * are read without locking; the entries of collected classes are removed when values are
+ * added.<p>
+ *
+ * A value that references its class strongly keeps the class from being collected, so
+ * such values should be held through a soft or weak reference.
+ *
+ * @param <V> the type of the values.
+ */
+public final class WeakClassMap<V> {
+
+    private final ConcurrentMap<ClassKey, V> map = new ConcurrentHashMap<ClassKey, V>();
+    private final ReferenceQueue<Class<?>> collectedKeys = new ReferenceQueue<Class<?>>();
+
+    /**
+     * Returns the value of a class, or <tt>null</tt> if the class has no value.
+     *
+     * @param c the class.
+     * @return the value of the class, or <tt>null</tt>.
+     */
+    public V get(Class<?> c) {
+        return map.get(new ClassKey(c, null));
+    }
+
+    /**
+     * Sets the value of a class.
+     *
+     * @param c the class.
+     * @param value the value of the class.
+     */
+    public void put(Class<?> c, V value) {
+        removeCollectedKeys();
+        map.put(new ClassKey(c, collectedKeys), value);
+    }
+
+    private void removeCollectedKeys() {
+        Reference<? extends Class<?>> key;
+        while ((key = collectedKeys.poll()) != null) {
+            map.remove(key);
+        }
+    }
+
+    /**
+     * A weak reference to a class that is equal to the other references to the same class,
+     * or to itself once the class was collected.
+     */
+    private static final class ClassKey extends WeakReference<Class<?>> {
+
+        private final int hash;
+
+        ClassKey(Class<?> c, ReferenceQueue<Class<?>> queue) {
+            super(c, queue);
+            hash = System.identityHashCode(c);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object object) {
+            if (object == this) {
+                return true;
+            }
+            if (!(object instanceof ClassKey)) {
+                return false;
+            }
+            Class<?> c = get();
+            return c != null && c == ((ClassKey) object).get();
+        }
+    }
+}
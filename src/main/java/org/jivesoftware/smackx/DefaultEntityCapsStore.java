@@ -0,0 +1,125 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.smackx;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.jivesoftware.smackx.provider.DiscoverInfoProvider;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * An entity capabilities store that keeps the information of each verification string in
+ * its own file of a directory. Each file is written to a temporary file first and then
+ * renamed, so a file is either complete or missing.
+ *
+ * @see EntityCapsManager#setPersistentStore(EntityCapsStore)
+ */
+public class DefaultEntityCapsStore implements EntityCapsStore {
+
+    private final File directory;
+
+    /**
+     * Creates a store that uses a directory. The directory and its parent directories are
+     * created if they don't exist.
+     *
+     * @param directory the directory of the store.
+     * @throws IOException if the directory cannot be created.
+     */
+    public DefaultEntityCapsStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the directory " + directory);
+        }
+        this.directory = directory;
+    }
+
+    public DiscoverInfo getDiscoverInfo(String ver) {
+        File file = getFile(ver);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+                XmlPullParser parser = new MXParser();
+                parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+                parser.setInput(reader);
+                parser.nextTag();
+                return (DiscoverInfo) new DiscoverInfoProvider().parseIQ(parser);
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (Exception e) {
+            // The file cannot be read, so discover the information again
+            e.printStackTrace();
+            file.delete();
+            return null;
+        }
+    }
+
+    public void storeDiscoverInfo(String ver, DiscoverInfo info) {
+        File file = getFile(ver);
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("caps", ".tmp", directory);
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                Writer writer = new OutputStreamWriter(fileOut, "UTF-8");
+                writer.write(info.getChildElementXML());
+                writer.flush();
+                fileOut.getFD().sync();
+            }
+            finally {
+                fileOut.close();
+            }
+            // Renaming does not replace an existing file on every platform
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("Cannot rename " + tempFile + " to " + file);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the file of a verification string. Verification strings are Base64, which
+     * is not safe for file names, so the name is the hexadecimal of the string.
+     */
+    private File getFile(String ver) {
+        try {
+            return new File(directory, StringUtils.encodeHex(ver.getBytes("UTF-8")) + ".xml");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.smackx;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketInterceptor;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.ConcurrentCache;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.packet.CapsExtension;
+import org.jivesoftware.smackx.packet.DataForm;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manages the entity capabilities (XEP-0115) of a connection. The capabilities of this
+ * client are computed from the information of its {@link ServiceDiscoveryManager} and
+ * sent with every available presence, and the capabilities advertised in the presences
+ * of other entities are remembered, so that {@link ServiceDiscoveryManager#discoverInfo(String)}
+ * is answered without a query when the information of their verification string is
+ * already known.<p>
+ *
+ * The information of each verification string is discovered once, verified against the
+ * string and shared by all the connections in a cache, which may be backed by a
+ * {@link EntityCapsStore} so that it survives the application. Capabilities in the
+ * legacy format, without a hash function, are ignored since they cannot be verified.
+ *
+ * @see ServiceDiscoveryManager#getEntityCapsManager()
+ */
+public class EntityCapsManager {
+
+    /**
+     * The hash function used to compute the verification string of this client.
+     */
+    private static final String DEFAULT_HASH = "sha-1";
+
+    private static final int CACHE_SIZE = 1000;
+
+    private static String capsNode = "http://www.igniterealtime.org/projects/smack/";
+
+    private static final ConcurrentCache<String, DiscoverInfo> cache =
+            new ConcurrentCache<String, DiscoverInfo>(CACHE_SIZE, -1);
+
+    private static volatile EntityCapsStore persistentStore;
+
+    private final Connection connection;
+    private final ServiceDiscoveryManager discoveryManager;
+
+    /**
+     * The capabilities advertised by the last available presence of each address.
+     */
+    private final Map<String, CapsExtension> entityCaps =
+            new ConcurrentHashMap<String, CapsExtension>();
+
+    private volatile boolean enabled = true;
+
+    /**
+     * The verification string of this client and the string it was computed from.
+     */
+    private String localCapsString;
+    private String localVer;
+
+    EntityCapsManager(Connection connection, ServiceDiscoveryManager discoveryManager) {
+        this.connection = connection;
+        this.discoveryManager = discoveryManager;
+        init();
+    }
+
+    /**
+     * Returns the URI that identifies this client in its capabilities.
+     *
+     * @return the node of the capabilities of this client.
+     */
+    public static String getCapsNode() {
+        return capsNode;
+    }
+
+    /**
+     * Sets the URI that identifies this client in its capabilities, which should be the
+     * home page of the application.
+     *
+     * @param node the node of the capabilities of this client.
+     */
+    public static void setCapsNode(String node) {
+        capsNode = node;
+    }
+
+    /**
+     * Sets the store that keeps the discovered information of verification strings between
+     * runs of the application, in addition to the cache in memory.
+     *
+     * @param store the store, or <tt>null</tt> to only keep the information in memory.
+     */
+    public static void setPersistentStore(EntityCapsStore store) {
+        persistentStore = store;
+    }
+
+    /**
+     * Returns the store that keeps the discovered information of verification strings
+     * between runs of the application.
+     *
+     * @return the store, or <tt>null</tt> if the information is only kept in memory.
+     */
+    public static EntityCapsStore getPersistentStore() {
+        return persistentStore;
+    }
+
+    /**
+     * Returns true if the capabilities of this client are sent with its presences and the
+     * capabilities of other entities are used to answer disco#info queries.
+     *
+     * @return true if entity capabilities are enabled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables entity capabilities for the connection. Entity capabilities are
+     * enabled by default.
+     *
+     * @param enabled true if entity capabilities are enabled.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            entityCaps.clear();
+        }
+    }
+
+    /**
+     * Returns the capabilities advertised by the last available presence of an entity.
+     *
+     * @param entityID the full address of the entity.
+     * @return the capabilities of the entity, or <tt>null</tt> if it did not advertise any.
+     */
+    public CapsExtension getCapsExtension(String entityID) {
+        return entityCaps.get(entityID);
+    }
+
+    /**
+     * Returns the verification string of this client, computed from the identity, features
+     * and extended information of its {@link ServiceDiscoveryManager}.
+     *
+     * @return the verification string of this client.
+     */
+    public synchronized String getLocalVer() {
+        DiscoverInfo info = new DiscoverInfo();
+        discoveryManager.addLocalInfo(info);
+        String capsString = getCapsString(info);
+        if (capsString != null && !capsString.equals(localCapsString)) {
+            localVer = hash(capsString, DEFAULT_HASH);
+            localCapsString = capsString;
+        }
+        return localVer;
+    }
+
+    /**
+     * Returns true if a node is the node of the current capabilities of this client, which
+     * entities query to discover them.
+     *
+     * @param node the node of a disco#info query.
+     * @return true if the node is the node of the capabilities of this client.
+     */
+    boolean isLocalNode(String node) {
+        String ver = getLocalVer();
+        return node != null && ver != null && node.equals(capsNode + "#" + ver);
+    }
+
+    /**
+     * Returns the known information of an entity from the capabilities it advertised, or
+     * <tt>null</tt> if the information of its verification string was not discovered yet.
+     *
+     * @param entityID the full address of the entity.
+     * @return the information of the entity, or <tt>null</tt> if it's not known.
+     */
+    DiscoverInfo getDiscoverInfo(String entityID) {
+        if (!enabled) {
+            return null;
+        }
+        CapsExtension caps = entityCaps.get(entityID);
+        if (caps == null || caps.getHash() == null || caps.getVer() == null) {
+            return null;
+        }
+        DiscoverInfo info = cache.get(caps.getVer());
+        if (info == null) {
+            EntityCapsStore store = persistentStore;
+            if (store == null) {
+                return null;
+            }
+            info = store.getDiscoverInfo(caps.getVer());
+            if (info == null || !verify(caps, info)) {
+                return null;
+            }
+            cache.put(caps.getVer(), info);
+        }
+        // The cached information is shared, so return a copy addressed from the entity
+        DiscoverInfo result = copy(info);
+        result.setFrom(entityID);
+        return result;
+    }
+
+    /**
+     * Remembers the information discovered from an entity if it matches the capabilities
+     * the entity advertised.
+     *
+     * @param entityID the full address of the entity.
+     * @param info the information returned by the entity.
+     */
+    void cacheDiscoverInfo(String entityID, DiscoverInfo info) {
+        if (!enabled || info == null) {
+            return;
+        }
+        CapsExtension caps = entityCaps.get(entityID);
+        if (caps == null || caps.getHash() == null || caps.getVer() == null ||
+                cache.containsKey(caps.getVer()) || !verify(caps, info))
+        {
+            return;
+        }
+        // The information is kept apart from the packet, which the caller may modify
+        info = copy(info);
+        cache.put(caps.getVer(), info);
+        EntityCapsStore store = persistentStore;
+        if (store != null) {
+            store.storeDiscoverInfo(caps.getVer(), info);
+        }
+    }
+
+    private static DiscoverInfo copy(DiscoverInfo info) {
+        DiscoverInfo copy = new DiscoverInfo();
+        copy.setType(IQ.Type.RESULT);
+        for (Iterator<DiscoverInfo.Identity> it = info.getIdentities(); it.hasNext();) {
+            copy.addIdentity(it.next());
+        }
+        for (Iterator<DiscoverInfo.Feature> it = info.getFeatures(); it.hasNext();) {
+            copy.addFeature(it.next().getVar());
+        }
+        for (PacketExtension extension : info.getExtensions()) {
+            copy.addExtension(extension);
+        }
+        return copy;
+    }
+
+    private void init() {
+        discoveryManager.addFeature(CapsExtension.NAMESPACE);
+
+        // Remember the capabilities advertised by the presences of other entities
+        connection.addPacketListener(new PacketListener() {
+            public void processPacket(Packet packet) {
+                Presence presence = (Presence) packet;
+                String from = presence.getFrom();
+                if (from == null || !enabled) {
+                    return;
+                }
+                CapsExtension caps = null;
+                if (presence.getType() == Presence.Type.available) {
+                    caps = (CapsExtension) presence.getExtension(CapsExtension.ELEMENT_NAME,
+                            CapsExtension.NAMESPACE);
+                }
+                if (caps != null) {
+                    entityCaps.put(from, caps);
+                }
+                else if (presence.getType() == Presence.Type.available ||
+                        presence.getType() == Presence.Type.unavailable)
+                {
+                    entityCaps.remove(from);
+                }
+            }
+        }, new PacketTypeFilter(Presence.class));
+
+        // Advertise the capabilities of this client in its available presences
+        connection.addPacketInterceptor(new PacketInterceptor() {
+            public void interceptPacket(Packet packet) {
+                Presence presence = (Presence) packet;
+                if (!enabled || presence.getType() != Presence.Type.available ||
+                        presence.hasExtension(CapsExtension.ELEMENT_NAME, CapsExtension.NAMESPACE))
+                {
+                    return;
+                }
+                String ver = getLocalVer();
+                if (ver != null) {
+                    presence.addExtension(new CapsExtension(capsNode, ver, DEFAULT_HASH));
+                }
+            }
+        }, new PacketTypeFilter(Presence.class));
+
+        connection.addConnectionListener(new ConnectionListener() {
+            public void connectionClosed() {
+                entityCaps.clear();
+            }
+
+            public void connectionClosedOnError(Exception e) {
+                entityCaps.clear();
+            }
+
+            public void reconnectingIn(int seconds) {
+                // ignore
+            }
+
+            public void reconnectionSuccessful() {
+                // ignore
+            }
+
+            public void reconnectionFailed(Exception e) {
+                // ignore
+            }
+        });
+    }
+
+    /**
+     * Returns true if the information of an entity matches the verification string of its
+     * capabilities.
+     *
+     * @param caps the capabilities of the entity.
+     * @param info the information of the entity.
+     * @return true if the information matches the capabilities.
+     */
+    public static boolean verify(CapsExtension caps, DiscoverInfo info) {
+        if (caps.getVer() == null || caps.getHash() == null) {
+            return false;
+        }
+        String capsString = getCapsString(info);
+        if (capsString == null) {
+            return false;
+        }
+        return caps.getVer().equals(hash(capsString, caps.getHash()));
+    }
+
+    /**
+     * Returns the verification string of the information of an entity.
+     *
+     * @param info the information of an entity.
+     * @param hash the name of a hash function, for example <tt>sha-1</tt>.
+     * @return the verification string, or <tt>null</tt> if the hash function is not
+     *      supported or the information is not valid for entity capabilities.
+     */
+    public static String generateVer(DiscoverInfo info, String hash) {
+        String capsString = getCapsString(info);
+        return capsString != null ? hash(capsString, hash) : null;
+    }
+
+    /**
+     * Returns the string that is hashed into the verification string of the information of
+     * an entity, or <tt>null</tt> if the information has duplicate identities, features or
+     * forms, which makes it invalid for entity capabilities.
+     */
+    private static String getCapsString(DiscoverInfo info) {
+        StringBuilder buf = new StringBuilder();
+
+        // Identities sorted by category, type, language and name, without duplicates
+        List<String> identities = new ArrayList<String>();
+        for (Iterator<DiscoverInfo.Identity> it = info.getIdentities(); it.hasNext();) {
+            DiscoverInfo.Identity identity = it.next();
+            identities.add(nullToEmpty(identity.getCategory()) + "/" +
+                    nullToEmpty(identity.getType()) + "/" + nullToEmpty(identity.getLanguage()) +
+                    "/" + nullToEmpty(identity.getName()));
+        }
+        if (!appendSorted(buf, identities)) {
+            return null;
+        }
+
+        List<String> features = new ArrayList<String>();
+        for (Iterator<DiscoverInfo.Feature> it = info.getFeatures(); it.hasNext();) {
+            features.add(it.next().getVar());
+        }
+        if (!appendSorted(buf, features)) {
+            return null;
+        }
+
+        // Extended information forms sorted by their FORM_TYPE, and their fields by variable
+        List<DataForm> forms = new ArrayList<DataForm>();
+        Set<String> formTypes = new HashSet<String>();
+        for (PacketExtension extension : info.getExtensions()) {
+            if (!(extension instanceof DataForm)) {
+                continue;
+            }
+            DataForm form = (DataForm) extension;
+            String formType = getFormType(form);
+            if (formType == null) {
+                // Forms without a FORM_TYPE are ignored
+                continue;
+            }
+            if (!formTypes.add(formType)) {
+                return null;
+            }
+            forms.add(form);
+        }
+        Collections.sort(forms, new Comparator<DataForm>() {
+            public int compare(DataForm form1, DataForm form2) {
+                return getFormType(form1).compareTo(getFormType(form2));
+            }
+        });
+        for (DataForm form : forms) {
+            buf.append(getFormType(form)).append('<');
+            List<FormField> fields = new ArrayList<FormField>();
+            for (Iterator<FormField> it = form.getFields(); it.hasNext();) {
+                FormField field = it.next();
+                if (field.getVariable() != null && !field.getVariable().equals("FORM_TYPE")) {
+                    fields.add(field);
+                }
+            }
+            Collections.sort(fields, new Comparator<FormField>() {
+                public int compare(FormField field1, FormField field2) {
+                    return field1.getVariable().compareTo(field2.getVariable());
+                }
+            });
+            for (FormField field : fields) {
+                buf.append(field.getVariable()).append('<');
+                List<String> values = new ArrayList<String>();
+                for (Iterator<String> it = field.getValues(); it.hasNext();) {
+                    values.add(it.next());
+                }
+                Collections.sort(values);
+                for (String value : values) {
+                    buf.append(value).append('<');
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Appends sorted strings followed by '&lt;', or returns false if there are duplicates.
+     */
+    private static boolean appendSorted(StringBuilder buf, List<String> strings) {
+        Collections.sort(strings);
+        String previous = null;
+        for (String string : strings) {
+            if (string.equals(previous)) {
+                return false;
+            }
+            buf.append(string).append('<');
+            previous = string;
+        }
+        return true;
+    }
+
+    private static String getFormType(DataForm form) {
+        for (Iterator<FormField> it = form.getFields(); it.hasNext();) {
+            FormField field = it.next();
+            if ("FORM_TYPE".equals(field.getVariable())) {
+                Iterator<String> values = field.getValues();
+                return values.hasNext() ? values.next() : null;
+            }
+        }
+        return null;
+    }
+
+    private static String nullToEmpty(String string) {
+        return string != null ? string : "";
+    }
+
+    /**
+     * Returns the Base64 hash of a string, or <tt>null</tt> if the hash function is not
+     * supported.
+     */
+    private static String hash(String string, String hash) {
+        String algorithm;
+        if (hash.equalsIgnoreCase("sha-1")) {
+            algorithm = "SHA-1";
+        }
+        else if (hash.equalsIgnoreCase("sha-256")) {
+            algorithm = "SHA-256";
+        }
+        else if (hash.equalsIgnoreCase("sha-512")) {
+            algorithm = "SHA-512";
+        }
+        else if (hash.equalsIgnoreCase("md5")) {
+            algorithm = "MD5";
+        }
+        else {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            return StringUtils.encodeBase64(digest.digest(string.getBytes("UTF-8")));
+        }
+        catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+        catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
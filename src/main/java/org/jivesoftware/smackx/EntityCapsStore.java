@@ -0,0 +1,47 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.smackx;
+
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+/**
+ * Stores the discovered information of entity capabilities (XEP-0115) between runs of the
+ * application, keyed by their verification string. The information is verified against
+ * its verification string when it's loaded, so a store does not need to detect corrupted
+ * entries.
+ *
+ * @see EntityCapsManager#setPersistentStore(EntityCapsStore)
+ * @see DefaultEntityCapsStore
+ */
+public interface EntityCapsStore {
+
+    /**
+     * Returns the stored information of a verification string, or <tt>null</tt> if none
+     * is stored.
+     *
+     * @param ver the verification string.
+     * @return the stored information, or <tt>null</tt> if none is stored.
+     */
+    DiscoverInfo getDiscoverInfo(String ver);
+
+    /**
+     * Stores the information of a verification string.
+     *
+     * @param ver the verification string.
+     * @param info the discovered information.
+     */
+    void storeDiscoverInfo(String ver, DiscoverInfo info);
+}
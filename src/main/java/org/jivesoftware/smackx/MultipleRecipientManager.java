@@ -24,7 +24,7 @@ import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
-import org.jivesoftware.smack.util.Cache;
+import org.jivesoftware.smack.util.ConcurrentCache;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.packet.DiscoverInfo;
 import org.jivesoftware.smackx.packet.DiscoverItems;
@@ -47,7 +47,8 @@ public class MultipleRecipientManager {
      * Create a cache to hold the 100 most recently accessed elements for a period of
      * 24 hours.
      */
-    private static Cache services = new Cache(100, 24 * 60 * 60 * 1000);
+    private static ConcurrentCache<String, String> services =
+            new ConcurrentCache<String, String>(100, 24 * 60 * 60 * 1000);
 
     /**
      * Sends the specified packet to the list of specified recipients using the
@@ -282,10 +283,10 @@ public class MultipleRecipientManager {
      */
     private static String getMultipleRecipienServiceAddress(Connection connection) {
         String serviceName = connection.getServiceName();
-        String serviceAddress = (String) services.get(serviceName);
+        String serviceAddress = services.get(serviceName);
         if (serviceAddress == null) {
             synchronized (services) {
-                serviceAddress = (String) services.get(serviceName);
+                serviceAddress = services.get(serviceName);
                 if (serviceAddress == null) {
 
                     // Send the disco packet to the server itself
@@ -22,7 +22,6 @@ package org.jivesoftware.smackx;
 
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.PacketFilter;
-import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
@@ -58,6 +57,7 @@ public class ServiceDiscoveryManager {
     private DataForm extendedInfo = null;
     private Map<String, NodeInformationProvider> nodeInformationProviders =
             new ConcurrentHashMap<String, NodeInformationProvider>();
+    private EntityCapsManager capsManager;
 
     // Create a new ServiceDiscoveryManager on every established connection
     static {
@@ -90,6 +90,17 @@ public class ServiceDiscoveryManager {
         return instances.get(connection);
     }
 
+    /**
+     * Returns the manager of the entity capabilities of the connection, which advertises
+     * the features of this client in its presences and answers {@link #discoverInfo(String)}
+     * from the capabilities advertised by other entities.
+     *
+     * @return the EntityCapsManager of the connection.
+     */
+    public EntityCapsManager getEntityCapsManager() {
+        return capsManager;
+    }
+
     /**
      * Returns the name of the client that will be returned when asked for the client identity
      * in a disco request. The name could be any value you need to identity this client.
@@ -143,6 +154,7 @@ public class ServiceDiscoveryManager {
     private void init() {
         // Register the new instance and associate it with the connection 
         instances.put(connection, this);
+        capsManager = new EntityCapsManager(connection, this);
         // Add a listener to the connection that removes the registered instance when
         // the connection is closed
         connection.addConnectionListener(new ConnectionListener() {
@@ -218,22 +230,12 @@ public class ServiceDiscoveryManager {
                     response.setTo(discoverInfo.getFrom());
                     response.setPacketID(discoverInfo.getPacketID());
                     response.setNode(discoverInfo.getNode());
-                     // Add the client's identity and features only if "node" is null
-                    if (discoverInfo.getNode() == null) {
-                        // Set this client identity
-                        DiscoverInfo.Identity identity = new DiscoverInfo.Identity("client",
-                                getIdentityName());
-                        identity.setType(getIdentityType());
-                        response.addIdentity(identity);
-                        // Add the registered features to the response
-                        synchronized (features) {
-                            for (Iterator<String> it = getFeatures(); it.hasNext();) {
-                                response.addFeature(it.next());
-                            }
-                            if (extendedInfo != null) {
-                                response.addExtension(extendedInfo);
-                            }
-                        }
+                    // Add the client's identity and features only if "node" is null or the
+                    // node of the client's entity capabilities
+                    if (discoverInfo.getNode() == null ||
+                            capsManager.isLocalNode(discoverInfo.getNode()))
+                    {
+                        addLocalInfo(response);
                     }
                     else {
                         // Disco#info was sent to a node. Check if we have information of the
@@ -270,6 +272,28 @@ public class ServiceDiscoveryManager {
         connection.addPacketListener(packetListener, packetFilter);
     }
 
+    /**
+     * Adds the identity, the registered features and the extended information of this
+     * client to a disco#info response.
+     *
+     * @param response the response.
+     */
+    void addLocalInfo(DiscoverInfo response) {
+        // Set this client identity
+        DiscoverInfo.Identity identity = new DiscoverInfo.Identity("client", getIdentityName());
+        identity.setType(getIdentityType());
+        response.addIdentity(identity);
+        // Add the registered features to the response, once each
+        synchronized (features) {
+            for (String feature : new LinkedHashSet<String>(features)) {
+                response.addFeature(feature);
+            }
+            if (extendedInfo != null) {
+                response.addExtension(extendedInfo);
+            }
+        }
+    }
+
     /**
      * Returns the NodeInformationProvider responsible for providing information 
      * (ie items) related to a given node or <tt>null</null> if none.<p>
@@ -404,14 +428,23 @@ public class ServiceDiscoveryManager {
     }
 
     /**
-     * Returns the discovered information of a given XMPP entity addressed by its JID.
+     * Returns the discovered information of a given XMPP entity addressed by its JID. If
+     * the entity advertised entity capabilities whose information is already known, the
+     * information is returned without querying the entity.
      * 
      * @param entityID the address of the XMPP entity.
      * @return the discovered information.
      * @throws XMPPException if the operation failed for some reason.
+     * @see EntityCapsManager
      */
     public DiscoverInfo discoverInfo(String entityID) throws XMPPException {
-        return discoverInfo(entityID, null);
+        DiscoverInfo info = capsManager.getDiscoverInfo(entityID);
+        if (info != null) {
+            return info;
+        }
+        info = discoverInfo(entityID, null);
+        capsManager.cacheDiscoverInfo(entityID, info);
+        return info;
     }
 
     /**
@@ -431,22 +464,8 @@ public class ServiceDiscoveryManager {
         disco.setTo(entityID);
         disco.setNode(node);
 
-        // Create a packet collector to listen for a response.
-        PacketCollector collector =
-            connection.createPacketCollector(new PacketIDFilter(disco.getPacketID()));
-
-        connection.sendPacket(disco);
-
-        // Wait up to 5 seconds for a result.
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from the server.");
-        }
-        if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
+        // Send the request and wait up to 5 seconds for a result.
+        IQ result = connection.sendIQWithReply(disco).getReply();
         return (DiscoverInfo) result;
     }
 
@@ -478,22 +497,8 @@ public class ServiceDiscoveryManager {
         disco.setTo(entityID);
         disco.setNode(node);
 
-        // Create a packet collector to listen for a response.
-        PacketCollector collector =
-            connection.createPacketCollector(new PacketIDFilter(disco.getPacketID()));
-
-        connection.sendPacket(disco);
-
-        // Wait up to 5 seconds for a result.
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from the server.");
-        }
-        if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
+        // Send the request and wait up to 5 seconds for a result.
+        IQ result = connection.sendIQWithReply(disco).getReply();
         return (DiscoverItems) result;
     }
 
@@ -544,21 +549,7 @@ public class ServiceDiscoveryManager {
         discoverItems.setTo(entityID);
         discoverItems.setNode(node);
 
-        // Create a packet collector to listen for a response.
-        PacketCollector collector =
-            connection.createPacketCollector(new PacketIDFilter(discoverItems.getPacketID()));
-
-        connection.sendPacket(discoverItems);
-
-        // Wait up to 5 seconds for a result.
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from the server.");
-        }
-        if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
+        // Send the request and wait up to 5 seconds for a result.
+        connection.sendIQWithReply(discoverItems).getReply();
     }
 }
\ No newline at end of file
@@ -32,7 +32,6 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.packet.XMPPError;
-import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smack.util.SyncPacketSend;
 import org.jivesoftware.smackx.bytestreams.BytestreamSession;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.Close;
@@ -699,9 +698,10 @@ public class InBandBytestreamSession implements BytestreamSession {
             }
 
             // create data packet
-            String enc = StringUtils.encodeBase64(buffer, 0, bufferPointer, false);
+            byte[] chunk = new byte[bufferPointer];
+            System.arraycopy(buffer, 0, chunk, 0, bufferPointer);
             DataPacketExtension data = new DataPacketExtension(byteStreamRequest.getSessionID(),
-                            this.seq, enc);
+                            this.seq, chunk);
 
             // write to XMPP stream
             writeToXML(data);
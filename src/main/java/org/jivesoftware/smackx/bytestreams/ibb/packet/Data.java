@@ -15,6 +15,8 @@ package org.jivesoftware.smackx.bytestreams.ibb.packet;
 
 import org.jivesoftware.smack.packet.IQ;
 
+import java.io.IOException;
+
 /**
  * Represents a chunk of data sent over an In-Band Bytestream encapsulated in an
  * IQ stanza.
@@ -61,4 +63,8 @@ public class Data extends IQ {
         return this.dataPacketExtension.toXML();
     }
 
+    protected void appendChildElementXML(Appendable out) throws IOException {
+        this.dataPacketExtension.toXML(out);
+    }
+
 }
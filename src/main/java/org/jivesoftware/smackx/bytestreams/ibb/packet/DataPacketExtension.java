@@ -13,17 +13,19 @@
  */
 package org.jivesoftware.smackx.bytestreams.ibb.packet;
 
-import org.jivesoftware.smack.packet.PacketExtension;
-import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.packet.StreamablePacketExtension;
+import org.jivesoftware.smack.util.Base64Codec;
 import org.jivesoftware.smackx.bytestreams.ibb.InBandBytestreamManager;
 
+import java.io.IOException;
+
 /**
  * Represents a chunk of data of an In-Band Bytestream within an IQ stanza or a
  * message stanza
  * 
  * @author Henning Staib
  */
-public class DataPacketExtension implements PacketExtension {
+public class DataPacketExtension implements StreamablePacketExtension {
 
     /**
      * The element name of the data packet extension.
@@ -36,8 +38,8 @@ public class DataPacketExtension implements PacketExtension {
     /* sequence of this packet in regard to the other data packets */
     private final long seq;
 
-    /* the data contained in this packet */
-    private final String data;
+    /* the base64 encoded data contained in this packet, encoded when first needed */
+    private String data;
 
     private byte[] decodedData;
 
@@ -63,6 +65,30 @@ public class DataPacketExtension implements PacketExtension {
         this.data = data;
     }
 
+    /**
+     * Creates a new In-Band Bytestream data packet from the data to send. The data is
+     * encoded directly into the XMPP stream when the packet is sent.
+     * 
+     * @param sessionID unique session ID identifying this In-Band Bytestream
+     * @param seq sequence of this packet in regard to the other data packets
+     * @param decodedData the data contained in this packet, which must not be modified
+     *        afterwards
+     */
+    public DataPacketExtension(String sessionID, long seq, byte[] decodedData) {
+        if (sessionID == null || "".equals(sessionID)) {
+            throw new IllegalArgumentException("Session ID must not be null or empty");
+        }
+        if (seq < 0 || seq > 65535) {
+            throw new IllegalArgumentException("Sequence must not be between 0 and 65535");
+        }
+        if (decodedData == null) {
+            throw new IllegalArgumentException("Data must not be null");
+        }
+        this.sessionID = sessionID;
+        this.seq = seq;
+        this.decodedData = decodedData;
+    }
+
     /**
      * Returns the unique session ID identifying this In-Band Bytestream.
      * 
@@ -87,6 +113,9 @@ public class DataPacketExtension implements PacketExtension {
      * @return the data contained in this packet.
      */
     public String getData() {
+        if (data == null) {
+            data = Base64Codec.encode(decodedData, 0, decodedData.length);
+        }
         return data;
     }
 
@@ -107,13 +136,13 @@ public class DataPacketExtension implements PacketExtension {
             return this.decodedData;
         }
 
-        // data must not contain the pad (=) other than end of data
-        if (data.matches(".*={1,2}+.+")) {
+        // the decoder rejects bad characters and the pad (=) other than at the end of data
+        try {
+            this.decodedData = Base64Codec.decode(data);
+        }
+        catch (IllegalArgumentException e) {
             return null;
         }
-
-        // decodeBase64 will return null if bad characters are included
-        this.decodedData = StringUtils.decodeBase64(data);
         return this.decodedData;
     }
 
@@ -126,24 +155,42 @@ public class DataPacketExtension implements PacketExtension {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<");
-        buf.append(getElementName());
-        buf.append(" ");
-        buf.append("xmlns=\"");
-        buf.append(InBandBytestreamManager.NAMESPACE);
-        buf.append("\" ");
-        buf.append("seq=\"");
-        buf.append(seq);
-        buf.append("\" ");
-        buf.append("sid=\"");
-        buf.append(sessionID);
-        buf.append("\">");
-        buf.append(data);
-        buf.append("</");
-        buf.append(getElementName());
-        buf.append(">");
+        StringBuilder buf = new StringBuilder(getEncodedLength() + 100);
+        try {
+            toXML(buf);
+        }
+        catch (IOException ioe) {
+            // Never happens since a StringBuilder is used
+        }
         return buf.toString();
     }
 
+    public void toXML(Appendable out) throws IOException {
+        out.append("<");
+        out.append(getElementName());
+        out.append(" ");
+        out.append("xmlns=\"");
+        out.append(InBandBytestreamManager.NAMESPACE);
+        out.append("\" ");
+        out.append("seq=\"");
+        out.append(Long.toString(seq));
+        out.append("\" ");
+        out.append("sid=\"");
+        out.append(sessionID);
+        out.append("\">");
+        if (data != null) {
+            out.append(data);
+        }
+        else {
+            Base64Codec.encode(decodedData, 0, decodedData.length, out);
+        }
+        out.append("</");
+        out.append(getElementName());
+        out.append(">");
+    }
+
+    private int getEncodedLength() {
+        return data != null ? data.length() : Base64Codec.encodedLength(decodedData.length);
+    }
+
 }
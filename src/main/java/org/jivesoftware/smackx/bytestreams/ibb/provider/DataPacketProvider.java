@@ -17,10 +17,13 @@ import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smack.util.Base64Codec;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.Data;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.DataPacketExtension;
 import org.xmlpull.v1.XmlPullParser;
 
+import java.nio.ByteBuffer;
+
 /**
  * Parses an In-Band Bytestream data packet which can be a packet extension of
  * either an IQ stanza or a message stanza.
@@ -32,8 +35,27 @@ public class DataPacketProvider implements PacketExtensionProvider, IQProvider {
     public PacketExtension parseExtension(XmlPullParser parser) throws Exception {
         String sessionID = parser.getAttributeValue("", "sid");
         long seq = Long.parseLong(parser.getAttributeValue("", "seq"));
-        String data = parser.nextText();
-        return new DataPacketExtension(sessionID, seq, data);
+        if (parser.next() != XmlPullParser.TEXT) {
+            return new DataPacketExtension(sessionID, seq, "");
+        }
+        // decode the data from the buffer of the parser without creating a String
+        int[] startAndLength = new int[2];
+        char[] chars = parser.getTextCharacters(startAndLength);
+        int start = startAndLength[0];
+        int length = startAndLength[1];
+        DataPacketExtension extension;
+        int decodedLength = Base64Codec.decodedLength(chars, start, length);
+        if (decodedLength < 0) {
+            // keep the invalid data so that the session can report the error
+            extension = new DataPacketExtension(sessionID, seq, new String(chars, start, length));
+        }
+        else {
+            byte[] decodedData = new byte[decodedLength];
+            Base64Codec.decode(chars, start, length, ByteBuffer.wrap(decodedData));
+            extension = new DataPacketExtension(sessionID, seq, decodedData);
+        }
+        parser.next();
+        return extension;
     }
 
     public IQ parseIQ(XmlPullParser parser) throws Exception {
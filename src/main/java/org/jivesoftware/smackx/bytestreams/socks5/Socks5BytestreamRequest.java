@@ -21,7 +21,7 @@ import java.util.concurrent.TimeoutException;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.XMPPError;
-import org.jivesoftware.smack.util.Cache;
+import org.jivesoftware.smack.util.ConcurrentCache;
 import org.jivesoftware.smackx.bytestreams.BytestreamRequest;
 import org.jivesoftware.smackx.bytestreams.socks5.packet.Bytestream;
 import org.jivesoftware.smackx.bytestreams.socks5.packet.Bytestream.StreamHost;
@@ -40,8 +40,8 @@ public class Socks5BytestreamRequest implements BytestreamRequest {
     private static final int BLACKLIST_MAX_SIZE = 100;
 
     /* blacklist of addresses of SOCKS5 proxies */
-    private static final Cache<String, Integer> ADDRESS_BLACKLIST = new Cache<String, Integer>(
-                    BLACKLIST_MAX_SIZE, BLACKLIST_LIFETIME);
+    private static final ConcurrentCache<String, Integer> ADDRESS_BLACKLIST =
+                new ConcurrentCache<String, Integer>(BLACKLIST_MAX_SIZE, BLACKLIST_LIFETIME);
 
     /*
      * The number of connection failures it takes for a particular SOCKS5 proxy to be blacklisted.
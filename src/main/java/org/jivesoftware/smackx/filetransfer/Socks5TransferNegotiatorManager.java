@@ -18,7 +18,7 @@
  */
 package org.jivesoftware.smackx.filetransfer;
 
-import org.jivesoftware.smack.util.Cache;
+import org.jivesoftware.smack.util.ConcurrentCache;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.PacketCollector;
 import org.jivesoftware.smack.SmackConfiguration;
@@ -51,8 +51,8 @@ public class Socks5TransferNegotiatorManager implements FileTransferNegotiatorMa
     // locks on the proxy process during its initiatilization process
     private final Object processLock = new Object();
 
-    private final Cache<String, Integer> addressBlacklist
-            = new Cache<String, Integer>(100, BLACKLIST_LIFETIME);
+    private final ConcurrentCache<String, Integer> addressBlacklist
+            = new ConcurrentCache<String, Integer>(100, BLACKLIST_LIFETIME);
 
     private XMPPConnection connection;
 
@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jivesoftware.smack.Chat;
 import org.jivesoftware.smack.ConnectionCreationListener;
@@ -47,13 +48,13 @@ import org.jivesoftware.smack.filter.FromMatchesFilter;
 import org.jivesoftware.smack.filter.MessageTypeFilter;
 import org.jivesoftware.smack.filter.PacketExtensionFilter;
 import org.jivesoftware.smack.filter.PacketFilter;
-import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.Registration;
+import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.Form;
 import org.jivesoftware.smackx.NodeInformationProvider;
 import org.jivesoftware.smackx.ServiceDiscoveryManager;
@@ -104,6 +105,8 @@ public class MultiUserChat {
     private RoomListenerMultiplexor roomListenerMultiplexor;
     private ConnectionDetachedPacketCollector messageCollector;
     private List<PacketListener> connectionListeners = new ArrayList<PacketListener>();
+    private final AtomicReference<MultiUserChatJoinManager.JoinRequest> pendingJoin =
+            new AtomicReference<MultiUserChatJoinManager.JoinRequest>();
 
     static {
         Connection.addConnectionCreationListener(new ConnectionCreationListener() {
@@ -454,24 +457,7 @@ public class MultiUserChat {
         if (joined) {
             leave();
         }
-        // We join a room by sending a presence packet where the "to"
-        // field is in the form "roomName@service/nickname"
-        Presence joinPresence = new Presence(Presence.Type.available);
-        joinPresence.setTo(room + "/" + nickname);
-
-        // Indicate the the client supports MUC
-        MUCInitialPresence mucInitialPresence = new MUCInitialPresence();
-        if (password != null) {
-            mucInitialPresence.setPassword(password);
-        }
-        if (history != null) {
-            mucInitialPresence.setHistory(history.getMUCHistory());
-        }
-        joinPresence.addExtension(mucInitialPresence);
-        // Invoke presence interceptors so that extra information can be dynamically added
-        for (PacketInterceptor packetInterceptor : presenceInterceptors) {
-            packetInterceptor.interceptPacket(joinPresence);
-        }
+        Presence joinPresence = createJoinPresence(nickname, password, history);
 
         // Wait for a presence packet back from the server.
         PacketFilter responseFilter =
@@ -505,6 +491,106 @@ public class MultiUserChat {
         userHasJoined();
     }
 
+    /**
+     * Creates the presence that joins the room with a nickname. The presence interceptors
+     * of the room are applied to it.
+     *
+     * @param nickname the nickname to use.
+     * @param password the password to use, or <tt>null</tt>.
+     * @param history the amount of discussion history to receive, or <tt>null</tt>.
+     * @return the presence to send to join the room.
+     */
+    Presence createJoinPresence(String nickname, String password, DiscussionHistory history) {
+        // We join a room by sending a presence packet where the "to"
+        // field is in the form "roomName@service/nickname"
+        Presence joinPresence = new Presence(Presence.Type.available);
+        joinPresence.setTo(room + "/" + nickname);
+
+        // Indicate the the client supports MUC
+        MUCInitialPresence mucInitialPresence = new MUCInitialPresence();
+        if (password != null) {
+            mucInitialPresence.setPassword(password);
+        }
+        if (history != null) {
+            mucInitialPresence.setHistory(history.getMUCHistory());
+        }
+        joinPresence.addExtension(mucInitialPresence);
+        // Invoke presence interceptors so that extra information can be dynamically added
+        for (PacketInterceptor packetInterceptor : presenceInterceptors) {
+            packetInterceptor.interceptPacket(joinPresence);
+        }
+        return joinPresence;
+    }
+
+    /**
+     * Sets the join sent by a {@link MultiUserChatJoinManager} that waits for the reply of
+     * the room. The reply is passed to the join by the presence listener of the room. Only
+     * one join of a room can wait for its reply at a time.
+     *
+     * @param request the join.
+     * @return true if the join was set, or false if another join is waiting for its reply.
+     */
+    boolean setPendingJoin(MultiUserChatJoinManager.JoinRequest request) {
+        return pendingJoin.compareAndSet(null, request);
+    }
+
+    /**
+     * Stops waiting for the reply to a join, unless it was already received.
+     *
+     * @param request the join.
+     * @return true if the reply was not received.
+     */
+    boolean clearPendingJoin(MultiUserChatJoinManager.JoinRequest request) {
+        return pendingJoin.compareAndSet(request, null);
+    }
+
+    /**
+     * Returns the pending join that a presence replies to, and updates the state of the
+     * room if the join succeeded. The reply is the presence of the user in the room, or
+     * an error.
+     */
+    private MultiUserChatJoinManager.JoinRequest takePendingJoin(Presence presence) {
+        MultiUserChatJoinManager.JoinRequest request = pendingJoin.get();
+        if (request == null || presence.getType() == Presence.Type.unavailable) {
+            // Leaving the room before joining it again is not the reply to the join
+            return null;
+        }
+        String from = StringUtils.parseResource(presence.getFrom());
+        boolean reply = presence.getType() == Presence.Type.error ||
+                request.getNickname().equals(from);
+        if (!reply && presence.getType() == Presence.Type.available) {
+            // The room may have changed the nickname, which is then flagged as the user's
+            MUCUser mucUser = getMUCUserExtension(presence);
+            reply = mucUser != null && mucUser.getStatus() != null &&
+                    "110".equals(mucUser.getStatus().getCode());
+        }
+        if (!reply || !pendingJoin.compareAndSet(request, null)) {
+            return null;
+        }
+        if (presence.getType() == Presence.Type.available) {
+            synchronized (this) {
+                this.nickname = from;
+                joined = true;
+                userHasJoined();
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Forgets that the room was joined, without sending anything, after the connection
+     * that joined it was lost.
+     */
+    synchronized void resetJoinState() {
+        if (!joined) {
+            return;
+        }
+        occupantsMap.clear();
+        nickname = null;
+        joined = false;
+        userHasLeft();
+    }
+
     /**
      * Returns true if currently in the multi user chat (after calling the {@link
      * #join(String)} method).
@@ -537,6 +623,8 @@ public class MultiUserChat {
         nickname = null;
         joined = false;
         userHasLeft();
+        // The room must not be joined again after a reconnection
+        MultiUserChatJoinManager.roomLeft(connection, this);
     }
 
     /**
@@ -553,22 +641,8 @@ public class MultiUserChat {
         iq.setTo(room);
         iq.setType(IQ.Type.GET);
 
-        // Filter packets looking for an answer from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Request the configuration form to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        IQ answer = connection.sendIQWithReply(iq).getReply();
         return Form.getFormFrom(answer);
     }
 
@@ -586,22 +660,8 @@ public class MultiUserChat {
         iq.setType(IQ.Type.SET);
         iq.addExtension(form.getDataFormToSend());
 
-        // Filter packets looking for an answer from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Send the completed configuration form to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        connection.sendIQWithReply(iq).getReply();
     }
 
     /**
@@ -623,18 +683,7 @@ public class MultiUserChat {
         reg.setType(IQ.Type.GET);
         reg.setTo(room);
 
-        PacketFilter filter =
-            new AndFilter(new PacketIDFilter(reg.getPacketID()), new PacketTypeFilter(IQ.class));
-        PacketCollector collector = connection.createPacketCollector(filter);
-        connection.sendPacket(reg);
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
+        IQ result = connection.sendIQWithReply(reg).getReply();
         return Form.getFormFrom(result);
     }
 
@@ -658,18 +707,7 @@ public class MultiUserChat {
         reg.setTo(room);
         reg.addExtension(form.getDataFormToSend());
 
-        PacketFilter filter =
-            new AndFilter(new PacketIDFilter(reg.getPacketID()), new PacketTypeFilter(IQ.class));
-        PacketCollector collector = connection.createPacketCollector(filter);
-        connection.sendPacket(reg);
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
+        connection.sendIQWithReply(reg).getReply();
     }
 
     /**
@@ -695,22 +733,8 @@ public class MultiUserChat {
         destroy.setJid(alternateJID);
         iq.setDestroy(destroy);
 
-        // Wait for a presence packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Send the room destruction request.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        connection.sendIQWithReply(iq).getReply();
         // Reset occupant information.
         occupantsMap.clear();
         nickname = null;
@@ -1375,22 +1399,8 @@ public class MultiUserChat {
         item.setJid(jid);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        connection.sendIQWithReply(iq).getReply();
     }
 
     private void changeAffiliationByOwner(Collection<String> jids, String affiliation)
@@ -1405,22 +1415,8 @@ public class MultiUserChat {
             iq.addItem(item);
         }
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        connection.sendIQWithReply(iq).getReply();
     }
 
     private void changeAffiliationByAdmin(String jid, String affiliation, String reason)
@@ -1434,22 +1430,8 @@ public class MultiUserChat {
         item.setReason(reason);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        connection.sendIQWithReply(iq).getReply();
     }
 
     private void changeAffiliationByAdmin(Collection<String> jids, String affiliation)
@@ -1464,22 +1446,8 @@ public class MultiUserChat {
             iq.addItem(item);
         }
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        connection.sendIQWithReply(iq).getReply();
     }
 
     private void changeRole(String nickname, String role, String reason) throws XMPPException {
@@ -1492,22 +1460,8 @@ public class MultiUserChat {
         item.setReason(reason);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        connection.sendIQWithReply(iq).getReply();
     }
 
     private void changeRole(Collection<String> nicknames, String role) throws XMPPException {
@@ -1521,22 +1475,8 @@ public class MultiUserChat {
             iq.addItem(item);
         }
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
         // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        connection.sendIQWithReply(iq).getReply();
     }
 
     /**
@@ -1685,22 +1625,8 @@ public class MultiUserChat {
         MUCOwner.Item item = new MUCOwner.Item(affiliation);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        MUCOwner answer = (MUCOwner) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the request to the server and wait for the response.
+        MUCOwner answer = (MUCOwner) connection.sendIQWithReply(iq).getReply();
         // Get the list of affiliates from the server's answer
         List<Affiliate> affiliates = new ArrayList<Affiliate>();
         for (Iterator it = answer.getItems(); it.hasNext();) {
@@ -1726,22 +1652,8 @@ public class MultiUserChat {
         MUCAdmin.Item item = new MUCAdmin.Item(affiliation, null);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        MUCAdmin answer = (MUCAdmin) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the request to the server and wait for the response.
+        MUCAdmin answer = (MUCAdmin) connection.sendIQWithReply(iq).getReply();
         // Get the list of affiliates from the server's answer
         List<Affiliate> affiliates = new ArrayList<Affiliate>();
         for (Iterator it = answer.getItems(); it.hasNext();) {
@@ -1788,22 +1700,8 @@ public class MultiUserChat {
         MUCAdmin.Item item = new MUCAdmin.Item(null, role);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        MUCAdmin answer = (MUCAdmin) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the request to the server and wait for the response.
+        MUCAdmin answer = (MUCAdmin) connection.sendIQWithReply(iq).getReply();
         // Get the list of participants from the server's answer
         List<Occupant> participants = new ArrayList<Occupant>();
         for (Iterator it = answer.getItems(); it.hasNext();) {
@@ -2141,6 +2039,7 @@ public class MultiUserChat {
         PacketListener presenceListener = new PacketListener() {
             public void processPacket(Packet packet) {
                 Presence presence = (Presence) packet;
+                MultiUserChatJoinManager.JoinRequest joinRequest = takePendingJoin(presence);
                 String from = presence.getFrom();
                 String myRoomJID = room + "/" + nickname;
                 boolean isUserStatusModification = presence.getFrom().equals(myRoomJID);
@@ -2192,6 +2091,10 @@ public class MultiUserChat {
                         }
                     }
                 }
+                if (joinRequest != null) {
+                    // Report the join once the presence of the user was processed
+                    joinRequest.replyReceived(presence);
+                }
             }
         };
 
@@ -0,0 +1,451 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.smackx.muc;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.TimerWheel;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Joins many rooms of a connection at once. Unlike {@link MultiUserChat#join(String)},
+ * which waits for the reply of the room before returning, the joins are sent back-to-back
+ * and their outcome is reported to a {@link RoomJoinListener} when the room replies. The
+ * replies are matched to the joins by the listener that each MultiUserChat already has for
+ * the packets of its room, so no packet collector is created for each join.<p>
+ *
+ * At most {@link #getMaxConcurrentJoins()} joins wait for a reply at the same time; the
+ * other joins are queued and sent as replies arrive, so that joining hundreds of rooms
+ * does not flood the server. With {@link #setAutoRejoin(boolean) auto-rejoin}, the rooms
+ * joined through this manager that were not left are joined again once the connection has
+ * been reconnected, requesting only the history sent since the connection was lost. A room
+ * is joined again after every reconnection until it's {@link MultiUserChat#leave() left},
+ * even if joining it again failed after a previous reconnection.
+ *
+ * @see MultiUserChat
+ */
+public class MultiUserChatJoinManager {
+
+    // The manager is referenced by the listener it adds to the connection, so a
+    // WeakReference keeps it as long as the connection without preventing the GC from
+    // collecting the connection.
+    private static final Map<Connection, WeakReference<MultiUserChatJoinManager>> instances =
+            new WeakHashMap<Connection, WeakReference<MultiUserChatJoinManager>>();
+
+    private static final TimerWheel timer = new TimerWheel("Smack MUC Join Timer", 100, 512);
+
+    private final Connection connection;
+
+    private int maxConcurrentJoins = 50;
+    private long joinTimeout = SmackConfiguration.getPacketReplyTimeout();
+    private boolean autoRejoin = false;
+
+    /**
+     * The joins that were not sent yet, and the number of joins waiting for a reply.
+     */
+    private final LinkedList<JoinRequest> queue = new LinkedList<JoinRequest>();
+    private int pendingCount;
+
+    /**
+     * The last successful join of each room that was not left, which is sent again after a
+     * reconnection.
+     */
+    private final Map<MultiUserChat, JoinRequest> joinedRooms =
+            new LinkedHashMap<MultiUserChat, JoinRequest>();
+    private Date disconnectionDate;
+
+    /**
+     * Returns the join manager of a connection, creating it if needed.
+     *
+     * @param connection the connection.
+     * @return the join manager of the connection.
+     */
+    public static MultiUserChatJoinManager getInstanceFor(Connection connection) {
+        synchronized (instances) {
+            WeakReference<MultiUserChatJoinManager> reference = instances.get(connection);
+            MultiUserChatJoinManager manager = reference != null ? reference.get() : null;
+            if (manager == null) {
+                manager = new MultiUserChatJoinManager(connection);
+                instances.put(connection,
+                        new WeakReference<MultiUserChatJoinManager>(manager));
+            }
+            return manager;
+        }
+    }
+
+    /**
+     * Called by a room when it's left, so that it's not joined again after a reconnection.
+     *
+     * @param connection the connection of the room.
+     * @param muc the room.
+     */
+    static void roomLeft(Connection connection, MultiUserChat muc) {
+        MultiUserChatJoinManager manager;
+        synchronized (instances) {
+            WeakReference<MultiUserChatJoinManager> reference = instances.get(connection);
+            manager = reference != null ? reference.get() : null;
+        }
+        if (manager != null) {
+            synchronized (manager) {
+                manager.joinedRooms.remove(muc);
+            }
+        }
+    }
+
+    private MultiUserChatJoinManager(Connection connection) {
+        this.connection = connection;
+        connection.addConnectionListener(new ConnectionListener() {
+            public void connectionClosed() {
+                closed();
+            }
+
+            public void connectionClosedOnError(Exception e) {
+                disconnected();
+            }
+
+            public void reconnectingIn(int seconds) {
+                // ignore
+            }
+
+            public void reconnectionSuccessful() {
+                rejoin();
+            }
+
+            public void reconnectionFailed(Exception e) {
+                // ignore
+            }
+        });
+    }
+
+    /**
+     * Returns the maximum number of joins that wait for the reply of their room at the
+     * same time.
+     *
+     * @return the maximum number of concurrent joins.
+     */
+    public synchronized int getMaxConcurrentJoins() {
+        return maxConcurrentJoins;
+    }
+
+    /**
+     * Sets the maximum number of joins that wait for the reply of their room at the same
+     * time. The default is 50.
+     *
+     * @param maxConcurrentJoins the maximum number of concurrent joins.
+     */
+    public void setMaxConcurrentJoins(int maxConcurrentJoins) {
+        if (maxConcurrentJoins <= 0) {
+            throw new IllegalArgumentException("Max concurrent joins must be positive.");
+        }
+        synchronized (this) {
+            this.maxConcurrentJoins = maxConcurrentJoins;
+        }
+        sendQueuedJoins();
+    }
+
+    /**
+     * Returns the time to wait for the reply of a room after its join was sent.
+     *
+     * @return the timeout of a join in milliseconds.
+     */
+    public synchronized long getJoinTimeout() {
+        return joinTimeout;
+    }
+
+    /**
+     * Sets the time to wait for the reply of a room after its join was sent. The default
+     * is the packet reply timeout of {@link SmackConfiguration}.
+     *
+     * @param joinTimeout the timeout of a join in milliseconds.
+     */
+    public synchronized void setJoinTimeout(long joinTimeout) {
+        if (joinTimeout <= 0) {
+            throw new IllegalArgumentException("Join timeout must be positive.");
+        }
+        this.joinTimeout = joinTimeout;
+    }
+
+    /**
+     * Returns true if the rooms joined through this manager are joined again when the
+     * connection is reconnected.
+     *
+     * @return true if the rooms are joined again after a reconnection.
+     */
+    public synchronized boolean isAutoRejoin() {
+        return autoRejoin;
+    }
+
+    /**
+     * Sets whether the rooms joined through this manager, and not left since, are joined
+     * again when the connection is reconnected. The listener of the last join of each room
+     * is notified of the outcome. Auto-rejoin is disabled by default.
+     *
+     * @param autoRejoin true if the rooms are joined again after a reconnection.
+     */
+    public synchronized void setAutoRejoin(boolean autoRejoin) {
+        this.autoRejoin = autoRejoin;
+    }
+
+    /**
+     * Returns the number of joins that are waiting for a reply or queued.
+     *
+     * @return the number of joins that did not complete yet.
+     */
+    public synchronized int getPendingJoinCount() {
+        return pendingCount + queue.size();
+    }
+
+    /**
+     * Joins rooms with the same nickname, without password and with the history the rooms
+     * decide to send.
+     *
+     * @param rooms the rooms to join.
+     * @param nickname the nickname to use in every room.
+     * @param listener the listener notified of the outcome of each join, or <tt>null</tt>.
+     */
+    public void joinAll(Collection<MultiUserChat> rooms, String nickname,
+            RoomJoinListener listener)
+    {
+        if (nickname == null || nickname.equals("")) {
+            throw new IllegalArgumentException("Nickname must not be null or blank.");
+        }
+        synchronized (this) {
+            for (MultiUserChat muc : rooms) {
+                queue.add(new JoinRequest(muc, nickname, null, null, listener, false));
+            }
+        }
+        sendQueuedJoins();
+    }
+
+    /**
+     * Joins a room without waiting for its reply. The join is sent immediately unless the
+     * maximum number of concurrent joins was reached. If the room was already joined, it's
+     * left first, as by {@link MultiUserChat#join(String, String, DiscussionHistory, long)}.
+     *
+     * @param muc the room to join.
+     * @param nickname the nickname to use.
+     * @param password the password of the room, or <tt>null</tt> if none is required.
+     * @param history the amount of discussion history to receive, or <tt>null</tt> to let
+     *      the room decide.
+     * @param listener the listener notified of the outcome of the join, or <tt>null</tt>.
+     */
+    public void join(MultiUserChat muc, String nickname, String password,
+            DiscussionHistory history, RoomJoinListener listener)
+    {
+        if (nickname == null || nickname.equals("")) {
+            throw new IllegalArgumentException("Nickname must not be null or blank.");
+        }
+        synchronized (this) {
+            queue.add(new JoinRequest(muc, nickname, password, history, listener, false));
+        }
+        sendQueuedJoins();
+    }
+
+    /**
+     * Sends queued joins until the maximum number of concurrent joins is reached.
+     */
+    private void sendQueuedJoins() {
+        List<JoinRequest> requests = new ArrayList<JoinRequest>();
+        synchronized (this) {
+            while (pendingCount < maxConcurrentJoins && !queue.isEmpty()) {
+                requests.add(queue.removeFirst());
+                pendingCount++;
+            }
+        }
+        for (JoinRequest request : requests) {
+            request.send();
+        }
+    }
+
+    /**
+     * Joins the rooms that were joined through this manager, and not left, again after a
+     * reconnection.
+     */
+    private void rejoin() {
+        synchronized (this) {
+            if (!autoRejoin) {
+                return;
+            }
+            // The rooms stay in joinedRooms until they are left, so that a room whose
+            // join fails is joined again after the next reconnection
+            for (JoinRequest request : joinedRooms.values()) {
+                JoinRequest rejoin = new JoinRequest(request.muc, request.nickname,
+                        request.password, request.history, request.listener, true);
+                rejoin.since = disconnectionDate;
+                queue.add(rejoin);
+            }
+            disconnectionDate = null;
+        }
+        sendQueuedJoins();
+    }
+
+    /**
+     * Remembers when the connection was lost, and drops the queued rejoins, which are
+     * queued again after the next reconnection.
+     */
+    private synchronized void disconnected() {
+        if (disconnectionDate == null) {
+            disconnectionDate = new Date();
+        }
+        for (Iterator<JoinRequest> it = queue.iterator(); it.hasNext();) {
+            if (it.next().rejoin) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Fails the queued joins and forgets the joined rooms after the connection was closed.
+     */
+    private void closed() {
+        List<JoinRequest> requests;
+        synchronized (this) {
+            requests = new ArrayList<JoinRequest>(queue);
+            queue.clear();
+            joinedRooms.clear();
+            disconnectionDate = null;
+        }
+        for (JoinRequest request : requests) {
+            request.notifyFailed(new XMPPException("Connection closed."));
+        }
+    }
+
+    /**
+     * A join of a room, from the moment it's queued until the room replies or the join
+     * times out.
+     */
+    final class JoinRequest implements Runnable {
+
+        private final MultiUserChat muc;
+        private final String nickname;
+        private final String password;
+        private final DiscussionHistory history;
+        private final RoomJoinListener listener;
+        private final boolean rejoin;
+        private Date since;
+        private TimerWheel.Timeout timeout;
+
+        JoinRequest(MultiUserChat muc, String nickname, String password,
+                DiscussionHistory history, RoomJoinListener listener, boolean rejoin)
+        {
+            this.muc = muc;
+            this.nickname = nickname;
+            this.password = password;
+            this.history = history;
+            this.listener = listener;
+            this.rejoin = rejoin;
+        }
+
+        String getNickname() {
+            return nickname;
+        }
+
+        void send() {
+            if (!muc.setPendingJoin(this)) {
+                completed();
+                notifyFailed(new XMPPException("Another join of the room is in progress."));
+                return;
+            }
+            synchronized (this) {
+                timeout = timer.schedule(this, getJoinTimeout());
+            }
+            try {
+                if (rejoin) {
+                    // The occupancy of the room ended with the previous connection
+                    muc.resetJoinState();
+                }
+                else if (muc.isJoined()) {
+                    muc.leave();
+                }
+                DiscussionHistory joinHistory = history;
+                if (since != null) {
+                    // Only request the history sent since the connection was lost
+                    joinHistory = new DiscussionHistory();
+                    joinHistory.setSince(since);
+                }
+                connection.sendPacket(muc.createJoinPresence(nickname, password, joinHistory));
+            }
+            catch (IllegalStateException e) {
+                // The connection is not connected
+                if (muc.clearPendingJoin(this)) {
+                    cancelTimeout();
+                    completed();
+                    notifyFailed(new XMPPException(e.getMessage()));
+                }
+            }
+        }
+
+        /**
+         * Called by the room when it replied to the join.
+         */
+        void replyReceived(Presence presence) {
+            cancelTimeout();
+            completed();
+            if (presence.getError() != null) {
+                notifyFailed(new XMPPException(presence.getError()));
+                return;
+            }
+            synchronized (MultiUserChatJoinManager.this) {
+                joinedRooms.put(muc, this);
+            }
+            if (listener != null) {
+                listener.joined(muc);
+            }
+        }
+
+        /**
+         * Called by the timer when the room did not reply in time.
+         */
+        public void run() {
+            if (muc.clearPendingJoin(this)) {
+                completed();
+                notifyFailed(new XMPPException("No response from server."));
+            }
+        }
+
+        private synchronized void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        private void completed() {
+            synchronized (MultiUserChatJoinManager.this) {
+                pendingCount--;
+            }
+            sendQueuedJoins();
+        }
+
+        void notifyFailed(XMPPException error) {
+            if (listener != null) {
+                listener.joinFailed(muc, error);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.smackx.muc;
+
+import org.jivesoftware.smack.XMPPException;
+
+/**
+ * A listener that is notified of the outcome of the joins sent by a
+ * {@link MultiUserChatJoinManager}. The methods are called by the thread that processes
+ * the incoming packets or by the thread of the join timeouts, so they must return quickly.
+ *
+ * @see MultiUserChatJoinManager#join(MultiUserChat, String, String, DiscussionHistory, RoomJoinListener)
+ */
+public interface RoomJoinListener {
+
+    /**
+     * Called when the room confirmed that the user joined it.
+     *
+     * @param muc the room that was joined.
+     */
+    public void joined(MultiUserChat muc);
+
+    /**
+     * Called when the room rejected the join or did not reply in time.
+     *
+     * @param muc the room that could not be joined.
+     * @param error the error returned by the room, or an error without
+     *      {@link XMPPException#getXMPPError() XMPP error} if the room did not reply or
+     *      the connection was closed.
+     */
+    public void joinFailed(MultiUserChat muc, XMPPException error);
+}
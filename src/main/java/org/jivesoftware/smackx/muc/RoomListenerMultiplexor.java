@@ -24,8 +24,8 @@ import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.JID;
 import org.jivesoftware.smack.packet.Packet;
-import org.jivesoftware.smack.util.StringUtils;
 
 import java.lang.ref.WeakReference;
 import java.util.Map;
@@ -106,7 +106,8 @@ class RoomListenerMultiplexor implements ConnectionListener {
     }
 
     public void connectionClosedOnError(Exception e) {
-        cancel();
+        // Keep the listeners so that the rooms still receive their packets once the
+        // connection is reconnected
     }
 
     public void reconnectingIn(int seconds) {
@@ -143,6 +144,12 @@ class RoomListenerMultiplexor implements ConnectionListener {
     private void cancel() {
         connection.removeConnectionListener(this);
         connection.removePacketListener(listener);
+        synchronized (monitors) {
+            WeakReference<RoomListenerMultiplexor> reference = monitors.get(connection);
+            if (reference != null && reference.get() == this) {
+                monitors.remove(connection);
+            }
+        }
     }
 
     /**
@@ -158,11 +165,11 @@ class RoomListenerMultiplexor implements ConnectionListener {
         private Map<String, String> roomAddressTable = new ConcurrentHashMap<String, String>();
 
         public boolean accept(Packet p) {
-            String from = p.getFrom();
+            JID from = p.getFromJID();
             if (from == null) {
                 return false;
             }
-            return roomAddressTable.containsKey(StringUtils.parseBareAddress(from).toLowerCase());
+            return roomAddressTable.containsKey(from.getBareAddressLowerCase());
         }
 
         public void addRoom(String address) {
@@ -197,13 +204,13 @@ class RoomListenerMultiplexor implements ConnectionListener {
                 new ConcurrentHashMap<String, PacketMultiplexListener>();
 
         public void processPacket(Packet p) {
-            String from = p.getFrom();
+            JID from = p.getFromJID();
             if (from == null) {
                 return;
             }
 
             PacketMultiplexListener listener =
-                    roomListenersByAddress.get(StringUtils.parseBareAddress(from).toLowerCase());
+                    roomListenersByAddress.get(from.getBareAddressLowerCase());
 
             if (listener != null) {
                 listener.processPacket(p);
@@ -0,0 +1,106 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.smackx.packet;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * The entity capabilities of an XMPP entity (XEP-0115), which are sent with its available
+ * presence. The <tt>ver</tt> attribute is a hash of the identities, features and extended
+ * information that the entity returns to a disco#info query, so entities that advertise
+ * the same <tt>ver</tt> support the same features and their information only needs to be
+ * discovered once.
+ *
+ * @see org.jivesoftware.smackx.EntityCapsManager
+ */
+public class CapsExtension implements PacketExtension {
+
+    public static final String ELEMENT_NAME = "c";
+
+    public static final String NAMESPACE = "http://jabber.org/protocol/caps";
+
+    private final String node;
+    private final String ver;
+    private final String hash;
+
+    /**
+     * Creates the entity capabilities of an entity.
+     *
+     * @param node the URI that identifies the software of the entity.
+     * @param ver the verification string of the capabilities.
+     * @param hash the name of the hash function used to compute the verification string,
+     *      for example <tt>sha-1</tt>, or <tt>null</tt> for the legacy format of
+     *      capabilities, which cannot be verified.
+     */
+    public CapsExtension(String node, String ver, String hash) {
+        this.node = node;
+        this.ver = ver;
+        this.hash = hash;
+    }
+
+    public String getElementName() {
+        return ELEMENT_NAME;
+    }
+
+    public String getNamespace() {
+        return NAMESPACE;
+    }
+
+    /**
+     * Returns the URI that identifies the software of the entity.
+     *
+     * @return the node of the capabilities.
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Returns the verification string of the capabilities.
+     *
+     * @return the verification string.
+     */
+    public String getVer() {
+        return ver;
+    }
+
+    /**
+     * Returns the name of the hash function used to compute the verification string, or
+     * <tt>null</tt> if the capabilities use the legacy format.
+     *
+     * @return the name of the hash function, for example <tt>sha-1</tt>.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public String toXML() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("<").append(ELEMENT_NAME).append(" xmlns=\"").append(NAMESPACE).append("\"");
+        if (hash != null) {
+            buf.append(" hash=\"").append(StringUtils.escapeForXML(hash)).append("\"");
+        }
+        if (node != null) {
+            buf.append(" node=\"").append(StringUtils.escapeForXML(node)).append("\"");
+        }
+        if (ver != null) {
+            buf.append(" ver=\"").append(StringUtils.escapeForXML(ver)).append("\"");
+        }
+        buf.append("/>");
+        return buf.toString();
+    }
+}
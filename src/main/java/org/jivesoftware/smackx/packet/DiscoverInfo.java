@@ -169,6 +169,7 @@ public class DiscoverInfo extends IQ {
         private String category;
         private String name;
         private String type;
+        private String lang;
 
         /**
          * Creates a new identity for an XMPP entity.
@@ -220,6 +221,26 @@ public class DiscoverInfo extends IQ {
             this.type = type;
         }
 
+        /**
+         * Returns the language of the identity's name, or <tt>null</tt> if it's not
+         * specified.
+         *
+         * @return the xml:lang of the identity.
+         */
+        public String getLanguage() {
+            return lang;
+        }
+
+        /**
+         * Sets the language of the identity's name. Entities may have one identity for each
+         * language of their name.
+         *
+         * @param lang the xml:lang of the identity.
+         */
+        public void setLanguage(String lang) {
+            this.lang = lang;
+        }
+
         public String toXML() {
             StringBuilder buf = new StringBuilder();
             buf.append("<identity category=\"").append(category).append("\"");
@@ -227,6 +248,9 @@ public class DiscoverInfo extends IQ {
             if (type != null) {
                 buf.append(" type=\"").append(type).append("\"");
             }
+            if (lang != null) {
+                buf.append(" xml:lang=\"").append(lang).append("\"");
+            }
             buf.append("/>");
             return buf.toString();
         }
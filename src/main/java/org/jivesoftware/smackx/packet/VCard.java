@@ -565,10 +565,19 @@ public class VCard extends IQ {
 
     public String getChildElementXML() {
         StringBuilder sb = new StringBuilder();
-        new VCardWriter(sb).write();
+        try {
+            new VCardWriter(sb).write();
+        }
+        catch (IOException ioe) {
+            // Never happens since a StringBuilder is used
+        }
         return sb.toString();
     }
 
+    protected void appendChildElementXML(Appendable out) throws IOException {
+        new VCardWriter(out).write();
+    }
+
     private void copyFieldsFrom(VCard result) {
         if (result == null) result = new VCard();
 
@@ -694,21 +703,21 @@ public class VCard extends IQ {
 
     private class VCardWriter {
 
-        private final StringBuilder sb;
+        private final Appendable out;
 
-        VCardWriter(StringBuilder sb) {
-            this.sb = sb;
+        VCardWriter(Appendable out) {
+            this.out = out;
         }
 
-        public void write() {
+        public void write() throws IOException {
             appendTag("vCard", "xmlns", "vcard-temp", hasContent(), new ContentBuilder() {
-                public void addTagContent() {
+                public void addTagContent() throws IOException {
                     buildActualContent();
                 }
             });
         }
 
-        private void buildActualContent() {
+        private void buildActualContent() throws IOException {
             if (hasNameField()) {
                 appendN();
             }
@@ -726,10 +735,10 @@ public class VCard extends IQ {
             appendAddress(homeAddr, "HOME");
         }
 
-        private void appendEmail(final String email, final String type) {
+        private void appendEmail(final String email, final String type) throws IOException {
             if (email != null) {
                 appendTag("EMAIL", true, new ContentBuilder() {
-                    public void addTagContent() {
+                    public void addTagContent() throws IOException {
                         appendEmptyTag(type);
                         appendEmptyTag("INTERNET");
                         appendEmptyTag("PREF");
@@ -739,12 +748,13 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendPhones(Map<String, String> phones, final String code) {
+        private void appendPhones(Map<String, String> phones, final String code)
+                throws IOException {
             Iterator it = phones.entrySet().iterator();
             while (it.hasNext()) {
                 final Map.Entry entry = (Map.Entry) it.next();
                 appendTag("TEL", true, new ContentBuilder() {
-                    public void addTagContent() {
+                    public void addTagContent() throws IOException {
                         appendEmptyTag(entry.getKey());
                         appendEmptyTag(code);
                         appendTag("NUMBER", StringUtils.escapeForXML((String) entry.getValue()));
@@ -753,10 +763,11 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendAddress(final Map<String, String> addr, final String code) {
+        private void appendAddress(final Map<String, String> addr, final String code)
+                throws IOException {
             if (addr.size() > 0) {
                 appendTag("ADR", true, new ContentBuilder() {
-                    public void addTagContent() {
+                    public void addTagContent() throws IOException {
                         appendEmptyTag(code);
 
                         Iterator it = addr.entrySet().iterator();
@@ -769,11 +780,11 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendEmptyTag(Object tag) {
-            sb.append('<').append(tag).append("/>");
+        private void appendEmptyTag(Object tag) throws IOException {
+            out.append('<').append(tag.toString()).append("/>");
         }
 
-        private void appendGenericFields() {
+        private void appendGenericFields() throws IOException {
             Iterator it = otherSimpleFields.entrySet().iterator();
             while (it.hasNext()) {
                 Map.Entry entry = (Map.Entry) it.next();
@@ -788,10 +799,10 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendOrganization() {
+        private void appendOrganization() throws IOException {
             if (hasOrganizationFields()) {
                 appendTag("ORG", true, new ContentBuilder() {
-                    public void addTagContent() {
+                    public void addTagContent() throws IOException {
                         appendTag("ORGNAME", StringUtils.escapeForXML(organization));
                         appendTag("ORGUNIT", StringUtils.escapeForXML(organizationUnit));
                     }
@@ -799,9 +810,9 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendN() {
+        private void appendN() throws IOException {
             appendTag("N", true, new ContentBuilder() {
-                public void addTagContent() {
+                public void addTagContent() throws IOException {
                     appendTag("FAMILY", StringUtils.escapeForXML(lastName));
                     appendTag("GIVEN", StringUtils.escapeForXML(firstName));
                     appendTag("MIDDLE", StringUtils.escapeForXML(middleName));
@@ -810,31 +821,32 @@ public class VCard extends IQ {
         }
 
         private void appendTag(String tag, String attr, String attrValue, boolean hasContent,
-                ContentBuilder builder) {
-            sb.append('<').append(tag);
+                ContentBuilder builder) throws IOException {
+            out.append('<').append(tag);
             if (attr != null) {
-                sb.append(' ').append(attr).append('=').append('\'').append(attrValue).append('\'');
+                out.append(' ').append(attr).append('=').append('\'').append(attrValue).append('\'');
             }
 
             if (hasContent) {
-                sb.append('>');
+                out.append('>');
                 builder.addTagContent();
-                sb.append("</").append(tag).append(">\n");
+                out.append("</").append(tag).append(">\n");
             }
             else {
-                sb.append("/>\n");
+                out.append("/>\n");
             }
         }
 
-        private void appendTag(String tag, boolean hasContent, ContentBuilder builder) {
+        private void appendTag(String tag, boolean hasContent, ContentBuilder builder)
+                throws IOException {
             appendTag(tag, null, null, hasContent, builder);
         }
 
-        private void appendTag(String tag, final String tagText) {
+        private void appendTag(String tag, final String tagText) throws IOException {
             if (tagText == null) return;
             final ContentBuilder contentBuilder = new ContentBuilder() {
-                public void addTagContent() {
-                    sb.append(tagText.trim());
+                public void addTagContent() throws IOException {
+                    out.append(tagText.trim());
                 }
             };
             appendTag(tag, true, contentBuilder);
@@ -846,7 +858,7 @@ public class VCard extends IQ {
 
     private interface ContentBuilder {
 
-        void addTagContent();
+        void addTagContent() throws IOException;
     }
 
     //==============================================================
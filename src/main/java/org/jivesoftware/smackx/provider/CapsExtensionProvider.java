@@ -0,0 +1,38 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.smackx.provider;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smackx.packet.CapsExtension;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Parses the entity capabilities of an XMPP entity (XEP-0115).
+ */
+public class CapsExtensionProvider implements PacketExtensionProvider {
+
+    public PacketExtension parseExtension(XmlPullParser parser) throws Exception {
+        String node = parser.getAttributeValue("", "node");
+        String ver = parser.getAttributeValue("", "ver");
+        String hash = parser.getAttributeValue("", "hash");
+        // Skip to the end of the element
+        while (parser.next() != XmlPullParser.END_TAG || !parser.getName().equals("c")) {
+            // Ignore any content
+        }
+        return new CapsExtension(node, ver, hash);
+    }
+}
@@ -41,6 +41,7 @@ public class DiscoverInfoProvider implements IQProvider {
         String category = "";
         String name = "";
         String type = "";
+        String lang = null;
         String variable = "";
         discoverInfo.setNode(parser.getAttributeValue("", "node"));
         while (!done) {
@@ -51,6 +52,7 @@ public class DiscoverInfoProvider implements IQProvider {
                     category = parser.getAttributeValue("", "category");
                     name = parser.getAttributeValue("", "name");
                     type = parser.getAttributeValue("", "type");
+                    lang = PacketParserUtils.getLanguageAttribute(parser);
                 }
                 else if (parser.getName().equals("feature")) {
                     // Initialize the variables from the parsed XML
@@ -66,6 +68,7 @@ public class DiscoverInfoProvider implements IQProvider {
                     // Create a new identity and add it to the discovered info.
                     identity = new DiscoverInfo.Identity(category, name);
                     identity.setType(type);
+                    identity.setLanguage(lang);
                     discoverInfo.addIdentity(identity);
                 }
                 if (parser.getName().equals("feature")) {
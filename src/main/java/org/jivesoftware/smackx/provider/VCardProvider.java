@@ -25,13 +25,15 @@ import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.packet.VCard;
 import org.w3c.dom.*;
+import org.xml.sax.InputSource;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.ByteArrayInputStream;
+
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -43,8 +45,6 @@ import java.util.List;
  */
 public class VCardProvider implements IQProvider {
 
-    private static final String PREFERRED_ENCODING = "UTF-8";
-
     public IQ parseIQ(XmlPullParser parser) throws Exception {
         final StringBuilder sb = new StringBuilder();
         try {
@@ -54,7 +54,7 @@ public class VCardProvider implements IQProvider {
                 switch (event) {
                     case XmlPullParser.TEXT:
                         // We must re-escape the xml so that the DOM won't throw an exception
-                        sb.append(StringUtils.escapeForXML(parser.getText()));
+                        StringUtils.escapeForXML(parser.getText(), sb);
                         break;
                     case XmlPullParser.START_TAG:
                         sb.append('<').append(parser.getName()).append('>');
@@ -93,8 +93,7 @@ public class VCardProvider implements IQProvider {
 
         DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
         DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        Document document = documentBuilder.parse(
-                new ByteArrayInputStream(xml.getBytes(PREFERRED_ENCODING)));
+        Document document = documentBuilder.parse(new InputSource(new StringReader(xml)));
 
         new VCardReader(vCard, document).initializeFields();
         return vCard;
@@ -14,9 +14,13 @@
 package org.jivesoftware.smackx.pubsub;
 
 import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.StreamablePacketExtension;
 import org.jivesoftware.smackx.pubsub.provider.ItemProvider;
 
+import java.io.IOException;
+
 /**
  * This class represents an item that has been, or will be published to a
  * pubsub node.  An <tt>Item</tt> has several properties that are dependent
@@ -41,6 +45,7 @@ import org.jivesoftware.smackx.pubsub.provider.ItemProvider;
  * @author Robin Collier
  */
 public class PayloadItem<E extends PacketExtension> extends Item
+	implements StreamablePacketExtension
 {
 	private E payload;
 	
@@ -109,25 +114,37 @@ public class PayloadItem<E extends PacketExtension> extends Item
 	@Override
 	public String toXML()
 	{
-		StringBuilder builder = new StringBuilder("<item");
+		StringBuilder builder = new StringBuilder();
+		try
+		{
+			toXML(builder);
+		}
+		catch (IOException e)
+		{
+			// Never happens since a StringBuilder is used
+		}
+		return builder.toString();
+	}
+
+	public void toXML(Appendable out) throws IOException
+	{
+		out.append("<item");
 		
 		if (getId() != null)
 		{
-			builder.append(" id='");
-			builder.append(getId());
-			builder.append("'");
+			out.append(" id='");
+			out.append(getId());
+			out.append("'");
 		}
 		
         if (getNode() != null) {
-            builder.append(" node='");
-            builder.append(getNode());
-            builder.append("'");
+            out.append(" node='");
+            out.append(getNode());
+            out.append("'");
         }
-		builder.append(">");
-		builder.append(payload.toXML());
-		builder.append("</item>");
-		
-		return builder.toString();
+		out.append(">");
+		Packet.appendExtensionXML(payload, out);
+		out.append("</item>");
 	}
 
 	@Override
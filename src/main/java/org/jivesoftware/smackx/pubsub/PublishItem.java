@@ -13,6 +13,10 @@
  */
 package org.jivesoftware.smackx.pubsub;
 
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.StreamablePacketExtension;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -22,6 +26,7 @@ import java.util.Collection;
  * @author Robin Collier
  */
 public class PublishItem <T extends Item> extends NodeExtension
+	implements StreamablePacketExtension
 {
 	protected Collection<T> items;
 	
@@ -53,18 +58,30 @@ public class PublishItem <T extends Item> extends NodeExtension
 	@Override
 	public String toXML()
 	{
-		StringBuilder builder = new StringBuilder("<");
-		builder.append(getElementName());
-		builder.append(" node='");
-		builder.append(getNode());
-		builder.append("'>");
+		StringBuilder builder = new StringBuilder();
+		try
+		{
+			toXML(builder);
+		}
+		catch (IOException e)
+		{
+			// Never happens since a StringBuilder is used
+		}
+		return builder.toString();
+	}
+
+	public void toXML(Appendable out) throws IOException
+	{
+		out.append("<");
+		out.append(getElementName());
+		out.append(" node='");
+		out.append(getNode());
+		out.append("'>");
 		
 		for (Item item : items)
 		{
-			builder.append(item.toXML());
+			Packet.appendExtensionXML(item, out);
 		}
-		builder.append("</publish>");
-		
-		return builder.toString();
+		out.append("</publish>");
 	}
 }
@@ -17,6 +17,8 @@ import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smackx.pubsub.PubSubElementType;
 
+import java.io.IOException;
+
 /**
  * The standard PubSub extension of an {@link IQ} packet.  This is the topmost
  * element of all pubsub requests and replies as defined in the <a href="http://xmpp.org/extensions/xep-0060">Publish-Subscribe</a> 
@@ -103,4 +105,10 @@ public class PubSub extends IQ
         return buf.toString();
     }
 
+    protected void appendChildElementXML(Appendable out) throws IOException {
+        out.append("<").append(getElementName()).append(" xmlns=\"").append(getNamespace()).append("\">");
+        appendExtensionsXML(out);
+        out.append("</").append(getElementName()).append(">");
+    }
+
 }
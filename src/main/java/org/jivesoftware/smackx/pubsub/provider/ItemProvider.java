@@ -49,7 +49,9 @@ public class ItemProvider implements PacketExtensionProvider
 			String payloadElemName = parser.getName();
 			String payloadNS = parser.getNamespace();
 			
-	        if (ProviderManager.getInstance().getExtensionProvider(payloadElemName, payloadNS) == null)
+			Object provider = ProviderManager.getInstance().getExtensionProvider(payloadElemName, payloadNS);
+			
+	        if (provider == null)
 	        {
 	    		boolean done = false;
 	    		StringBuilder payloadText = new StringBuilder();
@@ -68,7 +70,7 @@ public class ItemProvider implements PacketExtensionProvider
 	        }
 	        else
 	        {
-	        	return new PayloadItem<PacketExtension>(id, node, PacketParserUtils.parsePacketExtension(payloadElemName, payloadNS, parser));
+	        	return new PayloadItem<PacketExtension>(id, node, PacketParserUtils.parsePacketExtension(payloadElemName, payloadNS, provider, parser));
 	        }
 		}
 	}